@@ -8,6 +8,7 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -16,6 +17,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.blumenthal.listey.CascadeDelete;
 import com.blumenthal.listey.CategoryInfo;
 import com.blumenthal.listey.DataStoreUniqueId;
 import com.blumenthal.listey.ItemCategoryInfo;
@@ -304,7 +306,8 @@ public class DatastoreAdapter {
 		List<Key> deleteKeys = new ArrayList<Key>();
 		ListeyDataMultipleUsers updatedMultiUser = ListeyDataMultipleUsers.compareAndUpdate(uniqueIdCreator, serverMultiUser, clientMultiUser, updateEntities, deleteKeys);
 		assertNotNull(updatedMultiUser);
-		assertEquals(4, deleteKeys.size());
+		//The deleted list's children are left for CascadeDelete
+		assertEquals(0, deleteKeys.size());
 		assertEquals(9, updateEntities.size());
 		
 		//Verify list change was noticed
@@ -391,12 +394,9 @@ public class DatastoreAdapter {
 		//Verify deleted list was noticed
 		ListInfo updatedListToDelete = updatedMultiUser.userData.get(FOO_EMAIL).lists.get(fooListToDeleteId);
 		assertTrue(updatedListToDelete.shallowEquals(clientListToDelete));
+		assertEquals(Collections.singletonList(updateEntities.get(0).getKey()), CascadeDelete.tombstones(updateEntities));
 		listFromEntity = new ListInfo(updateEntities.remove(0));
 		assertTrue(listFromEntity.shallowEquals(clientListToDelete));
-		Key deletedKey = deleteKeys.remove(0);
-		deletedKey.getKind().equals(ItemInfo.KIND);
-		deletedKey = deleteKeys.remove(0);
-		deletedKey.getKind().equals(ItemCategoryInfo.KIND);
 		
 		//Verify new list was noticed
 		//Iterate through the list ids until you find the one that is NOT the one we already knew
@@ -0,0 +1,184 @@
+/**
+ *
+ */
+package com.blumenthal.ListeyTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Just enough of a servlet request and response to call doPost directly.  Anything
+ * the servlets don't use returns null, 0 or false.
+ *
+ * @author David
+ *
+ */
+public class FakeHttp {
+
+	/**
+	 * A request with parameters, headers and a body
+	 */
+	static class Request implements InvocationHandler {
+		private final Map<String, String> params = new HashMap<String, String>();
+		private final Map<String, String> headers = new HashMap<String, String>();
+		private byte[] body = new byte[0];
+
+		Request param(String name, String value) {
+			params.put(name, value);
+			return this;
+		}
+
+		Request header(String name, String value) {
+			headers.put(name.toLowerCase(), value);
+			return this;
+		}
+
+		Request body(String contentType, byte[] bytes) {
+			header("Content-Type", contentType);
+			body = bytes;
+			return this;
+		}
+
+		HttpServletRequest get() {
+			return (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] {HttpServletRequest.class}, this);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("getParameter")) return params.get(args[0]);
+			if (name.equals("getHeader")) return headers.get(((String) args[0]).toLowerCase());
+			if (name.equals("getContentType")) return headers.get("content-type");
+			if (name.equals("getContentLength")) return body.length;
+			if (name.equals("getMethod")) return "POST";
+			if (name.equals("getInputStream")) {
+				final InputStream in = new ByteArrayInputStream(body);
+				return new ServletInputStream() {
+					@Override
+					public int read() throws IOException {
+						return in.read();
+					}
+				};
+			}
+			return defaultValue(method.getReturnType());
+		}
+	}//Request
+
+
+
+	/**
+	 * A response that keeps the status, headers and body written to it
+	 */
+	static class Response implements InvocationHandler {
+		private final Map<String, String> headers = new HashMap<String, String>();
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		private int status = 200;
+		private String contentType;
+
+		HttpServletResponse get() {
+			return (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] {HttpServletResponse.class}, this);
+		}
+
+		int getStatus() {
+			return status;
+		}
+
+		String getHeader(String name) {
+			return headers.get(name.toLowerCase());
+		}
+
+		String getContentType() {
+			return contentType;
+		}
+
+		/**
+		 * @return the body as it went over the wire, gzipped or not
+		 */
+		byte[] getWireBytes() {
+			return body.toByteArray();
+		}
+
+		/**
+		 * @return the body as text, un-gzipped if it was sent that way
+		 */
+		String getText() throws IOException {
+			InputStream in = new ByteArrayInputStream(body.toByteArray());
+			if ("gzip".equals(getHeader("Content-Encoding"))) {
+				in = new GZIPInputStream(in);
+			}
+			ByteArrayOutputStream text = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+				text.write(buf, 0, n);
+			}
+			return text.toString("UTF-8");
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("setStatus") || name.equals("sendError")) {
+				status = (Integer) args[0];
+				return null;
+			}
+			if (name.equals("setHeader") || name.equals("addHeader")) {
+				headers.put(((String) args[0]).toLowerCase(), (String) args[1]);
+				return null;
+			}
+			if (name.equals("setContentType")) {
+				contentType = (String) args[0];
+				return null;
+			}
+			if (name.equals("getOutputStream")) {
+				return new ServletOutputStream() {
+					@Override
+					public void write(int b) throws IOException {
+						body.write(b);
+					}
+				};
+			}
+			if (name.equals("getWriter")) return new PrintWriter(new OutputStreamWriter(body, "UTF-8"), true);
+			return defaultValue(method.getReturnType());
+		}
+	}//Response
+
+
+
+	/**
+	 * @return text gzipped, as a client would send it
+	 */
+	static byte[] gzip(String text) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		GZIPOutputStream out = new GZIPOutputStream(bytes);
+		out.write(text.getBytes("UTF-8"));
+		out.close();
+		return bytes.toByteArray();
+	}//gzip
+
+
+
+	private static Object defaultValue(Class<?> type) {
+		if (type == boolean.class) return false;
+		if (type == int.class) return 0;
+		if (type == long.class) return 0L;
+		return null;
+	}//defaultValue
+}//FakeHttp
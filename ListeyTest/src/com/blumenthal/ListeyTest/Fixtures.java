@@ -0,0 +1,205 @@
+/**
+ *
+ */
+package com.blumenthal.ListeyTest;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.blumenthal.listey.CategoryInfo;
+import com.blumenthal.listey.DataStoreUniqueId;
+import com.blumenthal.listey.ItemCategoryInfo;
+import com.blumenthal.listey.ItemInfo;
+import com.blumenthal.listey.ListCommitter;
+import com.blumenthal.listey.ListInfo;
+import com.blumenthal.listey.ListeyDataMultipleUsers;
+import com.blumenthal.listey.ListeyDataOneUser;
+import com.blumenthal.listey.OtherUserPrivOnList;
+import com.blumenthal.listey.TimeStampedNode;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+
+/**
+ * Lists, items and users for the tests to work with, and ways to get them into the datastore.
+ * Everything is owned by FOO_EMAIL unless it says otherwise.
+ *
+ * @author David
+ *
+ */
+public class Fixtures {
+	static final String FOO_EMAIL = "foo@test.com";
+	static final String BAR_EMAIL = "bar@test.com";
+	static final String BAZ_EMAIL = "baz@test.com";
+
+
+
+	/**
+	 * @return an active item with no categories
+	 */
+	static ItemInfo makeItem(String id, String name, long lastUpdate) {
+		ItemInfo item = new ItemInfo();
+		item.setUniqueId(id);
+		item.setName(name);
+		item.setLastUpdate(lastUpdate);
+		item.setStatus(TimeStampedNode.Status.ACTIVE);
+		return item;
+	}//makeItem
+
+
+
+	/**
+	 * @return a deleted item in the category, the way a client leaves it for the server
+	 */
+	static ItemInfo makeDeletedItem(String id, String categoryId) {
+		ItemInfo item = makeItem(id, "Item " + id, 100L);
+		item.setStatus(TimeStampedNode.Status.DELETED);
+		ItemCategoryInfo itemCat = makeItemCategory(categoryId);
+		item.getCategories().put(itemCat.getUniqueId(), itemCat);
+		return item;
+	}//makeDeletedItem
+
+
+
+	/**
+	 * @return an active item category, to put in an item
+	 */
+	static ItemCategoryInfo makeItemCategory(String categoryId) {
+		ItemCategoryInfo itemCat = new ItemCategoryInfo();
+		itemCat.setUniqueId(categoryId);
+		itemCat.setLastUpdate(100L);
+		itemCat.setStatus(TimeStampedNode.Status.ACTIVE);
+		return itemCat;
+	}//makeItemCategory
+
+
+
+	/**
+	 * @return a list with one category, and itemCount items (listId-1, listId-2...) each in that category,
+	 * shared with full privs to the sharedWith users
+	 */
+	static ListInfo makeList(String listId, int itemCount, String... sharedWith) {
+		ListInfo list = new ListInfo(TimeStampedNode.Status.ACTIVE, listId, "List " + listId, 100L);
+		CategoryInfo cat = new CategoryInfo();
+		cat.setUniqueId(listId + "-c");
+		cat.setName("Category");
+		cat.setLastUpdate(100L);
+		cat.setStatus(TimeStampedNode.Status.ACTIVE);
+		list.getCategories().add(cat);
+		for (int i = 1; i <= itemCount; i++) {
+			ItemInfo item = makeItem(listId + "-" + i, "Item " + i, 100L + i);
+			item.setCount((long) i);
+			ItemCategoryInfo itemCat = makeItemCategory(cat.getUniqueId());
+			item.getCategories().put(itemCat.getUniqueId(), itemCat);
+			list.getItems().put(item.getUniqueId(), item);
+		}
+		for (String userEmail : sharedWith) {
+			list.getOtherUserPrivs().put(userEmail, makePriv(userEmail));
+		}
+		return list;
+	}//makeList
+
+
+
+	/**
+	 * @return a list with just these items, no categories
+	 */
+	static ListInfo makeList(String listId, String name, long lastUpdate, ItemInfo... items) {
+		ListInfo list = new ListInfo(TimeStampedNode.Status.ACTIVE, listId, name, lastUpdate);
+		for (ItemInfo item : items) {
+			list.getItems().put(item.getUniqueId(), item);
+		}
+		return list;
+	}//makeList
+
+
+
+	/**
+	 * @return full privs on a list for the user
+	 */
+	static OtherUserPrivOnList makePriv(String userEmail) {
+		OtherUserPrivOnList priv = new OtherUserPrivOnList();
+		priv.userId = userEmail;
+		priv.priv = OtherUserPrivOnList.OtherUserPriv.FULL;
+		priv.lastUpdate = 100L;
+		return priv;
+	}//makePriv
+
+
+
+	/**
+	 * @return the user with just these lists
+	 */
+	static ListeyDataOneUser makeOneUser(String userEmail, ListInfo... lists) {
+		ListeyDataOneUser rv = new ListeyDataOneUser();
+		rv.setUniqueId(userEmail);
+		for (ListInfo list : lists) {
+			rv.lists.put(list.getUniqueId(), list);
+		}
+		return rv;
+	}//makeOneUser
+
+
+
+	/**
+	 * @return FOO_EMAIL with these lists, as the servlet would parse it from a client
+	 */
+	static ListeyDataMultipleUsers makeUser(ListInfo... lists) {
+		ListeyDataMultipleUsers multiUser = new ListeyDataMultipleUsers();
+		multiUser.userData.put(FOO_EMAIL, makeOneUser(FOO_EMAIL, lists));
+		return ListeyDataMultipleUsers.fromJson(FOO_EMAIL, multiUser.toJson());
+	}//makeUser
+
+
+
+	/**
+	 * Commit the entities a list at a time, against whatever version each list has now.
+	 */
+	static void commit(DatastoreService datastore, List<Entity> updateEntities, List<Key> deleteKeys) {
+		for (ListCommitter.ListChanges changes : ListCommitter.groupByList(updateEntities, deleteKeys).values()) {
+			Entity current = null;
+			try {
+				current = datastore.get(changes.getListKey());
+			} catch (EntityNotFoundException e) {
+				//new list
+			}
+			changes.setExpectedVersion(ListCommitter.getVersion(current));
+			assertTrue(ListCommitter.commit(datastore, changes));
+		}
+	}//commit
+
+
+
+	static void commit(DatastoreService datastore, List<Entity> updateEntities) {
+		commit(datastore, updateEntities, new ArrayList<Key>());
+	}//commit
+
+
+
+	/**
+	 * Commit the whole list for FOO_EMAIL, as a new list if expectedVersion is 0
+	 * @return whether it committed
+	 */
+	static boolean commit(DatastoreService datastore, ListInfo list, long expectedVersion) {
+		Key userKey = ListeyDataOneUser.getEntityKey(FOO_EMAIL);
+		ListCommitter.ListChanges changes = new ListCommitter.ListChanges(list.getEntityKey(userKey));
+		changes.setExpectedVersion(expectedVersion);
+		changes.getUpdateEntities().addAll(list.toEntities(new DataStoreUniqueId(), userKey));
+		return ListCommitter.commit(datastore, changes);
+	}//commit
+
+
+
+	/**
+	 * @return how many entities of the kind FOO_EMAIL has
+	 */
+	static int countKind(DatastoreService datastore, String kind) {
+		Query q = new Query(kind).setAncestor(ListeyDataOneUser.getEntityKey(FOO_EMAIL));
+		return datastore.prepare(q).countEntities(FetchOptions.Builder.withDefaults());
+	}//countKind
+}//Fixtures
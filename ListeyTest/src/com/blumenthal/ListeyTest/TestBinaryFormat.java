@@ -0,0 +1,118 @@
+/**
+ *
+ */
+package com.blumenthal.ListeyTest;
+
+import static com.blumenthal.ListeyTest.TestJsonParse.USER1_EMAIL;
+import static com.blumenthal.ListeyTest.TestJsonParse.USER1_JSON;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.blumenthal.listey.DeltaSyncResponse;
+import com.blumenthal.listey.ListInfo;
+import com.blumenthal.listey.ListeyBinaryReader;
+import com.blumenthal.listey.ListeyBinaryWriter;
+import com.blumenthal.listey.ListeyDataMultipleUsers;
+import com.blumenthal.listey.SyncToken;
+import com.blumenthal.listey.TimeStampedNode;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.gson.JsonParseException;
+
+/**
+ * @author David
+ *
+ */
+public class TestBinaryFormat {
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+
+    @Test
+    public void testRoundTrip() throws IOException {
+    	ListeyDataMultipleUsers parsed = ListeyDataMultipleUsers.fromJson(USER1_EMAIL, USER1_JSON);
+    	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    	new ListeyBinaryWriter(bytes).writeMultipleUsers(parsed);
+
+    	ListeyDataMultipleUsers read = ListeyBinaryReader.readMultipleUsers(USER1_EMAIL, new ByteArrayInputStream(bytes.toByteArray()));
+    	assertEquals(USER1_EMAIL, read.getThisUserEmail());
+    	assertTrue(read.deepEquals(parsed));
+    	assertEquals(USER1_JSON, read.toJson());
+    	assertTrue("binary should be smaller than the JSON", bytes.size() < USER1_JSON.length());
+    }//testRoundTrip
+
+
+    @Test
+    public void testDeltaSyncResponse() throws IOException {
+    	ListeyDataMultipleUsers parsed = ListeyDataMultipleUsers.fromJson(USER1_EMAIL, USER1_JSON);
+    	Map<String, String> tempIds = new HashMap<String, String>();
+    	tempIds.put(":1", "2:1");
+    	DeltaSyncResponse response = new DeltaSyncResponse(parsed, SyncToken.now(), tempIds);
+    	response.setListDigests(parsed.getListDigests());
+
+    	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    	new ListeyBinaryWriter(bytes).writeDeltaSyncResponse(response);
+    	DeltaSyncResponse read = ListeyBinaryReader.readDeltaSyncResponse(new ByteArrayInputStream(bytes.toByteArray()));
+
+    	assertEquals(response.getSyncToken().toString(), read.getSyncToken().toString());
+    	assertEquals(tempIds, read.getTempIds());
+    	assertEquals(response.getListDigests(), read.getListDigests());
+    	assertTrue(read.getChangedData().deepEquals(parsed));
+    }//testDeltaSyncResponse
+
+
+    @Test
+    public void testDigestOnlyList() throws IOException {
+    	ListInfo digestOnly = new ListInfo();
+    	digestOnly.setClientDigest("abc123");
+    	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    	new ListeyBinaryWriter(bytes).writeList(digestOnly);
+
+    	ListInfo read = ListeyBinaryReader.readList(new ByteArrayInputStream(bytes.toByteArray()));
+    	assertTrue(read.isDigestOnly());
+    	assertEquals("abc123", read.getClientDigest());
+    }//testDigestOnlyList
+
+
+    @Test
+    public void testBadInput() throws IOException {
+    	//JSON sent with the binary content type
+    	try {
+    		ListeyBinaryReader.readMultipleUsers(USER1_EMAIL, new ByteArrayInputStream(USER1_JSON.getBytes("UTF-8")));
+    		fail("Expected a parse error");
+    	} catch (JsonParseException e) {
+    		//expected
+    	}
+
+    	//A list record where a whole user was expected
+    	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    	new ListeyBinaryWriter(bytes).writeList(new ListInfo(TimeStampedNode.Status.ACTIVE, "1:1", "List", 100L));
+    	try {
+    		ListeyBinaryReader.readMultipleUsers(USER1_EMAIL, new ByteArrayInputStream(bytes.toByteArray()));
+    		fail("Expected a parse error");
+    	} catch (JsonParseException e) {
+    		//expected
+    	}
+    }//testBadInput
+}//TestBinaryFormat
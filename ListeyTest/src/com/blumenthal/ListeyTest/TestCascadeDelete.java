@@ -0,0 +1,188 @@
+/**
+ *
+ */
+package com.blumenthal.ListeyTest;
+
+import static com.blumenthal.ListeyTest.Fixtures.FOO_EMAIL;
+import static com.blumenthal.ListeyTest.Fixtures.commit;
+import static com.blumenthal.ListeyTest.Fixtures.countKind;
+import static com.blumenthal.ListeyTest.Fixtures.makeList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.blumenthal.listey.CascadeDelete;
+import com.blumenthal.listey.CategoryInfo;
+import com.blumenthal.listey.DataStoreUniqueId;
+import com.blumenthal.listey.ItemCategoryInfo;
+import com.blumenthal.listey.ItemInfo;
+import com.blumenthal.listey.InProcessSnapshotStore;
+import com.blumenthal.listey.ListBlobs;
+import com.blumenthal.listey.ListCommitter;
+import com.blumenthal.listey.ListInfo;
+import com.blumenthal.listey.ListeyDataOneUser;
+import com.blumenthal.listey.SnapshotCache;
+import com.blumenthal.listey.TimeStampedNode;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * @author David
+ *
+ */
+public class TestCascadeDelete {
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        CascadeDelete.setUseTaskQueue(false);
+    }
+
+    @After
+    public void tearDown() {
+        CascadeDelete.setUseTaskQueue(null);
+        ListBlobs.setBlobUsers("");
+        SnapshotCache.set(null);
+        helper.tearDown();
+    }
+
+
+    private Entity tombstone(ListInfo list, Key userKey) {
+    	list.setStatus(TimeStampedNode.Status.DELETED);
+    	list.setLastUpdate(200L);
+    	return list.toEntity(new DataStoreUniqueId(), userKey);
+    }//tombstone
+
+
+    private Entity tombstone(ItemInfo item, Key listKey) {
+    	item.setStatus(TimeStampedNode.Status.DELETED);
+    	item.setLastUpdate(200L);
+    	return item.toEntity(new DataStoreUniqueId(), listKey);
+    }//tombstone
+
+
+    @Test
+    public void testDeleteList() {
+    	DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    	Key userKey = ListeyDataOneUser.getEntityKey(FOO_EMAIL);
+    	//More than one batch's worth under the list
+    	ListInfo list = makeList("1:1", CascadeDelete.BATCH_SIZE / 2 + 10);
+    	ListInfo other = makeList("1:2", 2);
+    	List<Entity> entities = list.toEntities(new DataStoreUniqueId(), userKey);
+    	entities.addAll(other.toEntities(new DataStoreUniqueId(), userKey));
+    	commit(datastore, entities);
+
+    	//Just the tombstone, put straight in so nothing under it gets deleted yet
+    	Entity listTombstone = tombstone(list, userKey);
+    	datastore.put(listTombstone);
+    	ListeyDataOneUser loaded = ListeyDataOneUser.fromDatastore(datastore, FOO_EMAIL);
+    	assertEquals(TimeStampedNode.Status.DELETED, loaded.lists.get("1:1").getStatus());
+    	assertEquals(0, loaded.lists.get("1:1").getItems().size());
+    	assertEquals(0, loaded.lists.get("1:1").getCategories().size());
+
+    	int under = 2 * list.getItems().size() + 1;
+    	assertEquals(under, CascadeDelete.delete(datastore, listTombstone.getKey()));
+    	assertEquals(2, countKind(datastore, ListInfo.KIND));
+    	assertEquals(2, countKind(datastore, ItemInfo.KIND));
+    	assertEquals(2, countKind(datastore, ItemCategoryInfo.KIND));
+    	assertEquals(1, countKind(datastore, CategoryInfo.KIND));
+    	//Nothing left to do the second time, e.g. the task ran again
+    	assertEquals(0, CascadeDelete.delete(datastore, listTombstone.getKey()));
+    }//testDeleteList
+
+
+    @Test
+    public void testCommitDeletesUnderTombstone() {
+    	DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    	Key userKey = ListeyDataOneUser.getEntityKey(FOO_EMAIL);
+    	ListInfo list = makeList("1:1", 3);
+    	commit(datastore, list.toEntities(new DataStoreUniqueId(), userKey));
+
+    	//Deleting an item takes its item category with it when the commit's done
+    	ItemInfo item = list.getItems().get("1:1-2");
+    	List<Entity> updateEntities = new ArrayList<Entity>();
+    	updateEntities.add(tombstone(item, list.getEntityKey(userKey)));
+    	assertEquals(1, CascadeDelete.tombstones(updateEntities).size());
+    	commit(datastore, updateEntities);
+    	assertEquals(3, countKind(datastore, ItemInfo.KIND));
+    	assertEquals(2, countKind(datastore, ItemCategoryInfo.KIND));
+
+    	//Brought back, so nothing under it is deleted any more
+    	ItemInfo other = list.getItems().get("1:1-3");
+    	Entity otherTombstone = tombstone(other, list.getEntityKey(userKey));
+    	other.setStatus(TimeStampedNode.Status.ACTIVE);
+    	datastore.put(other.toEntity(new DataStoreUniqueId(), list.getEntityKey(userKey)));
+    	assertEquals(0, CascadeDelete.delete(datastore, otherTombstone.getKey()));
+    	assertEquals(2, countKind(datastore, ItemCategoryInfo.KIND));
+    }//testCommitDeletesUnderTombstone
+
+
+    @Test
+    public void testSnapshotCache() throws EntityNotFoundException {
+    	DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    	SnapshotCache cache = new SnapshotCache(new InProcessSnapshotStore());
+    	SnapshotCache.set(cache);
+    	Key userKey = ListeyDataOneUser.getEntityKey(FOO_EMAIL);
+    	ListInfo list = makeList("1:1", 3);
+    	Key listKey = list.getEntityKey(userKey);
+    	commit(datastore, list.toEntities(new DataStoreUniqueId(), userKey));
+
+    	ItemInfo item = list.getItems().get("1:1-2");
+    	List<Entity> updateEntities = new ArrayList<Entity>();
+    	updateEntities.add(tombstone(item, listKey));
+    	commit(datastore, updateEntities);
+    	//The commit and then the delete under the tombstone each moved the version and the snapshot along
+    	assertEquals(3, ListCommitter.getVersion(datastore.get(listKey)));
+    	assertEquals(3, cache.getWriteThroughs());
+
+    	//Brought back without its item category, which has to stay gone
+    	item.setStatus(TimeStampedNode.Status.ACTIVE);
+    	item.setLastUpdate(300L);
+    	item.getCategories().clear();
+    	updateEntities = new ArrayList<Entity>();
+    	updateEntities.add(item.toEntity(new DataStoreUniqueId(), listKey));
+    	commit(datastore, updateEntities);
+    	assertEquals(4, cache.getWriteThroughs());
+    	ListeyDataOneUser cached = ListeyDataOneUser.fromDatastore(datastore, FOO_EMAIL);
+    	assertEquals(1, cache.getHits());
+    	assertTrue(cached.lists.get("1:1").getItems().get("1:1-2").getCategories().isEmpty());
+    	SnapshotCache.set(null);
+    	assertTrue(cached.deepEquals(ListeyDataOneUser.fromDatastore(datastore, FOO_EMAIL)));
+    }//testSnapshotCache
+
+
+    @Test
+    public void testBlobList() {
+    	DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    	ListBlobs.setBlobUsers(FOO_EMAIL);
+    	Key userKey = ListeyDataOneUser.getEntityKey(FOO_EMAIL);
+    	ListInfo list = makeList("1:1", 3);
+    	commit(datastore, list.toEntities(new DataStoreUniqueId(), userKey));
+
+    	List<Entity> updateEntities = new ArrayList<Entity>();
+    	updateEntities.add(tombstone(list.getItems().get("1:1-1"), list.getEntityKey(userKey)));
+    	commit(datastore, updateEntities);
+
+    	List<Entity> children = ListBlobs.getChildren(datastore, null, list.getEntityKey(userKey));
+    	int itemCats = 0;
+    	for (Entity child : children) {
+    		if (child.getKind().equals(ItemCategoryInfo.KIND)) itemCats++;
+    	}
+    	//The 3 items, 2 item categories and the category
+    	assertEquals(6, children.size());
+    	assertEquals(2, itemCats);
+    }//testBlobList
+}//TestCascadeDelete
@@ -0,0 +1,90 @@
+/**
+ *
+ */
+package com.blumenthal.ListeyTest;
+
+import static com.blumenthal.ListeyTest.Fixtures.BAR_EMAIL;
+import static com.blumenthal.ListeyTest.Fixtures.FOO_EMAIL;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.blumenthal.listey.ChangeNotifier;
+import com.blumenthal.listey.ChangeNotifiers;
+import com.blumenthal.listey.InProcessChangeNotifier;
+import com.blumenthal.listey.ItemInfo;
+import com.blumenthal.listey.ListeyDataOneUser;
+import com.blumenthal.listey.OtherUserPrivOnList;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+/**
+ * @author David
+ *
+ */
+public class TestChangeNotifier {
+	@Test
+	public void testChannelsForCommit() {
+		Key listKey = ListeyDataOneUser.getListEntityKey(FOO_EMAIL, "1:1");
+		List<Entity> updateEntities = new ArrayList<Entity>();
+		updateEntities.add(new Entity(KeyFactory.createKey(listKey, ItemInfo.KIND, "2:1")));
+		updateEntities.add(new Entity(KeyFactory.createKey(listKey, ItemInfo.KIND, "2:2")));
+		List<Key> deleteKeys = new ArrayList<Key>();
+		deleteKeys.add(KeyFactory.createKey(ListeyDataOneUser.getListEntityKey(FOO_EMAIL, "1:2"), OtherUserPrivOnList.KIND, BAR_EMAIL));
+
+		Set<String> channels = ChangeNotifiers.channelsFor(updateEntities, deleteKeys);
+		assertEquals(new HashSet<String>(Arrays.asList(
+				ChangeNotifiers.listChannel(FOO_EMAIL, "1:1"),
+				ChangeNotifiers.listChannel(FOO_EMAIL, "1:2"),
+				ChangeNotifiers.userChannel(BAR_EMAIL))), channels);
+	}//testChannelsForCommit
+
+
+	@Test
+	public void testInProcessWait() throws InterruptedException {
+		final ChangeNotifier notifier = new InProcessChangeNotifier();
+		final String watchedChannel = ChangeNotifiers.listChannel(FOO_EMAIL, "1:1");
+		Set<String> watched = new HashSet<String>(Arrays.asList(watchedChannel));
+		long cursor = notifier.currentCursor();
+
+		//Nothing published, so it just times out
+		ChangeNotifier.Changes changes = notifier.waitForChanges(watched, cursor, 10);
+		assertTrue(changes.getChangedChannels().isEmpty());
+		assertEquals(cursor, changes.getCursor());
+
+		//Channels nobody is watching don't wake anyone up
+		notifier.publish(Arrays.asList(ChangeNotifiers.listChannel(BAR_EMAIL, "1:1")));
+		changes = notifier.waitForChanges(watched, cursor, 10);
+		assertTrue(changes.getChangedChannels().isEmpty());
+		cursor = changes.getCursor();
+
+		//A publish from another thread wakes the waiter up
+		Thread publisher = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					return;
+				}
+				notifier.publish(Arrays.asList(watchedChannel));
+			}
+		};
+		publisher.start();
+		changes = notifier.waitForChanges(watched, cursor, 10000);
+		publisher.join();
+		assertEquals(watched, changes.getChangedChannels());
+
+		//...and with the new cursor it isn't seen again
+		changes = notifier.waitForChanges(watched, changes.getCursor(), 10);
+		assertTrue(changes.getChangedChannels().isEmpty());
+	}//testInProcessWait
+}//TestChangeNotifier
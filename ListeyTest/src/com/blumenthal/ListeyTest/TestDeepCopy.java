@@ -0,0 +1,121 @@
+/**
+ *
+ */
+package com.blumenthal.ListeyTest;
+
+import static com.blumenthal.ListeyTest.Fixtures.BAR_EMAIL;
+import static com.blumenthal.ListeyTest.Fixtures.FOO_EMAIL;
+import static com.blumenthal.ListeyTest.Fixtures.makeList;
+import static com.blumenthal.ListeyTest.Fixtures.makePriv;
+import static com.blumenthal.listey.TimeStampedNode.Status.COMPLETED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.blumenthal.listey.CategoryInfo;
+import com.blumenthal.listey.ItemCategoryInfo;
+import com.blumenthal.listey.ItemInfo;
+import com.blumenthal.listey.ListInfo;
+import com.blumenthal.listey.ListeyDataMultipleUsers;
+import com.blumenthal.listey.ListeyDataOneUser;
+import com.blumenthal.listey.OtherUserPrivOnList;
+import com.blumenthal.listey.TimeStampedNode;
+import com.google.gson.Gson;
+
+/**
+ * @author David
+ *
+ */
+public class TestDeepCopy {
+	private final Gson gson = ListeyDataMultipleUsers.getGson(true);
+
+
+	/** What makeCopy used to do */
+	private TimeStampedNode roundTrip(TimeStampedNode node) {
+		return gson.fromJson(gson.toJson(node), node.getClass());
+	}//roundTrip
+
+
+	/** Both copies have to come out the same, changedOnServer included */
+	private void assertSameAsRoundTrip(TimeStampedNode node) {
+		TimeStampedNode copy = node.makeCopy();
+		TimeStampedNode expected = roundTrip(node);
+		assertNotSame(node, copy);
+		assertEquals(gson.toJson(expected), gson.toJson(copy));
+		assertEquals(expected.getChangedOnServer(), copy.getChangedOnServer());
+		assertNull(copy.getServerUpdate());
+	}//assertSameAsRoundTrip
+
+
+	/** Set everything else a copy has to carry over, changedOnServer included */
+	private void markChanged(ListInfo list) {
+		list.setVersion(7);
+		list.setServerUpdate(500L);
+		list.setChangedOnServer(true);
+		for (ItemInfo item : list.getItems().values()) {
+			item.setStatus(COMPLETED);
+			item.setServerUpdate(500L);
+			item.setChangedOnServer(true);
+			for (ItemCategoryInfo itemCat : item.getCategories().values()) {
+				itemCat.setChangedOnServer(true);
+			}
+		}
+		list.getItems().get("1:1-2").setCount(null);
+		CategoryInfo cat = list.getCategories().first();
+		cat.setChangedOnServer(true);
+		list.getSelectedCategories().add(cat.getUniqueId());
+		OtherUserPrivOnList priv = makePriv(BAR_EMAIL);
+		priv.priv = OtherUserPrivOnList.OtherUserPriv.VIEW_ONLY;
+		priv.setChangedOnServer(true);
+		list.getOtherUserPrivs().put(BAR_EMAIL, priv);
+	}//markChanged
+
+
+	@Test
+	public void testSameAsRoundTrip() {
+		ListInfo list = makeList("1:1", 2);
+		markChanged(list);
+		ListeyDataOneUser user = new ListeyDataOneUser();
+		user.setUniqueId(FOO_EMAIL);
+		user.setChangedOnServer(true);
+		user.lists.put(list.getUniqueId(), list);
+
+		assertSameAsRoundTrip(user);
+		assertSameAsRoundTrip(list);
+		for (ItemInfo item : list.getItems().values()) {
+			assertSameAsRoundTrip(item);
+			assertSameAsRoundTrip(item.getCategories().get("1:1-c"));
+		}
+		assertSameAsRoundTrip(list.getCategories().first());
+		assertSameAsRoundTrip(list.getOtherUserPrivs().get(BAR_EMAIL));
+
+		ListInfo copy = (ListInfo) list.makeCopy();
+		assertTrue(copy.deepEquals(list));
+		assertEquals(0, copy.getVersion());
+		assertEquals(Long.valueOf(1), copy.getItems().get("1:1-2").getCount());
+		assertEquals(list.getSelectedCategories(), copy.getSelectedCategories());
+	}//testSameAsRoundTrip
+
+
+	@Test
+	public void testIndependent() {
+		ListInfo list = makeList("1:1", 2);
+		markChanged(list);
+		ListInfo copy = (ListInfo) list.makeCopy();
+		copy.getItems().get("1:1-1").setName("Renamed");
+		copy.getItems().get("1:1-1").getCategories().get("1:1-c").setLastUpdate(200L);
+		copy.getCategories().first().setName("Other category");
+		copy.getOtherUserPrivs().get(BAR_EMAIL).lastUpdate = 200L;
+		copy.getSelectedCategories().clear();
+
+		assertEquals("Item 1", list.getItems().get("1:1-1").getName());
+		assertEquals(Long.valueOf(100), list.getItems().get("1:1-1").getCategories().get("1:1-c").getLastUpdate());
+		assertEquals("Category", list.getCategories().first().getName());
+		assertEquals(Long.valueOf(100), list.getOtherUserPrivs().get(BAR_EMAIL).lastUpdate);
+		assertFalse(list.getSelectedCategories().isEmpty());
+	}//testIndependent
+}//TestDeepCopy
@@ -0,0 +1,173 @@
+/**
+ *
+ */
+package com.blumenthal.ListeyTest;
+
+import static com.blumenthal.ListeyTest.Fixtures.FOO_EMAIL;
+import static com.blumenthal.ListeyTest.Fixtures.makeItem;
+import static com.blumenthal.ListeyTest.Fixtures.makeUser;
+import static com.blumenthal.listey.TimeStampedNode.Status.ACTIVE;
+import static com.blumenthal.listey.TimeStampedNode.Status.COMPLETED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.blumenthal.listey.DataStoreUniqueId;
+import com.blumenthal.listey.ListInfo;
+import com.blumenthal.listey.ListeyDataMultipleUsers;
+import com.blumenthal.listey.ListeyDataOneUser;
+import com.blumenthal.listey.SyncToken;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * @author David
+ *
+ */
+public class TestDeltaSync {
+	static final long TOKEN_TIME = 1000000000L;
+
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+
+    @Test
+    public void testTokenRoundTrip() {
+    	SyncToken token = new SyncToken(TOKEN_TIME);
+    	assertEquals(TOKEN_TIME, SyncToken.parse(token.toString()).getServerTime());
+
+    	//Anything we don't recognize means start over with a full sync
+    	assertEquals(0L, SyncToken.parse(null).getServerTime());
+    	assertEquals(0L, SyncToken.parse("").getServerTime());
+    	assertEquals(0L, SyncToken.parse("99.abc").getServerTime());
+    	assertEquals(0L, SyncToken.parse("1.not base 36").getServerTime());
+
+    	assertFalse(token.needsUpdate(null));
+    	assertFalse(token.needsUpdate(TOKEN_TIME - SyncToken.CLOCK_SKEW_MILLIS - 1));
+    	assertTrue(token.needsUpdate(TOKEN_TIME - SyncToken.CLOCK_SKEW_MILLIS));
+    	assertTrue(token.needsUpdate(TOKEN_TIME + 1));
+    }//testTokenRoundTrip
+
+
+    @Test
+    public void testOnlyServerChangesReturned() {
+    	//Server has two lists.  List 1 had an item checked off by someone else after the token,
+    	//list 2 hasn't changed since long before the token.
+    	ListInfo serverList1 = new ListInfo(ACTIVE, "1:1", "List 1", 100L);
+    	serverList1.getItems().put("2:1", makeItem("2:1", "Old item", 100L));
+    	serverList1.getItems().put("2:2", makeItem("2:2", "Checked elsewhere", 300L));
+    	serverList1.getItems().get("2:2").setStatus(COMPLETED);
+    	ListInfo serverList2 = new ListInfo(ACTIVE, "1:2", "List 2", 100L);
+    	serverList2.getItems().put("2:3", makeItem("2:3", "Untouched", 100L));
+    	ListeyDataMultipleUsers serverData = makeUser(serverList1, serverList2);
+    	ListInfo loadedList1 = serverData.userData.get(FOO_EMAIL).lists.get("1:1");
+    	loadedList1.setServerUpdate(TOKEN_TIME - 10 * SyncToken.CLOCK_SKEW_MILLIS);
+    	loadedList1.getItems().get("2:1").setServerUpdate(TOKEN_TIME - 10 * SyncToken.CLOCK_SKEW_MILLIS);
+    	loadedList1.getItems().get("2:2").setServerUpdate(TOKEN_TIME + 1);
+    	ListInfo loadedList2 = serverData.userData.get(FOO_EMAIL).lists.get("1:2");
+    	loadedList2.setServerUpdate(TOKEN_TIME - 10 * SyncToken.CLOCK_SKEW_MILLIS);
+    	loadedList2.getItems().get("2:3").setServerUpdate(TOKEN_TIME - 10 * SyncToken.CLOCK_SKEW_MILLIS);
+
+    	//Client only sends list 1 with the one item it renamed
+    	ListInfo clientList1 = new ListInfo(ACTIVE, "1:1", "List 1", 100L);
+    	clientList1.getItems().put("2:1", makeItem("2:1", "Renamed item", 400L));
+    	ListeyDataMultipleUsers clientData = makeUser(clientList1);
+
+    	List<Entity> updateEntities = new ArrayList<Entity>();
+    	List<Key> deleteKeys = new ArrayList<Key>();
+    	ListeyDataMultipleUsers merged = ListeyDataMultipleUsers.compareAndUpdate(new DataStoreUniqueId(), serverData, clientData, updateEntities, deleteKeys);
+    	assertEquals(1, updateEntities.size());
+    	assertEquals(0, deleteKeys.size());
+
+    	ListeyDataMultipleUsers changed = ListeyDataMultipleUsers.changedSince(merged, serverData, clientData, new SyncToken(TOKEN_TIME));
+    	ListeyDataOneUser changedUser = changed.userData.get(FOO_EMAIL);
+    	assertNotNull(changedUser);
+    	assertEquals("untouched list should not be sent", 1, changedUser.lists.size());
+    	ListInfo changedList1 = changedUser.lists.get("1:1");
+    	assertNotNull(changedList1);
+    	assertEquals("only the item changed elsewhere should be sent", 1, changedList1.getItems().size());
+    	assertEquals(COMPLETED, changedList1.getItems().get("2:2").getStatus());
+
+    	//A token from before everything means the whole tree comes back
+    	changed = ListeyDataMultipleUsers.changedSince(merged, serverData, clientData, SyncToken.parse(""));
+    	assertEquals(2, changed.userData.get(FOO_EMAIL).lists.size());
+    	assertEquals(1, changed.userData.get(FOO_EMAIL).lists.get("1:2").getItems().size());
+    	//...except what the client just sent, since it already has that
+    	assertNull(changed.userData.get(FOO_EMAIL).lists.get("1:1").getItems().get("2:1"));
+    }//testOnlyServerChangesReturned
+
+
+    @Test
+    public void testDigestOnlyLists() {
+    	ListInfo serverList1 = new ListInfo(ACTIVE, "1:1", "List 1", 100L);
+    	serverList1.getItems().put("2:1", makeItem("2:1", "Milk", 100L));
+    	ListInfo serverList2 = new ListInfo(ACTIVE, "1:2", "List 2", 100L);
+    	serverList2.getItems().put("2:2", makeItem("2:2", "Eggs", 100L));
+    	ListeyDataMultipleUsers serverData = makeUser(serverList1, serverList2);
+    	String list1Digest = serverData.userData.get(FOO_EMAIL).lists.get("1:1").getSubtreeDigestHex();
+
+    	//Same contents, same digest; any change, different digest
+    	ListeyDataMultipleUsers sameData = makeUser(serverList1, serverList2);
+    	assertEquals(list1Digest, sameData.userData.get(FOO_EMAIL).lists.get("1:1").getSubtreeDigestHex());
+    	sameData.userData.get(FOO_EMAIL).lists.get("1:1").getItems().get("2:1").setCount(2L);
+    	sameData.userData.get(FOO_EMAIL).lists.get("1:1").clearDigest();
+    	assertFalse(list1Digest.equals(sameData.userData.get(FOO_EMAIL).lists.get("1:1").getSubtreeDigestHex()));
+
+    	//Client sends list 2 in full, unchanged, and only the digest for list 1, from before the server changed it
+    	ListeyDataMultipleUsers clientData = makeUser(serverList2);
+    	ListInfo digestOnly = new ListInfo();
+    	digestOnly.setUniqueId("1:1");
+    	digestOnly.setClientDigest(sameData.userData.get(FOO_EMAIL).lists.get("1:1").getSubtreeDigestHex());
+    	clientData.userData.get(FOO_EMAIL).lists.put("1:1", digestOnly);
+
+    	List<Entity> updateEntities = new ArrayList<Entity>();
+    	List<Key> deleteKeys = new ArrayList<Key>();
+    	ListeyDataMultipleUsers merged = ListeyDataMultipleUsers.compareAndUpdate(new DataStoreUniqueId(), serverData, clientData, updateEntities, deleteKeys);
+    	assertEquals(0, updateEntities.size());
+    	assertEquals(0, deleteKeys.size());
+    	assertEquals("Milk", merged.userData.get(FOO_EMAIL).lists.get("1:1").getItems().get("2:1").getName());
+
+    	//The digest didn't match, so the whole list goes back, and nothing from the unchanged one
+    	ListeyDataMultipleUsers changed = ListeyDataMultipleUsers.changedSince(merged, serverData, clientData, SyncToken.parse(""));
+    	assertEquals(1, changed.userData.get(FOO_EMAIL).lists.size());
+    	assertEquals(1, changed.userData.get(FOO_EMAIL).lists.get("1:1").getItems().size());
+
+    	//If it matches, nothing at all
+    	digestOnly.setClientDigest(list1Digest);
+    	merged = ListeyDataMultipleUsers.compareAndUpdate(new DataStoreUniqueId(), serverData, clientData, updateEntities, deleteKeys);
+    	changed = ListeyDataMultipleUsers.changedSince(merged, serverData, clientData, SyncToken.parse(""));
+    	assertNull(changed.userData.get(FOO_EMAIL));
+    	assertEquals(list1Digest, merged.getListDigests().get(FOO_EMAIL).get("1:1"));
+
+    	//The merged lists are copies, so changing them doesn't touch what they were merged from
+    	ListInfo mergedList1 = merged.userData.get(FOO_EMAIL).lists.get("1:1");
+    	ListInfo mergedList2 = merged.userData.get(FOO_EMAIL).lists.get("1:2");
+    	assertNotSame(serverData.userData.get(FOO_EMAIL).lists.get("1:1").getItems().get("2:1"), mergedList1.getItems().get("2:1"));
+    	assertNotSame(serverData.userData.get(FOO_EMAIL).lists.get("1:2").getItems().get("2:2"), mergedList2.getItems().get("2:2"));
+    	assertNotSame(clientData.userData.get(FOO_EMAIL).lists.get("1:2").getItems().get("2:2"), mergedList2.getItems().get("2:2"));
+    	mergedList1.getItems().get("2:1").setName("Skim milk");
+    	assertEquals("Milk", serverData.userData.get(FOO_EMAIL).lists.get("1:1").getItems().get("2:1").getName());
+    }//testDigestOnlyLists
+}//TestDeltaSync
@@ -4,8 +4,13 @@
 package com.blumenthal.ListeyTest;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
 
 import org.junit.After;
 import org.junit.Before;
@@ -18,7 +23,9 @@ import com.blumenthal.listey.ItemInfoJsonAdapter;
 import com.blumenthal.listey.ListInfo;
 import com.blumenthal.listey.ListeyDataMultipleUsers;
 import com.blumenthal.listey.ListeyDataOneUser;
+import com.blumenthal.listey.ListeyJsonStreamReader;
 import com.blumenthal.listey.OtherUserPrivOnList;
+import com.blumenthal.listey.SyncOp;
 import com.blumenthal.listey.TimeStampedNode;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
@@ -183,5 +190,71 @@ public class TestJsonParse {
 		
 		assertEquals(USER1_JSON, newJson);
 	}//testOneUser
+	
+	
+	@Test
+	public void testStreamParse() throws IOException {
+		//The streaming reader should give exactly what the gson adapters give
+		ListeyDataMultipleUsers parsed = ListeyJsonStreamReader.readMultipleUsers(USER1_EMAIL, new StringReader(USER1_JSON));
+		assertNotNull("Something should have been parsed", parsed);
+		assertEquals(USER1_EMAIL, parsed.getThisUserEmail());
+		assertTrue(parsed.deepEquals(ListeyDataMultipleUsers.fromJson(USER1_EMAIL, USER1_JSON)));
+		assertEquals(USER1_JSON, parsed.toJson());
+		
+		testItem1(parsed.userData.get(USER1_EMAIL).lists.get("1:1").getItems().get("2:1"));
+		
+		parsed = ListeyJsonStreamReader.readMultipleUsers(USER1_EMAIL, new StringReader("{}"));
+		assertEquals("userData should be empty", 0, parsed.userData.size());
+	}//testStreamParse
+	
+	
+	@Test
+	public void testStreamParseLenient() throws IOException {
+		//Unquoted names and values, and single quotes: only lenient parsing takes these
+		String json = "{userData:{'" + USER1_EMAIL + "':{lists:{'1:1':{name:'Test List',lastUpdate:100,status:ACTIVE,"
+				+ "items:[{uniqueId:'2:1',name:Milk,lastUpdate:100,status:ACTIVE}]}}}}}";
+		ListeyDataMultipleUsers fromForm = ListeyDataMultipleUsers.fromJson(USER1_EMAIL, json);
+		ListeyDataMultipleUsers fromBody = ListeyJsonStreamReader.readMultipleUsers(USER1_EMAIL, new StringReader(json));
+		assertEquals("Milk", fromBody.userData.get(USER1_EMAIL).lists.get("1:1").getItems().get("2:1").getName());
+		assertTrue(fromBody.deepEquals(fromForm));
+	}//testStreamParseLenient
+	
+	
+	@Test
+	public void testETag() {
+		ListeyDataMultipleUsers parsed = ListeyDataMultipleUsers.fromJson(USER1_EMAIL, USER1_JSON);
+		String etag = parsed.getETag();
+		assertEquals(etag, ListeyDataMultipleUsers.fromJson(USER1_EMAIL, USER1_JSON).getETag());
+		//Starts with the newest lastUpdate, which is on the item category
+		assertTrue(etag.startsWith(Long.toString(2234567890L, Character.MAX_RADIX) + "."));
+		
+		//Any change that shows up in the JSON has to change the tag, even without touching lastUpdate
+		parsed.userData.get(USER1_EMAIL).lists.get("1:1").getItems().get("2:1").setCount(99L);
+		assertFalse(etag.equals(parsed.getETag()));
+		
+		//...but selectedCategories never comes from the server, so it isn't part of the tag
+		parsed = ListeyDataMultipleUsers.fromJson(USER1_EMAIL, USER1_JSON);
+		parsed.userData.get(USER1_EMAIL).lists.get("1:1").getSelectedCategories().clear();
+		assertEquals(etag, parsed.getETag());
+	}//testETag
+	
+	
+	@Test
+	public void testParseOps() {
+		String json = "{\"ops\":[" +
+				"{\"op\":\"ADD\",\"owner\":\"" + USER1_EMAIL + "\",\"listId\":\"1:1\",\"itemId\":\":5\",\"name\":\"Milk\",\"lastUpdate\":100}," +
+				"{\"op\":\"CHECK\",\"owner\":\"" + USER1_EMAIL + "\",\"listId\":\"1:1\",\"itemId\":\":5\",\"lastUpdate\":101}," +
+				"{\"op\":\"ADD\",\"owner\":\"" + USER1_EMAIL + "\",\"listId\":\"1:1\",\"itemId\":\"2:1\",\"name\":\"Eggs\",\"lastUpdate\":102}," +
+				"{\"op\":\"COUNT\",\"owner\":\"" + USER1_EMAIL + "\",\"listId\":\"1:1\",\"lastUpdate\":103}" +
+				"]}";
+		SyncOp.Batch batch = ListeyDataMultipleUsers.getGson().fromJson(json, SyncOp.Batch.class);
+		assertEquals(4, batch.ops.size());
+		assertEquals(SyncOp.OpType.ADD, batch.ops.get(0).op);
+		assertEquals(new Long(100L), batch.ops.get(0).lastUpdate);
+		assertTrue(batch.ops.get(0).isValid());
+		assertTrue(batch.ops.get(1).isValid());
+		assertFalse("ADD needs a temporary id", batch.ops.get(2).isValid());
+		assertFalse("COUNT on the list itself isn't supported", batch.ops.get(3).isValid());
+	}//testParseOps
 
 }//TestJsonParse
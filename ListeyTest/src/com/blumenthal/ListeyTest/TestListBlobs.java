@@ -0,0 +1,165 @@
+/**
+ *
+ */
+package com.blumenthal.ListeyTest;
+
+import static com.blumenthal.ListeyTest.Fixtures.FOO_EMAIL;
+import static com.blumenthal.ListeyTest.Fixtures.commit;
+import static com.blumenthal.ListeyTest.Fixtures.countKind;
+import static com.blumenthal.ListeyTest.Fixtures.makeList;
+import static com.blumenthal.ListeyTest.Fixtures.makeOneUser;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.blumenthal.listey.DataStoreUniqueId;
+import com.blumenthal.listey.ItemCategoryInfo;
+import com.blumenthal.listey.ItemInfo;
+import com.blumenthal.listey.ListBlobs;
+import com.blumenthal.listey.ListCommitter;
+import com.blumenthal.listey.ListInfo;
+import com.blumenthal.listey.ListeyDataOneUser;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * @author David
+ *
+ */
+public class TestListBlobs {
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        ListBlobs.setBlobUsers("");
+        ListBlobs.setChunkBytes(900 * 1024);
+        helper.tearDown();
+    }
+
+
+    @Test
+    public void testCommitAndLoad() throws EntityNotFoundException {
+    	DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    	ListBlobs.setBlobUsers("bar@test.com, " + FOO_EMAIL);
+    	//Small chunks, so it takes several
+    	ListBlobs.setChunkBytes(64);
+    	Key userKey = ListeyDataOneUser.getEntityKey(FOO_EMAIL);
+
+    	ListInfo list = makeList("1:1", 20);
+    	commit(datastore, list.toEntities(new DataStoreUniqueId(), userKey), new ArrayList<Key>());
+    	Entity header = datastore.get(list.getEntityKey(userKey));
+    	assertTrue(ListBlobs.isBlobList(header));
+    	long chunks = (Long) header.getProperty(ListBlobs.CHUNKS);
+    	assertTrue(chunks > 1);
+    	assertEquals(chunks, countKind(datastore, ListBlobs.KIND));
+    	assertEquals(0, countKind(datastore, ItemInfo.KIND));
+    	assertEquals(0, countKind(datastore, ItemCategoryInfo.KIND));
+    	assertTrue(makeOneUser(FOO_EMAIL, list).deepEquals(ListeyDataOneUser.fromDatastore(datastore, FOO_EMAIL)));
+
+    	//Change one item and delete most of the rest, so the blob shrinks
+    	List<Entity> updateEntities = new ArrayList<Entity>();
+    	List<Key> deleteKeys = new ArrayList<Key>();
+    	ItemInfo item = list.getItems().get("1:1-1");
+    	item.setName("Item 1 renamed");
+    	item.setLastUpdate(500L);
+    	updateEntities.add(item.toEntity(new DataStoreUniqueId(), list.getEntityKey(userKey)));
+    	for (int i = 3; i <= 20; i++) {
+    		ItemInfo deleted = list.getItems().remove("1:1-" + i);
+    		Key itemKey = deleted.getEntityKey(list.getEntityKey(userKey));
+    		deleteKeys.add(itemKey);
+    		for (ItemCategoryInfo itemCat : deleted.getCategories().values()) {
+    			deleteKeys.add(itemCat.getEntityKey(itemKey));
+    		}
+    	}
+    	commit(datastore, updateEntities, deleteKeys);
+
+    	header = datastore.get(list.getEntityKey(userKey));
+    	assertEquals(2L, ListCommitter.getVersion(header));
+    	assertTrue((Long) header.getProperty(ListBlobs.CHUNKS) < chunks);
+    	assertEquals((long) (Long) header.getProperty(ListBlobs.CHUNKS), countKind(datastore, ListBlobs.KIND));
+    	ListeyDataOneUser loaded = ListeyDataOneUser.fromDatastore(datastore, FOO_EMAIL);
+    	assertTrue(makeOneUser(FOO_EMAIL, list).deepEquals(loaded));
+    	assertEquals("Item 1 renamed", loaded.lists.get("1:1").getItems().get("1:1-1").getName());
+    }//testCommitAndLoad
+
+
+    @Test
+    public void testConvert() {
+    	DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    	Key userKey = ListeyDataOneUser.getEntityKey(FOO_EMAIL);
+    	ListInfo list1 = makeList("1:1", 30);
+    	ListInfo list2 = makeList("1:2", 2);
+    	List<Entity> entities = list1.toEntities(new DataStoreUniqueId(), userKey);
+    	entities.addAll(list2.toEntities(new DataStoreUniqueId(), userKey));
+    	commit(datastore, entities, new ArrayList<Key>());
+    	assertEquals(0, countKind(datastore, ListBlobs.KIND));
+    	ListeyDataOneUser before = ListeyDataOneUser.fromDatastore(datastore, FOO_EMAIL);
+
+    	//Just one list to a blob, so the user has one of each
+    	assertTrue(ListBlobs.convert(datastore, list1.getEntityKey(userKey), true));
+    	assertFalse(ListBlobs.convert(datastore, list1.getEntityKey(userKey), true));
+    	assertEquals(1, countKind(datastore, ListBlobs.KIND));
+    	assertEquals(2, countKind(datastore, ItemInfo.KIND));
+    	assertTrue(before.deepEquals(ListeyDataOneUser.fromDatastore(datastore, FOO_EMAIL)));
+    	assertTrue(makeOneUser(FOO_EMAIL, list1).deepEquals(ListeyDataOneUser.fromDatastore(datastore, FOO_EMAIL, "1:1", null)));
+
+    	//And back
+    	assertTrue(ListBlobs.convert(datastore, list1.getEntityKey(userKey), false));
+    	assertEquals(0, countKind(datastore, ListBlobs.KIND));
+    	assertEquals(32, countKind(datastore, ItemInfo.KIND));
+    	assertTrue(before.deepEquals(ListeyDataOneUser.fromDatastore(datastore, FOO_EMAIL)));
+    }//testConvert
+
+
+    @Test
+    public void testConvertLeftovers() {
+    	DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    	Key userKey = ListeyDataOneUser.getEntityKey(FOO_EMAIL);
+    	ListInfo list = makeList("1:1", 30);
+    	Key listKey = list.getEntityKey(userKey);
+    	List<Entity> entities = list.toEntities(new DataStoreUniqueId(), userKey);
+    	commit(datastore, entities, new ArrayList<Key>());
+    	ListeyDataOneUser before = ListeyDataOneUser.fromDatastore(datastore, FOO_EMAIL);
+    	ListBlobs.setChunkBytes(100);
+    	assertTrue(ListBlobs.convert(datastore, listKey, true));
+
+    	//An item left behind by a convert that stopped partway, and changed since, isn't read
+    	Entity stale = null;
+    	for (Entity e : entities) {
+    		if (e.getKind().equals(ItemInfo.KIND)) stale = e;
+    	}
+    	stale.setProperty("name", "Stale");
+    	datastore.put(stale);
+    	assertTrue(before.deepEquals(ListeyDataOneUser.fromDatastore(datastore, FOO_EMAIL)));
+    	//And running it again cleans it up
+    	assertFalse(ListBlobs.convert(datastore, listKey, true));
+    	assertEquals(0, countKind(datastore, ItemInfo.KIND));
+
+    	//Same for a chunk left over after going back to entities
+    	assertTrue(ListBlobs.convert(datastore, listKey, false));
+    	datastore.put(new Entity(KeyFactory.createKey(listKey, ListBlobs.KIND, 1)));
+    	assertTrue(before.deepEquals(ListeyDataOneUser.fromDatastore(datastore, FOO_EMAIL)));
+    	assertFalse(ListBlobs.convert(datastore, listKey, false));
+    	assertEquals(0, countKind(datastore, ListBlobs.KIND));
+    	assertEquals(30, countKind(datastore, ItemInfo.KIND));
+    }//testConvertLeftovers
+}//TestListBlobs
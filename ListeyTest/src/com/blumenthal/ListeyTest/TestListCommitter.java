@@ -0,0 +1,93 @@
+/**
+ *
+ */
+package com.blumenthal.ListeyTest;
+
+import static com.blumenthal.ListeyTest.Fixtures.FOO_EMAIL;
+import static com.blumenthal.ListeyTest.Fixtures.makeItem;
+import static com.blumenthal.ListeyTest.Fixtures.makeList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.blumenthal.listey.DataStoreUniqueId;
+import com.blumenthal.listey.ItemInfo;
+import com.blumenthal.listey.ListCommitter;
+import com.blumenthal.listey.ListInfo;
+import com.blumenthal.listey.ListeyDataOneUser;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * @author David
+ *
+ */
+public class TestListCommitter {
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+
+    @Test
+    public void testVersionCheck() {
+    	DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    	Key ownerKey = ListeyDataOneUser.getEntityKey(FOO_EMAIL);
+    	DataStoreUniqueId uniqueIdCreator = new DataStoreUniqueId();
+
+    	//Two lists, so two separate commits
+    	List<Entity> updateEntities = new ArrayList<Entity>();
+    	updateEntities.addAll(makeList("1:1", 1).toEntities(uniqueIdCreator, ownerKey));
+    	updateEntities.addAll(makeList("1:2", 1).toEntities(uniqueIdCreator, ownerKey));
+    	Map<Key, ListCommitter.ListChanges> byList = ListCommitter.groupByList(updateEntities, new ArrayList<Key>());
+    	assertEquals(2, byList.size());
+    	ListCommitter.ListChanges list1Changes = byList.get(ListeyDataOneUser.getListEntityKey(FOO_EMAIL, "1:1"));
+    	//The list, its category, and the item with its item category
+    	assertEquals(4, list1Changes.getUpdateEntities().size());
+
+    	for (ListCommitter.ListChanges changes : byList.values()) {
+    		assertTrue(ListCommitter.commit(datastore, changes));
+    	}
+    	ListInfo loaded = ListeyDataOneUser.fromDatastore(datastore, FOO_EMAIL).lists.get("1:1");
+    	assertEquals(1, loaded.getVersion());
+
+    	//Someone else commits an item to list 1
+    	List<Entity> otherEntities = new ArrayList<Entity>();
+    	ItemInfo otherItem = makeItem("1:1-2", "Bread", 200L);
+    	otherEntities.add(otherItem.toEntity(uniqueIdCreator, loaded.getEntityKey(ownerKey)));
+    	ListCommitter.ListChanges otherChanges = ListCommitter.groupByList(otherEntities, new ArrayList<Key>()).values().iterator().next();
+    	otherChanges.setExpectedVersion(1);
+    	assertTrue(ListCommitter.commit(datastore, otherChanges));
+    	assertEquals(2, ListeyDataOneUser.fromDatastore(datastore, FOO_EMAIL).lists.get("1:1").getVersion());
+
+    	//So a commit based on version 1 has to be re-merged
+    	List<Entity> staleEntities = new ArrayList<Entity>();
+    	staleEntities.add(loaded.getItems().get("1:1-1").toEntity(uniqueIdCreator, loaded.getEntityKey(ownerKey)));
+    	ListCommitter.ListChanges staleChanges = ListCommitter.groupByList(staleEntities, new ArrayList<Key>()).values().iterator().next();
+    	staleChanges.setExpectedVersion(1);
+    	assertFalse(ListCommitter.commit(datastore, staleChanges));
+
+    	//...but list 2 wasn't touched
+    	assertEquals(1, ListeyDataOneUser.fromDatastore(datastore, FOO_EMAIL).lists.get("1:2").getVersion());
+    }//testVersionCheck
+}//TestListCommitter
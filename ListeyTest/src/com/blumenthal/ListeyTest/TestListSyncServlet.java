@@ -0,0 +1,275 @@
+/**
+ *
+ */
+package com.blumenthal.ListeyTest;
+
+import static com.blumenthal.ListeyTest.Fixtures.BAR_EMAIL;
+import static com.blumenthal.ListeyTest.Fixtures.FOO_EMAIL;
+import static com.blumenthal.ListeyTest.Fixtures.commit;
+import static com.blumenthal.ListeyTest.Fixtures.countKind;
+import static com.blumenthal.ListeyTest.Fixtures.makeItem;
+import static com.blumenthal.ListeyTest.Fixtures.makeList;
+import static com.blumenthal.ListeyTest.Fixtures.makePriv;
+import static com.blumenthal.listey.TimeStampedNode.Status.ACTIVE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.blumenthal.listey.DataStoreUniqueId;
+import com.blumenthal.listey.ItemInfo;
+import com.blumenthal.listey.ListCommitter;
+import com.blumenthal.listey.ListInfo;
+import com.blumenthal.listey.ListSyncServlet;
+import com.blumenthal.listey.ListeyDataMultipleUsers;
+import com.blumenthal.listey.ListeyDataOneUser;
+import com.blumenthal.listey.SyncGate;
+import com.blumenthal.listey.SyncHorizon;
+import com.blumenthal.listey.SyncIO;
+import com.blumenthal.listey.SyncToken;
+import com.blumenthal.listey.UserRateLimiter;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * @author David
+ *
+ */
+public class TestListSyncServlet {
+    private LocalServiceTestHelper helper;
+    private DatastoreService datastore;
+
+    /** Each test picks who's logged in */
+    private void setUp(String userEmail) {
+        helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig())
+        	.setEnvIsLoggedIn(true).setEnvEmail(userEmail).setEnvAuthDomain("test.com");
+        helper.setUp();
+        datastore = DatastoreServiceFactory.getDatastoreService();
+    }
+
+    @After
+    public void tearDown() {
+        SyncGate.set(null);
+        UserRateLimiter.set(null);
+        if (helper != null) helper.tearDown();
+    }
+
+
+    /**
+     * Post the list as the content parameter, or as a JSON body if jsonBody is set
+     * @return the response, after doPost
+     */
+    private FakeHttp.Response post(String owner, ListInfo list, String syncToken, boolean jsonBody) throws Exception {
+    	String json = ListeyDataMultipleUsers.getGson().toJson(list);
+    	FakeHttp.Request req = new FakeHttp.Request()
+    		.param(ListSyncServlet.OWNER, owner)
+    		.param(ListSyncServlet.LIST_ID, list.getUniqueId())
+    		.param("syncToken", syncToken);
+    	if (jsonBody) {
+    		req.body(SyncIO.JSON_CONTENT_TYPE, json.getBytes("UTF-8"));
+    	}
+    	else {
+    		req.param("content", json);
+    	}
+    	FakeHttp.Response resp = new FakeHttp.Response();
+    	new ListSyncServlet().doPost(req.get(), resp.get());
+    	return resp;
+    }//post
+
+
+    private ListInfo load(String listId) {
+    	return ListeyDataOneUser.fromDatastore(datastore, FOO_EMAIL).lists.get(listId);
+    }//load
+
+
+    private long version(String listId) throws EntityNotFoundException {
+    	return ListCommitter.getVersion(datastore.get(ListeyDataOneUser.getListEntityKey(FOO_EMAIL, listId)));
+    }//version
+
+
+    @Test
+    public void testOwnerSync() throws Exception {
+    	setUp(FOO_EMAIL);
+    	assertTrue(commit(datastore, makeList("1:1", 2), 0L));
+
+    	ListInfo client = makeList("1:1", 2);
+    	client.getItems().get("1:1-1").setName("Renamed");
+    	client.getItems().get("1:1-1").setLastUpdate(500L);
+    	FakeHttp.Response resp = post(FOO_EMAIL, client, null, true);
+    	assertEquals(200, resp.getStatus());
+
+    	//Full response with just the one list, as it is now on the server
+    	ListeyDataMultipleUsers data = ListeyDataMultipleUsers.fromJson(FOO_EMAIL, resp.getText());
+    	assertEquals(1, data.userData.size());
+    	ListInfo returned = data.userData.get(FOO_EMAIL).lists.get("1:1");
+    	assertEquals("Renamed", returned.getItems().get("1:1-1").getName());
+    	assertEquals(2, returned.getItems().size());
+
+    	assertEquals("Renamed", load("1:1").getItems().get("1:1-1").getName());
+    	assertEquals(2L, version("1:1"));
+
+    	//Same again as a form parameter, with nothing new, doesn't commit anything
+    	assertEquals(200, post(FOO_EMAIL, client, null, false).getStatus());
+    	assertEquals(2L, version("1:1"));
+    }//testOwnerSync
+
+
+    @Test
+    public void testNonOwner() throws Exception {
+    	setUp(BAR_EMAIL);
+    	ListInfo list = makeList("1:1", 1);
+    	assertTrue(commit(datastore, list, 0L));
+
+    	ListInfo client = makeList("1:1", 1);
+    	client.getItems().get("1:1-1").setName("Renamed");
+    	client.getItems().get("1:1-1").setLastUpdate(500L);
+    	assertEquals(403, post(FOO_EMAIL, client, null, false).getStatus());
+    	assertEquals("Item 1", load("1:1").getItems().get("1:1-1").getName());
+
+    	//Can't create a list for someone else either
+    	ListInfo newList = new ListInfo(ACTIVE, ":1", "New list", 100L);
+    	assertEquals(403, post(FOO_EMAIL, newList, null, false).getStatus());
+    	assertEquals(1, countKind(datastore, ListInfo.KIND));
+
+    	//Once it's shared with them, they can
+    	list.getOtherUserPrivs().put(BAR_EMAIL, makePriv(BAR_EMAIL));
+    	commit(datastore, list.toEntities(new DataStoreUniqueId(), ListeyDataOneUser.getEntityKey(FOO_EMAIL)));
+    	FakeHttp.Response resp = post(FOO_EMAIL, client, null, false);
+    	assertEquals(200, resp.getStatus());
+    	assertEquals("Renamed", load("1:1").getItems().get("1:1-1").getName());
+    	//They don't get to see who else it's shared with
+    	ListInfo returned = ListeyDataMultipleUsers.fromJson(BAR_EMAIL, resp.getText()).userData.get(FOO_EMAIL).lists.get("1:1");
+    	assertTrue(returned.getOtherUserPrivs().isEmpty());
+    }//testNonOwner
+
+
+    @Test
+    public void testNewList() throws Exception {
+    	setUp(FOO_EMAIL);
+    	ListInfo client = new ListInfo(ACTIVE, ":1", "New list", 100L);
+    	client.getItems().put(":2", makeItem(":2", "Eggs", 100L));
+    	FakeHttp.Response resp = post(FOO_EMAIL, client, null, false);
+    	assertEquals(200, resp.getStatus());
+
+    	assertEquals(1, countKind(datastore, ListInfo.KIND));
+    	assertEquals(1, countKind(datastore, ItemInfo.KIND));
+
+    	//The response has it under its permanent ids
+    	Map<String, ListInfo> lists = ListeyDataMultipleUsers.fromJson(FOO_EMAIL, resp.getText()).userData.get(FOO_EMAIL).lists;
+    	assertEquals(1, lists.size());
+    	ListInfo returned = lists.values().iterator().next();
+    	assertFalse(DataStoreUniqueId.isTemporaryId(returned.getUniqueId()));
+    	assertEquals("New list", returned.getName());
+    	String itemId = returned.getItems().keySet().iterator().next();
+    	assertFalse(DataStoreUniqueId.isTemporaryId(itemId));
+    	assertEquals("Eggs", load(returned.getUniqueId()).getItems().get(itemId).getName());
+    }//testNewList
+
+
+    @Test
+    public void testDelta() throws Exception {
+    	setUp(FOO_EMAIL);
+    	assertTrue(commit(datastore, makeList("1:1", 2), 0L));
+    	SyncToken token = new SyncToken(System.currentTimeMillis() - 10 * SyncToken.CLOCK_SKEW_MILLIS);
+
+    	//Another device renames item 2
+    	ListInfo other = makeList("1:1", 2);
+    	other.getItems().get("1:1-2").setName("Renamed");
+    	other.getItems().get("1:1-2").setLastUpdate(500L);
+    	assertEquals(200, post(FOO_EMAIL, other, null, false).getStatus());
+
+    	//This device has nothing new, and only gets back what changed since its token
+    	ListInfo client = new ListInfo(ACTIVE, "1:1", "List 1:1", 100L);
+    	FakeHttp.Response resp = post(FOO_EMAIL, client, token.toString(), false);
+    	assertEquals(200, resp.getStatus());
+    	JsonObject json = new JsonParser().parse(resp.getText()).getAsJsonObject();
+    	assertTrue(SyncToken.parse(json.get("syncToken").getAsString()).getServerTime() > token.getServerTime());
+    	assertNotNull(json.get("tempIds"));
+
+    	ListInfo changed = ListeyDataMultipleUsers.fromJson(FOO_EMAIL, resp.getText()).userData.get(FOO_EMAIL).lists.get("1:1");
+    	assertEquals("Renamed", changed.getItems().get("1:1-2").getName());
+    	assertNull(changed.getItems().get("1:1-1"));
+    	//And nothing was deleted on the server because the client left the items out
+    	assertEquals(2, load("1:1").getItems().size());
+    }//testDelta
+
+
+    @Test
+    public void testExpiredToken() throws Exception {
+    	setUp(FOO_EMAIL);
+    	assertTrue(commit(datastore, makeList("1:1", 1), 0L));
+    	long now = System.currentTimeMillis();
+    	SyncHorizon.setPurgedThrough(datastore, FOO_EMAIL, now);
+
+    	ListInfo client = makeList("1:1", 1);
+    	client.getItems().get("1:1-1").setName("Renamed");
+    	client.getItems().get("1:1-1").setLastUpdate(500L);
+    	SyncToken old = new SyncToken(now - 10 * SyncToken.CLOCK_SKEW_MILLIS);
+    	assertEquals(410, post(FOO_EMAIL, client, old.toString(), false).getStatus());
+    	//Nothing is merged, the client has to start over with a full sync
+    	assertEquals("Item 1", load("1:1").getItems().get("1:1-1").getName());
+    	assertEquals(1L, version("1:1"));
+
+    	//A token from after the purge is fine
+    	SyncToken recent = new SyncToken(now + SyncToken.CLOCK_SKEW_MILLIS);
+    	assertEquals(200, post(FOO_EMAIL, client, recent.toString(), false).getStatus());
+    	assertEquals("Renamed", load("1:1").getItems().get("1:1-1").getName());
+    }//testExpiredToken
+
+
+    @Test
+    public void testGateFull() throws Exception {
+    	setUp(FOO_EMAIL);
+    	assertTrue(commit(datastore, makeList("1:1", 1), 0L));
+    	ListInfo client = makeList("1:1", 1);
+    	client.getItems().get("1:1-1").setName("Renamed");
+    	client.getItems().get("1:1-1").setLastUpdate(500L);
+
+    	//Someone else has the only turn and there's no room to wait
+    	SyncGate gate = new SyncGate(1, 0, 0, 3);
+    	SyncGate.set(gate);
+    	assertTrue(gate.enter());
+    	FakeHttp.Response resp = post(FOO_EMAIL, client, null, false);
+    	assertEquals(503, resp.getStatus());
+    	assertEquals("3", resp.getHeader("Retry-After"));
+    	assertEquals(1L, version("1:1"));
+
+    	//Once it's free the same request goes through, and gives the turn back
+    	gate.exit();
+    	assertEquals(200, post(FOO_EMAIL, client, null, false).getStatus());
+    	assertEquals("Renamed", load("1:1").getItems().get("1:1-1").getName());
+    	assertEquals(0, gate.getRunning());
+    }//testGateFull
+
+
+    @Test
+    public void testRateLimited() throws Exception {
+    	setUp(FOO_EMAIL);
+    	assertTrue(commit(datastore, makeList("1:1", 1), 0L));
+    	//One sync, then one every 100 seconds, and nothing over 2000 bytes
+    	UserRateLimiter.set(new UserRateLimiter(0.01, 1, 2, 2000, false, 60));
+
+    	ListInfo big = makeList("1:1", 100);
+    	assertEquals(413, post(FOO_EMAIL, big, null, false).getStatus());
+    	assertEquals(413, post(FOO_EMAIL, big, null, true).getStatus());
+
+    	ListInfo client = makeList("1:1", 1);
+    	assertEquals(200, post(FOO_EMAIL, client, null, false).getStatus());
+    	//Turned away before the horizon is even read, so it's a 429 and not a 410
+    	SyncHorizon.setPurgedThrough(datastore, FOO_EMAIL, System.currentTimeMillis());
+    	FakeHttp.Response resp = post(FOO_EMAIL, client, new SyncToken(1).toString(), false);
+    	assertEquals(429, resp.getStatus());
+    	assertEquals("100", resp.getHeader("Retry-After"));
+    }//testRateLimited
+}//TestListSyncServlet
@@ -0,0 +1,151 @@
+/**
+ *
+ */
+package com.blumenthal.ListeyTest;
+
+import static com.blumenthal.ListeyTest.Fixtures.BAR_EMAIL;
+import static com.blumenthal.ListeyTest.Fixtures.FOO_EMAIL;
+import static com.blumenthal.ListeyTest.Fixtures.makeItem;
+import static com.blumenthal.ListeyTest.Fixtures.makeList;
+import static com.blumenthal.ListeyTest.Fixtures.makeUser;
+import static com.blumenthal.listey.TimeStampedNode.Status.DELETED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.blumenthal.listey.DataStoreUniqueId;
+import com.blumenthal.listey.ListCommitter;
+import com.blumenthal.listey.ListInfo;
+import com.blumenthal.listey.ListeyDataMultipleUsers;
+import com.blumenthal.listey.ListeyDataOneUser;
+import com.blumenthal.listey.LogListeyStore;
+import com.blumenthal.listey.SyncMerge;
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * @author David
+ *
+ */
+public class TestLogListeyStore {
+	private File path;
+	private LogListeyStore store;
+
+    @Before
+    public void setUp() throws IOException {
+    	path = File.createTempFile("listey", ".log");
+    	path.delete();
+    	store = new LogListeyStore(path, false);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+    	store.close();
+    	path.delete();
+    }
+
+
+    /** Commit the whole list, as a new list if expectedVersion is 0 */
+    private boolean commit(ListInfo list, long expectedVersion) {
+    	Key userKey = ListeyDataOneUser.getEntityKey(FOO_EMAIL);
+    	ListCommitter.ListChanges changes = new ListCommitter.ListChanges(list.getEntityKey(userKey));
+    	changes.setExpectedVersion(expectedVersion);
+    	changes.getUpdateEntities().addAll(list.toEntities(new DataStoreUniqueId(store), userKey));
+    	return store.commit(changes);
+    }//commit
+
+
+    @Test
+    public void testCommitAndReopen() throws IOException {
+    	assertTrue(commit(makeList("1:1", 2, BAR_EMAIL), 0));
+    	//Somebody else got there first
+    	assertFalse(commit(makeList("1:1", 2, BAR_EMAIL), 0));
+
+    	ListInfo loaded = store.loadUser(FOO_EMAIL, true).lists.get("1:1");
+    	assertEquals(2, loaded.getItems().size());
+    	assertEquals(1, loaded.getOtherUserPrivs().size());
+    	String id = store.allocateId();
+
+    	//Everything is still there after replaying the log
+    	store.close();
+    	store = new LogListeyStore(path, false);
+    	assertTrue(loaded.deepEquals(store.loadUser(FOO_EMAIL, true).lists.get("1:1")));
+    	assertFalse(id.equals(store.allocateId()));
+
+    	//The list shows up for the user it's shared with
+    	assertEquals(1, store.getSharedListKeys(BAR_EMAIL).size());
+    	ListeyDataMultipleUsers bar = store.loadAll(BAR_EMAIL);
+    	assertNotNull(bar.userData.get(FOO_EMAIL).lists.get("1:1"));
+    }//testCommitAndReopen
+
+
+    @Test
+    public void testDeleteCascades() {
+    	assertTrue(commit(makeList("1:1", 2, BAR_EMAIL), 0));
+    	//The list, its category, two items with their item categories, and the priv
+    	assertEquals(7, store.size());
+    	ListInfo list = makeList("1:1", 2, BAR_EMAIL);
+    	list.getItems().clear();
+    	list.getCategories().clear();
+    	list.setStatus(DELETED);
+    	assertTrue(commit(list, 1));
+
+    	ListeyDataOneUser foo = store.loadUser(FOO_EMAIL, true);
+    	assertEquals(DELETED, foo.lists.get("1:1").getStatus());
+    	assertEquals(0, foo.lists.get("1:1").getItems().size());
+    	//The items went with it, the priv was written again
+    	assertEquals(2, store.size());
+    }//testDeleteCascades
+
+
+    @Test
+    public void testSyncMerge() {
+    	ListeyDataMultipleUsers passed = makeUser(makeList(":1", "List", 100L, makeItem(":2", "Milk", 100L)));
+
+    	SyncMerge merge = SyncMerge.run(store, FOO_EMAIL, passed);
+    	String listId = merge.getTempToPermanentIds().get(":1");
+    	assertTrue(listId.startsWith(LogListeyStore.ID_PREFIX));
+    	assertEquals(1, store.loadUser(FOO_EMAIL, false).lists.get(listId).getItems().size());
+    }//testSyncMerge
+
+
+    @Test
+    public void testListLeftOut() throws IOException {
+    	assertTrue(commit(makeList("1:1", 2, BAR_EMAIL), 0));
+    	//Every commit to 1:1 looks like somebody else got there first
+    	store.close();
+    	store = new LogListeyStore(path, false) {
+    		@Override
+    		public boolean commit(ListCommitter.ListChanges changes) {
+    			return !changes.getListKey().getName().equals("1:1") && super.commit(changes);
+    		}
+    	};
+
+    	ListInfo changed = makeList("1:1", 2, BAR_EMAIL);
+    	changed.getItems().put(":3", makeItem(":3", "Bread", 200L));
+    	ListInfo added = makeList(":1", "New list", 100L, makeItem(":2", "Milk", 100L));
+    	SyncMerge merge = SyncMerge.run(store, FOO_EMAIL, makeUser(changed, added));
+
+    	//The new list still went in, and only its ids come back
+    	assertFalse(merge.isComplete());
+    	assertEquals(1, merge.getUncommittedLists().size());
+    	assertEquals("1:1", merge.getUncommittedLists().get(0).getName());
+    	Map<String, String> tempIds = merge.getTempToPermanentIds();
+    	assertEquals(2, tempIds.size());
+    	assertNull(tempIds.get(":3"));
+    	assertEquals(1, store.loadUser(FOO_EMAIL, false).lists.get(tempIds.get(":1")).getItems().size());
+
+    	//The one that was left out is as the server has it
+    	assertEquals(2, merge.getUpdatedData().userData.get(FOO_EMAIL).lists.get("1:1").getItems().size());
+    	assertEquals(2, store.loadUser(FOO_EMAIL, false).lists.get("1:1").getItems().size());
+    }//testListLeftOut
+}//TestLogListeyStore
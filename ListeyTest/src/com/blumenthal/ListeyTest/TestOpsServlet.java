@@ -0,0 +1,290 @@
+/**
+ *
+ */
+package com.blumenthal.ListeyTest;
+
+import static com.blumenthal.ListeyTest.Fixtures.BAR_EMAIL;
+import static com.blumenthal.ListeyTest.Fixtures.FOO_EMAIL;
+import static com.blumenthal.ListeyTest.Fixtures.commit;
+import static com.blumenthal.ListeyTest.Fixtures.countKind;
+import static com.blumenthal.ListeyTest.Fixtures.makeList;
+import static com.blumenthal.ListeyTest.Fixtures.makePriv;
+import static com.blumenthal.listey.TimeStampedNode.Status.ACTIVE;
+import static com.blumenthal.listey.TimeStampedNode.Status.COMPLETED;
+import static com.blumenthal.listey.TimeStampedNode.Status.DELETED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.blumenthal.listey.CascadeDelete;
+import com.blumenthal.listey.DataStoreUniqueId;
+import com.blumenthal.listey.ItemCategoryInfo;
+import com.blumenthal.listey.ItemInfo;
+import com.blumenthal.listey.ListBlobs;
+import com.blumenthal.listey.ListCommitter;
+import com.blumenthal.listey.ListInfo;
+import com.blumenthal.listey.ListeyDataMultipleUsers;
+import com.blumenthal.listey.ListeyDataOneUser;
+import com.blumenthal.listey.OpsServlet;
+import com.blumenthal.listey.SyncGate;
+import com.blumenthal.listey.SyncIO;
+import com.blumenthal.listey.SyncOp;
+import com.blumenthal.listey.UserRateLimiter;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * @author David
+ *
+ */
+public class TestOpsServlet {
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig())
+        	.setEnvIsLoggedIn(true).setEnvEmail(FOO_EMAIL).setEnvAuthDomain("test.com");
+    private DatastoreService datastore;
+    private DataStoreUniqueId uniqueIdCreator;
+    private ListeyDataMultipleUsers affected;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        CascadeDelete.setUseTaskQueue(false);
+        datastore = DatastoreServiceFactory.getDatastoreService();
+        uniqueIdCreator = new DataStoreUniqueId();
+        affected = new ListeyDataMultipleUsers();
+    }
+
+    @After
+    public void tearDown() {
+        CascadeDelete.setUseTaskQueue(null);
+        ListBlobs.setBlobUsers("");
+        SyncGate.set(null);
+        UserRateLimiter.set(null);
+        helper.tearDown();
+    }
+
+
+    /** An op on FOO_EMAIL's list 1:1, or on the list itself if itemId is null */
+    private SyncOp op(SyncOp.OpType type, String itemId, String name, long lastUpdate) {
+    	SyncOp rv = new SyncOp();
+    	rv.op = type;
+    	rv.owner = FOO_EMAIL;
+    	rv.listId = "1:1";
+    	rv.itemId = itemId;
+    	rv.name = name;
+    	rv.lastUpdate = lastUpdate;
+    	return rv;
+    }//op
+
+
+    /**
+     * @return the indexes of the ops that were rejected
+     */
+    private Set<Integer> apply(String userEmail, SyncOp... ops) {
+    	for (int i = 0; i < ops.length; i++) {
+    		assertTrue(ops[i].toString(), ops[i].isValid());
+    		ops[i].index = i;
+    	}
+    	Set<Integer> rejected = new TreeSet<Integer>();
+    	OpsServlet.applyToList(datastore, userEmail, Arrays.asList(ops), uniqueIdCreator, affected, rejected);
+    	return rejected;
+    }//apply
+
+
+    private ListInfo load() {
+    	return ListeyDataOneUser.fromDatastore(datastore, FOO_EMAIL).lists.get("1:1");
+    }//load
+
+
+    private long version() throws EntityNotFoundException {
+    	return ListCommitter.getVersion(datastore.get(ListeyDataOneUser.getListEntityKey(FOO_EMAIL, "1:1")));
+    }//version
+
+
+    @Test
+    public void testAddAndUpdate() throws EntityNotFoundException {
+    	//Item 1 last changed at 101, item 2 at 102
+    	commit(datastore, makeList("1:1", 2).toEntities(new DataStoreUniqueId(), ListeyDataOneUser.getEntityKey(FOO_EMAIL)));
+    	assertEquals(1, version());
+
+    	SyncOp count = op(SyncOp.OpType.COUNT, "1:1-2", null, 300L);
+    	count.count = 5L;
+    	Set<Integer> rejected = apply(FOO_EMAIL,
+    			op(SyncOp.OpType.ADD, ":1", "Bread", 200L),
+    			//The item added just before, by its temporary id
+    			op(SyncOp.OpType.CHECK, ":1", null, 201L),
+    			//Older than the server's
+    			op(SyncOp.OpType.RENAME, "1:1-1", "Skim milk", 50L),
+    			count,
+    			//Same name as one that's there, so it's taken as a resend
+    			op(SyncOp.OpType.ADD, ":2", "Item 1", 200L));
+    	assertEquals(new TreeSet<Integer>(Arrays.asList(2, 4)), rejected);
+    	assertEquals(2, version());
+
+    	String breadId = uniqueIdCreator.getTempToPermanentIds().get(":1");
+    	assertFalse(DataStoreUniqueId.isTemporaryId(breadId));
+    	ListInfo loaded = load();
+    	assertEquals(3, loaded.getItems().size());
+    	assertEquals("Bread", loaded.getItems().get(breadId).getName());
+    	assertEquals(COMPLETED, loaded.getItems().get(breadId).getStatus());
+    	assertEquals("Item 1", loaded.getItems().get("1:1-1").getName());
+    	assertEquals(Long.valueOf(5), loaded.getItems().get("1:1-2").getCount());
+
+    	//The server's item goes back to the client instead
+    	ItemInfo sentBack = affected.userData.get(FOO_EMAIL).lists.get("1:1").getItems().get("1:1-1");
+    	assertTrue(sentBack.getChangedOnServer());
+    	assertEquals("Item 1", sentBack.getName());
+
+    	//Nothing applied, nothing committed
+    	apply(FOO_EMAIL, op(SyncOp.OpType.RENAME, "1:1-1", "Skim milk", 60L));
+    	assertEquals(2, version());
+    }//testAddAndUpdate
+
+
+    @Test
+    public void testDelete() throws EntityNotFoundException {
+    	commit(datastore, makeList("1:1", 2).toEntities(new DataStoreUniqueId(), ListeyDataOneUser.getEntityKey(FOO_EMAIL)));
+
+    	//Deleting an item takes its item category with it
+    	assertTrue(apply(FOO_EMAIL, op(SyncOp.OpType.DELETE, "1:1-1", null, 200L)).isEmpty());
+    	assertEquals(DELETED, load().getItems().get("1:1-1").getStatus());
+    	assertEquals(1, countKind(datastore, ItemCategoryInfo.KIND));
+
+    	//And deleting the list takes everything
+    	assertTrue(apply(FOO_EMAIL, op(SyncOp.OpType.DELETE, null, null, 200L)).isEmpty());
+    	assertEquals(DELETED, load().getStatus());
+    	assertEquals(0, countKind(datastore, ItemInfo.KIND));
+    	assertEquals(0, countKind(datastore, ItemCategoryInfo.KIND));
+    	//The tombstone commit, then the delete under it
+    	assertEquals(5, version());
+    }//testDelete
+
+
+    @Test
+    public void testPrivs() {
+    	ListInfo list = makeList("1:1", 1);
+    	commit(datastore, list.toEntities(new DataStoreUniqueId(), ListeyDataOneUser.getEntityKey(FOO_EMAIL)));
+
+    	//Not shared with bar yet
+    	assertEquals(1, apply(BAR_EMAIL, op(SyncOp.OpType.CHECK, "1:1-1", null, 200L)).size());
+    	assertEquals(ACTIVE, load().getItems().get("1:1-1").getStatus());
+
+    	list.getOtherUserPrivs().put(BAR_EMAIL, makePriv(BAR_EMAIL));
+    	commit(datastore, list.toEntities(new DataStoreUniqueId(), ListeyDataOneUser.getEntityKey(FOO_EMAIL)));
+    	assertTrue(apply(BAR_EMAIL, op(SyncOp.OpType.CHECK, "1:1-1", null, 200L)).isEmpty());
+    	assertEquals(COMPLETED, load().getItems().get("1:1-1").getStatus());
+
+    	//No list at all
+    	SyncOp missing = op(SyncOp.OpType.CHECK, "1:2-1", null, 200L);
+    	missing.listId = "1:2";
+    	assertEquals(1, apply(FOO_EMAIL, missing).size());
+    }//testPrivs
+
+
+    @Test
+    public void testBlobList() throws EntityNotFoundException {
+    	ListBlobs.setBlobUsers(FOO_EMAIL);
+    	Key userKey = ListeyDataOneUser.getEntityKey(FOO_EMAIL);
+    	commit(datastore, makeList("1:1", 2).toEntities(new DataStoreUniqueId(), userKey));
+    	assertTrue(ListBlobs.isBlobList(datastore.get(ListeyDataOneUser.getListEntityKey(FOO_EMAIL, "1:1"))));
+
+    	assertTrue(apply(FOO_EMAIL,
+    			op(SyncOp.OpType.CHECK, "1:1-2", null, 200L),
+    			op(SyncOp.OpType.ADD, ":1", "Bread", 200L)).isEmpty());
+    	ListInfo loaded = load();
+    	assertEquals(3, loaded.getItems().size());
+    	assertEquals(COMPLETED, loaded.getItems().get("1:1-2").getStatus());
+    	assertEquals(0, countKind(datastore, ItemInfo.KIND));
+    	assertEquals(2, version());
+    }//testBlobList
+
+
+    @Test
+    public void testNoOps() throws Exception {
+    	//No body, or null ops, is a bad request, not a 500
+    	for (String body : new String[] {"", "{\"ops\":null}"}) {
+    		FakeHttp.Response resp = new FakeHttp.Response();
+    		FakeHttp.Request req = new FakeHttp.Request().body(SyncIO.JSON_CONTENT_TYPE, body.getBytes("UTF-8"));
+    		new OpsServlet().doPost(req.get(), resp.get());
+    		assertEquals(body, 400, resp.getStatus());
+    		assertEquals("{}", resp.getText());
+    	}
+
+    	//No ops is fine, it just does nothing
+    	for (String content : new String[] {"{}", "{\"ops\":[]}"}) {
+    		FakeHttp.Response resp = new FakeHttp.Response();
+    		new OpsServlet().doPost(new FakeHttp.Request().param("content", content).get(), resp.get());
+    		assertEquals(content, 200, resp.getStatus());
+    	}
+    }//testNoOps
+
+
+    @Test
+    public void testGateFull() throws Exception {
+    	commit(datastore, makeList("1:1", 1).toEntities(new DataStoreUniqueId(), ListeyDataOneUser.getEntityKey(FOO_EMAIL)));
+    	SyncOp.Batch batch = new SyncOp.Batch();
+    	batch.ops.add(op(SyncOp.OpType.RENAME, "1:1-1", "Renamed", 300L));
+    	String content = ListeyDataMultipleUsers.getGson().toJson(batch);
+
+    	//Someone else has the only turn and there's no room to wait
+    	SyncGate gate = new SyncGate(1, 0, 0, 3);
+    	SyncGate.set(gate);
+    	assertTrue(gate.enter());
+    	FakeHttp.Response resp = new FakeHttp.Response();
+    	new OpsServlet().doPost(new FakeHttp.Request().param("content", content).get(), resp.get());
+    	assertEquals(503, resp.getStatus());
+    	assertEquals("3", resp.getHeader("Retry-After"));
+    	assertEquals("Item 1", load().getItems().get("1:1-1").getName());
+
+    	//Once it's free the same request goes through, and gives the turn back
+    	gate.exit();
+    	resp = new FakeHttp.Response();
+    	new OpsServlet().doPost(new FakeHttp.Request().param("content", content).get(), resp.get());
+    	assertEquals(200, resp.getStatus());
+    	assertEquals("Renamed", load().getItems().get("1:1-1").getName());
+    	assertEquals(0, gate.getRunning());
+    }//testGateFull
+
+
+    @Test
+    public void testRateLimited() throws Exception {
+    	commit(datastore, makeList("1:1", 1).toEntities(new DataStoreUniqueId(), ListeyDataOneUser.getEntityKey(FOO_EMAIL)));
+    	//One sync, then one every 100 seconds, and nothing over 500 bytes
+    	UserRateLimiter.set(new UserRateLimiter(0.01, 1, 2, 500, false, 60));
+
+    	SyncOp.Batch batch = new SyncOp.Batch();
+    	for (int i = 0; i < 10; i++) {
+    		batch.ops.add(op(SyncOp.OpType.RENAME, "1:1-1", "Renamed " + i, 300L + i));
+    	}
+    	String big = ListeyDataMultipleUsers.getGson().toJson(batch);
+    	FakeHttp.Response resp = new FakeHttp.Response();
+    	new OpsServlet().doPost(new FakeHttp.Request().param("content", big).get(), resp.get());
+    	assertEquals(413, resp.getStatus());
+    	resp = new FakeHttp.Response();
+    	new OpsServlet().doPost(new FakeHttp.Request().body(SyncIO.JSON_CONTENT_TYPE, big.getBytes("UTF-8")).get(), resp.get());
+    	assertEquals(413, resp.getStatus());
+    	assertEquals("Item 1", load().getItems().get("1:1-1").getName());
+
+    	batch.ops.subList(1, batch.ops.size()).clear();
+    	String content = ListeyDataMultipleUsers.getGson().toJson(batch);
+    	resp = new FakeHttp.Response();
+    	new OpsServlet().doPost(new FakeHttp.Request().param("content", content).get(), resp.get());
+    	assertEquals(200, resp.getStatus());
+    	resp = new FakeHttp.Response();
+    	new OpsServlet().doPost(new FakeHttp.Request().param("content", content).get(), resp.get());
+    	assertEquals(429, resp.getStatus());
+    	assertEquals("100", resp.getHeader("Retry-After"));
+    }//testRateLimited
+}//TestOpsServlet
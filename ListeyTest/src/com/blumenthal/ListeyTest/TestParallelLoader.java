@@ -0,0 +1,111 @@
+/**
+ *
+ */
+package com.blumenthal.ListeyTest;
+
+import static com.blumenthal.ListeyTest.Fixtures.BAR_EMAIL;
+import static com.blumenthal.ListeyTest.Fixtures.BAZ_EMAIL;
+import static com.blumenthal.ListeyTest.Fixtures.FOO_EMAIL;
+import static com.blumenthal.ListeyTest.Fixtures.makeList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.blumenthal.listey.DataStoreUniqueId;
+import com.blumenthal.listey.ListeyDataMultipleUsers;
+import com.blumenthal.listey.ListeyDataOneUser;
+import com.blumenthal.listey.ParallelLoader;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * @author David
+ *
+ */
+public class TestParallelLoader {
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    private int oldMaxThreads;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        oldMaxThreads = ParallelLoader.getDefaultMaxThreads();
+    }
+
+    @After
+    public void tearDown() {
+        ParallelLoader.setDefaultMaxThreads(oldMaxThreads);
+        helper.tearDown();
+    }
+
+
+    private void saveUsers(DatastoreService datastore) {
+    	DataStoreUniqueId uniqueIdCreator = new DataStoreUniqueId();
+    	Key fooKey = ListeyDataOneUser.getEntityKey(FOO_EMAIL);
+    	Key barKey = ListeyDataOneUser.getEntityKey(BAR_EMAIL);
+    	List<Entity> entities = new ArrayList<Entity>();
+    	entities.addAll(makeList("1:1", 1, BAR_EMAIL).toEntities(uniqueIdCreator, fooKey));
+    	entities.addAll(makeList("1:2", 1).toEntities(uniqueIdCreator, fooKey));
+    	for (int i = 1; i <= 5; i++) {
+    		entities.addAll(makeList("2:" + i, 1, FOO_EMAIL).toEntities(uniqueIdCreator, barKey));
+    	}
+    	entities.addAll(makeList("2:6", 1).toEntities(uniqueIdCreator, barKey));
+    	entities.addAll(makeList("3:1", 1, FOO_EMAIL).toEntities(uniqueIdCreator, ListeyDataOneUser.getEntityKey(BAZ_EMAIL)));
+    	datastore.put(entities);
+    }//saveUsers
+
+
+    @Test
+    public void testSharedListsLoadedConcurrently() {
+    	DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    	saveUsers(datastore);
+
+    	ParallelLoader.setDefaultMaxThreads(1);
+    	ListeyDataMultipleUsers serial = new ListeyDataMultipleUsers(datastore, FOO_EMAIL);
+    	ParallelLoader.setDefaultMaxThreads(4);
+    	ListeyDataMultipleUsers parallel = new ListeyDataMultipleUsers(datastore, FOO_EMAIL);
+
+    	assertEquals(3, parallel.userData.size());
+    	assertEquals(2, parallel.userData.get(FOO_EMAIL).lists.size());
+    	//Only the ones shared with foo, merged into one bar
+    	assertEquals(5, parallel.userData.get(BAR_EMAIL).lists.size());
+    	assertEquals(1, parallel.userData.get(BAZ_EMAIL).lists.size());
+    	assertEquals(1, parallel.userData.get(BAR_EMAIL).lists.get("2:3").getItems().size());
+    	//foo's own privs are loaded, but not the privs on other people's lists
+    	assertEquals(1, parallel.userData.get(FOO_EMAIL).lists.get("1:1").getOtherUserPrivs().size());
+    	assertEquals(0, parallel.userData.get(BAR_EMAIL).lists.get("2:1").getOtherUserPrivs().size());
+
+    	assertTrue(serial.deepEquals(parallel));
+    }//testSharedListsLoadedConcurrently
+
+
+    @Test
+    public void testLoad() {
+    	DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    	saveUsers(datastore);
+
+    	ParallelLoader loader = new ParallelLoader(datastore, 2);
+    	try {
+    		ListeyDataOneUser all = loader.get(loader.load(BAR_EMAIL, null, true));
+    		ListeyDataOneUser one = loader.get(loader.load(BAR_EMAIL, "2:6", false));
+    		assertEquals(6, all.lists.size());
+    		assertEquals(1, all.lists.get("2:1").getOtherUserPrivs().size());
+    		assertEquals(1, one.lists.size());
+    		assertEquals(BAR_EMAIL, one.getUniqueId());
+    		assertEquals(0, loader.get(loader.load(BAZ_EMAIL, "3:99", false)).lists.size());
+    	} finally {
+    		loader.close();
+    	}
+    }//testLoad
+}//TestParallelLoader
@@ -0,0 +1,128 @@
+/**
+ *
+ */
+package com.blumenthal.ListeyTest;
+
+import static com.blumenthal.ListeyTest.Fixtures.BAR_EMAIL;
+import static com.blumenthal.ListeyTest.Fixtures.FOO_EMAIL;
+import static com.blumenthal.ListeyTest.Fixtures.commit;
+import static com.blumenthal.ListeyTest.Fixtures.makePriv;
+import static com.blumenthal.listey.TimeStampedNode.Status.ACTIVE;
+import static com.blumenthal.listey.TimeStampedNode.Status.DELETED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.blumenthal.listey.ListCommitter;
+import com.blumenthal.listey.ListInfo;
+import com.blumenthal.listey.ListeyDataOneUser;
+import com.blumenthal.listey.SharedWithMe;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * @author David
+ *
+ */
+public class TestSharedWithMe {
+	//Cross-group transactions need the high replication datastore
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig().setDefaultHighRepJobPolicyUnappliedJobPercentage(0));
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        SharedWithMe.setBuilt(null);
+        helper.tearDown();
+    }
+
+
+    @Test
+    public void testMaintained() {
+    	DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    	SharedWithMe.setBuilt(true);
+    	ListInfo list = new ListInfo(ACTIVE, "1:1", "List", 100L);
+    	list.getOtherUserPrivs().put(BAR_EMAIL, makePriv(BAR_EMAIL));
+    	assertTrue(commit(datastore, list, 0));
+    	Key listKey = ListeyDataOneUser.getListEntityKey(FOO_EMAIL, "1:1");
+    	assertEquals(Collections.singletonList(listKey), SharedWithMe.getSharedListKeys(datastore, BAR_EMAIL));
+    	assertTrue(SharedWithMe.getSharedListKeys(datastore, FOO_EMAIL).isEmpty());
+
+    	//Revoked
+    	ListCommitter.ListChanges changes = new ListCommitter.ListChanges(listKey);
+    	changes.setExpectedVersion(1);
+    	changes.getDeleteKeys().add(makePriv(BAR_EMAIL).getEntityKey(listKey));
+    	assertTrue(ListCommitter.commit(datastore, changes));
+    	assertTrue(SharedWithMe.getSharedListKeys(datastore, BAR_EMAIL).isEmpty());
+
+    	//Shared again, then the list is deleted, which takes the priv with it
+    	assertTrue(commit(datastore, list, 2));
+    	assertEquals(1, SharedWithMe.getSharedListKeys(datastore, BAR_EMAIL).size());
+    	list.setStatus(DELETED);
+    	list.getOtherUserPrivs().clear();
+    	assertTrue(commit(datastore, list, 3));
+    	assertTrue(SharedWithMe.getSharedListKeys(datastore, BAR_EMAIL).isEmpty());
+    }//testMaintained
+
+
+    @Test
+    public void testManyRecipients() {
+    	DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    	SharedWithMe.setBuilt(true);
+    	ListInfo list = new ListInfo(ACTIVE, "1:1", "List", 100L);
+    	int recipients = SharedWithMe.XG_RECIPIENTS + 2;
+    	for (int i = 0; i < recipients; i++) {
+    		String email = "user" + i + "@test.com";
+    		list.getOtherUserPrivs().put(email, makePriv(email));
+    	}
+    	assertTrue(commit(datastore, list, 0));
+    	//The ones that didn't fit in the transaction were reindexed after it
+    	for (int i = 0; i < recipients; i++) {
+    		assertEquals(1, SharedWithMe.getSharedListKeys(datastore, "user" + i + "@test.com").size());
+    	}
+    }//testManyRecipients
+
+
+    @Test
+    public void testRebuild() {
+    	DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    	//Privs from before there was an index
+    	Key listKey = ListeyDataOneUser.getListEntityKey(FOO_EMAIL, "1:1");
+    	datastore.put(makePriv(BAR_EMAIL).toEntity(null, listKey));
+    	Key otherListKey = ListeyDataOneUser.getListEntityKey(FOO_EMAIL, "1:2");
+    	datastore.put(makePriv(BAR_EMAIL).toEntity(null, otherListKey));
+    	assertFalse(SharedWithMe.isBuilt(datastore));
+    	//Still found with the query until it's built
+    	assertEquals(2, SharedWithMe.getSharedListKeys(datastore, BAR_EMAIL).size());
+
+    	SharedWithMe.Rebuild rebuild = new SharedWithMe.Rebuild();
+    	assertNull(SharedWithMe.rebuildFromPrivs(datastore, rebuild, null, Long.MAX_VALUE));
+    	assertEquals(2, rebuild.getFixed());
+    	SharedWithMe.markBuilt(datastore);
+    	SharedWithMe.setBuilt(null);
+    	assertTrue(SharedWithMe.isBuilt(datastore));
+    	assertEquals(2, SharedWithMe.getSharedListKeys(datastore, BAR_EMAIL).size());
+
+    	//A grant whose priv went away without the index knowing gets removed
+    	datastore.delete(makePriv(BAR_EMAIL).getEntityKey(otherListKey));
+    	rebuild = new SharedWithMe.Rebuild();
+    	assertNull(SharedWithMe.rebuildFromIndex(datastore, rebuild, null, Long.MAX_VALUE));
+    	assertEquals(2, rebuild.getChecked());
+    	assertEquals(1, rebuild.getFixed());
+    	assertEquals(Collections.singletonList(listKey), SharedWithMe.getSharedListKeys(datastore, BAR_EMAIL));
+    }//testRebuild
+}//TestSharedWithMe
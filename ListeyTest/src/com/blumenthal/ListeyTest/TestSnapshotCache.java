@@ -0,0 +1,143 @@
+/**
+ *
+ */
+package com.blumenthal.ListeyTest;
+
+import static com.blumenthal.ListeyTest.Fixtures.FOO_EMAIL;
+import static com.blumenthal.ListeyTest.Fixtures.makeItem;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.blumenthal.listey.DataStoreUniqueId;
+import com.blumenthal.listey.InProcessSnapshotStore;
+import com.blumenthal.listey.ListInfo;
+import com.blumenthal.listey.ListeyDataOneUser;
+import com.blumenthal.listey.SnapshotCache;
+import com.blumenthal.listey.TimeStampedNode;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * @author David
+ *
+ */
+public class TestSnapshotCache {
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    private InProcessSnapshotStore store;
+    private SnapshotCache cache;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        store = new InProcessSnapshotStore();
+        cache = new SnapshotCache(store);
+        SnapshotCache.set(cache);
+    }
+
+    @After
+    public void tearDown() {
+        SnapshotCache.set(null);
+        helper.tearDown();
+    }
+
+
+    private void commit(DatastoreService datastore, ListInfo list) {
+    	Fixtures.commit(datastore, list.toEntities(new DataStoreUniqueId(), ListeyDataOneUser.getEntityKey(FOO_EMAIL)));
+    }//commit
+
+
+    /**
+     * @return the user as loaded without the cache
+     */
+    private ListeyDataOneUser loadUncached(DatastoreService datastore) {
+    	SnapshotCache.set(null);
+    	try {
+    		return ListeyDataOneUser.fromDatastore(datastore, FOO_EMAIL);
+    	} finally {
+    		SnapshotCache.set(cache);
+    	}
+    }//loadUncached
+
+
+    @Test
+    public void testReadAndWriteThrough() {
+    	DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    	ListInfo list = new ListInfo(TimeStampedNode.Status.ACTIVE, "1:1", "List", 100L);
+    	list.getItems().put("2:1", makeItem("2:1", "Milk", 100L));
+    	commit(datastore, list);
+    	//New list, so the commit made the snapshot
+    	assertEquals(1, cache.getWriteThroughs());
+
+    	ListeyDataOneUser loaded = ListeyDataOneUser.fromDatastore(datastore, FOO_EMAIL);
+    	assertEquals(1, cache.getHits());
+    	assertEquals(0, cache.getMisses());
+    	assertTrue(loaded.deepEquals(loadUncached(datastore)));
+
+    	//A change is applied to the snapshot
+    	list.getItems().put("2:2", makeItem("2:2", "Eggs", 200L));
+    	commit(datastore, list);
+    	assertEquals(2, cache.getWriteThroughs());
+    	loaded = ListeyDataOneUser.fromDatastore(datastore, FOO_EMAIL);
+    	assertEquals(2, cache.getHits());
+    	assertEquals(2, loaded.lists.get("1:1").getItems().size());
+    	assertTrue(loaded.deepEquals(loadUncached(datastore)));
+
+    	//Flushed, it's loaded from the datastore again and cached
+    	store.clear();
+    	loaded = ListeyDataOneUser.fromDatastore(datastore, FOO_EMAIL);
+    	assertEquals(1, cache.getMisses());
+    	assertTrue(loaded.deepEquals(loadUncached(datastore)));
+    	ListeyDataOneUser.fromDatastore(datastore, FOO_EMAIL);
+    	assertEquals(3, cache.getHits());
+
+    	//The same counts, for the admin page
+    	Map<String, Long> stats = cache.getStats();
+    	assertEquals(Long.valueOf(3), stats.get("hits"));
+    	assertEquals(Long.valueOf(1), stats.get("misses"));
+    	assertEquals(Long.valueOf(2), stats.get("writeThroughs"));
+    	assertEquals(Long.valueOf(0), stats.get("errors"));
+    }//testReadAndWriteThrough
+
+
+    @Test
+    public void testStaleSnapshotNotUsed() {
+    	DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    	ListInfo list = new ListInfo(TimeStampedNode.Status.ACTIVE, "1:1", "List", 100L);
+    	list.getItems().put("2:1", makeItem("2:1", "Milk", 100L));
+    	commit(datastore, list);
+
+    	//Somebody commits without the cache (e.g. it was turned off on their instance)
+    	SnapshotCache.set(null);
+    	list.getItems().get("2:1").setName("Skim milk");
+    	list.getItems().get("2:1").setLastUpdate(200L);
+    	commit(datastore, list);
+    	SnapshotCache.set(cache);
+
+    	//The next commit with the cache starts from a version the snapshot doesn't have, so it
+    	//doesn't apply its changes to the stale snapshot
+    	list.getItems().put("2:2", makeItem("2:2", "Eggs", 300L));
+    	commit(datastore, list);
+    	assertEquals(1, cache.getWriteThroughs());
+
+    	//...and the stale snapshot isn't used, the list comes from the datastore
+    	ListeyDataOneUser loaded = ListeyDataOneUser.fromDatastore(datastore, FOO_EMAIL);
+    	assertEquals(0, cache.getHits());
+    	assertEquals(1, cache.getMisses());
+    	assertEquals("Skim milk", loaded.lists.get("1:1").getItems().get("2:1").getName());
+    	assertEquals(2, loaded.lists.get("1:1").getItems().size());
+    	assertTrue(loaded.deepEquals(loadUncached(datastore)));
+
+    	//The miss put the current version in the snapshot
+    	ListeyDataOneUser.fromDatastore(datastore, FOO_EMAIL, "1:1", null);
+    	assertEquals(1, cache.getHits());
+    }//testStaleSnapshotNotUsed
+}//TestSnapshotCache
@@ -0,0 +1,178 @@
+/**
+ *
+ */
+package com.blumenthal.ListeyTest;
+
+import static com.blumenthal.ListeyTest.Fixtures.FOO_EMAIL;
+import static com.blumenthal.ListeyTest.Fixtures.makeItem;
+import static com.blumenthal.ListeyTest.Fixtures.makeList;
+import static com.blumenthal.ListeyTest.Fixtures.makeUser;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.blumenthal.listey.DatastoreListeyStore;
+import com.blumenthal.listey.ItemInfo;
+import com.blumenthal.listey.ListInfo;
+import com.blumenthal.listey.ListeyDataMultipleUsers;
+import com.blumenthal.listey.ListeyStore;
+import com.blumenthal.listey.SyncCoalescer;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.apphosting.api.ApiProxy;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * @author David
+ *
+ */
+public class TestSyncCoalescer {
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        SyncCoalescer.setUseLease(false);
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+
+    @Test
+    public void testMergeClientData() throws Exception {
+    	ListeyDataMultipleUsers earlier = makeUser(makeList("1:1", "Newer name", 200L, makeItem("2:1", "Milk", 100L), makeItem(":1", "Eggs", 100L)));
+    	ListeyDataMultipleUsers later = makeUser(makeList("1:1", "Older name", 100L, makeItem("2:1", "Skim milk", 100L), makeItem(":2", "Bread", 100L)));
+
+    	ListeyDataMultipleUsers merged = SyncCoalescer.mergeClientData(earlier, later);
+    	ListInfo list = merged.userData.get(FOO_EMAIL).lists.get("1:1");
+    	//Newer lastUpdate wins, and the later request wins a tie
+    	assertEquals("Newer name", list.getName());
+    	assertEquals("Skim milk", list.getItems().get("2:1").getName());
+    	//New items from both are kept
+    	assertEquals(3, list.getItems().size());
+    	assertNotNull(list.getItems().get(":1"));
+    	assertNotNull(list.getItems().get(":2"));
+
+    	//The inputs aren't touched
+    	assertEquals("Milk", earlier.userData.get(FOO_EMAIL).lists.get("1:1").getItems().get("2:1").getName());
+
+    	//Same temporary id for two different items can't be merged
+    	ListeyDataMultipleUsers other = makeUser(makeList("1:1", "Newer name", 200L, makeItem(":1", "Butter", 100L)));
+    	try {
+    		SyncCoalescer.mergeClientData(earlier, other);
+    		fail("Expected a temporary id conflict");
+    	} catch (SyncCoalescer.TempIdConflict e) {
+    		//expected
+    	}
+    }//testMergeClientData
+
+
+    @Test
+    public void testSyncTempIds() {
+    	ListeyDataMultipleUsers passed = makeUser(makeList("1:1", "List", 100L, makeItem(":1", "Eggs", 100L)));
+    	SyncCoalescer.Result result = SyncCoalescer.sync(new DatastoreListeyStore(DatastoreServiceFactory.getDatastoreService()), FOO_EMAIL, passed);
+
+    	//Only the item was sent with a temporary id
+    	Map<String, String> tempIds = result.getTempToPermanentIds();
+    	assertEquals(1, tempIds.size());
+    	String itemId = tempIds.get(":1");
+    	//The merged list is still keyed by what the client sent, the item has its permanent id
+    	ItemInfo item = result.getMerge().getUpdatedData().userData.get(FOO_EMAIL).lists.get("1:1").getItems().get(":1");
+    	assertEquals(itemId, item.getUniqueId());
+    }//testSyncTempIds
+
+
+    /** A sync on its own thread, with the test's App Engine environment */
+    private static class SyncThread extends Thread {
+    	private final ApiProxy.Environment env = ApiProxy.getCurrentEnvironment();
+    	private final ListeyStore store;
+    	private final ListeyDataMultipleUsers passed;
+    	private RuntimeException error;
+
+    	SyncThread(ListeyStore store, ListeyDataMultipleUsers passed) {
+    		this.store = store;
+    		this.passed = passed;
+    	}
+
+    	@Override
+    	public void run() {
+    		ApiProxy.setEnvironmentForCurrentThread(env);
+    		try {
+    			SyncCoalescer.sync(store, FOO_EMAIL, passed);
+    		} catch (RuntimeException e) {
+    			error = e;
+    		}
+    	}
+
+    	/** Start it, and wait until it's queued behind the merge that's running */
+    	void startQueued() throws InterruptedException {
+    		start();
+    		while (getState() != Thread.State.WAITING) {
+    			assertTrue(isAlive());
+    			Thread.sleep(5);
+    		}
+    	}
+    }//SyncThread
+
+
+    @Test
+    public void testFailedBatch() throws Exception {
+    	final CountDownLatch loading = new CountDownLatch(1);
+    	final CountDownLatch release = new CountDownLatch(1);
+    	//The first merge waits in its load until the others are queued up behind it
+    	ListeyStore store = new DatastoreListeyStore(DatastoreServiceFactory.getDatastoreService()) {
+    		@Override
+    		public ListeyDataMultipleUsers loadAll(String userEmail) {
+    			if (loading.getCount() > 0) {
+    				loading.countDown();
+    				try {
+    					release.await();
+    				} catch (InterruptedException e) {
+    					throw new IllegalStateException(e);
+    				}
+    			}
+    			return super.loadAll(userEmail);
+    		}
+    	};
+
+    	SyncThread first = new SyncThread(store, makeUser(makeList("1:1", "List", 100L, makeItem("2:1", "Milk", 100L))));
+    	first.start();
+    	assertTrue(loading.await(10, TimeUnit.SECONDS));
+    	SyncThread good = new SyncThread(store, makeUser(makeList("1:1", "List", 100L, makeItem("2:2", "Eggs", 100L))));
+    	good.startQueued();
+    	//No id, so merging it with the one before it throws
+    	ListeyDataMultipleUsers malformed = makeUser(makeList("1:1", "List", 100L, makeItem("2:3", "Bread", 100L)));
+    	malformed.userData.get(FOO_EMAIL).setUniqueId(null);
+    	SyncThread bad = new SyncThread(store, malformed);
+    	bad.startQueued();
+    	release.countDown();
+
+    	for (SyncThread thread : new SyncThread[] {first, good, bad}) {
+    		thread.join(10000);
+    		assertFalse("sync never finished", thread.isAlive());
+    	}
+    	assertNull(first.error);
+    	//Both of the batch that couldn't be put together fail, rather than one merging nothing forever
+    	assertNotNull(good.error);
+    	assertNotNull(bad.error);
+
+    	//And the user's queue still works
+    	SyncCoalescer.Result result = SyncCoalescer.sync(store, FOO_EMAIL, makeUser(makeList("1:1", "List", 100L, makeItem("2:2", "Eggs", 100L))));
+    	assertEquals(2, result.getMerge().getUpdatedData().userData.get(FOO_EMAIL).lists.get("1:1").getItems().size());
+    }//testFailedBatch
+}//TestSyncCoalescer
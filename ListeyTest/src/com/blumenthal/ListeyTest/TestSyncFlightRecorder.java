@@ -0,0 +1,62 @@
+/**
+ *
+ */
+package com.blumenthal.ListeyTest;
+
+import static com.blumenthal.ListeyTest.TestJsonParse.USER1_EMAIL;
+import static com.blumenthal.ListeyTest.TestJsonParse.USER1_JSON;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.blumenthal.listey.ListeyDataMultipleUsers;
+import com.blumenthal.listey.SyncFlightRecorder;
+
+/**
+ * @author David
+ *
+ */
+public class TestSyncFlightRecorder {
+	static final String OTHER_EMAIL = "other@test.com";
+
+    @Test
+    public void testRecords() {
+    	ListeyDataMultipleUsers passed = ListeyDataMultipleUsers.fromJson(USER1_EMAIL, USER1_JSON);
+
+    	//2 records per user, 1 user, payloads cut off at 10 characters
+    	SyncFlightRecorder recorder = new SyncFlightRecorder(true, 2, 1, 10);
+    	recorder.record(USER1_EMAIL, "doPost", passed, null, null);
+    	recorder.record(USER1_EMAIL, "doPost", passed, null, null);
+    	recorder.record(USER1_EMAIL, "doPost", null, null, new IllegalStateException("oops"));
+    	List<SyncFlightRecorder.Record> records = recorder.getRecords(USER1_EMAIL);
+    	assertEquals(2, records.size());
+    	//The oldest one is dropped
+    	assertNull(records.get(0).getError());
+    	assertTrue(records.get(1).getError().contains("oops"));
+    	SyncFlightRecorder.DataSummary summary = records.get(0).getPassed();
+    	assertEquals(passed.getNodeCount(), summary.getNodes());
+    	assertEquals(passed.getETag(), summary.getEtag());
+    	assertTrue(summary.getJson().startsWith(USER1_JSON.substring(0, 10) + "..."));
+
+    	//Only the user who synced most recently is kept
+    	recorder.record(OTHER_EMAIL, "doPost", passed, null, null);
+    	assertEquals(0, recorder.getRecords(USER1_EMAIL).size());
+    	assertEquals(1, recorder.getRecords(OTHER_EMAIL).size());
+    	assertTrue(recorder.toJson(null).contains(OTHER_EMAIL));
+
+    	//Turned off, nothing is kept
+    	SyncFlightRecorder off = new SyncFlightRecorder(false, 2, 1, 0);
+    	off.record(USER1_EMAIL, "doPost", passed, null, null);
+    	assertEquals(0, off.getUsers().size());
+
+    	//...which is how it starts out unless it's turned on
+    	SyncFlightRecorder.set(null);
+    	assertFalse(SyncFlightRecorder.get().isEnabled());
+    	SyncFlightRecorder.set(null);
+    }//testRecords
+}//TestSyncFlightRecorder
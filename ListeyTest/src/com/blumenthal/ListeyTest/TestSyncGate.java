@@ -0,0 +1,57 @@
+/**
+ *
+ */
+package com.blumenthal.ListeyTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.blumenthal.listey.SyncGate;
+
+/**
+ * @author David
+ *
+ */
+public class TestSyncGate {
+
+    @Test
+    public void testLimits() throws Exception {
+    	final SyncGate gate = new SyncGate(1, 1, 5000, 2);
+    	assertTrue(gate.enter());
+    	assertEquals(1, gate.getRunning());
+
+    	//This one waits in the queue until the first one is done
+    	final boolean[] waiterAdmitted = new boolean[1];
+    	Thread waiter = new Thread() {
+    		@Override
+    		public void run() {
+    			waiterAdmitted[0] = gate.enter();
+    		}
+    	};
+    	waiter.start();
+    	while (gate.getQueued() == 0) {
+    		Thread.sleep(10);
+    	}
+
+    	//...and the queue is full, so this one is turned away right away
+    	assertFalse(gate.enter());
+    	assertEquals(1, gate.getRejectedFull());
+
+    	gate.exit();
+    	waiter.join();
+    	assertTrue(waiterAdmitted[0]);
+    	assertEquals(2, gate.getAdmitted());
+    	assertEquals(1, gate.getPeakQueued());
+    	gate.exit();
+    	assertEquals(0, gate.getRunning());
+
+    	//Nothing waiting, and it times out
+    	SyncGate shortGate = new SyncGate(1, 1, 10, 2);
+    	assertTrue(shortGate.enter());
+    	assertFalse(shortGate.enter());
+    	assertEquals(1, shortGate.getRejectedTimeout());
+    }//testLimits
+}//TestSyncGate
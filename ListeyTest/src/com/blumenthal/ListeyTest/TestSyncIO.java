@@ -0,0 +1,165 @@
+/**
+ *
+ */
+package com.blumenthal.ListeyTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+import org.junit.Test;
+
+import com.blumenthal.listey.SyncIO;
+import com.blumenthal.listey.UserRateLimiter;
+
+/**
+ * @author David
+ *
+ */
+public class TestSyncIO {
+	//Repetitive, like real list data, so it compresses well
+	private static final String TEXT = makeText();
+
+    private static String makeText() {
+    	StringBuilder rv = new StringBuilder("{\"lists\":[");
+    	for (int i = 0; i < 200; i++) {
+    		rv.append("{\"uniqueId\":\"1:").append(i).append("\",\"name\":\"Item \u00e9 ").append(i).append("\"},");
+    	}
+    	return rv.append("{}]}").toString();
+    }//makeText
+
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+    	return SyncIO.acceptsGzip(new FakeHttp.Request().header("Accept-Encoding", acceptEncoding).get());
+    }//acceptsGzip
+
+
+    private static String readAll(Reader in) throws IOException {
+    	StringBuilder rv = new StringBuilder();
+    	char[] buf = new char[1000];
+    	for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+    		rv.append(buf, 0, n);
+    	}
+    	return rv.toString();
+    }//readAll
+
+
+    @Test
+    public void testAcceptsGzip() {
+    	assertFalse(acceptsGzip(null));
+    	assertTrue(acceptsGzip("gzip"));
+    	assertTrue(acceptsGzip("deflate, GZIP ;q=0.5"));
+    	assertTrue(acceptsGzip("x-gzip"));
+    	assertTrue(acceptsGzip("*"));
+    	assertFalse(acceptsGzip("deflate, identity"));
+
+    	//q=0 means they specifically don't want it, and we don't guess at a q we can't read
+    	assertFalse(acceptsGzip("gzip;q=0"));
+    	assertFalse(acceptsGzip("deflate, gzip; q=0.0"));
+    	assertFalse(acceptsGzip("*;q=0"));
+    	assertFalse(acceptsGzip("gzip;q=abc"));
+
+    	assertTrue(SyncIO.acceptsBinary(new FakeHttp.Request().header("Accept", SyncIO.BINARY_CONTENT_TYPE + ", " + SyncIO.JSON_CONTENT_TYPE).get()));
+    	assertFalse(SyncIO.acceptsBinary(new FakeHttp.Request().header("Accept", SyncIO.BINARY_CONTENT_TYPE + ";q=0").get()));
+    }//testAcceptsGzip
+
+
+    @Test
+    public void testGzippedRequest() throws Exception {
+    	byte[] gzipped = FakeHttp.gzip(TEXT);
+    	FakeHttp.Request req = new FakeHttp.Request()
+    		.header("Content-Encoding", SyncIO.GZIP)
+    		.body(SyncIO.JSON_CONTENT_TYPE, gzipped);
+    	assertTrue(SyncIO.isRequestGzipped(req.get()));
+    	assertTrue(SyncIO.hasJsonBody(req.get()));
+
+    	SyncIO io = new SyncIO(req.get(), new FakeHttp.Response().get());
+    	assertEquals(0, io.getRequestWireBytes());
+    	assertEquals(TEXT, readAll(io.openRequestReader()));
+    	assertEquals(TEXT.getBytes("UTF-8").length, io.getRequestDataBytes());
+    	assertEquals(gzipped.length, io.getRequestWireBytes());
+    	assertTrue(io.getRequestWireBytes() < io.getRequestDataBytes());
+    }//testGzippedRequest
+
+
+    @Test
+    public void testPlainRequest() throws Exception {
+    	byte[] bytes = TEXT.getBytes("UTF-8");
+    	FakeHttp.Request req = new FakeHttp.Request().body(SyncIO.JSON_CONTENT_TYPE + "; charset=UTF-8", bytes);
+    	assertFalse(SyncIO.isRequestGzipped(req.get()));
+    	assertTrue(SyncIO.hasJsonBody(req.get()));
+
+    	SyncIO io = new SyncIO(req.get(), new FakeHttp.Response().get());
+    	assertEquals(TEXT, readAll(io.openRequestReader()));
+    	assertEquals(bytes.length, io.getRequestDataBytes());
+    	assertEquals(bytes.length, io.getRequestWireBytes());
+    }//testPlainRequest
+
+
+    @Test
+    public void testMaxRequestBytes() throws Exception {
+    	int dataBytes = TEXT.getBytes("UTF-8").length;
+    	byte[] gzipped = FakeHttp.gzip(TEXT);
+    	FakeHttp.Request req = new FakeHttp.Request()
+    		.header("Content-Encoding", SyncIO.GZIP)
+    		.body(SyncIO.JSON_CONTENT_TYPE, gzipped);
+
+    	//The limit is on the un-gzipped bytes, so a small body on the wire can still be too big
+    	SyncIO io = new SyncIO(req.get(), new FakeHttp.Response().get());
+    	io.setMaxRequestBytes(gzipped.length + 1);
+    	try {
+    		readAll(io.openRequestReader());
+    		fail("Expected the body to be too large");
+    	} catch (UserRateLimiter.TooLargeException e) {
+    		//expected
+    	}
+
+    	//Exactly at the limit is fine
+    	io = new SyncIO(req.get(), new FakeHttp.Response().get());
+    	io.setMaxRequestBytes(dataBytes);
+    	assertEquals(TEXT, readAll(io.openRequestReader()));
+    }//testMaxRequestBytes
+
+
+    @Test
+    public void testGzippedResponse() throws Exception {
+    	FakeHttp.Response resp = new FakeHttp.Response();
+    	SyncIO io = new SyncIO(new FakeHttp.Request().header("Accept-Encoding", "gzip, deflate").get(), resp.get());
+    	Writer out = io.openResponseWriter();
+    	out.write(TEXT);
+    	io.finish("testGzippedResponse");
+
+    	assertTrue(io.isResponseGzipped());
+    	assertEquals(SyncIO.GZIP, resp.getHeader("Content-Encoding"));
+    	assertEquals("Accept, Accept-Encoding", resp.getHeader("Vary"));
+    	assertEquals(TEXT, resp.getText());
+    	assertEquals(TEXT.getBytes("UTF-8").length, io.getResponseDataBytes());
+    	assertEquals(resp.getWireBytes().length, io.getResponseWireBytes());
+    	assertTrue(io.getResponseWireBytes() < io.getResponseDataBytes());
+    }//testGzippedResponse
+
+
+    @Test
+    public void testPlainResponse() throws Exception {
+    	FakeHttp.Response resp = new FakeHttp.Response();
+    	SyncIO io = new SyncIO(new FakeHttp.Request().header("Accept-Encoding", "gzip;q=0").get(), resp.get());
+    	Writer out = io.openResponseWriter();
+    	out.write(TEXT);
+    	io.finish("testPlainResponse");
+
+    	assertFalse(io.isResponseGzipped());
+    	assertNull(resp.getHeader("Content-Encoding"));
+    	assertEquals(TEXT, resp.getText());
+    	assertEquals(TEXT.getBytes("UTF-8").length, io.getResponseDataBytes());
+    	assertEquals(io.getResponseDataBytes(), io.getResponseWireBytes());
+    	assertEquals(resp.getWireBytes().length, io.getResponseWireBytes());
+    	//The request body was never read
+    	assertEquals(0, io.getRequestDataBytes());
+    }//testPlainResponse
+}//TestSyncIO
@@ -0,0 +1,46 @@
+/**
+ *
+ */
+package com.blumenthal.ListeyTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.blumenthal.listey.SyncTimer;
+
+/**
+ * @author David
+ *
+ */
+public class TestSyncTimer {
+
+    @Test
+    public void testPhases() throws Exception {
+    	//Nothing to time into, so these do nothing
+    	SyncTimer.end(SyncTimer.LOAD, SyncTimer.begin());
+    	SyncTimer.count(SyncTimer.ENTITIES_PUT, 3);
+
+    	SyncTimer timer = SyncTimer.start("POST /ajax");
+    	assertSame(timer, SyncTimer.current());
+    	long start = SyncTimer.begin();
+    	Thread.sleep(5);
+    	SyncTimer.end(SyncTimer.LOAD, start);
+    	SyncTimer.end(SyncTimer.MERGE, SyncTimer.begin());
+    	SyncTimer.count(SyncTimer.ENTITIES_PUT, 3);
+    	SyncTimer.count(SyncTimer.ENTITIES_PUT, 2);
+
+    	assertTrue(timer.getPhaseMillis(SyncTimer.LOAD) >= 5);
+    	assertTrue(timer.getPhaseMillis(SyncTimer.COMMIT) == 0);
+    	assertEquals(5, timer.getCount(SyncTimer.ENTITIES_PUT));
+    	//Phases in the order they first ran, then the total
+    	String serverTiming = timer.toServerTiming();
+    	assertTrue(serverTiming, serverTiming.matches("load;dur=[0-9.]+, merge;dur=[0-9.]+, total;dur=[0-9.]+"));
+
+    	timer.stop();
+    	assertNull(SyncTimer.current());
+    }//testPhases
+}//TestSyncTimer
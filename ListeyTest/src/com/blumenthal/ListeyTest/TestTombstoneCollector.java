@@ -0,0 +1,154 @@
+/**
+ *
+ */
+package com.blumenthal.ListeyTest;
+
+import static com.blumenthal.ListeyTest.Fixtures.FOO_EMAIL;
+import static com.blumenthal.ListeyTest.Fixtures.countKind;
+import static com.blumenthal.ListeyTest.Fixtures.makeDeletedItem;
+import static com.blumenthal.ListeyTest.Fixtures.makeList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.blumenthal.listey.CategoryInfo;
+import com.blumenthal.listey.DataStoreUniqueId;
+import com.blumenthal.listey.ItemCategoryInfo;
+import com.blumenthal.listey.ItemInfo;
+import com.blumenthal.listey.ListInfo;
+import com.blumenthal.listey.ListeyDataOneUser;
+import com.blumenthal.listey.SyncHorizon;
+import com.blumenthal.listey.SyncToken;
+import com.blumenthal.listey.TimeStampedNode;
+import com.blumenthal.listey.TombstoneCollector;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * @author David
+ *
+ */
+public class TestTombstoneCollector {
+	static final long DAY = SyncHorizon.DAY_MILLIS;
+	static final long NOW = 1000 * DAY;
+
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        SyncHorizon.setAges(1 * DAY, 10 * DAY);
+    }
+
+    @After
+    public void tearDown() {
+        SyncHorizon.setAges(30 * DAY, 60 * DAY);
+        helper.tearDown();
+    }
+
+
+    /** Put the node and everything under it, stamped as written at serverTime */
+    private void put(DatastoreService datastore, TimeStampedNode node, Key parent, long serverTime) {
+    	List<Entity> entities = node.toEntities(new DataStoreUniqueId(), parent);
+    	TimeStampedNode.stampServerUpdate(entities, serverTime);
+    	datastore.put(entities);
+    }//put
+
+
+    @Test
+    public void testHorizon() {
+    	DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    	//Nobody's devices known, just the minimum age
+    	assertEquals(NOW - DAY, SyncHorizon.getHorizon(datastore, FOO_EMAIL, NOW));
+
+    	SyncHorizon.acknowledge(datastore, FOO_EMAIL, "phone", new SyncToken(NOW - 5 * DAY), NOW);
+    	SyncHorizon.acknowledge(datastore, FOO_EMAIL, "tablet", new SyncToken(NOW - 3 * DAY), NOW);
+    	SyncHorizon.acknowledge(datastore, FOO_EMAIL, null, new SyncToken(NOW - 9 * DAY), NOW);
+    	assertEquals(NOW - 5 * DAY - SyncToken.CLOCK_SKEW_MILLIS, SyncHorizon.getHorizon(datastore, FOO_EMAIL, NOW));
+
+    	//The phone syncs again, so the tablet holds it back now
+    	SyncHorizon.acknowledge(datastore, FOO_EMAIL, "phone", new SyncToken(NOW - DAY / 2), NOW + DAY);
+    	assertEquals(NOW - 3 * DAY - SyncToken.CLOCK_SKEW_MILLIS, SyncHorizon.getHorizon(datastore, FOO_EMAIL, NOW + DAY));
+
+    	//Until the tablet hasn't been seen for too long
+    	assertEquals(NOW - DAY / 2 - SyncToken.CLOCK_SKEW_MILLIS, SyncHorizon.getHorizon(datastore, FOO_EMAIL, NOW + 10 * DAY + 1));
+    }//testHorizon
+
+
+    @Test
+    public void testCollect() {
+    	DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    	Key userKey = ListeyDataOneUser.getEntityKey(FOO_EMAIL);
+    	//A deleted category, with a live item still in it
+    	ListInfo list = makeList("1:1", 1);
+    	list.getCategories().first().setStatus(TimeStampedNode.Status.DELETED);
+    	put(datastore, list, userKey, NOW - 20 * DAY);
+    	Key listKey = list.getEntityKey(userKey);
+    	//Deleted before the phone's last sync, and after it
+    	put(datastore, makeDeletedItem("1:1-2", "1:1-x"), listKey, NOW - 6 * DAY);
+    	put(datastore, makeDeletedItem("1:1-3", "1:1-x"), listKey, NOW - 4 * DAY);
+    	//A whole deleted list
+    	ListInfo deletedList = makeList("1:2", 1);
+    	deletedList.setStatus(TimeStampedNode.Status.DELETED);
+    	put(datastore, deletedList, userKey, NOW - 30 * DAY);
+
+    	SyncHorizon.acknowledge(datastore, FOO_EMAIL, "phone", new SyncToken(NOW - 5 * DAY), NOW);
+    	SyncToken oldToken = new SyncToken(NOW - 7 * DAY);
+    	assertFalse(SyncHorizon.isExpired(datastore, FOO_EMAIL, oldToken));
+
+    	TombstoneCollector.Run run = new TombstoneCollector.Run(NOW);
+    	assertNull(TombstoneCollector.collect(datastore, run, null, Long.MAX_VALUE));
+    	//The category and the item category in the live item that goes with it, item 2 and its
+    	//item category, and list 2 with its category, item and item category
+    	assertEquals(Integer.valueOf(8), run.getReclaimed().get(FOO_EMAIL));
+    	assertEquals(1, countKind(datastore, ListInfo.KIND));
+    	assertEquals(2, countKind(datastore, ItemInfo.KIND));
+    	assertEquals(1, countKind(datastore, ItemCategoryInfo.KIND));
+    	assertEquals(0, countKind(datastore, CategoryInfo.KIND));
+
+    	//A device that's further behind than that has to start over
+    	assertTrue(SyncHorizon.isExpired(datastore, FOO_EMAIL, oldToken));
+    	assertFalse(SyncHorizon.isExpired(datastore, FOO_EMAIL, new SyncToken(NOW - 5 * DAY)));
+
+    	//Nothing more to do until the phone syncs again
+    	run = new TombstoneCollector.Run(NOW);
+    	assertNull(TombstoneCollector.collect(datastore, run, null, Long.MAX_VALUE));
+    	assertTrue(run.getReclaimed().isEmpty());
+    }//testCollect
+
+
+    @Test
+    public void testUnstamped() {
+    	DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    	Key userKey = ListeyDataOneUser.getEntityKey(FOO_EMAIL);
+    	ListInfo list = makeList("1:1", 0);
+    	put(datastore, list, userKey, NOW - 20 * DAY);
+    	Key listKey = list.getEntityKey(userKey);
+    	//Written before the server stamped them, so only the client's lastUpdate says how old they are
+    	ItemInfo oldItem = makeDeletedItem("1:1-1", "1:1-x");
+    	oldItem.setLastUpdate(NOW - 2 * DAY);
+    	datastore.put(oldItem.toEntities(new DataStoreUniqueId(), listKey));
+    	ItemInfo newItem = makeDeletedItem("1:1-2", "1:1-x");
+    	newItem.setLastUpdate(NOW);
+    	datastore.put(newItem.toEntities(new DataStoreUniqueId(), listKey));
+
+    	TombstoneCollector.Run run = new TombstoneCollector.Run(NOW);
+    	assertNull(TombstoneCollector.collect(datastore, run, null, Long.MAX_VALUE));
+    	//Only the one older than the minimum age, with its item category
+    	assertEquals(Integer.valueOf(2), run.getReclaimed().get(FOO_EMAIL));
+    	assertEquals(1, countKind(datastore, ItemInfo.KIND));
+    	assertEquals(1, countKind(datastore, ItemCategoryInfo.KIND));
+    }//testUnstamped
+}//TestTombstoneCollector
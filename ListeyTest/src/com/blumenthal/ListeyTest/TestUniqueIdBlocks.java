@@ -0,0 +1,145 @@
+/**
+ *
+ */
+package com.blumenthal.ListeyTest;
+
+import static com.blumenthal.listey.TimeStampedNode.Status.ACTIVE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.blumenthal.listey.DataStoreUniqueId;
+import com.blumenthal.listey.DatastoreListeyStore;
+import com.blumenthal.listey.ItemCategoryInfo;
+import com.blumenthal.listey.ItemInfo;
+import com.blumenthal.listey.ListInfo;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * @author David
+ *
+ */
+public class TestUniqueIdBlocks {
+	static final int BLOCK_SIZE = 10;
+
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        DatastoreListeyStore.setBlockSize(BLOCK_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        DatastoreListeyStore.setBlockSize(100);
+        helper.tearDown();
+    }
+
+
+    /** @return how many ids have been leased from all the counters together */
+    private long leased(DatastoreService datastore) {
+    	long rv = 0;
+    	for (Entity shard : datastore.prepare(new Query(DatastoreListeyStore.SHARD_KIND)).asIterable()) {
+    		rv += (Long) shard.getProperty(DatastoreListeyStore.SHARD_VALUE);
+    	}
+    	return rv;
+    }//leased
+
+
+    @Test
+    public void testBlocks() {
+    	DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    	DatastoreListeyStore store = new DatastoreListeyStore(datastore);
+    	Set<String> ids = new HashSet<String>();
+    	for (int i = 0; i < 25; i++) {
+    		String id = store.allocateId();
+    		//Same shard:counter format as before
+    		assertTrue(id, id.matches("\\d+:\\d+"));
+    		ids.add(id);
+    	}
+    	ids.addAll(store.allocateIds(15));
+    	assertEquals(40, ids.size());
+    	//Four blocks, not forty transactions
+    	assertEquals(4 * BLOCK_SIZE, leased(datastore));
+
+    	//Bigger than a block gets a block that big
+    	ids.addAll(store.allocateIds(3 * BLOCK_SIZE));
+    	assertEquals(70, ids.size());
+    	assertEquals(7 * BLOCK_SIZE, leased(datastore));
+    }//testBlocks
+
+
+    @Test
+    public void testConcurrent() throws Exception {
+    	DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    	final DatastoreListeyStore store = new DatastoreListeyStore(datastore);
+    	//One block for everything, leased here, so the threads only hand out ids from it
+    	DatastoreListeyStore.setBlockSize(1000);
+    	final List<String> ids = new ArrayList<String>();
+    	ids.add(store.allocateId());
+    	List<Thread> threads = new ArrayList<Thread>();
+    	for (int t = 0; t < 4; t++) {
+    		Thread thread = new Thread() {
+    			@Override
+    			public void run() {
+    				for (int i = 0; i < 50; i++) {
+    					String id = store.allocateId();
+    					synchronized (ids) {
+    						ids.add(id);
+    					}
+    				}
+    			}
+    		};
+    		threads.add(thread);
+    	}
+    	for (Thread thread : threads) thread.start();
+    	for (Thread thread : threads) thread.join();
+    	assertEquals(201, new HashSet<String>(ids).size());
+    	assertEquals(1000, leased(datastore));
+    }//testConcurrent
+
+
+    @Test
+    public void testReserveFor() {
+    	DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    	DataStoreUniqueId uniqueIdCreator = new DataStoreUniqueId(new DatastoreListeyStore(datastore));
+    	ListInfo list = new ListInfo(ACTIVE, ":1", "List", 100L);
+    	ItemInfo item = new ItemInfo();
+    	item.setUniqueId(":2");
+    	ItemCategoryInfo itemCat = new ItemCategoryInfo();
+    	itemCat.setUniqueId(":3");
+    	item.getCategories().put(":3", itemCat);
+    	list.getItems().put(":2", item);
+    	ItemInfo oldItem = new ItemInfo();
+    	oldItem.setUniqueId("1:5");
+    	list.getItems().put("1:5", oldItem);
+
+    	uniqueIdCreator.reserveFor(list);
+    	assertEquals(BLOCK_SIZE, leased(datastore));
+    	for (String id : Arrays.asList(":1", ":2", ":3", "1:5")) {
+    		uniqueIdCreator.ensurePermanentId(id);
+    	}
+    	//Only what was made permanent is reported
+    	Map<String, String> tempIds = uniqueIdCreator.getTempToPermanentIds();
+    	assertEquals(3, tempIds.size());
+    	assertEquals(3, new HashSet<String>(tempIds.values()).size());
+    	assertEquals("1:5", uniqueIdCreator.ensurePermanentId("1:5"));
+    }//testReserveFor
+}//TestUniqueIdBlocks
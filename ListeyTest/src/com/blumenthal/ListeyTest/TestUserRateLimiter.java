@@ -0,0 +1,63 @@
+/**
+ *
+ */
+package com.blumenthal.ListeyTest;
+
+import static com.blumenthal.ListeyTest.Fixtures.BAR_EMAIL;
+import static com.blumenthal.ListeyTest.Fixtures.FOO_EMAIL;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.blumenthal.listey.UserRateLimiter;
+
+/**
+ * @author David
+ *
+ */
+public class TestUserRateLimiter {
+    @Test
+    public void testLimits() throws Exception {
+    	//1 token every 10 seconds, 2 saved up, 1 at a time
+    	UserRateLimiter limiter = new UserRateLimiter(0.1, 2, 1, 1000, false, 60);
+    	assertEquals(0, limiter.enter(FOO_EMAIL));
+
+    	//Already has one running
+    	assertEquals(1, limiter.enter(FOO_EMAIL));
+    	assertEquals(1, limiter.getRejectedConcurrent());
+    	limiter.exit(FOO_EMAIL);
+
+    	//Uses up the burst
+    	assertEquals(0, limiter.enter(FOO_EMAIL));
+    	limiter.exit(FOO_EMAIL);
+    	int retryAfterSeconds = limiter.enter(FOO_EMAIL);
+    	assertTrue(retryAfterSeconds > 0 && retryAfterSeconds <= 10);
+    	assertEquals(1, limiter.getRejectedRate());
+
+    	//Each user has their own bucket
+    	assertEquals(0, limiter.enter(BAR_EMAIL));
+    	limiter.exit(BAR_EMAIL);
+    	assertEquals(3, limiter.getAdmitted());
+    }//testLimits
+
+
+    @Test
+    public void testFractionalRateFromConfig() throws Exception {
+    	System.setProperty("listey.rate.tokensPerSecond", "0.1");
+    	System.setProperty("listey.rate.burst", "1");
+    	try {
+    		UserRateLimiter.set(null);
+    		UserRateLimiter limiter = UserRateLimiter.get();
+    		assertEquals(0, limiter.enter(FOO_EMAIL));
+    		limiter.exit(FOO_EMAIL);
+    		//At 1 token every 10 seconds, not the default of 2 a second
+    		int retryAfterSeconds = limiter.enter(FOO_EMAIL);
+    		assertTrue(retryAfterSeconds > 1 && retryAfterSeconds <= 10);
+    	} finally {
+    		System.clearProperty("listey.rate.tokensPerSecond");
+    		System.clearProperty("listey.rate.burst");
+    		UserRateLimiter.set(null);
+    	}
+    }//testFractionalRateFromConfig
+}//TestUserRateLimiter
@@ -0,0 +1,124 @@
+/**
+ *
+ */
+package com.blumenthal.ListeyTest;
+
+import static com.blumenthal.ListeyTest.Fixtures.BAR_EMAIL;
+import static com.blumenthal.ListeyTest.Fixtures.FOO_EMAIL;
+import static com.blumenthal.ListeyTest.Fixtures.makeList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.blumenthal.listey.DataStoreUniqueId;
+import com.blumenthal.listey.ItemCategoryInfo;
+import com.blumenthal.listey.ItemInfo;
+import com.blumenthal.listey.ListInfo;
+import com.blumenthal.listey.ListeyDataOneUser;
+import com.blumenthal.listey.UserTreeBuilder;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * @author David
+ *
+ */
+public class TestUserTreeBuilder {
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+
+    private ListeyDataOneUser build(List<Entity> entities, boolean includePrivs) {
+    	ListeyDataOneUser oneUser = new ListeyDataOneUser();
+    	oneUser.setUniqueId(FOO_EMAIL);
+    	return ListeyDataOneUser.fromEntities(entities, oneUser, includePrivs);
+    }//build
+
+
+    @Test
+    public void testParentsFirst() {
+    	List<Entity> entities = makeList("1:1", 2, BAR_EMAIL).toEntities(new DataStoreUniqueId(), ListeyDataOneUser.getEntityKey(FOO_EMAIL));
+    	entities.addAll(makeList("1:2", 2, BAR_EMAIL).toEntities(new DataStoreUniqueId(), ListeyDataOneUser.getEntityKey(FOO_EMAIL)));
+    	ListeyDataOneUser oneUser = new ListeyDataOneUser();
+    	oneUser.setUniqueId(FOO_EMAIL);
+    	UserTreeBuilder builder = new UserTreeBuilder(oneUser, true);
+    	for (Entity e : entities) {
+    		builder.add(e);
+    	}
+    	builder.finish();
+
+    	//Nothing had to wait
+    	assertEquals(entities.size(), builder.getAdded());
+    	assertEquals(0, builder.getMaxWaiting());
+    	ListInfo list = oneUser.lists.get("1:1");
+    	assertEquals(2, oneUser.lists.size());
+    	assertEquals(1, list.getCategories().size());
+    	assertEquals(2, list.getItems().size());
+    	assertEquals(1, list.getItems().get("1:1-2").getCategories().size());
+    	assertEquals(1, list.getOtherUserPrivs().size());
+
+    	//Without privs
+    	assertEquals(0, build(entities, false).lists.get("1:1").getOtherUserPrivs().size());
+    }//testParentsFirst
+
+
+    @Test
+    public void testChildrenBeforeParents() {
+    	List<Entity> entities = makeList("1:1", 2, BAR_EMAIL).toEntities(new DataStoreUniqueId(), ListeyDataOneUser.getEntityKey(FOO_EMAIL));
+    	ListeyDataOneUser inOrder = build(entities, true);
+
+    	List<Entity> reversed = new ArrayList<Entity>(entities);
+    	Collections.reverse(reversed);
+    	ListeyDataOneUser oneUser = new ListeyDataOneUser();
+    	oneUser.setUniqueId(FOO_EMAIL);
+    	UserTreeBuilder builder = new UserTreeBuilder(oneUser, true);
+    	for (Entity e : reversed) {
+    		builder.add(e);
+    	}
+    	builder.finish();
+
+    	//Everything but the list waited for it
+    	assertEquals(entities.size() - 1, builder.getMaxWaiting());
+    	assertTrue(inOrder.deepEquals(oneUser));
+    	assertEquals(1, oneUser.lists.get("1:1").getItems().get("1:1-1").getCategories().size());
+    }//testChildrenBeforeParents
+
+
+    @Test
+    public void testOrphansDropped() {
+    	List<Entity> entities = makeList("1:1", 2, BAR_EMAIL).toEntities(new DataStoreUniqueId(), ListeyDataOneUser.getEntityKey(FOO_EMAIL));
+    	//An item under a list that isn't there, and an item category under an item that isn't there
+    	Entity orphanItem = new Entity(ItemInfo.KIND, "9:1",
+    			KeyFactory.createKey(ListeyDataOneUser.getEntityKey(FOO_EMAIL), ListInfo.KIND, "9:9"));
+    	orphanItem.setProperty("name", "Orphan");
+    	entities.add(orphanItem);
+    	Entity orphanItemCat = new Entity(ItemCategoryInfo.KIND, "1:1-c",
+    			KeyFactory.createKey(ListeyDataOneUser.getListEntityKey(FOO_EMAIL, "1:1"), ItemInfo.KIND, "1:1-9"));
+    	entities.add(orphanItemCat);
+
+    	ListeyDataOneUser oneUser = build(entities, true);
+    	assertEquals(1, oneUser.lists.size());
+    	assertEquals(2, oneUser.lists.get("1:1").getItems().size());
+    	assertFalse(oneUser.lists.containsKey("9:9"));
+    }//testOrphansDropped
+}//TestUserTreeBuilder
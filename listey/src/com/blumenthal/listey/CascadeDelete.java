@@ -0,0 +1,234 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import static com.blumenthal.listey.JsonFieldNameConstants.STATUS;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.utils.SystemProperty;
+
+/**
+ * Deletes everything under a deleted list or item, after the delete itself has been committed.
+ *
+ * A sync or op that deletes a list or item only writes its tombstone (the entity with status
+ * DELETED), so it doesn't depend on which children the client knew about and doesn't have to
+ * read or write any of them.  The commit also adds a task, in the same transaction, that comes
+ * back to CascadeDeleteServlet and deletes the rest with keys-only ancestor queries, BATCH_SIZE
+ * keys per transaction.  Until it has, UserTreeBuilder leaves out anything under a tombstone,
+ * so nobody sees it.
+ *
+ * If the task can't be added (or there's no task queue, e.g. in tests) the writer gets the
+ * tombstone keys back and calls deleteNow after its commit instead.
+ *
+ * @author David
+ *
+ */
+public class CascadeDelete {
+	private static final Logger log = Logger.getLogger(CascadeDelete.class.getName());
+
+	public static final String URL = "/tasks/cascadeDelete";
+	public static final String KEY = "key";
+	//Most keys deleted in one transaction
+	public static final int BATCH_SIZE = 500;
+
+	private static Boolean useTaskQueue;
+
+
+
+	/**
+	 * @return the keys of the lists and items that updateEntities mark as deleted
+	 */
+	public static List<Key> tombstones(Collection<Entity> updateEntities) {
+		List<Key> rv = new ArrayList<Key>();
+		for (Entity entity : updateEntities) {
+			String kind = entity.getKind();
+			if ((kind.equals(ListInfo.KIND) || kind.equals(ItemInfo.KIND)) && isTombstone(entity)) {
+				rv.add(entity.getKey());
+			}
+		}
+		return rv;
+	}//tombstones
+
+
+
+	private static boolean isTombstone(Entity entity) {
+		return entity != null && TimeStampedNode.Status.DELETED.toString().equals(entity.getProperty(STATUS));
+	}//isTombstone
+
+
+
+	/**
+	 * Add the task that deletes under the tombstones in updateEntities.  Call in the commit's
+	 * transaction, just before committing, so the task only runs if the commit goes through.
+	 * @param txn
+	 * @param updateEntities what the commit is writing
+	 * @return tombstones that weren't queued, to pass to deleteNow after the commit
+	 */
+	public static List<Key> schedule(Transaction txn, Collection<Entity> updateEntities) {
+		List<Key> tombstones = tombstones(updateEntities);
+		if (tombstones.isEmpty() || !isUseTaskQueue()) return tombstones;
+
+		TaskOptions task = TaskOptions.Builder.withUrl(URL);
+		for (Key key : tombstones) {
+			task.param(KEY, KeyFactory.keyToString(key));
+		}
+		try {
+			QueueFactory.getDefaultQueue().add(txn, task);
+			return new ArrayList<Key>();
+		} catch (RuntimeException e) {
+			log.warning("schedule: couldn't add task for " + tombstones + ", deleting after the commit instead: " + e);
+			return tombstones;
+		}
+	}//schedule
+
+
+
+	/**
+	 * Delete under the tombstones right away, for the ones schedule couldn't queue.
+	 * Failures are only logged, since whatever is left stays hidden under its tombstone.
+	 */
+	public static void deleteNow(DatastoreService datastore, List<Key> tombstoneKeys) {
+		for (Key key : tombstoneKeys) {
+			try {
+				delete(datastore, key);
+			} catch (RuntimeException e) {
+				log.warning("deleteNow: couldn't delete under " + key + ": " + e);
+			}
+		}
+	}//deleteNow
+
+
+
+	/**
+	 * Delete everything under a tombstone, BATCH_SIZE keys per transaction.  Each transaction
+	 * first checks that it's still a tombstone, so a list or item that was brought back
+	 * in the meantime keeps what's under it.  Each one bumps the list's version and applies the
+	 * deletes to its snapshot like any other commit, or a snapshot would keep the deleted
+	 * entities and bring them back if the tombstone was.
+	 * @param datastore
+	 * @param tombstoneKey a deleted list or item
+	 * @return how many entities were deleted
+	 */
+	public static int delete(DatastoreService datastore, Key tombstoneKey) {
+		Key listKey = ListCommitter.listKeyOf(tombstoneKey);
+		int deleted = 0;
+		int retries = ListCommitter.CONTENTION_RETRIES;
+		while (true) {
+			//Cross-group, since deleting a list takes its privs with it
+			Transaction txn = SharedWithMe.beginTransaction(datastore);
+			try {
+				Entity listEntity = null;
+				try {
+					listEntity = datastore.get(txn, listKey);
+				} catch (EntityNotFoundException e) {
+					//list is gone already
+				}
+
+				List<Key> toDelete = new ArrayList<Key>();
+				List<Entity> toPut = new ArrayList<Entity>();
+				long oldVersion = ListCommitter.getVersion(listEntity);
+				boolean more = false;
+				if (ListBlobs.isBlobList(listEntity)) {
+					//Everything's in the blob, so it's all done in one go
+					List<Entity> children = ListBlobs.getChildren(datastore, txn, listKey);
+					Entity tombstone = listEntity;
+					for (Entity child : children) {
+						if (child.getKey().equals(tombstoneKey)) tombstone = child;
+						else if (ListBlobs.isUnder(tombstoneKey, child.getKey())) toDelete.add(child.getKey());
+					}
+					if (!isTombstone(tombstone) || !tombstone.getKey().equals(tombstoneKey) || toDelete.isEmpty()) {
+						return deleted;
+					}
+					ListCommitter.bumpVersion(listEntity, listKey, toPut);
+					ListBlobs.write(datastore, txn, listEntity, listKey, toPut, toDelete);
+				}
+				else {
+					Entity tombstone = listEntity;
+					if (!tombstoneKey.equals(listKey)) {
+						try {
+							tombstone = datastore.get(txn, tombstoneKey);
+						} catch (EntityNotFoundException e) {
+							tombstone = null;
+						}
+					}
+					if (!isTombstone(tombstone)) return deleted;
+
+					Query q = new Query().setAncestor(tombstoneKey).setKeysOnly();
+					int fetched = 0;
+					for (Entity e : datastore.prepare(txn, q).asIterable(FetchOptions.Builder.withLimit(BATCH_SIZE))) {
+						fetched++;
+						if (!e.getKey().equals(tombstoneKey)) toDelete.add(e.getKey());
+					}
+					if (toDelete.isEmpty()) return deleted;
+					more = fetched == BATCH_SIZE;
+					if (listEntity != null) {
+						ListCommitter.bumpVersion(listEntity, listKey, toPut);
+						datastore.put(txn, toPut);
+					}
+					datastore.delete(txn, toDelete);
+				}
+				List<Key> reindex = SharedWithMe.update(datastore, txn, toPut, toDelete);
+				txn.commit();
+				SnapshotCache cache = SnapshotCache.get();
+				if (cache != null && listEntity != null) {
+					cache.committed(listKey, false, oldVersion, toPut, toDelete);
+				}
+				SharedWithMe.reindexNow(datastore, reindex);
+				deleted += toDelete.size();
+				log.info("delete: " + toDelete.size() + " under " + tombstoneKey);
+				if (!more) return deleted;
+				retries = ListCommitter.CONTENTION_RETRIES;
+			}
+			catch (ConcurrentModificationException e) {
+				if (retries == 0) {
+					throw e;
+				}
+				// Allow retry to occur
+				--retries;
+			} finally {
+				if (txn.isActive()) {
+					txn.rollback();
+				}
+			}
+		}//while true
+	}//delete
+
+
+
+	/**
+	 * @return true if follow-up work goes on the task queue (also used by SharedWithMe)
+	 */
+	static synchronized boolean isUseTaskQueue() {
+		if (useTaskQueue == null) {
+			//Only when running in a server, production or dev
+			useTaskQueue = SystemProperty.environment.value() != null;
+		}
+		return useTaskQueue;
+	}//isUseTaskQueue
+
+
+
+	/**
+	 * Override whether tombstones go on the task queue, e.g. for tests.  If false, the writers
+	 * delete under them right after their commit.
+	 */
+	public static synchronized void setUseTaskQueue(Boolean newUseTaskQueue) {
+		useTaskQueue = newUseTaskQueue;
+	}//setUseTaskQueue
+}//CascadeDelete
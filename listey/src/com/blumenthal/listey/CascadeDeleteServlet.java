@@ -0,0 +1,42 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.KeyFactory;
+
+/**
+ * Runs the tasks CascadeDelete adds, deleting everything under the deleted lists and items.
+ * If it throws, the task queue runs it again, and anything already deleted is just skipped.
+ * It's under /tasks, which web.xml limits to the app's admins (which includes the task queue).
+ *
+ * Parameters:
+ *   key - the tombstone, as KeyFactory.keyToString; can be given more than once
+ *
+ * @author David
+ *
+ */
+@SuppressWarnings("serial")
+public class CascadeDeleteServlet extends HttpServlet {
+
+	@Override
+	public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		String[] keys = req.getParameterValues(CascadeDelete.KEY);
+		if (keys == null) {
+			resp.sendError(400, "Needs " + CascadeDelete.KEY);
+			return;
+		}
+		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+		for (String key : keys) {
+			CascadeDelete.delete(datastore, KeyFactory.stringToKey(key));
+		}
+	}//doPost
+}//CascadeDeleteServlet
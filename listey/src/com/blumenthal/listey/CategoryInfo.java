@@ -27,6 +27,7 @@ public class CategoryInfo extends TimeStampedNode {
 		setName((String) entity.getProperty(NAME));
 		setUniqueId((String) entity.getKey().getName());
 		setStatus(Status.valueOf((String) entity.getProperty(STATUS)));
+		setServerUpdate((Long) entity.getProperty(SERVER_UPDATE));
 	}//CategoryInfo(Entity)
 	
 	
@@ -76,6 +77,16 @@ public class CategoryInfo extends TimeStampedNode {
 	}
 	
 	
+	@Override
+	public TimeStampedNode makeCopy() {
+		CategoryInfo newObj = (CategoryInfo) makeShallowCopy();
+		//Gson leaves the constructor's default for a null
+		if (getStatus() == null) newObj.setStatus(Status.ACTIVE);
+		newObj.setChangedOnServer(getChangedOnServer());
+		return newObj;
+	}//makeCopy
+	
+	
 	/**
 	 * @param other
 	 * @return Returns true if this object is essentially the same
@@ -102,6 +113,7 @@ public class CategoryInfo extends TimeStampedNode {
 	 */
 	public void setName(String name) {
 		this.name = name;
+		clearDigest();
 	}
 
 	/**
@@ -117,6 +129,7 @@ public class CategoryInfo extends TimeStampedNode {
 	 */
 	public void setUniqueId(String uniqueId) {
 		this.uniqueId = uniqueId;
+		clearDigest();
 	}
 
 	/**
@@ -132,6 +145,7 @@ public class CategoryInfo extends TimeStampedNode {
 	 */
 	public void setLastUpdate(Long lastUpdate) {
 		this.lastUpdate = lastUpdate;
+		clearDigest();
 	}
 
 	/**
@@ -147,6 +161,7 @@ public class CategoryInfo extends TimeStampedNode {
 	 */
 	public void setStatus(Status status) {
 		this.status = status;
+		clearDigest();
 	}
 	
 	
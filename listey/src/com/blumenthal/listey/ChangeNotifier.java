@@ -0,0 +1,74 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Tells waiting clients that something they can see was committed, so they know to sync.
+ *
+ * Changes are published on channels (see ChangeNotifiers for the channel names), and
+ * every publish gets a new, increasing sequence number.  A waiter passes the cursor from
+ * its last wait and gets back the channels it watches that were published after it.
+ *
+ * Notifications are only a hint to sync sooner; the client still syncs on its own schedule too,
+ * so an implementation may drop one now and then (e.g. memcache eviction) without losing data.
+ *
+ * @author David
+ *
+ */
+public interface ChangeNotifier {
+	/**
+	 * Publish a change on each of the channels.  Call after the commit succeeded.
+	 * @param channels
+	 */
+	public void publish(Collection<String> channels);
+
+
+
+	/**
+	 * @return the current cursor, i.e. a waitForChanges with this cursor only sees later publishes
+	 */
+	public long currentCursor();
+
+
+
+	/**
+	 * Wait until any of the watched channels is published after cursor, or until the timeout.
+	 * @param watched channels to watch
+	 * @param cursor from currentCursor() or a previous Changes
+	 * @param timeoutMillis
+	 * @return the changed channels (empty on timeout), and the cursor to wait from next time
+	 * @throws InterruptedException
+	 */
+	public Changes waitForChanges(Set<String> watched, long cursor, long timeoutMillis) throws InterruptedException;
+
+
+
+	/** Result of waitForChanges */
+	public static class Changes {
+		private Set<String> changedChannels;
+		private long cursor;
+
+		public Changes(Set<String> changedChannels, long cursor) {
+			this.changedChannels = changedChannels;
+			this.cursor = cursor;
+		}
+
+		/**
+		 * @return the watched channels that changed, empty if it timed out
+		 */
+		public Set<String> getChangedChannels() {
+			return changedChannels;
+		}
+
+		/**
+		 * @return the cursor to pass to the next wait
+		 */
+		public long getCursor() {
+			return cursor;
+		}
+	}//Changes
+}//ChangeNotifier
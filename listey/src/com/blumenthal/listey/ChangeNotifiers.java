@@ -0,0 +1,132 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.utils.SystemProperty;
+
+/**
+ * Picks the ChangeNotifier to use, and knows which channels a commit touches and which ones a user watches.
+ *
+ * Channels:
+ *   list:<owner>/<listId> - anything in that list changed
+ *   user:<email> - a list was shared with (or unshared from) that user, so their set of lists changed
+ *
+ * @author David
+ *
+ */
+public class ChangeNotifiers {
+	public static final String LIST_PREFIX = "list:";
+	public static final String USER_PREFIX = "user:";
+
+	private static ChangeNotifier notifier;
+
+
+
+	/**
+	 * @return the in-process notifier on the dev server, since it's a single instance, otherwise the memcache one
+	 */
+	public static synchronized ChangeNotifier get() {
+		if (notifier == null) {
+			if (SystemProperty.environment.value() == SystemProperty.Environment.Value.Production) {
+				notifier = new MemcacheChangeNotifier();
+			}
+			else {
+				notifier = new InProcessChangeNotifier();
+			}
+		}
+		return notifier;
+	}//get
+
+
+
+	/**
+	 * Use a different notifier, e.g. for tests
+	 */
+	public static synchronized void set(ChangeNotifier newNotifier) {
+		notifier = newNotifier;
+	}//set
+
+
+
+	public static String listChannel(String owner, String listId) {
+		return LIST_PREFIX + owner + "/" + listId;
+	}//listChannel
+
+
+
+	public static String userChannel(String userEmail) {
+		return USER_PREFIX + userEmail;
+	}//userChannel
+
+
+
+	/**
+	 * @return the channels to publish for a commit of these entities
+	 */
+	public static Set<String> channelsFor(Collection<Entity> updateEntities, Collection<Key> deleteKeys) {
+		Set<String> rv = new HashSet<String>();
+		for (Entity entity : updateEntities) {
+			addChannelsFor(entity.getKey(), rv);
+		}
+		for (Key key : deleteKeys) {
+			addChannelsFor(key, rv);
+		}
+		return rv;
+	}//channelsFor
+
+
+
+	private static void addChannelsFor(Key key, Set<String> channels) {
+		//Privs are keyed by the other user's id, and granting or revoking one changes that user's lists
+		if (key.getKind().equals(OtherUserPrivOnList.KIND)) {
+			channels.add(userChannel(key.getName()));
+		}
+		Key listKey = ListCommitter.listKeyOf(key);
+		if (listKey != null) {
+			channels.add(listChannel(listKey.getParent().getName(), listKey.getName()));
+		}
+	}//addChannelsFor
+
+
+
+	/**
+	 * Find the channels for every list the user can see: the ones they own, and the ones shared with them.
+	 * Only keys are loaded, none of the list contents.
+	 * @param datastore
+	 * @param userEmail
+	 * @return map of channel to {owner, listId}, plus the user's own channel mapped to null
+	 */
+	public static Map<String, String[]> watchChannels(DatastoreService datastore, String userEmail) {
+		Map<String, String[]> rv = new HashMap<String, String[]>();
+		rv.put(userChannel(userEmail), null);
+
+		Query ownQuery = new Query(ListInfo.KIND).setAncestor(ListeyDataOneUser.getEntityKey(userEmail)).setKeysOnly();
+		for (Entity e : datastore.prepare(ownQuery).asIterable()) {
+			addListChannel(e.getKey(), rv);
+		}
+
+		for (Key listKey : SharedWithMe.getSharedListKeys(datastore, userEmail)) {
+			addListChannel(listKey, rv);
+		}
+		return rv;
+	}//watchChannels
+
+
+
+	private static void addListChannel(Key listKey, Map<String, String[]> channels) {
+		String owner = listKey.getParent().getName();
+		String listId = listKey.getName();
+		channels.put(listChannel(owner, listId), new String[]{owner, listId});
+	}//addListChannel
+}//ChangeNotifiers
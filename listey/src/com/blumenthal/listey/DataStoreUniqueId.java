@@ -3,52 +3,116 @@
  */
 package com.blumenthal.listey;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.Map;
-
-import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
-import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.EntityNotFoundException;
-import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.KeyFactory;
-import com.google.appengine.api.datastore.Transaction;
+import java.util.Set;
 
 /**
+ * Gives permanent ids to the temporary ones clients make up, from a ListeyStore.
+ *
+ * A request that knows what it was sent calls reserveFor first, so all the ids it could need
+ * come from the store in one go rather than one at a time in the middle of the merge.  Ids
+ * are only handed out (and show up in getTempToPermanentIds) when a temporary id is actually
+ * made permanent; any reserved ones left over are just never used.
+ *
  * @author David
  *
  */
 public class DataStoreUniqueId {
+	//How many counters DatastoreListeyStore spreads ids over
 	public static int numShards = 20;
 	
 	private Map<String, String> tempToPermanentId = new HashMap<String,String>();
+	private ListeyStore store;
+	private LinkedList<String> reserved = new LinkedList<String>();
+	
+	/**
+	 * Ids come from ListeyStores.get()
+	 */
+	public DataStoreUniqueId() {
+	}
+	
+	public DataStoreUniqueId(ListeyStore store) {
+		this.store = store;
+	}
+	
+	private ListeyStore getStore() {
+		if (store == null) {
+			store = ListeyStores.get();
+		}
+		return store;
+	}//getStore
 	
 	public String getUniqueId() {
-		int shardNum = (int) ((Math.random()*numShards)) + 1;//1-numShards
-		Key shardKey = KeyFactory.createKey("uniqueIdShard", Integer.toString(shardNum));
-		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-		Transaction txn = datastore.beginTransaction();
-		Long shardVal = null;
-		try {
-			Entity shard = null;
-			try {
-				shard = datastore.get(shardKey);
-			} catch (EntityNotFoundException e) {
-				shard = new Entity(shardKey);
-				shard.setProperty("value", new Long(0));
-			}//EntityNotFoundException
-			shardVal = ((Long)shard.getProperty("value")) + 1;
-			shard.setProperty("value", shardVal);
-			datastore.put(shard);
-			txn.commit();
-		} finally {
-			if (txn.isActive()) {
-				txn.rollback();
-			}
+		if (!reserved.isEmpty()) {
+			return reserved.removeFirst();
 		}
-	    return (shardNum + ":" + shardVal);
+		return getStore().allocateId();
 	}//getUniqueId
 	
+	
+	
+	/**
+	 * Get enough ids from the store for every temporary id in ids that doesn't have one yet.
+	 * @param ids unique ids, permanent ones and repeats are skipped
+	 */
+	public void reserveFor(Collection<String> ids) {
+		Set<String> needed = new HashSet<String>();
+		for (String id : ids) {
+			if (id != null && isTemporaryId(id) && !tempToPermanentId.containsKey(id)) {
+				needed.add(id);
+			}
+		}
+		int count = needed.size() - reserved.size();
+		if (count > 0) {
+			reserved.addAll(getStore().allocateIds(count));
+		}
+	}//reserveFor
+	
+	
+	
+	/**
+	 * Reserve ids for every temporary id in the data a client sent
+	 */
+	public void reserveFor(ListeyDataMultipleUsers data) {
+		Set<String> ids = new HashSet<String>();
+		for (ListeyDataOneUser oneUser : data.userData.values()) {
+			for (ListInfo list : oneUser.lists.values()) {
+				addIds(list, ids);
+			}
+		}
+		reserveFor(ids);
+	}//reserveFor
+	
+	
+	
+	/**
+	 * Reserve ids for every temporary id in a list a client sent
+	 */
+	public void reserveFor(ListInfo list) {
+		Set<String> ids = new HashSet<String>();
+		addIds(list, ids);
+		reserveFor(ids);
+	}//reserveFor
+	
+	
+	
+	private static void addIds(ListInfo list, Set<String> ids) {
+		ids.add(list.getUniqueId());
+		for (CategoryInfo cat : list.getCategories()) {
+			ids.add(cat.getUniqueId());
+		}
+		for (ItemInfo item : list.getItems().values()) {
+			ids.add(item.getUniqueId());
+			//Item categories are under the category's id
+			ids.addAll(item.getCategories().keySet());
+		}
+	}//addIds
+	
 	/**
 	 * Pass this a unique id and it will return true if this is a temporary ID (created by a client).
 	 * Temporary IDs start with a colon
@@ -83,4 +147,13 @@ public class DataStoreUniqueId {
 		
 		return id;
 	}//ensurePermanentId
+	
+	
+	
+	/**
+	 * @return every temporary id that was given a permanent one by this object, mapped to that permanent id
+	 */
+	public Map<String, String> getTempToPermanentIds() {
+		return Collections.unmodifiableMap(tempToPermanentId);
+	}//getTempToPermanentIds
 }//DataStoreUniqueId
@@ -0,0 +1,194 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * ListeyStore on the App Engine datastore: each user is an entity group, and ids come from
+ * sharded counters.  Rather than a transaction per id, each store leases a block of
+ * listey.ids.blockSize ids from a counter at a time (hi-lo), by bumping the counter past the
+ * whole block, and hands them out as shard:value like before.  Whatever is left of a block
+ * when the instance goes away is never used, which only leaves a gap.  The loads and commits are the ones the servlets use directly
+ * (ListeyDataMultipleUsers, ListeyDataOneUser.fromDatastore, ListCommitter), so this
+ * just gives them the ListeyStore shape.
+ *
+ * @author David
+ *
+ */
+public class DatastoreListeyStore implements ListeyStore {
+	public static final String SHARD_KIND = "uniqueIdShard";
+	public static final String SHARD_VALUE = "value";
+
+	private static int blockSize = ListeyConfig.getInt("ids.blockSize", 100);
+
+	/** Ids shard:next through shard:last, leased from one counter */
+	private static class IdBlock {
+		final int shard;
+		final AtomicLong next;
+		final long last;
+
+		IdBlock(int shard, long first, long last) {
+			this.shard = shard;
+			this.next = new AtomicLong(first);
+			this.last = last;
+		}
+	}//IdBlock
+
+	private DatastoreService datastore;
+	private final AtomicReference<IdBlock> block = new AtomicReference<IdBlock>();
+
+	public DatastoreListeyStore(DatastoreService datastore) {
+		this.datastore = datastore;
+	}
+
+	public DatastoreService getDatastore() {
+		return datastore;
+	}
+
+
+
+	@Override
+	public ListeyDataMultipleUsers loadAll(String userEmail) {
+		return new ListeyDataMultipleUsers(datastore, userEmail);
+	}//loadAll
+
+
+
+	@Override
+	public ListeyDataOneUser loadUser(String userEmail, boolean includePrivs) {
+		return ListeyDataOneUser.fromDatastore(datastore, userEmail, null, null, includePrivs);
+	}//loadUser
+
+
+
+	@Override
+	public ListeyDataOneUser loadList(String ownerEmail, String listId, boolean includePrivs) {
+		return ListeyDataOneUser.fromDatastore(datastore, ownerEmail, listId, null, includePrivs);
+	}//loadList
+
+
+
+	@Override
+	public List<Key> getSharedListKeys(String userEmail) {
+		return SharedWithMe.getSharedListKeys(datastore, userEmail);
+	}//getSharedListKeys
+
+
+
+	@Override
+	public boolean commit(ListCommitter.ListChanges changes) {
+		return ListCommitter.commit(datastore, changes);
+	}//commit
+
+
+
+	@Override
+	public String allocateId() {
+		return allocateIds(1).get(0);
+	}//allocateId
+
+
+
+	/**
+	 * Hand out ids from the block this store leased, without any locking, and lease another
+	 * one when it runs out.
+	 */
+	@Override
+	public List<String> allocateIds(int count) {
+		List<String> rv = new ArrayList<String>(count);
+		while (rv.size() < count) {
+			IdBlock current = block.get();
+			if (current != null) {
+				long id = current.next.getAndIncrement();
+				if (id <= current.last) {
+					rv.add(current.shard + ":" + id);
+					continue;
+				}
+			}
+			leaseBlock(current, count - rv.size());
+		}//while more needed
+		return rv;
+	}//allocateIds
+
+
+
+	/**
+	 * Replace the exhausted block with a new one, unless another thread already has.
+	 * @param exhausted the block that ran out, or null if there wasn't one
+	 * @param wanted how many ids the caller still needs, the block is at least that big
+	 */
+	private synchronized void leaseBlock(IdBlock exhausted, int wanted) {
+		if (block.get() != exhausted) return;
+		block.set(lease(Math.max(getBlockSize(), wanted)));
+	}//leaseBlock
+
+
+
+	/**
+	 * Bump a random one of DataStoreUniqueId.numShards counters by size, and take the ids in between
+	 */
+	private IdBlock lease(int size) {
+		int shardNum = (int) ((Math.random()*DataStoreUniqueId.numShards)) + 1;//1-numShards
+		Key shardKey = KeyFactory.createKey(SHARD_KIND, Integer.toString(shardNum));
+		long start = SyncTimer.begin();
+		int retries = ListCommitter.CONTENTION_RETRIES;
+		try {
+			while (true) {
+				Transaction txn = datastore.beginTransaction();
+				try {
+					Entity shard = null;
+					try {
+						shard = datastore.get(txn, shardKey);
+					} catch (EntityNotFoundException e) {
+						shard = new Entity(shardKey);
+						shard.setProperty(SHARD_VALUE, new Long(0));
+					}//EntityNotFoundException
+					long oldVal = (Long) shard.getProperty(SHARD_VALUE);
+					shard.setProperty(SHARD_VALUE, oldVal + size);
+					datastore.put(txn, shard);
+					txn.commit();
+					return new IdBlock(shardNum, oldVal + 1, oldVal + size);
+				}
+				catch (ConcurrentModificationException e) {
+					if (retries == 0) {
+						throw e;
+					}
+					// Allow retry to occur
+					--retries;
+				} finally {
+					if (txn.isActive()) {
+						txn.rollback();
+					}
+				}
+			}//while true
+		} finally {
+			SyncTimer.end(SyncTimer.UNIQUE_ID, start);
+		}
+	}//lease
+
+
+
+	private static synchronized int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Change how many ids are leased at a time, e.g. for tests
+	 */
+	public static synchronized void setBlockSize(int newBlockSize) {
+		blockSize = newBlockSize;
+	}//setBlockSize
+}//DatastoreListeyStore
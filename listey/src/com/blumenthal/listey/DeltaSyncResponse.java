@@ -0,0 +1,137 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import static com.blumenthal.listey.JsonFieldNameConstants.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * The reply to a delta sync.  Only holds the nodes the client doesn't already
+ * have, plus the token to send next time and the permanent ids that were
+ * assigned to the client's temporary ids.
+ *
+ * JSON Data Format
+   {
+        "syncToken" : "1.hx3k2a",
+        "tempIds" : {":3" : "7:1234", ...},
+        "listDigests" : {"<owner>" : {"<listId>" : "<hex digest>", ...}, ...},
+        "userData" : {<SEE ListeyDataMultipleUsers, but only changed nodes>}
+   }
+ *
+ * Any temporary id the client sent that is not in tempIds was dropped by the server
+ * (e.g. a duplicate of an existing item), so the client should discard that node.
+ *
+ * listDigests has every list the user can see, as it is after the sync.  For a list the client
+ * hasn't changed since, it can send just {"digest" : "<hex digest>"} in place of the list;
+ * if the server's copy still matches nothing comes back for it, otherwise the whole list does.
+ *
+ * @author David
+ *
+ */
+public class DeltaSyncResponse {
+	private ListeyDataMultipleUsers changedData;
+	private SyncToken syncToken;
+	private Map<String, String> tempIds;
+	private Map<String, Map<String, String>> listDigests;
+
+	public DeltaSyncResponse(ListeyDataMultipleUsers changedData, SyncToken syncToken, Map<String, String> tempIds) {
+		this.changedData = changedData;
+		this.syncToken = syncToken;
+		this.tempIds = tempIds;
+	}
+
+
+	/**
+	 * @return this response as a JSON string
+	 */
+	public String toJson() {
+		StringWriter out = new StringWriter();
+		toJson(out);
+		return out.toString();
+	}//toJson
+
+
+	/**
+	 * Serialize straight to out.  The response object is written field by field, and each
+	 * user's data goes through Gson on its own, so there's never a JSON tree of the whole response.
+	 */
+	public void toJson(Writer out) {
+		Gson gson = ListeyDataMultipleUsers.getGson();
+		JsonWriter writer = new JsonWriter(out);
+		//Same escaping as Gson uses for the rest
+		writer.setHtmlSafe(true);
+		try {
+			writer.beginObject();
+			if (!changedData.userData.isEmpty()) {
+				writer.name(ListeyDataMultipleUsers.USER_DATA).beginObject();
+				for (Map.Entry<String, ListeyDataOneUser> userEntry : changedData.userData.entrySet()) {
+					writer.name(userEntry.getKey());
+					gson.toJson(userEntry.getValue(), ListeyDataOneUser.class, writer);
+				}
+				writer.endObject();
+			}//if userData
+			writer.name(SYNC_TOKEN).value(syncToken.toString());
+			if (tempIds != null) {
+				writer.name(TEMP_IDS);
+				gson.toJson(tempIds, Map.class, writer);
+			}
+			if (listDigests != null) {
+				writer.name(LIST_DIGESTS);
+				gson.toJson(listDigests, Map.class, writer);
+			}
+			writer.endObject();
+			writer.flush();
+		} catch (IOException e) {
+			throw new JsonIOException(e);
+		}
+	}//toJson
+
+
+	/**
+	 * @return the changedData
+	 */
+	public ListeyDataMultipleUsers getChangedData() {
+		return changedData;
+	}
+
+
+	/**
+	 * @return the syncToken
+	 */
+	public SyncToken getSyncToken() {
+		return syncToken;
+	}
+
+
+	/**
+	 * @return the tempIds
+	 */
+	public Map<String, String> getTempIds() {
+		return tempIds;
+	}
+
+
+	/**
+	 * @return the listDigests, or null if not sent
+	 */
+	public Map<String, Map<String, String>> getListDigests() {
+		return listDigests;
+	}
+
+
+	/**
+	 * @param listDigests the listDigests to set, see ListeyDataMultipleUsers.getListDigests
+	 */
+	public void setListDigests(Map<String, Map<String, String>> listDigests) {
+		this.listDigests = listDigests;
+	}
+}//DeltaSyncResponse
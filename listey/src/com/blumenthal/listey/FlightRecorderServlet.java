@@ -0,0 +1,34 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Dumps this instance's SyncFlightRecorder records as JSON, for debugging a merge.
+ * It's under /admin, which web.xml limits to the app's admins.  There's nothing in it unless
+ * listey.recorder.enabled is set.
+ *
+ * Parameters:
+ *   user - optional, only this user's records
+ *
+ * @author David
+ *
+ */
+@SuppressWarnings("serial")
+public class FlightRecorderServlet extends HttpServlet {
+	public static final String USER = "user";
+
+	@Override
+	public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		resp.setContentType("text/plain");
+		resp.setCharacterEncoding(SyncIO.DEFAULT_CHARSET);
+		resp.setHeader("Cache-Control", "no-cache");
+		resp.getWriter().print(SyncFlightRecorder.get().toJson(req.getParameter(USER)));
+	}//doGet
+}//FlightRecorderServlet
@@ -0,0 +1,64 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * ChangeNotifier that only works within this JVM, using wait/notify.
+ * Good for the local dev server, which is a single instance, and for tests.
+ *
+ * @author David
+ *
+ */
+public class InProcessChangeNotifier implements ChangeNotifier {
+	private long sequence = 0;
+	//Sequence number of the last publish on each channel
+	private Map<String, Long> channelSequences = new HashMap<String, Long>();
+
+
+
+	@Override
+	public synchronized void publish(Collection<String> channels) {
+		if (channels.isEmpty()) return;
+		sequence++;
+		for (String channel : channels) {
+			channelSequences.put(channel, sequence);
+		}
+		notifyAll();
+	}//publish
+
+
+
+	@Override
+	public synchronized long currentCursor() {
+		return sequence;
+	}//currentCursor
+
+
+
+	@Override
+	public synchronized Changes waitForChanges(Set<String> watched, long cursor, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (true) {
+			Set<String> changed = new HashSet<String>();
+			for (String channel : watched) {
+				Long channelSequence = channelSequences.get(channel);
+				if (channelSequence != null && channelSequence > cursor) {
+					changed.add(channel);
+				}
+			}//foreach watched channel
+
+			long remaining = deadline - System.currentTimeMillis();
+			if (!changed.isEmpty() || remaining <= 0) {
+				return new Changes(changed, sequence);
+			}
+			wait(remaining);
+		}//while true
+	}//waitForChanges
+}//InProcessChangeNotifier
@@ -0,0 +1,47 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SnapshotStore that's just a map in this JVM, and never evicts anything.  For tests.
+ *
+ * @author David
+ *
+ */
+public class InProcessSnapshotStore implements SnapshotStore {
+	private Map<String, Object> values = new ConcurrentHashMap<String, Object>();
+
+
+
+	@Override
+	public Map<String, Object> getAll(Collection<String> keys) {
+		Map<String, Object> rv = new HashMap<String, Object>();
+		for (String key : keys) {
+			Object value = values.get(key);
+			if (value != null) rv.put(key, value);
+		}
+		return rv;
+	}//getAll
+
+
+
+	@Override
+	public void putAll(Map<String, Object> newValues) {
+		values.putAll(newValues);
+	}//putAll
+
+
+
+	/**
+	 * Forget everything, like memcache being flushed
+	 */
+	public void clear() {
+		values.clear();
+	}//clear
+}//InProcessSnapshotStore
@@ -25,6 +25,7 @@ public class ItemCategoryInfo extends TimeStampedNode {
 		setLastUpdate((Long) entity.getProperty(LAST_UPDATE));
 		setUniqueId((String) entity.getKey().getName());
 		setStatus(Status.valueOf((String) entity.getProperty(STATUS)));
+		setServerUpdate((Long) entity.getProperty(SERVER_UPDATE));
 	}//ItemCategoryInfo(Entity)
 	
 	
@@ -41,6 +42,7 @@ public class ItemCategoryInfo extends TimeStampedNode {
 	 */
 	public void setUniqueId(String uniqueId) {
 		this.uniqueId = uniqueId;
+		clearDigest();
 	}
 
 	/**
@@ -56,6 +58,7 @@ public class ItemCategoryInfo extends TimeStampedNode {
 	 */
 	public void setStatus(Status status) {
 		this.status = status;
+		clearDigest();
 	}
 
 	/**
@@ -71,6 +74,7 @@ public class ItemCategoryInfo extends TimeStampedNode {
 	 */
 	public void setLastUpdate(Long lastUpdate) {
 		this.lastUpdate = lastUpdate;
+		clearDigest();
 	}
 
 	/**
@@ -100,6 +104,16 @@ public class ItemCategoryInfo extends TimeStampedNode {
 	}
 	
 	
+	@Override
+	public TimeStampedNode makeCopy() {
+		ItemCategoryInfo newObj = (ItemCategoryInfo) makeShallowCopy();
+		//Gson leaves the constructor's default for a null
+		if (getStatus() == null) newObj.setStatus(Status.ACTIVE);
+		newObj.setChangedOnServer(getChangedOnServer());
+		return newObj;
+	}//makeCopy
+	
+	
 	/**
 	 * @param other
 	 * @return Returns true if this object is essentially the same
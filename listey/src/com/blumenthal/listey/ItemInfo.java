@@ -4,6 +4,7 @@
 package com.blumenthal.listey;
 
 import static com.blumenthal.listey.JsonFieldNameConstants.*;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -37,6 +38,7 @@ public class ItemInfo extends TimeStampedNode {
 		setUniqueId((String) entity.getKey().getName());
 		setCount((Long) entity.getProperty(COUNT));
 		setStatus(Status.valueOf((String) entity.getProperty(STATUS)));
+		setServerUpdate((Long) entity.getProperty(SERVER_UPDATE));
 	}//ItemInfo(Entity)
 	
 	
@@ -55,6 +57,7 @@ public class ItemInfo extends TimeStampedNode {
 	 */
 	public void setName(String name) {
 		this.name = name;
+		clearDigest();
 	}
 
 
@@ -71,6 +74,7 @@ public class ItemInfo extends TimeStampedNode {
 	 */
 	public void setCount(Long count) {
 		this.count = count;
+		clearDigest();
 	}
 
 
@@ -87,6 +91,7 @@ public class ItemInfo extends TimeStampedNode {
 	 */
 	public void setStatus(Status status) {
 		this.status = status;
+		clearDigest();
 	}
 
 
@@ -104,6 +109,7 @@ public class ItemInfo extends TimeStampedNode {
 	 */
 	public void setLastUpdate(Long lastUpdate) {
 		this.lastUpdate = lastUpdate;
+		clearDigest();
 	}
 
 
@@ -161,6 +167,13 @@ public class ItemInfo extends TimeStampedNode {
 	}//shallowEquals
 	
 	
+	@Override
+	protected void digestShallowFields(MessageDigest md) {
+		super.digestShallowFields(md);
+		digestValue(md, getCount());
+	}//digestShallowFields
+	
+	
 	@Override
 	public TimeStampedNode makeShallowCopy() {
 		ItemInfo newObj = new ItemInfo();
@@ -173,6 +186,24 @@ public class ItemInfo extends TimeStampedNode {
 	}
 	
 	
+	/**
+	 * changedOnServer isn't kept, since ItemInfoJsonAdapter doesn't parse it
+	 */
+	@Override
+	public TimeStampedNode makeCopy() {
+		ItemInfo newObj = (ItemInfo) makeShallowCopy();
+		//A null count isn't written out, and parses as the default
+		if (getCount() == null) newObj.setCount(1L);
+		for (Map.Entry<String, ItemCategoryInfo> entry : getCategories().entrySet()) {
+			ItemCategoryInfo catCopy = (ItemCategoryInfo) entry.getValue().makeCopy();
+			catCopy.setUniqueId(entry.getKey());
+			catCopy.setChangedOnServer(false);
+			newObj.getCategories().put(entry.getKey(), catCopy);
+		}
+		return newObj;
+	}//makeCopy
+	
+	
 	/**
 	 * @param other
 	 * @return Returns true if this object is essentially the same
@@ -209,6 +240,7 @@ public class ItemInfo extends TimeStampedNode {
 	 */
 	public void setUniqueId(String uniqueId) {
 		this.uniqueId = uniqueId;
+		clearDigest();
 	}
 
 
@@ -225,6 +257,7 @@ public class ItemInfo extends TimeStampedNode {
 	 */
 	public void setCategories(Map<String, ItemCategoryInfo> categories) {
 		this.categories = categories;
+		clearDigest();
 	}
 
 
@@ -246,6 +279,7 @@ public class ItemInfo extends TimeStampedNode {
 	@SuppressWarnings("unchecked")
 	@Override
 	public void addSubMapEntries(List<List<? extends TimeStampedNode>> subMapEntriesToAdd) {
+		clearDigest();
 		List<ItemCategoryInfo> catInfos = (List<ItemCategoryInfo>) subMapEntriesToAdd.get(0);
 		for (ItemCategoryInfo catInfo : catInfos) {
 			categories.put(catInfo.getUniqueId(), catInfo);
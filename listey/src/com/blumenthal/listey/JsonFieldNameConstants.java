@@ -13,15 +13,22 @@ public class JsonFieldNameConstants {
 	public static final String CATEGORIES = "categories";
 	public static final String CHANGED_ON_SERVER = "changedOnServer";
 	public static final String COUNT = "count";
+	public static final String DEVICE_ID = "deviceId";
+	public static final String DIGEST = "digest";
 	public static final String ITEMS = "items";
 	public static final String LAST_UPDATE = "lastUpdate";
+	public static final String LIST_DIGESTS = "listDigests";
 	public static final String LISTS = "lists";
 	public static final String NAME = "name";
 	public static final String OTHER_USER_PRIVS = "otherUserPrivs";
 	public static final String PRIV = "priv";
 	public static final String SELECTED_CATEGORIES = "selectedCategories";
+	public static final String SERVER_UPDATE = "serverUpdate";
 	public static final String STATUS = "status";
+	public static final String SYNC_TOKEN = "syncToken";
+	public static final String TEMP_IDS = "tempIds";
 	public static final String UNIQUE_ID = "uniqueId";
 	public static final String USER_EMAIL = "userEmail";
 	public static final String USER_ID = "userId";
+	public static final String VERSION = "version";
 }//JsonFieldNameConstants
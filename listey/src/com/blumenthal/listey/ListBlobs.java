@@ -0,0 +1,683 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * The other way to store a list: instead of an entity for every item, item category and
+ * category, they're all serialized into one gzipped blob, split over as many listBlob entities
+ * (chunks) under the list entity as it takes.  The list entity stays as it is and is the
+ * header: it has the version and lastUpdate, plus blobChunks, how many chunks there are.
+ * So a 3,000 item list is a handful of entities to read and write instead of thousands.
+ *
+ * The privs stay entities, since they're queried by who they're for.
+ *
+ * Everything else still works with the entities: expand() turns the chunks back into the
+ * entities they hold as an ancestor query's results are iterated over, and write() turns a
+ * commit's puts and deletes into a new blob.  Everything that writes into a list goes through
+ * write(), which keeps each list in the layout it's in.
+ *
+ * New lists are stored as blobs for the users in blob.users, a comma separated list of emails
+ * or * for everybody.  Existing lists are moved from one layout to the other with convert()
+ * (see ListMigrationServlet), which copies them over in batches.  Until the list entity is
+ * switched, the copy is ignored by expand(), as is whatever the old layout leaves behind after.
+ *
+ * Settings (system properties, see ListeyConfig):
+ *   listey.blob.users - default none
+ *   listey.blob.chunkBytes - default 900K, under the datastore's 1MB entity limit
+ *
+ * @author David
+ *
+ */
+public class ListBlobs {
+	public static final String KIND = "listBlob";//kind of the chunks in the datastore
+	public static final String CHUNKS = "blobChunks";//on the list entity
+	public static final String DATA = "data";//on the chunks
+
+	//Bumped if the format changes, so old blobs can still be read
+	private static final int FORMAT = 1;
+	//Most entities in one put or delete when converting a big list
+	private static final int BATCH_SIZE = 500;
+	//Most chunks in one put when converting, to stay under the datastore's 10MB per commit
+	private static final int CHUNKS_PER_BATCH = 8;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	//Property value types
+	private static final byte NULL = 0;
+	private static final byte STRING = 1;
+	private static final byte LONG = 2;
+	private static final byte BOOLEAN = 3;
+	private static final byte DOUBLE = 4;
+	private static final byte TEXT = 5;
+
+	private static String blobUsers = ListeyConfig.getString("blob.users", "");
+	private static int chunkBytes = ListeyConfig.getInt("blob.chunkBytes", 900 * 1024);
+
+
+
+	/**
+	 * @return true if the user's new lists are stored as blobs
+	 */
+	public static synchronized boolean usesBlobs(String userEmail) {
+		if (blobUsers.equals("*")) return true;
+		for (String user : blobUsers.split(",")) {
+			if (user.trim().equalsIgnoreCase(userEmail)) return true;
+		}
+		return false;
+	}//usesBlobs
+
+
+
+	/**
+	 * Change whose new lists are stored as blobs, e.g. for tests
+	 * @param users comma separated emails, * for everybody, or "" for nobody
+	 */
+	public static synchronized void setBlobUsers(String users) {
+		blobUsers = users;
+	}
+
+	/**
+	 * Change how big the chunks are, e.g. for tests
+	 */
+	public static synchronized void setChunkBytes(int newChunkBytes) {
+		chunkBytes = newChunkBytes;
+	}
+
+	private static synchronized int getChunkBytes() {
+		return chunkBytes;
+	}
+
+
+
+	/**
+	 * @return true if the list is stored as a blob
+	 */
+	public static boolean isBlobList(Entity listEntity) {
+		return listEntity != null && listEntity.hasProperty(CHUNKS);
+	}//isBlobList
+
+
+
+	/**
+	 * @return true if the entity goes in the blob when its list is stored as one
+	 */
+	public static boolean inBlob(Key key) {
+		String kind = key.getKind();
+		return kind.equals(ItemInfo.KIND) || kind.equals(ItemCategoryInfo.KIND) || kind.equals(CategoryInfo.KIND);
+	}//inBlob
+
+
+
+	/**
+	 * @return true if key is under ancestorKey (and isn't ancestorKey)
+	 */
+	public static boolean isUnder(Key ancestorKey, Key key) {
+		for (Key k = key.getParent(); k != null; k = k.getParent()) {
+			if (k.equals(ancestorKey)) return true;
+		}
+		return false;
+	}//isUnder
+
+
+
+	private static Key chunkKey(Key listKey, long chunk) {
+		return KeyFactory.createKey(listKey, KIND, chunk);
+	}//chunkKey
+
+
+
+	private static long getChunkCount(Entity listEntity) {
+		Long chunks = (Long) listEntity.getProperty(CHUNKS);
+		return chunks == null ? 0 : chunks;
+	}//getChunkCount
+
+
+
+	/**
+	 * Write a commit's changes to a list, in the layout the list is in.  Call in the commit's
+	 * transaction, after ListCommitter.bumpVersion.
+	 * @param datastore
+	 * @param txn
+	 * @param currentListEntity list entity as read in the transaction, or null for a new list
+	 * @param listKey the list, or null if the changes aren't in one list
+	 * @param updateEntities entities to put
+	 * @param deleteKeys keys to delete
+	 */
+	public static void write(DatastoreService datastore, Transaction txn, Entity currentListEntity, Key listKey,
+			List<Entity> updateEntities, List<Key> deleteKeys) {
+		Entity header = currentListEntity;
+		if (listKey != null) {
+			for (Entity entity : updateEntities) {
+				if (entity.getKey().equals(listKey)) header = entity;
+			}
+		}
+		boolean blob = currentListEntity == null ? listKey != null && usesBlobs(listKey.getParent().getName())
+				: isBlobList(currentListEntity);
+		if (!blob || header == null) {
+			datastore.put(txn, updateEntities);
+			datastore.delete(txn, deleteKeys);
+			return;
+		}
+
+		//What's in the blob now, before header (which could be currentListEntity) gets the new count
+		long oldChunks = currentListEntity == null ? 0 : getChunkCount(currentListEntity);
+		Map<Key, Entity> children = new LinkedHashMap<Key, Entity>();
+		if (oldChunks > 0) {
+			List<Key> chunkKeys = new ArrayList<Key>();
+			for (long i = 1; i <= oldChunks; i++) {
+				chunkKeys.add(chunkKey(listKey, i));
+			}
+			Map<Key, Entity> chunks = datastore.get(txn, chunkKeys);
+			for (Entity child : decode(listKey, fromChunks(chunks.values(), oldChunks))) {
+				children.put(child.getKey(), child);
+			}
+		}//if there's a blob
+
+		List<Entity> toPut = new ArrayList<Entity>();
+		List<Key> toDelete = new ArrayList<Key>();
+		for (Entity entity : updateEntities) {
+			if (entity.getKey().equals(listKey)) continue;
+			if (inBlob(entity.getKey())) {
+				children.put(entity.getKey(), entity);
+			}
+			else {
+				toPut.add(entity);
+			}
+		}
+		for (Key key : deleteKeys) {
+			if (inBlob(key)) {
+				children.remove(key);
+			}
+			else {
+				toDelete.add(key);
+			}
+		}
+
+		long newChunks = 0;
+		if (deleteKeys.contains(listKey)) {
+			toDelete.add(listKey);
+		}
+		else {
+			List<Entity> chunks = toChunks(listKey, encode(listKey, children.values()));
+			newChunks = chunks.size();
+			header.setUnindexedProperty(CHUNKS, newChunks);
+			toPut.add(header);
+			toPut.addAll(chunks);
+		}
+		for (long i = newChunks + 1; i <= oldChunks; i++) {
+			toDelete.add(chunkKey(listKey, i));
+		}
+		datastore.put(txn, toPut);
+		datastore.delete(txn, toDelete);
+	}//write
+
+
+
+	/**
+	 * Load everything under the list, in whichever layout it's in, as entities
+	 * @return the entities under the list, not the list entity itself
+	 */
+	public static List<Entity> getChildren(DatastoreService datastore, Transaction txn, Key listKey) {
+		List<Entity> rv = new ArrayList<Entity>();
+		Query q = new Query().setAncestor(listKey);
+		for (Entity e : expand(datastore.prepare(txn, q).asIterable(FetchOptions.Builder.withDefaults()))) {
+			if (!e.getKey().equals(listKey)) rv.add(e);
+		}
+		return rv;
+	}//getChildren
+
+
+
+	/**
+	 * Move a list to the other layout.  A big list is too much to rewrite in one transaction,
+	 * so it's copied into the new layout BATCH_SIZE entities (or CHUNKS_PER_BATCH chunks) at a
+	 * time while the list entity still says it's in the old one, which is all readers and
+	 * write() go by (see Expander).  The last step is switching the list entity over, in a
+	 * transaction that only goes through if the list's version is still the one that was copied;
+	 * if a commit got in, the copy starts over.  Then the old layout is deleted, in batches too.
+	 * The version doesn't change, since what's in the list doesn't.
+	 * @param datastore
+	 * @param listKey
+	 * @param toBlob true to store the list as a blob, false to store it as entities
+	 * @return true if it was moved, false if it was already in that layout or isn't there
+	 */
+	public static boolean convert(DatastoreService datastore, Key listKey, boolean toBlob) {
+		int retries = ListCommitter.CONTENTION_RETRIES;
+		while (true) {
+			//Read the list all at once, so the copy is of one version of it
+			Entity listEntity;
+			List<Entity> blobChildren = new ArrayList<Entity>();
+			Transaction txn = datastore.beginTransaction();
+			try {
+				try {
+					listEntity = datastore.get(txn, listKey);
+				} catch (EntityNotFoundException e) {
+					return false;
+				}
+				if (isBlobList(listEntity) == toBlob) {
+					//Still finish off an earlier convert that stopped before its cleanup
+					deleteLayout(datastore, listKey, !toBlob);
+					return false;
+				}
+				for (Entity child : getChildren(datastore, txn, listKey)) {
+					if (inBlob(child.getKey())) blobChildren.add(child);
+				}
+			} finally {
+				if (txn.isActive()) {
+					txn.rollback();
+				}
+			}
+
+			//Anything already in the new layout is from a copy that didn't finish
+			deleteLayout(datastore, listKey, toBlob);
+			long chunkCount = 0;
+			if (toBlob) {
+				List<Entity> chunks = toChunks(listKey, encode(listKey, blobChildren));
+				chunkCount = chunks.size();
+				for (int i = 0; i < chunks.size(); i += CHUNKS_PER_BATCH) {
+					datastore.put(chunks.subList(i, Math.min(chunks.size(), i + CHUNKS_PER_BATCH)));
+				}
+			}
+			else {
+				for (int i = 0; i < blobChildren.size(); i += BATCH_SIZE) {
+					datastore.put(blobChildren.subList(i, Math.min(blobChildren.size(), i + BATCH_SIZE)));
+				}
+			}
+
+			if (switchLayout(datastore, listKey, ListCommitter.getVersion(listEntity), toBlob, chunkCount)) {
+				deleteLayout(datastore, listKey, !toBlob);
+				return true;
+			}
+			if (retries == 0) {
+				throw new ConcurrentModificationException("convert: " + listKey + " kept changing while it was copied");
+			}
+			--retries;
+		}//while true
+	}//convert
+
+
+
+	/**
+	 * Point the list entity at the copy in the new layout, if the list hasn't changed since it was read
+	 * @return true if it was switched
+	 */
+	private static boolean switchLayout(DatastoreService datastore, Key listKey, long copiedVersion, boolean toBlob, long chunkCount) {
+		Transaction txn = datastore.beginTransaction();
+		try {
+			Entity listEntity;
+			try {
+				listEntity = datastore.get(txn, listKey);
+			} catch (EntityNotFoundException e) {
+				return false;
+			}
+			if (ListCommitter.getVersion(listEntity) != copiedVersion || isBlobList(listEntity) == toBlob) {
+				return false;
+			}
+			if (toBlob) {
+				listEntity.setUnindexedProperty(CHUNKS, chunkCount);
+			}
+			else {
+				listEntity.removeProperty(CHUNKS);
+			}
+			datastore.put(txn, listEntity);
+			txn.commit();
+			return true;
+		}
+		catch (ConcurrentModificationException e) {
+			return false;
+		} finally {
+			if (txn.isActive()) {
+				txn.rollback();
+			}
+		}
+	}//switchLayout
+
+
+
+	/**
+	 * Delete one layout's entities under the list, BATCH_SIZE at a time.  Only for the layout
+	 * the list entity doesn't say it's in, which nothing reads.
+	 * @param blob true for the chunks, false for the item, item category and category entities
+	 */
+	private static void deleteLayout(DatastoreService datastore, Key listKey, boolean blob) {
+		Query q = (blob ? new Query(KIND) : new Query()).setAncestor(listKey).setKeysOnly();
+		List<Key> keys = new ArrayList<Key>();
+		for (Entity e : datastore.prepare(q).asIterable()) {
+			if (blob || inBlob(e.getKey())) keys.add(e.getKey());
+		}
+		for (int i = 0; i < keys.size(); i += BATCH_SIZE) {
+			datastore.delete(keys.subList(i, Math.min(keys.size(), i + BATCH_SIZE)));
+		}
+	}//deleteLayout
+
+
+
+	/**
+	 * @param entities e.g. an ancestor query's results, where each list's chunks come together
+	 * @return the same entities, but with each list's chunks replaced by the entities in them.
+	 * Read as they're iterated over, so iterate once.
+	 */
+	public static Iterable<Entity> expand(final Iterable<Entity> entities) {
+		return new Iterable<Entity>() {
+			@Override
+			public Iterator<Entity> iterator() {
+				return new Expander(entities.iterator());
+			}
+		};
+	}//expand
+
+
+
+	/** Iterator for expand() */
+	private static class Expander implements Iterator<Entity> {
+		private Iterator<Entity> source;
+		private Entity pushedBack;
+		private Entity lastList;
+		private LinkedList<Entity> ready = new LinkedList<Entity>();
+
+		Expander(Iterator<Entity> source) {
+			this.source = source;
+		}
+
+		private boolean sourceHasNext() {
+			return pushedBack != null || source.hasNext();
+		}
+
+		private Entity sourceNext() {
+			if (pushedBack != null) {
+				Entity rv = pushedBack;
+				pushedBack = null;
+				return rv;
+			}
+			return source.next();
+		}
+
+		private void fill() {
+			while (ready.isEmpty() && sourceHasNext()) {
+				Entity e = sourceNext();
+				if (!e.getKind().equals(KIND)) {
+					if (e.getKind().equals(ListInfo.KIND)) lastList = e;
+					//Copied or left behind by convert() for a layout the list isn't in
+					if (inBlob(e.getKey()) && isBlobList(lastList) && isUnder(lastList.getKey(), e.getKey())) continue;
+					ready.add(e);
+					return;
+				}
+
+				//All the chunks of this list
+				Key listKey = e.getParent();
+				List<Entity> chunks = new ArrayList<Entity>();
+				chunks.add(e);
+				while (sourceHasNext()) {
+					Entity next = sourceNext();
+					if (next.getKind().equals(KIND) && next.getParent().equals(listKey)) {
+						chunks.add(next);
+					}
+					else {
+						pushedBack = next;
+						break;
+					}
+				}//while more chunks
+				boolean isLastList = lastList != null && lastList.getKey().equals(listKey);
+				if (isLastList && !isBlobList(lastList)) continue;//same for chunks
+				long expected = isLastList ? getChunkCount(lastList) : chunks.size();
+				ready.addAll(decode(listKey, fromChunks(chunks, expected)));
+			}//while nothing ready
+		}//fill
+
+		@Override
+		public boolean hasNext() {
+			fill();
+			return !ready.isEmpty();
+		}
+
+		@Override
+		public Entity next() {
+			fill();
+			if (ready.isEmpty()) throw new NoSuchElementException();
+			return ready.removeFirst();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}//Expander
+
+
+
+	/**
+	 * @return the blob split up into chunk entities under the list
+	 */
+	static List<Entity> toChunks(Key listKey, byte[] data) {
+		int size = getChunkBytes();
+		List<Entity> rv = new ArrayList<Entity>();
+		int chunk = 1;
+		for (int start = 0; start == 0 || start < data.length; start += size) {
+			byte[] chunkData = new byte[Math.min(size, data.length - start)];
+			System.arraycopy(data, start, chunkData, 0, chunkData.length);
+			Entity entity = new Entity(chunkKey(listKey, chunk++));
+			entity.setUnindexedProperty(DATA, new Blob(chunkData));
+			rv.add(entity);
+		}
+		return rv;
+	}//toChunks
+
+
+
+	/**
+	 * @param chunks chunk entities, in any order
+	 * @param expected how many chunks the list entity says there are
+	 * @return the blob put back together
+	 */
+	static byte[] fromChunks(Collection<Entity> chunks, long expected) {
+		if (chunks.size() != expected) {
+			throw new IllegalStateException("List blob has " + chunks.size() + " of " + expected + " chunks");
+		}
+		List<Entity> sorted = new ArrayList<Entity>(chunks);
+		Collections.sort(sorted, new Comparator<Entity>() {
+			@Override
+			public int compare(Entity a, Entity b) {
+				return Long.valueOf(a.getKey().getId()).compareTo(b.getKey().getId());
+			}
+		});
+		ByteArrayOutputStream rv = new ByteArrayOutputStream();
+		for (Entity chunk : sorted) {
+			byte[] data = ((Blob) chunk.getProperty(DATA)).getBytes();
+			rv.write(data, 0, data.length);
+		}
+		return rv.toByteArray();
+	}//fromChunks
+
+
+
+	/**
+	 * @param listKey the list the entities are under
+	 * @param children entities under the list
+	 * @return the entities with their keys (below the list) and properties, gzipped
+	 */
+	static byte[] encode(Key listKey, Collection<Entity> children) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes));
+			out.writeInt(FORMAT);
+			out.writeInt(children.size());
+			for (Entity entity : children) {
+				//The key's path from just under the list down to the entity
+				LinkedList<Key> path = new LinkedList<Key>();
+				for (Key k = entity.getKey(); !k.equals(listKey); k = k.getParent()) {
+					if (k.getParent() == null) {
+						throw new IllegalArgumentException(entity.getKey() + " is not under " + listKey);
+					}
+					path.addFirst(k);
+				}
+				out.writeByte(path.size());
+				for (Key k : path) {
+					out.writeUTF(k.getKind());
+					if (k.getName() != null) {
+						out.writeBoolean(true);
+						writeString(out, k.getName());
+					}
+					else {
+						out.writeBoolean(false);
+						out.writeLong(k.getId());
+					}
+				}//foreach key in path
+
+				Map<String, Object> properties = entity.getProperties();
+				out.writeInt(properties.size());
+				for (Map.Entry<String, Object> property : properties.entrySet()) {
+					out.writeUTF(property.getKey());
+					out.writeBoolean(entity.isUnindexedProperty(property.getKey()));
+					writeValue(out, property.getValue());
+				}
+			}//foreach entity
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			//Only writing to memory
+			throw new IllegalStateException(e);
+		}
+	}//encode
+
+
+
+	/**
+	 * @return the entities encode() was given
+	 */
+	static List<Entity> decode(Key listKey, byte[] data) {
+		try {
+			DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(data)));
+			int format = in.readInt();
+			if (format != FORMAT) {
+				throw new IllegalStateException("Unknown list blob format " + format + " in " + listKey);
+			}
+			int count = in.readInt();
+			List<Entity> rv = new ArrayList<Entity>(count);
+			for (int i = 0; i < count; i++) {
+				Key key = listKey;
+				int depth = in.readByte();
+				for (int j = 0; j < depth; j++) {
+					String kind = in.readUTF();
+					key = in.readBoolean() ? KeyFactory.createKey(key, kind, readString(in))
+							: KeyFactory.createKey(key, kind, in.readLong());
+				}
+				Entity entity = new Entity(key);
+				int properties = in.readInt();
+				for (int j = 0; j < properties; j++) {
+					String name = in.readUTF();
+					boolean unindexed = in.readBoolean();
+					Object value = readValue(in);
+					if (unindexed) {
+						entity.setUnindexedProperty(name, value);
+					}
+					else {
+						entity.setProperty(name, value);
+					}
+				}
+				rv.add(entity);
+			}//foreach entity
+			return rv;
+		} catch (IOException e) {
+			throw new IllegalStateException("Bad list blob in " + listKey, e);
+		}
+	}//decode
+
+
+
+	private static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+		}
+		else if (value instanceof String) {
+			out.writeByte(STRING);
+			writeString(out, (String) value);
+		}
+		else if (value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		}
+		else if (value instanceof Boolean) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		}
+		else if (value instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) value);
+		}
+		else if (value instanceof Text) {
+			out.writeByte(TEXT);
+			writeString(out, ((Text) value).getValue());
+		}
+		else {
+			throw new IllegalArgumentException("Can't store a " + value.getClass().getName() + " in a list blob");
+		}
+	}//writeValue
+
+
+
+	private static Object readValue(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+		case NULL:
+			return null;
+		case STRING:
+			return readString(in);
+		case LONG:
+			return in.readLong();
+		case BOOLEAN:
+			return in.readBoolean();
+		case DOUBLE:
+			return in.readDouble();
+		case TEXT:
+			return new Text(readString(in));
+		default:
+			throw new IOException("Unknown value type " + type);
+		}
+	}//readValue
+
+
+
+	//writeUTF is limited to 64K
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+}//ListBlobs
@@ -0,0 +1,229 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import static com.blumenthal.listey.JsonFieldNameConstants.VERSION;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * Commits the changes to one list with optimistic concurrency.
+ *
+ * Every list entity has a version property that is bumped on every commit that touches
+ * anything in the list.  The merge runs outside of any transaction against the version
+ * that was loaded, and the commit is a short transaction that only goes through if the
+ * version is still the same.  If it moved, the caller reloads and re-merges just that list.
+ * The transaction is only cross-group when the commit changes privs (see SharedWithMe).
+ * All of a user's lists are in the user's entity group, so commits to different lists still
+ * contend with each other; what this avoids is holding a transaction open over the load and merge.
+ *
+ * Anything else that writes into a list in its own transaction (ListSyncServlet, OpsServlet)
+ * has to call bumpVersion too, so the version always moves when the list changes.
+ *
+ * @author David
+ *
+ */
+public class ListCommitter {
+	private static final Logger log = Logger.getLogger(ListCommitter.class.getName());
+
+	//How many times to retry the commit when it fails from contention on the entity group
+	//(all of a user's lists are in the same entity group) rather than a version change.
+	public static final int CONTENTION_RETRIES = 10;
+
+
+	/** The entities to write and delete for one list */
+	public static class ListChanges {
+		private Key listKey;
+		private long expectedVersion;
+		private List<Entity> updateEntities = new ArrayList<Entity>();
+		private List<Key> deleteKeys = new ArrayList<Key>();
+
+		public ListChanges(Key listKey) {
+			this.listKey = listKey;
+		}
+
+		public Key getListKey() {
+			return listKey;
+		}
+
+		/**
+		 * @return the version the list had when it was loaded for the merge
+		 */
+		public long getExpectedVersion() {
+			return expectedVersion;
+		}
+
+		public void setExpectedVersion(long expectedVersion) {
+			this.expectedVersion = expectedVersion;
+		}
+
+		public List<Entity> getUpdateEntities() {
+			return updateEntities;
+		}
+
+		public List<Key> getDeleteKeys() {
+			return deleteKeys;
+		}
+	}//ListChanges
+
+
+
+	/**
+	 * @return the version property of a list entity, 0 if it's not there (or entity is null)
+	 */
+	public static long getVersion(Entity listEntity) {
+		if (listEntity == null) return 0;
+		Long version = (Long) listEntity.getProperty(VERSION);
+		return version == null ? 0 : version;
+	}//getVersion
+
+
+
+	/**
+	 * @return the key of the list that key is in (or is), or null if it's not in a list
+	 */
+	public static Key listKeyOf(Key key) {
+		for (Key k = key; k != null; k = k.getParent()) {
+			if (k.getKind().equals(ListInfo.KIND)) {
+				return k;
+			}
+		}
+		return null;
+	}//listKeyOf
+
+
+
+	/**
+	 * Split the output of compareAndUpdate up by list.  The expected versions are left at 0 for the caller to fill in.
+	 * @return map of list key to the changes for that list, in the order the lists were first seen
+	 */
+	public static Map<Key, ListChanges> groupByList(List<Entity> updateEntities, List<Key> deleteKeys) {
+		Map<Key, ListChanges> rv = new LinkedHashMap<Key, ListChanges>();
+		for (Entity entity : updateEntities) {
+			getChanges(rv, entity.getKey()).updateEntities.add(entity);
+		}
+		for (Key key : deleteKeys) {
+			getChanges(rv, key).deleteKeys.add(key);
+		}
+		return rv;
+	}//groupByList
+
+
+
+	private static ListChanges getChanges(Map<Key, ListChanges> changesByList, Key key) {
+		Key listKey = listKeyOf(key);
+		if (listKey == null) {
+			throw new IllegalStateException("Entity is not in a list: " + key);
+		}
+		ListChanges changes = changesByList.get(listKey);
+		if (changes == null) {
+			changes = new ListChanges(listKey);
+			changesByList.put(listKey, changes);
+		}
+		return changes;
+	}//getChanges
+
+
+
+	/**
+	 * Bump the list's version as part of a commit that's about to write updateEntities.
+	 * If the list entity itself is being written, the new version goes on it, otherwise the
+	 * current list entity is rewritten with just the new version.
+	 * @param currentListEntity list entity as read in the commit's transaction, or null if it doesn't exist yet
+	 * @param listKey
+	 * @param updateEntities the new version is added to these
+	 * @return the new version
+	 */
+	public static long bumpVersion(Entity currentListEntity, Key listKey, List<Entity> updateEntities) {
+		long newVersion = getVersion(currentListEntity) + 1;
+		for (Entity entity : updateEntities) {
+			if (entity.getKey().equals(listKey)) {
+				entity.setUnindexedProperty(VERSION, newVersion);
+				return newVersion;
+			}
+		}
+		if (currentListEntity != null) {
+			currentListEntity.setUnindexedProperty(VERSION, newVersion);
+			updateEntities.add(currentListEntity);
+		}
+		return newVersion;
+	}//bumpVersion
+
+
+
+	/**
+	 * Commit the changes if the list's version is still the expected one.
+	 * Retries by itself when the transaction only failed from contention.
+	 * @param datastore
+	 * @param changes
+	 * @return true if committed, false if the list's version moved and it needs to be re-merged
+	 */
+	public static boolean commit(DatastoreService datastore, ListChanges changes) {
+		if (changes.updateEntities.isEmpty() && changes.deleteKeys.isEmpty()) {
+			//e.g. the re-merge found the server's copy won everything
+			return true;
+		}
+		int retries = CONTENTION_RETRIES;
+		while (true) {
+			//Only cross-group if it changes privs, for their index entries
+			Transaction txn = SharedWithMe.beginTransaction(datastore, changes.updateEntities, changes.deleteKeys);
+			try {
+				Entity currentListEntity = null;
+				try {
+					currentListEntity = datastore.get(txn, changes.listKey);
+				} catch (EntityNotFoundException e) {
+					//new list
+				}
+				long currentVersion = getVersion(currentListEntity);
+				if (currentVersion != changes.expectedVersion) {
+					log.info("commit: list " + changes.listKey + " moved from version " + changes.expectedVersion + " to " + currentVersion);
+					return false;
+				}
+
+				List<Entity> toPut = new ArrayList<Entity>(changes.updateEntities);
+				bumpVersion(currentListEntity, changes.listKey, toPut);
+				long start = SyncTimer.begin();
+				ListBlobs.write(datastore, txn, currentListEntity, changes.listKey, toPut, changes.deleteKeys);
+				List<Key> cascade = CascadeDelete.schedule(txn, toPut);
+				List<Key> reindex = SharedWithMe.update(datastore, txn, toPut, changes.deleteKeys);
+				SyncTimer.end(SyncTimer.PUT, start);
+				start = SyncTimer.begin();
+				txn.commit();
+				SyncTimer.end(SyncTimer.COMMIT, start);
+				//Snapshot first, so deleting under tombstones applies on top of this commit
+				SnapshotCache cache = SnapshotCache.get();
+				if (cache != null) {
+					cache.committed(changes.listKey, currentListEntity == null, currentVersion, toPut, changes.deleteKeys);
+				}
+				CascadeDelete.deleteNow(datastore, cascade);
+				SharedWithMe.reindexNow(datastore, reindex);
+				SyncTimer.count(SyncTimer.ENTITIES_PUT, toPut.size());
+				SyncTimer.count(SyncTimer.KEYS_DELETED, changes.deleteKeys.size());
+				return true;
+			}
+			catch (ConcurrentModificationException e) {
+				if (retries == 0) {
+					throw e;
+				}
+				// Allow retry to occur
+				--retries;
+			} finally {
+				if (txn.isActive()) {
+					txn.rollback();
+				}
+			}
+		}//while true
+	}//commit
+}//ListCommitter
@@ -32,6 +32,10 @@ public class ListInfo extends TimeStampedNode{
 	
 	private Map<String, OtherUserPrivOnList> otherUserPrivs = new HashMap<String, OtherUserPrivOnList>();
 	
+	//Bumped on the server every time anything in the list is committed, see ListCommitter.
+	//Only known for lists loaded from the datastore, and transient so it never goes out in the JSON.
+	private transient long version;
+	
 	/** Default constructor */
 	public ListInfo(){}
 	
@@ -70,6 +74,8 @@ public class ListInfo extends TimeStampedNode{
 		setUniqueId((String) entity.getKey().getName());
 		setLastUpdate((Long) entity.getProperty(LAST_UPDATE));
 		setStatus(Status.valueOf((String) entity.getProperty(STATUS)));
+		setServerUpdate((Long) entity.getProperty(SERVER_UPDATE));
+		setVersion(ListCommitter.getVersion(entity));
 	}//ListInfo(Entity)
 
 
@@ -96,6 +102,7 @@ public class ListInfo extends TimeStampedNode{
 	 */
 	public void setStatus(Status status) {
 		this.status = status;
+		clearDigest();
 	}
 
 	/**
@@ -111,6 +118,7 @@ public class ListInfo extends TimeStampedNode{
 	 */
 	public void setUniqueId(String uniqueId) {
 		this.uniqueId = uniqueId;
+		clearDigest();
 	}
 
 	/**
@@ -126,6 +134,7 @@ public class ListInfo extends TimeStampedNode{
 	 */
 	public void setName(String name) {
 		this.name = name;
+		clearDigest();
 	}
 
 	/**
@@ -140,6 +149,7 @@ public class ListInfo extends TimeStampedNode{
 	 */
 	public void setItems(Map<String, ItemInfo> items) {
 		this.items = items;
+		clearDigest();
 	}
 
 	/**
@@ -154,6 +164,7 @@ public class ListInfo extends TimeStampedNode{
 	 */
 	public void setCategories(SortedSet<CategoryInfo> categories) {
 		this.categories = categories;
+		clearDigest();
 	}
 
 	/**
@@ -169,6 +180,7 @@ public class ListInfo extends TimeStampedNode{
 	 */
 	public void setLastUpdate(Long lastUpdate) {
 		this.lastUpdate = lastUpdate;
+		clearDigest();
 	}
 
 	/**
@@ -204,6 +216,21 @@ public class ListInfo extends TimeStampedNode{
 	 */
 	public void setOtherUserPrivs(Map<String, OtherUserPrivOnList> otherUserPrivs) {
 		this.otherUserPrivs = otherUserPrivs;
+		clearDigest();
+	}
+
+	/**
+	 * @return the server version of the list when it was loaded, 0 if it's new
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @param version the version to set
+	 */
+	public void setVersion(long version) {
+		this.version = version;
 	}
 
 	
@@ -273,6 +300,33 @@ public class ListInfo extends TimeStampedNode{
 		return newObj;
 	}
 	
+	
+	
+	/**
+	 * changedOnServer isn't kept, since ListInfoJsonAdapter doesn't parse it, and neither is the
+	 * version, which is transient
+	 */
+	@Override
+	public TimeStampedNode makeCopy() {
+		ListInfo newObj = (ListInfo) makeShallowCopy();
+		for (ItemInfo item : getItems().values()) {
+			ItemInfo itemCopy = (ItemInfo) item.makeCopy();
+			newObj.getItems().put(itemCopy.getUniqueId(), itemCopy);
+		}
+		for (CategoryInfo cat : getCategories()) {
+			CategoryInfo catCopy = (CategoryInfo) cat.makeCopy();
+			catCopy.setChangedOnServer(false);
+			newObj.getCategories().add(catCopy);
+		}
+		newObj.getSelectedCategories().addAll(getSelectedCategories());
+		for (Map.Entry<String, OtherUserPrivOnList> entry : getOtherUserPrivs().entrySet()) {
+			OtherUserPrivOnList privCopy = (OtherUserPrivOnList) entry.getValue().makeCopy();
+			privCopy.userId = entry.getKey();
+			newObj.getOtherUserPrivs().put(entry.getKey(), privCopy);
+		}
+		return newObj;
+	}//makeCopy
+	
 	/**
 	 * @param other
 	 * @return Returns true if this object is essentially the same
@@ -355,6 +409,7 @@ public class ListInfo extends TimeStampedNode{
 	@SuppressWarnings("unchecked")
 	@Override
 	public void addSubIterEntries(List<List<? extends TimeStampedNode>> subIterEntriesToAdd) {
+		clearDigest();
 		List<CategoryInfo> catInfos = (List<CategoryInfo>) subIterEntriesToAdd.get(0);
 		categories.addAll(catInfos);
 	}//addSubIterEntries
@@ -368,6 +423,7 @@ public class ListInfo extends TimeStampedNode{
 	@SuppressWarnings("unchecked")
 	@Override
 	public void addSubMapEntries(List<List<? extends TimeStampedNode>> subMapEntriesToAdd) {
+		clearDigest();
 		List<ItemInfo> itemInfos = (List<ItemInfo>) subMapEntriesToAdd.get(0);
 		for (ItemInfo itemInfo : itemInfos) {
 			items.put(itemInfo.getUniqueId(), itemInfo);
@@ -40,6 +40,11 @@ public class ListInfoJsonAdapter implements JsonDeserializer<ListInfo>, JsonSeri
 		ListInfo listInfo = new ListInfo();
 
 		JsonObject topMap = json.getAsJsonObject();
+		if (topMap.has(DIGEST) && !topMap.has(LAST_UPDATE)) {
+			//The client didn't change it, so it only sent the digest of what it has
+			listInfo.setClientDigest(topMap.get(DIGEST).getAsString());
+			return listInfo;
+		}
 		listInfo.setLastUpdate(topMap.get(LAST_UPDATE).getAsLong());
 		listInfo.setName(topMap.get(NAME).getAsString());
 		listInfo.setStatus(TimeStampedNode.Status.valueOf(topMap.get(STATUS).getAsString()));
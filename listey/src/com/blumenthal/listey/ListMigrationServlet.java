@@ -0,0 +1,67 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query;
+
+/**
+ * Moves all of a user's lists to one storage layout (see ListBlobs), one list at a time in
+ * batches, and prints what it did.  Lists already in that layout are left alone (other than
+ * cleaning up after a move that didn't finish), so it's fine to run again, e.g. if it timed
+ * out partway through.
+ * It's under /admin, which web.xml limits to the app's admins.
+ *
+ * Parameters:
+ *   user - whose lists
+ *   layout - blob or entities; default is whatever the user's new lists get (listey.blob.users)
+ *
+ * @author David
+ *
+ */
+@SuppressWarnings("serial")
+public class ListMigrationServlet extends HttpServlet {
+	public static final String USER = "user";
+	public static final String LAYOUT = "layout";
+	public static final String BLOB = "blob";
+	public static final String ENTITIES = "entities";
+
+	@Override
+	public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		String user = req.getParameter(USER);
+		String layout = req.getParameter(LAYOUT);
+		if (user == null || (layout != null && !layout.equals(BLOB) && !layout.equals(ENTITIES))) {
+			resp.sendError(400, "Needs user, and layout of " + BLOB + " or " + ENTITIES);
+			return;
+		}
+		boolean toBlob = layout == null ? ListBlobs.usesBlobs(user) : layout.equals(BLOB);
+
+		resp.setContentType("text/plain");
+		resp.setCharacterEncoding(SyncIO.DEFAULT_CHARSET);
+		PrintWriter out = resp.getWriter();
+		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+		Query q = new Query(ListInfo.KIND).setAncestor(ListeyDataOneUser.getEntityKey(user)).setKeysOnly();
+		int converted = 0;
+		int skipped = 0;
+		for (Entity listEntity : datastore.prepare(q).asIterable()) {
+			if (ListBlobs.convert(datastore, listEntity.getKey(), toBlob)) {
+				out.println("converted " + listEntity.getKey().getName());
+				converted++;
+			}
+			else {
+				skipped++;
+			}
+		}//foreach list
+		out.println(user + ": " + converted + " lists converted to " + (toBlob ? BLOB : ENTITIES) + ", " + skipped + " already were");
+	}//doPost
+}//ListMigrationServlet
@@ -0,0 +1,285 @@
+package com.blumenthal.listey;
+import static com.blumenthal.listey.JsonFieldNameConstants.SYNC_TOKEN;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.users.User;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+
+/**
+ * Syncs a single list instead of everything the user can see, so the list page
+ * only pays for the list it's showing.
+ *
+ * Parameters:
+ *   owner - email of the user that owns the list
+ *   listId - uniqueId of the list.  May be a temporary id if the owner is creating the list.
+ *   content - JSON for the ListInfo, same as one entry in the "lists" map.
+ *             Can also be sent as an application/json request body instead.
+ *   syncToken - optional, works the same as for ListeyServlet, including the 410 for a token
+ *               from before tombstones were removed.  It isn't recorded for the device though,
+ *               since it's only for the one list.
+ *
+ * Only the owner's entity group is loaded and committed, so this uses a plain (non-XG) transaction.
+ * The response has the same shape as ListeyServlet, with userData holding just the owner and the one list.
+ * Like ListeyServlet, the UserRateLimiter gives a 413 for a body that's too big and a 429 with a
+ * Retry-After to a user syncing too often, and the load/merge/commit waits for a turn at the SyncGate,
+ * with a 503 and a Retry-After if the instance is already as busy as it's allowed to be.
+ *
+ * @author David
+ *
+ */
+
+@SuppressWarnings("serial")
+public class ListSyncServlet extends HttpServlet {
+	private static final Logger log = Logger.getLogger(ListSyncServlet.class.getName());
+
+	public static final String OWNER = "owner";
+	public static final String LIST_ID = "listId";
+
+	@Override
+	public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException{
+		UserService userService = UserServiceFactory.getUserService();
+        User user = userService.getCurrentUser();
+
+        SyncIO io = new SyncIO(req, resp);
+        String owner = req.getParameter(OWNER);
+        String listId = req.getParameter(LIST_ID);
+        boolean jsonBody = SyncIO.hasJsonBody(req);
+        String jsonString = jsonBody ? null : req.getParameter("content");
+        String syncTokenString = req.getParameter(SYNC_TOKEN);
+        resp.setContentType("text/plain");
+
+        if (user == null) {
+        	resp.setStatus(403);//unauthorized
+        	log.info("doPost: no user defined");
+        	writeResponse(io, "{}");
+        	return;
+        }
+        if (SyncIO.isRequestGzipped(req) && !jsonBody) {
+        	resp.setStatus(415);//unsupported media type, form parameters can't be gzipped
+        	log.info("doPost: gzipped request body must be " + SyncIO.JSON_CONTENT_TYPE);
+        	return;
+        }
+        //Turn away anything too big before any of it is read
+        UserRateLimiter limiter = UserRateLimiter.get();
+        if (!limiter.checkContentLength(req, resp)) {
+        	return;
+        }
+        io.setMaxRequestBytes(limiter.getMaxRequestBytes());
+        if (jsonString != null && jsonString.length() > limiter.getMaxRequestBytes()) {
+        	limiter.rejectTooLarge(resp, jsonString.length() + " characters of content");
+        	return;
+        }
+        if (owner == null || listId == null || listId.length() == 0 || (!jsonBody && (jsonString == null || jsonString.length() == 0))) {
+        	resp.setStatus(400);
+        	log.info("doPost: missing owner, listId or content");
+        	writeResponse(io, "{}");
+        	return;
+        }
+    	log.info("doPost: User=" + user.getEmail() + " owner=" + owner + " list=" + listId);
+    	int retryAfterSeconds = limiter.enter(user.getEmail());
+    	if (retryAfterSeconds > 0) {
+    		limiter.reject(resp, retryAfterSeconds);
+    		return;
+    	}
+    	//Only one of these gets set; they're written out after the transaction commits
+    	ListeyDataMultipleUsers fullResponse = null;
+    	DeltaSyncResponse deltaResponse = null;
+    	try {
+    		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    		//Only after admission, since this is a datastore read
+    		if (syncTokenString != null && SyncHorizon.isExpired(datastore, user.getEmail(), SyncToken.parse(syncTokenString))) {
+    			resp.setStatus(410);//gone, the deletes since then aren't there to send any more
+    			log.info("doPost: sync token " + syncTokenString + " is from before tombstones were removed, needs a full sync");
+    			return;
+    		}
+
+    		ListInfo clientList;
+    		try {
+    			if (jsonBody) {
+    				clientList = ListeyJsonStreamReader.readList(io.openRequestReader());
+    			}
+    			else {
+    				clientList = ListeyDataMultipleUsers.getGson().fromJson(jsonString, ListInfo.class);
+    			}
+    		} catch (UserRateLimiter.TooLargeException e) {
+    			limiter.rejectTooLarge(resp, "at least " + io.getRequestDataBytes() + " bytes");
+    			return;
+    		}
+    		clientList.setUniqueId(listId);
+    		boolean isOwner = owner.equals(user.getEmail());
+
+    		Key ownerKey = ListeyDataOneUser.getEntityKey(owner);
+    		//Outside the retries, so a retry reuses the ids
+    		DataStoreUniqueId uniqueIdCreator = new DataStoreUniqueId();
+    		uniqueIdCreator.reserveFor(clientList);
+    		//Parsed already, so a slow upload doesn't hold a turn at the gate
+    		SyncGate gate = SyncGate.get();
+    		if (!gate.enter()) {
+    			gate.reject(resp);
+    			return;
+    		}
+    		try {
+    			int retries=10;
+    			while (true) {
+    				//All the entities are under the owner, plus the index entries for any privs it changes
+    				Transaction txn = SharedWithMe.beginTransaction(datastore);
+    				try {
+    					if (!isOwner && !hasPrivOnList(datastore, txn, owner, listId, user.getEmail())) {
+    						resp.setStatus(403);//unauthorized
+    						log.info("doPost: " + user.getEmail() + " has no privs on " + owner + " list " + listId);
+    						break;
+    					}
+
+    					SyncToken newSyncToken = SyncToken.now();
+    					ListInfo serverList = null;
+    					Entity currentListEntity = null;
+    					List<ListInfo> serverPeers = new ArrayList<ListInfo>();
+    					if (DataStoreUniqueId.isTemporaryId(listId)) {
+    						if (!isOwner) {
+    							resp.setStatus(403);//only the owner can create lists
+    							break;
+    						}
+    						//New list, so just load the other list headers to check for duplicate names
+    						Query q = new Query(ListInfo.KIND).setAncestor(ownerKey);
+    						for (Entity e : datastore.prepare(txn, q).asIterable()) {
+    							serverPeers.add(new ListInfo(e));
+    						}
+    					}
+    					else {
+    						//Read the list header in the transaction first so a concurrent commit to the list makes us retry
+    						try {
+    							currentListEntity = datastore.get(txn, ListeyDataOneUser.getListEntityKey(owner, listId));
+    							//Only the owner sees the privs they granted on the list
+    							ListeyDataOneUser serverData = ListeyDataOneUser.fromDatastore(datastore, owner, listId, null, isOwner);
+    							serverList = serverData.lists.get(listId);
+    							if (serverList != null) serverPeers.add(serverList);
+    						} catch (EntityNotFoundException e) {
+    							log.info("doPost: list " + listId + " not found on server, treating as new");
+    						}
+    					}
+
+    					List<Entity> updateEntities = new ArrayList<Entity>();
+    					List<Key> deleteKeys = new ArrayList<Key>();
+    					ListInfo updatedList = (ListInfo) TimeStampedNode.compareAndUpdate(uniqueIdCreator, ownerKey, serverList, clientList, serverPeers, updateEntities, deleteKeys);
+    					log.info("doPost: updating " + updateEntities.size() + " entities, deleting " + deleteKeys.size() + " entities");
+    					TimeStampedNode.stampServerUpdate(updateEntities, System.currentTimeMillis());
+    					long oldVersion = ListCommitter.getVersion(currentListEntity);
+    					if (updatedList != null && (!updateEntities.isEmpty() || !deleteKeys.isEmpty())) {
+    						ListCommitter.bumpVersion(currentListEntity, updatedList.getEntityKey(ownerKey), updateEntities);
+    					}
+    					ListBlobs.write(datastore, txn, currentListEntity, updatedList == null ? null : updatedList.getEntityKey(ownerKey),
+    							updateEntities, deleteKeys);
+
+    					if (syncTokenString != null) {
+    						ListInfo changedList = updatedList == null ? null
+    								: (ListInfo) TimeStampedNode.changedSince(updatedList, serverList, clientList, SyncToken.parse(syncTokenString));
+    						deltaResponse = new DeltaSyncResponse(wrapList(owner, changedList), newSyncToken, uniqueIdCreator.getTempToPermanentIds());
+    					}
+    					else {
+    						fullResponse = wrapList(owner, updatedList);
+    					}
+
+    					List<Key> cascade = CascadeDelete.schedule(txn, updateEntities);
+    					List<Key> reindex = SharedWithMe.update(datastore, txn, updateEntities, deleteKeys);
+    					txn.commit();
+    					//Snapshot first, so deleting under tombstones applies on top of this commit
+    					SnapshotCache cache = SnapshotCache.get();
+    					if (cache != null && updatedList != null) {
+    						cache.committed(updatedList.getEntityKey(ownerKey), currentListEntity == null, oldVersion, updateEntities, deleteKeys);
+    					}
+    					CascadeDelete.deleteNow(datastore, cascade);
+    					SharedWithMe.reindexNow(datastore, reindex);
+    					ChangeNotifiers.get().publish(ChangeNotifiers.channelsFor(updateEntities, deleteKeys));
+    					break;//out of retries loop
+    				}
+    				catch (ConcurrentModificationException e) {
+    					if (retries == 0) {
+    						throw e;
+    					}
+    					// Allow retry to occur
+    					--retries;
+    				} finally {
+    					if (txn.isActive()) {
+    						txn.rollback();
+    					}
+    				}
+    			}//while true
+    		}
+    		finally {
+    			gate.exit();
+    		}
+    	}
+    	finally {
+    		limiter.exit(user.getEmail());
+    	}
+
+    	Writer out = io.openResponseWriter();
+    	if (deltaResponse != null) {
+    		deltaResponse.toJson(out);
+    	}
+    	else if (fullResponse != null) {
+    		fullResponse.toJson(out);
+    	}
+    	else {
+    		out.write("{}");
+    	}
+    	io.finish("doPost");
+	}//doPost
+
+
+
+	private static void writeResponse(SyncIO io, String body) throws IOException {
+		io.openResponseWriter().write(body);
+		io.finish("doPost");
+	}//writeResponse
+
+
+
+	/**
+	 * @return true if otherUserEmail was granted privs on the owner's list
+	 */
+	public static boolean hasPrivOnList(DatastoreService datastore, Transaction txn, String owner, String listId, String otherUserEmail) {
+		Key privKey = KeyFactory.createKey(ListeyDataOneUser.getListEntityKey(owner, listId), OtherUserPrivOnList.KIND, otherUserEmail);
+		try {
+			datastore.get(txn, privKey);
+			return true;
+		} catch (EntityNotFoundException e) {
+			return false;
+		}
+	}//hasPrivOnList
+
+
+
+	/**
+	 * @return a multi-user object holding just the one list, so the client can treat it like any other sync response
+	 */
+	private static ListeyDataMultipleUsers wrapList(String owner, ListInfo list) {
+		ListeyDataMultipleUsers rv = new ListeyDataMultipleUsers();
+		if (list != null) {
+			ListeyDataOneUser ownerData = new ListeyDataOneUser();
+			ownerData.setUniqueId(owner);
+			ownerData.lists.put(list.getUniqueId(), list);
+			rv.userData.put(owner, ownerData);
+		}
+		return rv;
+	}//wrapList
+}//ListSyncServlet
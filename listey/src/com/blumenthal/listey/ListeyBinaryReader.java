@@ -0,0 +1,312 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import static com.blumenthal.listey.ListeyBinaryWriter.*;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonParseException;
+
+/**
+ * Reads the binary format written by ListeyBinaryWriter (see there for the format) straight
+ * from a stream into the Listey objects.  Fills them in the same way ListeyJsonStreamReader does,
+ * so the two can be used interchangeably, and like it changedOnServer is ignored when reading.
+ *
+ * @author David
+ *
+ */
+public class ListeyBinaryReader {
+	//Longest string we'll allocate for, so a corrupt length can't take the instance down
+	public static final int MAX_STRING_BYTES = 1 << 20;
+
+	private InputStream in;
+	private List<String> strings = new ArrayList<String>();
+
+
+
+	/**
+	 * @param in buffered, since this reads a byte at a time
+	 */
+	public ListeyBinaryReader(InputStream in) {
+		this.in = in;
+	}
+
+
+
+	/**
+	 * Read a whole ListeyDataMultipleUsers from the stream.
+	 * @param thisUserEmail the logged in user
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static ListeyDataMultipleUsers readMultipleUsers(String thisUserEmail, InputStream in) throws IOException {
+		ListeyBinaryReader binaryReader = new ListeyBinaryReader(in);
+		binaryReader.readHeader(RECORD_MULTIPLE_USERS);
+		ListeyDataMultipleUsers rv = binaryReader.readMultipleUsersRecord();
+		rv.setThisUserEmail(thisUserEmail);
+		return rv;
+	}//readMultipleUsers
+
+
+
+	/**
+	 * Read a single ListInfo from the stream.
+	 * Note, the uniqueId isn't part of the list, so the caller has to set it.
+	 */
+	public static ListInfo readList(InputStream in) throws IOException {
+		ListeyBinaryReader binaryReader = new ListeyBinaryReader(in);
+		binaryReader.readHeader(RECORD_LIST);
+		return binaryReader.readListInfo();
+	}//readList
+
+
+
+	public static DeltaSyncResponse readDeltaSyncResponse(InputStream in) throws IOException {
+		ListeyBinaryReader binaryReader = new ListeyBinaryReader(in);
+		binaryReader.readHeader(RECORD_DELTA_SYNC_RESPONSE);
+		return binaryReader.readDeltaSyncResponseRecord();
+	}//readDeltaSyncResponse
+
+
+
+	private void readHeader(byte expectedRecordType) throws IOException {
+		if (readByte() != MAGIC_1 || readByte() != MAGIC_2) {
+			throw new JsonParseException("Not the listey binary format");
+		}
+		int version = readByte();
+		if (version != VERSION) {
+			throw new JsonParseException("Unsupported listey binary format version " + version);
+		}
+		int recordType = readByte();
+		if (recordType != expectedRecordType) {
+			throw new JsonParseException("Expected record type " + expectedRecordType + " but got " + recordType);
+		}
+	}//readHeader
+
+
+
+	private DeltaSyncResponse readDeltaSyncResponseRecord() throws IOException {
+		SyncToken syncToken = SyncToken.parse(readString());
+		Map<String, String> tempIds = new HashMap<String, String>();
+		for (int i = readCount(); i > 0; i--) {
+			String tempId = readString();
+			tempIds.put(tempId, readString());
+		}
+		Map<String, Map<String, String>> listDigests = new HashMap<String, Map<String, String>>();
+		for (int i = readCount(); i > 0; i--) {
+			String owner = readString();
+			Map<String, String> ownerDigests = new HashMap<String, String>();
+			for (int j = readCount(); j > 0; j--) {
+				String listId = readString();
+				ownerDigests.put(listId, readString());
+			}
+			listDigests.put(owner, ownerDigests);
+		}
+		DeltaSyncResponse rv = new DeltaSyncResponse(readMultipleUsersRecord(), syncToken, tempIds);
+		if (!listDigests.isEmpty()) {
+			rv.setListDigests(listDigests);
+		}
+		return rv;
+	}//readDeltaSyncResponseRecord
+
+
+
+	private ListeyDataMultipleUsers readMultipleUsersRecord() throws IOException {
+		ListeyDataMultipleUsers multiUserInfo = new ListeyDataMultipleUsers();
+		for (int i = readCount(); i > 0; i--) {
+			String userEmail = readString();
+			ListeyDataOneUser userInfo = readOneUser();
+			userInfo.setUniqueId(userEmail);
+			multiUserInfo.userData.put(userEmail, userInfo);
+		}
+		return multiUserInfo;
+	}//readMultipleUsersRecord
+
+
+
+	private ListeyDataOneUser readOneUser() throws IOException {
+		ListeyDataOneUser userInfo = new ListeyDataOneUser();
+		readByte();//flags
+		for (int i = readCount(); i > 0; i--) {
+			String listId = readString();
+			ListInfo listInfo = readListInfo();
+			listInfo.setUniqueId(listId);
+			userInfo.lists.put(listId, listInfo);
+		}
+		return userInfo;
+	}//readOneUser
+
+
+
+	private ListInfo readListInfo() throws IOException {
+		ListInfo listInfo = new ListInfo();
+		int flags = readByte();
+		if ((flags & FLAG_DIGEST_ONLY) != 0) {
+			listInfo.setClientDigest(readString());
+			return listInfo;
+		}
+		listInfo.setLastUpdate(readNullableLong());
+		listInfo.setName(readString());
+		listInfo.setStatus(readStatus());
+
+		for (int i = readCount(); i > 0; i--) {
+			ItemInfo item = readItemInfo();
+			listInfo.getItems().put(item.getUniqueId(), item);
+		}
+		for (int i = readCount(); i > 0; i--) {
+			CategoryInfo catInfo = new CategoryInfo();
+			readByte();//flags
+			catInfo.setUniqueId(readString());
+			catInfo.setName(readString());
+			catInfo.setLastUpdate(readNullableLong());
+			catInfo.setStatus(readStatus());
+			listInfo.getCategories().add(catInfo);
+		}
+		for (int i = readCount(); i > 0; i--) {
+			listInfo.getSelectedCategories().add(readString());
+		}
+		for (int i = readCount(); i > 0; i--) {
+			OtherUserPrivOnList privInfo = new OtherUserPrivOnList();
+			privInfo.userId = readString();
+			readByte();//flags
+			int priv = readByte();
+			privInfo.priv = priv == 0 ? null : OtherUserPrivOnList.OtherUserPriv.values()[checkOrdinal(priv, OtherUserPrivOnList.OtherUserPriv.values().length)];
+			privInfo.lastUpdate = readNullableLong();
+			listInfo.getOtherUserPrivs().put(privInfo.userId, privInfo);
+		}
+
+		//Same fields the ListInfoJsonAdapter requires
+		if (listInfo.getLastUpdate() == null || listInfo.getName() == null) {
+			throw new JsonParseException("List is missing " + JsonFieldNameConstants.LAST_UPDATE + " or " + JsonFieldNameConstants.NAME);
+		}
+		return listInfo;
+	}//readListInfo
+
+
+
+	private ItemInfo readItemInfo() throws IOException {
+		ItemInfo item = new ItemInfo();
+		readByte();//flags
+		item.setUniqueId(readString());
+		item.setName(readString());
+		item.setCount(readNullableLong());
+		item.setLastUpdate(readNullableLong());
+		TimeStampedNode.Status status = readStatus();
+		item.setStatus(status == null ? TimeStampedNode.Status.ACTIVE : status);
+		for (int i = readCount(); i > 0; i--) {
+			String catId = readString();
+			ItemCategoryInfo catInfo = new ItemCategoryInfo();
+			readByte();//flags
+			catInfo.setUniqueId(catId);
+			catInfo.setLastUpdate(readNullableLong());
+			catInfo.setStatus(readStatus());
+			item.getCategories().put(catId, catInfo);
+		}
+
+		//Same fields the ItemInfoJsonAdapter requires
+		if (item.getUniqueId() == null || item.getName() == null || item.getLastUpdate() == null) {
+			throw new JsonParseException("Item " + item.getUniqueId() + " is missing " + JsonFieldNameConstants.UNIQUE_ID + ", "
+					+ JsonFieldNameConstants.NAME + " or " + JsonFieldNameConstants.LAST_UPDATE);
+		}
+		return item;
+	}//readItemInfo
+
+
+
+	private TimeStampedNode.Status readStatus() throws IOException {
+		int value = readByte();
+		if (value == 0) return null;
+		return TimeStampedNode.Status.values()[checkOrdinal(value, TimeStampedNode.Status.values().length)];
+	}//readStatus
+
+
+
+	/**
+	 * @param value enum byte as written, ordinal + 1
+	 * @return the ordinal
+	 */
+	private static int checkOrdinal(int value, int numValues) {
+		if (value > numValues) {
+			throw new JsonParseException("Unknown enum value " + (value - 1));
+		}
+		return value - 1;
+	}//checkOrdinal
+
+
+
+	private String readString() throws IOException {
+		long ref = readVarint();
+		if (ref == 0) return null;
+		if (ref >= FIRST_STRING_REF) {
+			if (ref - FIRST_STRING_REF >= strings.size()) {
+				throw new JsonParseException("String reference " + ref + " is past the " + strings.size() + " strings read");
+			}
+			return strings.get((int) (ref - FIRST_STRING_REF));
+		}
+		long length = readVarint();
+		if (length > MAX_STRING_BYTES) {
+			throw new JsonParseException("String of " + length + " bytes is too long");
+		}
+		byte[] bytes = new byte[(int) length];
+		int read = 0;
+		while (read < bytes.length) {
+			int n = in.read(bytes, read, bytes.length - read);
+			if (n < 0) throw new EOFException();
+			read += n;
+		}
+		String rv = new String(bytes, UTF_8);
+		strings.add(rv);
+		return rv;
+	}//readString
+
+
+
+	private Long readNullableLong() throws IOException {
+		long value = readVarint();
+		if (value == 0) return null;
+		value -= 1;
+		//undo the zigzag
+		return (value >>> 1) ^ -(value & 1);
+	}//readNullableLong
+
+
+
+	private int readCount() throws IOException {
+		long count = readVarint();
+		if (count > Integer.MAX_VALUE) {
+			throw new JsonParseException("Count " + count + " is too big");
+		}
+		return (int) count;
+	}//readCount
+
+
+
+	private long readVarint() throws IOException {
+		long rv = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = readByte();
+			rv |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return rv;
+			}
+		}
+		throw new JsonParseException("Varint is too long");
+	}//readVarint
+
+
+
+	private int readByte() throws IOException {
+		int b = in.read();
+		if (b < 0) throw new EOFException();
+		return b;
+	}//readByte
+}//ListeyBinaryReader
@@ -0,0 +1,276 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes the Listey objects in the compact binary format, straight to a stream, as an
+ * alternative to the JSON.  Clients ask for it with the application/x-listey-binary
+ * content type (see SyncIO).
+ *
+ * The format carries exactly what the JSON does, but:
+ *   - there are no field names, every record has its fields in a fixed order
+ *   - numbers are varints (timestamps are about 6 bytes instead of 13 characters)
+ *   - enums are one byte
+ *   - every string after its first use is a back-reference, so the repeated category ids,
+ *     user emails, etc. cost a byte or two
+ *
+ * Stream:
+ *   'L' 'B' VERSION recordType record
+ *   recordType: RECORD_MULTIPLE_USERS, RECORD_DELTA_SYNC_RESPONSE or RECORD_LIST
+ *
+ * Primitives:
+ *   varint   - unsigned LEB128, 7 bits per byte, low bits first
+ *   long     - zigzag-encoded varint
+ *   long?    - varint, 0 for null, otherwise (zigzag value) + 1
+ *   string   - varint 0 for null, 1 then varint byte length and UTF-8 bytes for a string that
+ *              hasn't been seen yet, or n >= 2 for the (n-2)th string that was written in full
+ *   enum     - one byte, 0 for null, otherwise ordinal + 1
+ *   flags    - one byte, FLAG_CHANGED_ON_SERVER and FLAG_DIGEST_ONLY
+ *
+ * Records:
+ *   multipleUsers = varint count, count * (string email, oneUser)
+ *   oneUser       = flags, varint count, count * (string listId, list)
+ *   list          = flags, then either string digest (FLAG_DIGEST_ONLY), or
+ *                   long? lastUpdate, string name, enum status,
+ *                   varint count, count * item,
+ *                   varint count, count * category,
+ *                   varint count, count * string selectedCategory,
+ *                   varint count, count * (string userId, priv)
+ *   item          = flags, string uniqueId, string name, long? count, long? lastUpdate, enum status,
+ *                   varint count, count * (string categoryId, itemCategory)
+ *   itemCategory  = flags, long? lastUpdate, enum status
+ *   category      = flags, string uniqueId, string name, long? lastUpdate, enum status
+ *   priv          = flags, enum priv, long? lastUpdate
+ *   deltaSyncResponse = string syncToken, varint count, count * (string tempId, string permanentId),
+ *                   varint count, count * (string owner, varint count, count * (string listId, string digest)),
+ *                   multipleUsers
+ *
+ * Enum ordinals are part of the format, so values can only ever be added to the end of
+ * TimeStampedNode.Status and OtherUserPrivOnList.OtherUserPriv.
+ *
+ * @author David
+ *
+ */
+public class ListeyBinaryWriter {
+	public static final byte MAGIC_1 = 'L';
+	public static final byte MAGIC_2 = 'B';
+	public static final byte VERSION = 1;
+
+	public static final byte RECORD_MULTIPLE_USERS = 1;
+	public static final byte RECORD_DELTA_SYNC_RESPONSE = 2;
+	public static final byte RECORD_LIST = 3;
+
+	public static final int FLAG_CHANGED_ON_SERVER = 1;
+	public static final int FLAG_DIGEST_ONLY = 2;
+
+	//Strings in the back-reference table start at this varint
+	static final int FIRST_STRING_REF = 2;
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private OutputStream out;
+	private Map<String, Integer> stringRefs = new HashMap<String, Integer>();
+
+
+
+	/**
+	 * @param out buffered, since this writes a byte at a time
+	 */
+	public ListeyBinaryWriter(OutputStream out) {
+		this.out = out;
+	}
+
+
+
+	public void writeMultipleUsers(ListeyDataMultipleUsers multiUser) throws IOException {
+		writeHeader(RECORD_MULTIPLE_USERS);
+		writeMultipleUsersRecord(multiUser);
+		out.flush();
+	}//writeMultipleUsers
+
+
+
+	public void writeDeltaSyncResponse(DeltaSyncResponse response) throws IOException {
+		writeHeader(RECORD_DELTA_SYNC_RESPONSE);
+		writeString(response.getSyncToken().toString());
+		writeVarint(response.getTempIds().size());
+		for (Map.Entry<String, String> entry : response.getTempIds().entrySet()) {
+			writeString(entry.getKey());
+			writeString(entry.getValue());
+		}
+		Map<String, Map<String, String>> listDigests = response.getListDigests();
+		writeVarint(listDigests == null ? 0 : listDigests.size());
+		if (listDigests != null) {
+			for (Map.Entry<String, Map<String, String>> userEntry : listDigests.entrySet()) {
+				writeString(userEntry.getKey());
+				writeVarint(userEntry.getValue().size());
+				for (Map.Entry<String, String> listEntry : userEntry.getValue().entrySet()) {
+					writeString(listEntry.getKey());
+					writeString(listEntry.getValue());
+				}
+			}
+		}//if listDigests
+		writeMultipleUsersRecord(response.getChangedData());
+		out.flush();
+	}//writeDeltaSyncResponse
+
+
+
+	/**
+	 * Write a single list.  Like the JSON, the list's uniqueId isn't part of it.
+	 */
+	public void writeList(ListInfo listInfo) throws IOException {
+		writeHeader(RECORD_LIST);
+		writeListInfo(listInfo);
+		out.flush();
+	}//writeList
+
+
+
+	private void writeHeader(byte recordType) throws IOException {
+		out.write(MAGIC_1);
+		out.write(MAGIC_2);
+		out.write(VERSION);
+		out.write(recordType);
+	}//writeHeader
+
+
+
+	private void writeMultipleUsersRecord(ListeyDataMultipleUsers multiUser) throws IOException {
+		writeVarint(multiUser.userData.size());
+		for (Map.Entry<String, ListeyDataOneUser> entry : multiUser.userData.entrySet()) {
+			writeString(entry.getKey());
+			writeOneUser(entry.getValue());
+		}
+	}//writeMultipleUsersRecord
+
+
+
+	private void writeOneUser(ListeyDataOneUser oneUser) throws IOException {
+		writeFlags(oneUser);
+		writeVarint(oneUser.lists.size());
+		for (Map.Entry<String, ListInfo> entry : oneUser.lists.entrySet()) {
+			writeString(entry.getKey());
+			writeListInfo(entry.getValue());
+		}
+	}//writeOneUser
+
+
+
+	private void writeListInfo(ListInfo listInfo) throws IOException {
+		writeFlags(listInfo);
+		if (listInfo.isDigestOnly()) {
+			writeString(listInfo.getClientDigest());
+			return;
+		}
+		writeNullableLong(listInfo.getLastUpdate());
+		writeString(listInfo.getName());
+		writeEnum(listInfo.getStatus());
+
+		writeVarint(listInfo.getItems().size());
+		for (ItemInfo item : listInfo.getItems().values()) {
+			writeItemInfo(item);
+		}
+		writeVarint(listInfo.getCategories().size());
+		for (CategoryInfo cat : listInfo.getCategories()) {
+			writeFlags(cat);
+			writeString(cat.getUniqueId());
+			writeString(cat.getName());
+			writeNullableLong(cat.getLastUpdate());
+			writeEnum(cat.getStatus());
+		}
+		writeVarint(listInfo.getSelectedCategories().size());
+		for (String selected : listInfo.getSelectedCategories()) {
+			writeString(selected);
+		}
+		writeVarint(listInfo.getOtherUserPrivs().size());
+		for (Map.Entry<String, OtherUserPrivOnList> entry : listInfo.getOtherUserPrivs().entrySet()) {
+			OtherUserPrivOnList privInfo = entry.getValue();
+			writeString(entry.getKey());
+			writeFlags(privInfo);
+			writeEnum(privInfo.priv);
+			writeNullableLong(privInfo.getLastUpdate());
+		}
+	}//writeListInfo
+
+
+
+	private void writeItemInfo(ItemInfo item) throws IOException {
+		writeFlags(item);
+		writeString(item.getUniqueId());
+		writeString(item.getName());
+		writeNullableLong(item.getCount());
+		writeNullableLong(item.getLastUpdate());
+		writeEnum(item.getStatus());
+		writeVarint(item.getCategories().size());
+		for (Map.Entry<String, ItemCategoryInfo> entry : item.getCategories().entrySet()) {
+			ItemCategoryInfo catInfo = entry.getValue();
+			writeString(entry.getKey());
+			writeFlags(catInfo);
+			writeNullableLong(catInfo.getLastUpdate());
+			writeEnum(catInfo.getStatus());
+		}
+	}//writeItemInfo
+
+
+
+	private void writeFlags(TimeStampedNode node) throws IOException {
+		int flags = 0;
+		if (node.getChangedOnServer()) flags |= FLAG_CHANGED_ON_SERVER;
+		if (node.isDigestOnly()) flags |= FLAG_DIGEST_ONLY;
+		out.write(flags);
+	}//writeFlags
+
+
+
+	private void writeEnum(Enum<?> value) throws IOException {
+		out.write(value == null ? 0 : value.ordinal() + 1);
+	}//writeEnum
+
+
+
+	private void writeString(String value) throws IOException {
+		if (value == null) {
+			writeVarint(0);
+			return;
+		}
+		Integer ref = stringRefs.get(value);
+		if (ref != null) {
+			writeVarint(ref);
+			return;
+		}
+		stringRefs.put(value, FIRST_STRING_REF + stringRefs.size());
+		byte[] bytes = value.getBytes(UTF_8);
+		writeVarint(1);
+		writeVarint(bytes.length);
+		out.write(bytes);
+	}//writeString
+
+
+
+	private void writeNullableLong(Long value) throws IOException {
+		writeVarint(value == null ? 0 : zigzag(value) + 1);
+	}//writeNullableLong
+
+
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}//zigzag
+
+
+
+	private void writeVarint(long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}//writeVarint
+}//ListeyBinaryWriter
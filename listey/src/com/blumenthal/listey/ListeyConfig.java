@@ -0,0 +1,69 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+/**
+ * Tunable limits, read from system properties so they can be set in appengine-web.xml
+ * without a code change.  Every property has a default that's fine for a small app.
+ *
+ * @author David
+ *
+ */
+public class ListeyConfig {
+	public static final String PREFIX = "listey.";
+
+
+
+	/**
+	 * @param name property name, without the listey. prefix
+	 * @param defaultValue used if the property isn't set or isn't a number
+	 */
+	public static int getInt(String name, int defaultValue) {
+		return (int) getLong(name, defaultValue);
+	}//getInt
+
+
+
+	/**
+	 * @param name property name, without the listey. prefix
+	 * @param defaultValue used if the property isn't set or isn't a number
+	 */
+	public static long getLong(String name, long defaultValue) {
+		String value = System.getProperty(PREFIX + name);
+		if (value == null) return defaultValue;
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}//getLong
+
+
+
+	/**
+	 * For rates and other settings that can be fractions
+	 * @param name property name, without the listey. prefix
+	 * @param defaultValue used if the property isn't set or isn't a number
+	 */
+	public static double getDouble(String name, double defaultValue) {
+		String value = System.getProperty(PREFIX + name);
+		if (value == null) return defaultValue;
+		try {
+			return Double.parseDouble(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}//getDouble
+
+
+
+	/**
+	 * @param name property name, without the listey. prefix
+	 * @param defaultValue used if the property isn't set
+	 */
+	public static String getString(String name, String defaultValue) {
+		String value = System.getProperty(PREFIX + name);
+		return value == null ? defaultValue : value.trim();
+	}//getString
+}//ListeyConfig
@@ -8,22 +8,21 @@
  */
 package com.blumenthal.listey;
 
-import static com.blumenthal.listey.JsonFieldNameConstants.USER_ID;
-
+import java.io.Writer;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.PreparedQuery;
-import com.google.appengine.api.datastore.Query;
-import com.google.appengine.api.datastore.Query.FilterPredicate;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
@@ -58,28 +57,42 @@ public class ListeyDataMultipleUsers {
 	 */
 	public ListeyDataMultipleUsers(DatastoreService datastore, String userEmail) {
 		setThisUserEmail(userEmail);
-    	//Load the current user data from the datastore by the user's email address
-    	ListeyDataOneUser currentUserData = ListeyDataOneUser.fromDatastore(datastore, userEmail);
-    	userData.put(userEmail, currentUserData);
-    	
-    	//Load other user's lists that this user should be able to access
-		Query q =  new Query(OtherUserPrivOnList.KIND)
-			.setFilter(new FilterPredicate(USER_ID,
-                Query.FilterOperator.EQUAL,
-                userEmail));
-		PreparedQuery pq = datastore.prepare(q);
-
-    	//Look up and insert info for each other user's list individually
-		for (Entity privEntity : pq.asIterable()) {
-			Key listKey = privEntity.getKey().getParent();
-			Key userKey = listKey.getParent();
-			String otherUserEmail = userKey.getName();
-			String listUniqueId = listKey.getName();
-			
-			//Append the other user info for this list to existing other user info, or create the other user info if it doesn't exist
-			ListeyDataOneUser otherUserData = ListeyDataOneUser.fromDatastore(datastore, otherUserEmail, listUniqueId, userData.get(otherUserEmail));
-			userData.put(otherUserEmail, otherUserData);
-		}//foreach privEntity
+		ParallelLoader loader = new ParallelLoader(datastore);
+		try {
+	    	//Start loading the current user data from the datastore by the user's email address
+			long start = SyncTimer.begin();
+			Future<ListeyDataOneUser> currentUserFuture = loader.load(userEmail, null, true);
+	    	
+	    	//Meanwhile, find other user's lists that this user should be able to access
+			List<Key> sharedListKeys = SharedWithMe.getSharedListKeys(datastore, userEmail);
+	
+	    	//And start loading each other user's list individually, all at once
+			List<Future<ListeyDataOneUser>> sharedListFutures = new ArrayList<Future<ListeyDataOneUser>>();
+			for (Key listKey : sharedListKeys) {
+				sharedListFutures.add(loader.load(listKey.getParent().getName(), listKey.getName(), false));
+			}//foreach shared list
+	
+	    	userData.put(userEmail, loader.get(currentUserFuture));
+			SyncTimer.end(SyncTimer.LOAD, start);
+	
+			start = SyncTimer.begin();
+			for (int i = 0; i < sharedListKeys.size(); i++) {
+				String otherUserEmail = sharedListKeys.get(i).getParent().getName();
+				
+				//Append the other user info for this list to existing other user info, or create the other user info if it doesn't exist
+				ListeyDataOneUser sharedListData = loader.get(sharedListFutures.get(i));
+				ListeyDataOneUser otherUserData = userData.get(otherUserEmail);
+				if (otherUserData == null) {
+					userData.put(otherUserEmail, sharedListData);
+				}
+				else {
+					otherUserData.lists.putAll(sharedListData.lists);
+				}
+			}//foreach shared list
+			SyncTimer.end(SyncTimer.SHARED, start);
+		} finally {
+			loader.close();
+		}
 	}//Constructor
 	
 	
@@ -125,6 +138,32 @@ public class ListeyDataMultipleUsers {
 	
 	
 	
+	/**
+	 * For delta syncs, return only the part of merged that the client doesn't already have.
+	 * See TimeStampedNode.changedSince for what gets included.
+	 * 
+	 * @param merged result of compareAndUpdate
+	 * @param serverObj server data that was passed to compareAndUpdate
+	 * @param clientObj client data that was passed to compareAndUpdate
+	 * @param since token the client sent with the request
+	 * @return
+	 */
+	public static ListeyDataMultipleUsers changedSince(ListeyDataMultipleUsers merged, ListeyDataMultipleUsers serverObj,
+			ListeyDataMultipleUsers clientObj, SyncToken since) {
+		ListeyDataMultipleUsers rv = new ListeyDataMultipleUsers();
+		rv.setThisUserEmail(merged.getThisUserEmail());
+		for (Map.Entry<String, ListeyDataOneUser> entry : merged.userData.entrySet()) {
+			ListeyDataOneUser changedUser = (ListeyDataOneUser) TimeStampedNode.changedSince(entry.getValue(),
+					serverObj.userData.get(entry.getKey()), clientObj.userData.get(entry.getKey()), since);
+			if (changedUser != null) {
+				rv.userData.put(entry.getKey(), changedUser);
+			}
+		}//foreach user
+		return rv;
+	}//changedSince
+	
+	
+	
 	/**
 	 * @param other
 	 * @return Returns true if this object is essentially the same
@@ -184,6 +223,72 @@ public class ListeyDataMultipleUsers {
 		String rv = gson.toJson(this);
 		return rv;
 	}//fromJson
+	
+	
+	
+	/**
+	 * Serialize straight to out, without building the whole string first
+	 */
+	public void toJson(Writer out) {
+		getGson().toJson(this, out);
+	}//toJson
+
+	/**
+	 * @return a strong validator for this data, for the ETag: the newest lastUpdate anywhere in
+	 * the tree plus a digest of everything that goes out in the JSON.  This walks the objects
+	 * directly, so it's much cheaper than serializing them.
+	 */
+	public String getETag() {
+		MessageDigest md = TimeStampedNode.newDigest();
+		long maxLastUpdate = 0;
+		for (ListeyDataOneUser oneUser : new TreeMap<String, ListeyDataOneUser>(userData).values()) {
+			oneUser.digest(md);
+			maxLastUpdate = Math.max(maxLastUpdate, oneUser.maxLastUpdate());
+		}
+		StringBuilder rv = new StringBuilder(Long.toString(maxLastUpdate, Character.MAX_RADIX)).append('.');
+		for (byte b : md.digest()) {
+			rv.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return rv.toString();
+	}//getETag
+
+
+
+	/**
+	 * @return the subtree digest of every list, by owner then list id.  A client that keeps these
+	 * can send just the digest for a list it hasn't changed, instead of the whole list.
+	 */
+	public Map<String, Map<String, String>> getListDigests() {
+		Map<String, Map<String, String>> rv = new HashMap<String, Map<String, String>>();
+		for (Map.Entry<String, ListeyDataOneUser> userEntry : userData.entrySet()) {
+			Map<String, String> listDigests = new HashMap<String, String>();
+			for (Map.Entry<String, ListInfo> listEntry : userEntry.getValue().lists.entrySet()) {
+				listDigests.put(listEntry.getKey(), listEntry.getValue().getSubtreeDigestHex());
+			}
+			rv.put(userEntry.getKey(), listDigests);
+		}
+		return rv;
+	}//getListDigests
+
+
+
+	/**
+	 * @return how many lists, items, categories, item categories and privs there are in all, e.g. for logging
+	 */
+	public int getNodeCount() {
+		int rv = 0;
+		for (ListeyDataOneUser userInfo : userData.values()) {
+			for (ListInfo listInfo : userInfo.lists.values()) {
+				rv += 1 + listInfo.getCategories().size() + listInfo.getOtherUserPrivs().size();
+				for (ItemInfo item : listInfo.getItems().values()) {
+					rv += 1 + item.getCategories().size();
+				}
+			}
+		}//foreach user
+		return rv;
+	}//getNodeCount
+
+
 
 	/**
 	 * @return the log
@@ -202,7 +307,7 @@ public class ListeyDataMultipleUsers {
 	/**
 	 * @param thisUserEmail the thisUserEmail to set
 	 */
-	private void setThisUserEmail(String thisUserEmail) {
+	void setThisUserEmail(String thisUserEmail) {
 		this.thisUserEmail = thisUserEmail;
 	}
 }//ListeyDataMultipleUsers
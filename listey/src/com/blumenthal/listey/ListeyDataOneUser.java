@@ -44,6 +44,8 @@ import com.google.appengine.api.datastore.Query;
 
 public class ListeyDataOneUser extends TimeStampedNode {
 	public static final String KIND = "user";//kind in the datastore
+	//How many entities each datastore round trip of a load gets
+	private static final int LOAD_BATCH_SIZE = ListeyConfig.getInt("load.batchSize", 500);
 	
 	private String userEmail;
 	public Map<String, ListInfo> lists = new HashMap<String, ListInfo>();
@@ -67,7 +69,21 @@ public class ListeyDataOneUser extends TimeStampedNode {
 	
 	
 	
+	/**
+	 * @param userEmail owner of the list
+	 * @param listUniqueId
+	 * @return the entity key for the given list
+	 */
+	public static Key getListEntityKey(String userEmail, String listUniqueId) {
+		return KeyFactory.createKey(getEntityKey(userEmail), ListInfo.KIND, listUniqueId);
+	}//getListEntityKey
+	
+	
+	
 	/** Load the info for the user from the datastore.
+	 * Note, if listUniqueId is passed, then we don't load the other user privs on it,
+	 * because listUniqueId is normally only passed when we're pulling in a different users list,
+	 * and we don't want to show the other users that different user has granted privs to
 	 *
 	 * @param datastore
 	 * @param userEmail
@@ -76,110 +92,73 @@ public class ListeyDataOneUser extends TimeStampedNode {
 	 * @return
 	 */
 	public static ListeyDataOneUser fromDatastore(DatastoreService datastore, String userEmail, String listUniqueId, ListeyDataOneUser oneUser) {
+		return fromDatastore(datastore, userEmail, listUniqueId, oneUser, listUniqueId == null);
+	}//fromDatastore
+	
+	
+	
+	/** Load the info for the user from the datastore.
+	 *
+	 * @param datastore
+	 * @param userEmail
+	 * @param listUniqueId - If not null, only load info for that list only.
+	 * @param oneUser - if not null, add to that and return, otherwise instantiate a new copy.
+	 * @param includePrivs - if true, also load the privs the owner granted other users on the lists.
+	 * @return
+	 */
+	public static ListeyDataOneUser fromDatastore(DatastoreService datastore, String userEmail, String listUniqueId, ListeyDataOneUser oneUser, boolean includePrivs) {
 		if (oneUser == null) {
 			oneUser = new ListeyDataOneUser();
 			oneUser.userEmail = userEmail;
 		}
+		return fromEntities(loadEntities(datastore, userEmail, listUniqueId), oneUser, includePrivs);
+	}//fromDatastore
+
 
+
+	/** Load the entities for the user, or for one list of the user's, for fromEntities.
+	 * This only reads, so it can run on another thread (see ParallelLoader).
+	 *
+	 * @param datastore
+	 * @param userEmail
+	 * @param listUniqueId - If not null, only load that list.
+	 * @return the entities.  Unless they came from the SnapshotCache, they're fetched from the
+	 * datastore in batches as they're iterated over, so iterate once.
+	 */
+	public static Iterable<Entity> loadEntities(DatastoreService datastore, String userEmail, String listUniqueId) {
 		//Find all entities for the user, or the user's list if listUniqueId is passed.
 		Key filterKey = getEntityKey(userEmail);
 		if (listUniqueId != null) {
-			filterKey = KeyFactory.createKey(filterKey, ListInfo.KIND, listUniqueId);
+			filterKey = getListEntityKey(userEmail, listUniqueId);
 		}
 		
-		//Get all entities for this user in one big list
+		SnapshotCache cache = SnapshotCache.get();
+		if (cache != null) {
+			return cache.load(datastore, filterKey);
+		}
 		Query q =  new Query().setAncestor(filterKey);
-		List<Entity> results = datastore.prepare(q)
-				.asList(FetchOptions.Builder.withDefaults());
-
-		//Split the entities out into different kinds, because it's important that we load them in order by kind
-		Map<String,List<Entity>> entitiesByKind = new HashMap<String,List<Entity>>(); 
-		for (Entity e : results) {
-			String kind = e.getKind();
-			List<Entity> list = entitiesByKind.get(kind);
-			if (list == null) {
-				list = new ArrayList<Entity>();
-				entitiesByKind.put(kind, list);
-			}
-			list.add(e);        			
-		}//for each found entity
-
-		//Nothing interesting actually is stored in the parent entity, so just skip 'user' kind
+		//Lists stored as blobs come back as a few chunks, which expand turns back into their entities
+		return ListBlobs.expand(datastore.prepare(q)
+				.asIterable(FetchOptions.Builder.withChunkSize(LOAD_BATCH_SIZE)));
+	}//loadEntities
 
-		//Load all the list kinds
-		List<Entity> entityList = entitiesByKind.get(ListInfo.KIND);
-		if (entityList != null) {
-			for (Entity e : entityList) {
-				ListInfo listInfo = new ListInfo(e);
-				oneUser.lists.put(listInfo.getUniqueId(), listInfo);
-			}//for each list entity
-		}//if any lists defined
 
-		//Load all categories for this list
-		entityList = entitiesByKind.get(CategoryInfo.KIND);
-		if (entityList != null) {
-			for (Entity e : entityList) {
-				CategoryInfo catInfo = new CategoryInfo(e);
-				String listId = e.getParent().getName();
-				ListInfo listeyList = oneUser.lists.get(listId);
-				if (listeyList != null) {
-					listeyList.getCategories().add(catInfo);
-				}
-			}//foreach list entity
-		}//if any categories defined
 
-		//Load all items for this list
-		entityList = entitiesByKind.get(ItemInfo.KIND);
-		if (entityList != null) {
-			for (Entity e : entityList) {
-				ItemInfo itemInfo = new ItemInfo(e);
-				String listId = e.getParent().getName();
-				ListInfo listeyList = oneUser.lists.get(listId);
-				if (listeyList != null) {
-					listeyList.getItems().put(e.getKey().getName(), itemInfo);
-				}
-			}//foreach entity
-		}//if any items defined
-
-		//Load all item categories for this list
-		entityList = entitiesByKind.get(ItemCategoryInfo.KIND);
-		if (entityList != null) {
-			for (Entity e : entityList) {
-				ItemCategoryInfo itemCategoryInfo = new ItemCategoryInfo(e);
-				String listId = e.getParent().getParent().getName();
-				String itemId = e.getParent().getName();
-				
-				//find the list it goes in
-				ListInfo listeyList = oneUser.lists.get(listId);
-				if (listeyList != null) {
-					//find the item it goes in
-					ItemInfo item = listeyList.getItems().get(itemId);
-					if (item != null) {
-						item.getCategories().put(e.getKey().getName(), itemCategoryInfo);
-					}//if item found
-				}//if list found
-			}//foreach entity
-		}//if any items defined
-		
-		//Load all other user priv on list for this list
-		//Note, if listId was passed, then we should't load this
-		//because listUniqueId is only passed when we're pulling in a different users list,
-		//and we don't want to show the other users that different user has granted privs to
-		if (listUniqueId == null) {
-			entityList = entitiesByKind.get(OtherUserPrivOnList.KIND);
-			if (entityList != null) {
-				for (Entity e : entityList) {
-					OtherUserPrivOnList priv = new OtherUserPrivOnList(e);
-					String listId = e.getParent().getName();
-					ListInfo listeyList = oneUser.lists.get(listId);
-					if (listeyList != null) {
-						listeyList.getOtherUserPrivs().put(e.getKey().getName(), priv);
-					}
-				}//foreach entity
-			}//if any items defined
-		}//if listUniqueId not passed
-		return oneUser;
-	}//constructor load from datastore
+	/** Build the lists from the entities under the user (or one of their lists), one entity
+	 * at a time as they're iterated over (see UserTreeBuilder).
+	 *
+	 * @param results the entities, e.g. from an ancestor query
+	 * @param oneUser - add to that and return
+	 * @param includePrivs - if true, also load the privs the owner granted other users on the lists.
+	 * @return oneUser
+	 */
+	public static ListeyDataOneUser fromEntities(Iterable<Entity> results, ListeyDataOneUser oneUser, boolean includePrivs) {
+		UserTreeBuilder builder = new UserTreeBuilder(oneUser, includePrivs);
+		for (Entity e : results) {
+			builder.add(e);
+		}
+		return builder.finish();
+	}//fromEntities
 	
 	
 	/** 
@@ -247,6 +226,7 @@ public class ListeyDataOneUser extends TimeStampedNode {
 	 */
 	public void setUniqueId(String newUniqueId) {
 		userEmail = newUniqueId;
+		clearDigest();
 	}
 
 	
@@ -300,6 +280,18 @@ public class ListeyDataOneUser extends TimeStampedNode {
 		return newObj;
 	}
 	
+	
+	@Override
+	public TimeStampedNode makeCopy() {
+		ListeyDataOneUser newObj = (ListeyDataOneUser) makeShallowCopy();
+		for (Map.Entry<String, ListInfo> entry : lists.entrySet()) {
+			ListInfo listCopy = (ListInfo) entry.getValue().makeCopy();
+			listCopy.setUniqueId(entry.getKey());
+			newObj.lists.put(entry.getKey(), listCopy);
+		}
+		return newObj;
+	}//makeCopy
+	
 
 	/* (non-Javadoc)
 	 * @see com.blumenthal.listey.TimeStampedNode#subMaps()
@@ -319,6 +311,7 @@ public class ListeyDataOneUser extends TimeStampedNode {
 	@SuppressWarnings("unchecked")
 	@Override
 	public void addSubMapEntries(List<List<? extends TimeStampedNode>> subMapEntriesToAdd) {
+		clearDigest();
 		List<ListInfo> listList = (List<ListInfo>) subMapEntriesToAdd.get(0);
 		for (ListInfo list : listList) {
 			lists.put(list.getUniqueId(), list);
@@ -0,0 +1,336 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import static com.blumenthal.listey.JsonFieldNameConstants.*;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Reads the sync JSON straight from a stream into the Listey objects, without
+ * building the whole string or a JsonElement tree first.
+ *
+ * This accepts exactly the same JSON as the JsonAdapter classes (see ListeyDataMultipleUsers
+ * for the format), and fills in the objects the same way, so the two can be used interchangeably.
+ * Unknown fields are skipped, and changedOnServer is always ignored when parsing.
+ *
+ * @author David
+ *
+ */
+public class ListeyJsonStreamReader {
+	private JsonReader reader;
+
+	public ListeyJsonStreamReader(Reader in) {
+		reader = new JsonReader(in);
+		//Gson parses the form parameter leniently, so the body has to take the same JSON
+		reader.setLenient(true);
+	}
+
+
+
+	/**
+	 * Read a whole ListeyDataMultipleUsers from the stream.
+	 * @param thisUserEmail the logged in user
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static ListeyDataMultipleUsers readMultipleUsers(String thisUserEmail, Reader in) throws IOException {
+		ListeyJsonStreamReader streamReader = new ListeyJsonStreamReader(in);
+		ListeyDataMultipleUsers rv = streamReader.readMultipleUsers();
+		rv.setThisUserEmail(thisUserEmail);
+		return rv;
+	}//readMultipleUsers
+
+
+
+	/**
+	 * Read a single ListInfo (one value from the "lists" map) from the stream.
+	 * Note, the uniqueId isn't part of the list JSON, so the caller has to set it.
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static ListInfo readList(Reader in) throws IOException {
+		ListeyJsonStreamReader streamReader = new ListeyJsonStreamReader(in);
+		return streamReader.readListInfo();
+	}//readList
+
+
+
+	public ListeyDataMultipleUsers readMultipleUsers() throws IOException {
+		ListeyDataMultipleUsers multiUserInfo = new ListeyDataMultipleUsers();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String field = reader.nextName();
+			if (field.equals(ListeyDataMultipleUsers.USER_DATA) && !skipNull()) {
+				reader.beginObject();
+				while (reader.hasNext()) {
+					String userEmail = reader.nextName();
+					ListeyDataOneUser userInfo = readOneUser();
+					userInfo.setUniqueId(userEmail);
+					multiUserInfo.userData.put(userEmail, userInfo);
+				}
+				reader.endObject();
+			}
+			else {
+				reader.skipValue();
+			}
+		}//while fields
+		reader.endObject();
+		return multiUserInfo;
+	}//readMultipleUsers
+
+
+
+	public ListeyDataOneUser readOneUser() throws IOException {
+		ListeyDataOneUser userInfo = new ListeyDataOneUser();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String field = reader.nextName();
+			if (field.equals(USER_EMAIL) && !skipNull()) {
+				userInfo.setUniqueId(reader.nextString());
+			}
+			else if (field.equals(LISTS) && !skipNull()) {
+				reader.beginObject();
+				while (reader.hasNext()) {
+					String listId = reader.nextName();
+					ListInfo listInfo = readListInfo();
+					listInfo.setUniqueId(listId);
+					userInfo.lists.put(listId, listInfo);
+				}
+				reader.endObject();
+			}
+			else {
+				reader.skipValue();
+			}
+		}//while fields
+		reader.endObject();
+		return userInfo;
+	}//readOneUser
+
+
+
+	public ListInfo readListInfo() throws IOException {
+		ListInfo listInfo = new ListInfo();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String field = reader.nextName();
+			if (skipNull()) continue;
+			if (field.equals(LAST_UPDATE)) {
+				listInfo.setLastUpdate(reader.nextLong());
+			}
+			else if (field.equals(NAME)) {
+				listInfo.setName(reader.nextString());
+			}
+			else if (field.equals(STATUS)) {
+				listInfo.setStatus(readStatus());
+			}
+			else if (field.equals(UNIQUE_ID)) {
+				listInfo.setUniqueId(reader.nextString());
+			}
+			else if (field.equals(DIGEST)) {
+				listInfo.setClientDigest(reader.nextString());
+			}
+			else if (field.equals(ITEMS)) {
+				reader.beginArray();
+				while (reader.hasNext()) {
+					ItemInfo item = readItemInfo();
+					//Add it to the map.  Note, order is lost, but since it's always alphabetical order it's ok
+					listInfo.getItems().put(item.getUniqueId(), item);
+				}
+				reader.endArray();
+			}
+			else if (field.equals(CATEGORIES)) {
+				reader.beginArray();
+				while (reader.hasNext()) {
+					listInfo.getCategories().add(readCategoryInfo());
+				}
+				reader.endArray();
+			}
+			else if (field.equals(SELECTED_CATEGORIES)) {
+				reader.beginArray();
+				while (reader.hasNext()) {
+					listInfo.getSelectedCategories().add(reader.nextString());
+				}
+				reader.endArray();
+			}
+			else if (field.equals(OTHER_USER_PRIVS)) {
+				reader.beginObject();
+				while (reader.hasNext()) {
+					String userId = reader.nextName();
+					OtherUserPrivOnList privInfo = readOtherUserPrivOnList();
+					privInfo.userId = userId;
+					listInfo.getOtherUserPrivs().put(userId, privInfo);
+				}
+				reader.endObject();
+			}
+			else {
+				reader.skipValue();
+			}
+		}//while fields
+		reader.endObject();
+
+		//Same fields the ListInfoJsonAdapter requires, unless the client only sent the digest
+		if (listInfo.getLastUpdate() != null) {
+			listInfo.setClientDigest(null);
+		}
+		else if (listInfo.isDigestOnly()) {
+			return listInfo;
+		}
+		if (listInfo.getLastUpdate() == null || listInfo.getName() == null) {
+			throw new JsonParseException("List " + listInfo.getUniqueId() + " is missing " + LAST_UPDATE + " or " + NAME);
+		}
+		return listInfo;
+	}//readListInfo
+
+
+
+	public ItemInfo readItemInfo() throws IOException {
+		ItemInfo item = new ItemInfo();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String field = reader.nextName();
+			if (skipNull()) continue;
+			if (field.equals(UNIQUE_ID)) {
+				item.setUniqueId(reader.nextString());
+			}
+			else if (field.equals(COUNT)) {
+				item.setCount(reader.nextLong());
+			}
+			else if (field.equals(NAME)) {
+				item.setName(reader.nextString());
+			}
+			else if (field.equals(STATUS)) {
+				item.setStatus(readStatus());
+			}
+			else if (field.equals(LAST_UPDATE)) {
+				item.setLastUpdate(reader.nextLong());
+			}
+			else if (field.equals(CATEGORIES)) {
+				reader.beginObject();
+				while (reader.hasNext()) {
+					String catId = reader.nextName();
+					ItemCategoryInfo catInfo = readItemCategoryInfo();
+					catInfo.setUniqueId(catId);
+					item.getCategories().put(catId, catInfo);
+				}
+				reader.endObject();
+			}
+			else {
+				reader.skipValue();
+			}
+		}//while fields
+		reader.endObject();
+
+		//Same fields the ItemInfoJsonAdapter requires
+		if (item.getUniqueId() == null || item.getName() == null || item.getLastUpdate() == null) {
+			throw new JsonParseException("Item " + item.getUniqueId() + " is missing " + UNIQUE_ID + ", " + NAME + " or " + LAST_UPDATE);
+		}
+		return item;
+	}//readItemInfo
+
+
+
+	public CategoryInfo readCategoryInfo() throws IOException {
+		CategoryInfo catInfo = new CategoryInfo();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String field = reader.nextName();
+			if (skipNull()) continue;
+			if (field.equals(UNIQUE_ID)) {
+				catInfo.setUniqueId(reader.nextString());
+			}
+			else if (field.equals(NAME)) {
+				catInfo.setName(reader.nextString());
+			}
+			else if (field.equals(STATUS)) {
+				catInfo.setStatus(readStatus());
+			}
+			else if (field.equals(LAST_UPDATE)) {
+				catInfo.setLastUpdate(reader.nextLong());
+			}
+			else {
+				reader.skipValue();
+			}
+		}//while fields
+		reader.endObject();
+		return catInfo;
+	}//readCategoryInfo
+
+
+
+	public ItemCategoryInfo readItemCategoryInfo() throws IOException {
+		ItemCategoryInfo catInfo = new ItemCategoryInfo();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String field = reader.nextName();
+			if (skipNull()) continue;
+			if (field.equals(UNIQUE_ID)) {
+				catInfo.setUniqueId(reader.nextString());
+			}
+			else if (field.equals(STATUS)) {
+				catInfo.setStatus(readStatus());
+			}
+			else if (field.equals(LAST_UPDATE)) {
+				catInfo.setLastUpdate(reader.nextLong());
+			}
+			else {
+				reader.skipValue();
+			}
+		}//while fields
+		reader.endObject();
+		return catInfo;
+	}//readItemCategoryInfo
+
+
+
+	public OtherUserPrivOnList readOtherUserPrivOnList() throws IOException {
+		OtherUserPrivOnList privInfo = new OtherUserPrivOnList();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String field = reader.nextName();
+			if (skipNull()) continue;
+			if (field.equals(PRIV)) {
+				privInfo.priv = OtherUserPrivOnList.OtherUserPriv.valueOf(reader.nextString());
+			}
+			else if (field.equals(LAST_UPDATE)) {
+				privInfo.lastUpdate = reader.nextLong();
+			}
+			else if (field.equals(USER_ID)) {
+				privInfo.userId = reader.nextString();
+			}
+			else {
+				reader.skipValue();
+			}
+		}//while fields
+		reader.endObject();
+		return privInfo;
+	}//readOtherUserPrivOnList
+
+
+
+	private TimeStampedNode.Status readStatus() throws IOException {
+		return TimeStampedNode.Status.valueOf(reader.nextString());
+	}//readStatus
+
+
+
+	/**
+	 * If the next value is a JSON null, consume it.
+	 * @return true if a null was skipped
+	 */
+	private boolean skipNull() throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return true;
+		}
+		return false;
+	}//skipNull
+}//ListeyJsonStreamReader
@@ -1,8 +1,11 @@
 package com.blumenthal.listey;
+import static com.blumenthal.listey.JsonFieldNameConstants.DEVICE_ID;
+import static com.blumenthal.listey.JsonFieldNameConstants.SYNC_TOKEN;
+import static com.blumenthal.listey.JsonFieldNameConstants.TEMP_IDS;
+
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.ConcurrentModificationException;
-import java.util.List;
+import java.io.Writer;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServlet;
@@ -11,13 +14,11 @@ import javax.servlet.http.HttpServletResponse;
 
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
-import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.Transaction;
-import com.google.appengine.api.datastore.TransactionOptions;
 import com.google.appengine.api.users.User;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
 
 /**
  * This allows the client to load/sync data from the server info.
@@ -45,87 +46,223 @@ public class ListeyServlet extends HttpServlet {
 	
 	/** Overwrite the existing data with an update from the client
 	    Note, this does nothing if the user is not currently logged in
+	    
+	    If the request has a syncToken parameter (it can be empty for the first sync) then this is
+	    a delta sync: the client only sends the nodes it changed since that token, and gets back
+	    a DeltaSyncResponse with only the nodes the server changed, plus a new token.
+	    Without syncToken the whole merged tree is returned, as older clients expect.
+	    
+	    The data can either be form-encoded in the "content" parameter, or sent as an
+	    application/json request body, which gets parsed as it streams in.  syncToken is always
+	    a (query string) parameter.  A JSON body may be gzipped (Content-Encoding: gzip), and the
+	    response is gzipped and streamed out if the client's Accept-Encoding allows it.
+	    The body can also be application/x-listey-binary (see ListeyBinaryWriter), and the
+	    response is in that format too if the client's Accept header lists it.
+	    
+	    A delta sync can also pass a deviceId, any string that stays the same for the device.  That
+	    records the syncToken it sent as what the device has seen (see SyncHorizon), so deleted
+	    nodes it has synced past can be removed for good.  If the token is from before nodes that
+	    were deleted since were removed, the client gets a 410 and has to do a full sync (GET).
+	    
+	    Before anything is parsed, the UserRateLimiter gives a 413 for a body that's too big and
+	    a 429 with a Retry-After to a user syncing too often or too many at once.
+	    Once the body is parsed, the load/merge/commit waits for a turn at the SyncGate, and gets
+	    a 503 with a Retry-After if the instance is already as busy as it's allowed to be.
+	    
+	    If some list kept changing while it was being merged, the other lists are committed and that
+	    one isn't (see SyncMerge).  Then the client gets a 503 with a Retry-After and just
+	    {"tempIds" : {...}} for the nodes that were committed, and should send the rest again.
 	*/
 	@Override
 	public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException{
 		UserService userService = UserServiceFactory.getUserService();
         User user = userService.getCurrentUser();
 
-    	String jsonString = req.getParameter("content");
-        if (jsonString == null || jsonString.length() == 0) {
+        SyncIO io = new SyncIO(req, resp);
+        boolean binaryBody = SyncIO.hasBinaryBody(req);
+        boolean jsonBody = SyncIO.hasJsonBody(req);
+        boolean rawBody = jsonBody || binaryBody;
+        if (SyncIO.isRequestGzipped(req) && !rawBody) {
+        	//Form parameters can't be decoded from a gzipped body
+        	resp.setStatus(415);//unsupported media type
+        	log.info("doPost: gzipped request body must be " + SyncIO.JSON_CONTENT_TYPE + " or " + SyncIO.BINARY_CONTENT_TYPE);
+        	return;
+        }
+        //Turn away anything too big before any of it is read
+        UserRateLimiter limiter = UserRateLimiter.get();
+        if (!limiter.checkContentLength(req, resp)) {
+        	return;
+        }
+        io.setMaxRequestBytes(limiter.getMaxRequestBytes());
+    	String jsonString = rawBody ? null : req.getParameter("content");
+        if (jsonString != null && jsonString.length() > limiter.getMaxRequestBytes()) {
+        	limiter.rejectTooLarge(resp, jsonString.length() + " characters of content");
+        	return;
+        }
+        if (!rawBody && (jsonString == null || jsonString.length() == 0)) {
         	log.info("doPost: Nothing passed in content, using default");
         	jsonString = "{}";
         }
+        String syncTokenString = req.getParameter(SYNC_TOKEN);
+        boolean deltaSync = syncTokenString != null;
+        String deviceId = req.getParameter(DEVICE_ID);
+        //Only one of these gets set; they're written out after everything is committed
+        ListeyDataMultipleUsers fullResponse = null;
+        DeltaSyncResponse deltaResponse = null;
+        //Instead of either of those, if not every list could be committed
+        Map<String, String> partialTempIds = null;
         if (user != null) {
-        	log.info("doPost: User=" + user.getEmail());
-
-        	//Parse the passed data
-    		ListeyDataMultipleUsers passedData = ListeyDataMultipleUsers.fromJson(user.getEmail(), jsonString);
-    		
-        	//Load the current data from datastore
-        	DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-        	int retries=10;
-        	while (true) {
-        		TransactionOptions options = TransactionOptions.Builder.withXG(true);
-        		Transaction txn = datastore.beginTransaction(options);
+        	log.info("doPost: User=" + user.getEmail() + (deltaSync ? " delta since " + syncTokenString : ""));
+        	int retryAfterSeconds = limiter.enter(user.getEmail());
+        	if (retryAfterSeconds > 0) {
+        		limiter.reject(resp, retryAfterSeconds);
+        		return;
+        	}
+        	try {
+        		//Only after admission, since this is a datastore read
+        		if (deltaSync && SyncHorizon.isExpired(DatastoreServiceFactory.getDatastoreService(), user.getEmail(), SyncToken.parse(syncTokenString))) {
+        			resp.setStatus(410);//gone, the deletes since then aren't there to send any more
+        			log.info("doPost: sync token " + syncTokenString + " is from before tombstones were removed, needs a full sync");
+        			return;
+        		}
+        		//Parse the passed data before taking a turn at the gate, so a slow upload doesn't hold one
+        		ListeyDataMultipleUsers passedData;
+        		long start = SyncTimer.begin();
         		try {
-        			ListeyDataMultipleUsers currentData = new ListeyDataMultipleUsers(datastore, user.getEmail());
+        			if (binaryBody) {
+        				passedData = ListeyBinaryReader.readMultipleUsers(user.getEmail(), io.openRequestStream());
+        			}
+        			else if (jsonBody) {
+        				passedData = ListeyJsonStreamReader.readMultipleUsers(user.getEmail(), io.openRequestReader());
+        			}
+        			else {
+        				passedData = ListeyDataMultipleUsers.fromJson(user.getEmail(), jsonString);
+        			}
+        		} catch (UserRateLimiter.TooLargeException e) {
+        			limiter.rejectTooLarge(resp, "at least " + io.getRequestDataBytes() + " bytes");
+        			return;
+        		}
+        		SyncTimer.end(SyncTimer.PARSE, start);
 
-        			//Compare the stored and the passed data.
-        			DataStoreUniqueId uniqueIdCreator = new DataStoreUniqueId();
-        			List<Entity> updateEntities = new ArrayList<Entity>();
-        			List<Key> deleteKeys = new ArrayList<Key>();
-        			ListeyDataMultipleUsers updatedData = ListeyDataMultipleUsers.compareAndUpdate(uniqueIdCreator, currentData, passedData, updateEntities, deleteKeys);
-        			log.info("doPost: passedData = " + jsonString);
-        			log.info("        currentData= " + currentData.toJson());
-        			log.info("       updatedData = " + updatedData.toJson());
-        			log.info("doPost: updating " + updateEntities.size() + " entities, deleting " + deleteKeys.size() + " entities");
-        			datastore.put(updateEntities);
-        			datastore.delete(deleteKeys);
-        			
-        			jsonString = updatedData.toJson();
-        			
-        	        txn.commit();
-        	        break;//out of retries loop
+        		SyncFlightRecorder recorder = SyncFlightRecorder.get();
+        		SyncGate gate = SyncGate.get();
+        		if (!gate.enter()) {
+        			gate.reject(resp);
+        			return;
         		}
-        		catch (ConcurrentModificationException e) {
-        			if (retries == 0) {
+        		try {
+        			DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        			//Merged and committed together with any other syncs for the same user that overlap this one
+        			SyncCoalescer.Result result;
+        			try {
+        				result = SyncCoalescer.sync(ListeyStores.get(), user.getEmail(), passedData);
+        			} catch (RuntimeException e) {
+        				recorder.record(user.getEmail(), "doPost", passedData, null, e);
         				throw e;
         			}
-        			// Allow retry to occur
-        			--retries;
-        		} finally {
-        			if (txn.isActive()) {
-        				txn.rollback();
+        			SyncMerge merge = result.getMerge();
+        			//What was sent, loaded and committed goes in the flight recorder instead of the log
+        			recorder.record(user.getEmail(), "doPost", passedData, merge, null);
+
+        			if (!merge.isComplete()) {
+        				resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        				resp.setHeader("Retry-After", Integer.toString(SyncMerge.RETRY_AFTER_SECONDS));
+        				partialTempIds = result.getTempToPermanentIds();
+        			}
+        			else if (deltaSync) {
+        				ListeyDataMultipleUsers changedData = ListeyDataMultipleUsers.changedSince(merge.getUpdatedData(), merge.getCurrentData(),
+        						passedData, SyncToken.parse(syncTokenString));
+        				deltaResponse = new DeltaSyncResponse(changedData, merge.getNewSyncToken(), result.getTempToPermanentIds());
+        				deltaResponse.setListDigests(merge.getUpdatedData().getListDigests());
+        				SyncHorizon.acknowledge(datastore, user.getEmail(), deviceId, SyncToken.parse(syncTokenString), System.currentTimeMillis());
         			}
+        			else {
+        				fullResponse = merge.getUpdatedData();
+        			}
+        		}
+        		finally {
+        			gate.exit();
         		}
-        	}//while true
+        	}
+        	finally {
+        		limiter.exit(user.getEmail());
+        	}
         }//if user
         else {
         	resp.setStatus(403);//unauthorized
         	log.info("doPost: no user defined");
         }
-        resp.setContentType("text/plain");
-        resp.getWriter().print(jsonString);
-        
+        if ((deltaResponse != null || fullResponse != null) && SyncIO.acceptsBinary(req)) {
+        	ListeyBinaryWriter out = new ListeyBinaryWriter(io.openResponseStream());
+        	if (deltaResponse != null) {
+        		out.writeDeltaSyncResponse(deltaResponse);
+        	}
+        	else {
+        		out.writeMultipleUsers(fullResponse);
+        	}
+        }
+        else {
+        	resp.setContentType("text/plain");
+        	Writer out = io.openResponseWriter();
+        	if (deltaResponse != null) {
+        		deltaResponse.toJson(out);
+        	}
+        	else if (fullResponse != null) {
+        		fullResponse.toJson(out);
+        	}
+        	else if (partialTempIds != null) {
+        		Gson gson = ListeyDataMultipleUsers.getGson();
+        		JsonObject partial = new JsonObject();
+        		partial.add(TEMP_IDS, gson.toJsonTree(partialTempIds));
+        		gson.toJson(partial, out);
+        	}
+        	else {
+        		out.write("{}");
+        	}
+        }
+        io.finish("doPost");
 	}//doPost
 	
 	
-	//Get the existing data
+	/** Get the existing data, as JSON or in the binary format if the client's Accept lists it.
+	    The response has an ETag computed from the data, so if the client sends it back in
+	    If-None-Match and nothing changed, it gets a 304 with no body.
+	*/
 	@Override
 	public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
 		UserService userService = UserServiceFactory.getUserService();
         User user = userService.getCurrentUser();
 
 		resp.setContentType("text/plain");
-		String listJSON = "{}";
+		SyncIO io = new SyncIO(req, resp);
         if (user == null) {
         	resp.setStatus(403);//unauthorized
+        	io.openResponseWriter().write("{}");
         } else {
-        	DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-        	ListeyDataMultipleUsers currentData = new ListeyDataMultipleUsers(datastore, user.getEmail());
-        	listJSON = currentData.toJson();
+        	SyncGate gate = SyncGate.get();
+        	if (!gate.enter()) {
+        		gate.reject(resp);
+        		return;
+        	}
+        	ListeyDataMultipleUsers currentData;
+        	try {
+        		currentData = ListeyStores.get().loadAll(user.getEmail());
+        	}
+        	finally {
+        		gate.exit();
+        	}
+        	if (io.checkETag(currentData.getETag())) {
+        		resp.setStatus(304);//not modified
+        		log.info("doGet: " + user.getEmail() + " not modified");
+        		return;
+        	}
+        	if (SyncIO.acceptsBinary(req)) {
+        		new ListeyBinaryWriter(io.openResponseStream()).writeMultipleUsers(currentData);
+        	}
+        	else {
+        		currentData.toJson(io.openResponseWriter());
+        	}
         }
-        resp.getWriter().print(listJSON);
+        io.finish("doGet");
 	}
 }
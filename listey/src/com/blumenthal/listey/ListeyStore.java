@@ -0,0 +1,80 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.util.List;
+
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * Where the lists are kept.  Everything goes in and out as the same Entity and Key objects
+ * the nodes already turn into (toEntity), so a store only has to keep entities by key and
+ * find what's under a key.
+ *
+ * It only covers what the full sync's merge needs (see SyncMerge): loading, committing one
+ * list against its version, and ids.  There are no general transactions or batched puts and
+ * deletes; everything else that writes uses the datastore directly (see ListeyStores).
+ *
+ * DatastoreListeyStore is the App Engine datastore, and the only one a server uses.
+ * LogListeyStore is a single file on the local disk, a harness for tests and benchmarks of
+ * the merge without the datastore.
+ *
+ * @author David
+ *
+ */
+public interface ListeyStore {
+	/**
+	 * @return everything the user can see: their own lists with the privs they granted, and the lists shared with them
+	 */
+	public ListeyDataMultipleUsers loadAll(String userEmail);
+
+
+
+	/**
+	 * @param userEmail
+	 * @param includePrivs - if true, also load the privs the user granted other users on their lists
+	 * @return the user's own lists
+	 */
+	public ListeyDataOneUser loadUser(String userEmail, boolean includePrivs);
+
+
+
+	/**
+	 * @param ownerEmail
+	 * @param listId
+	 * @param includePrivs - if true, also load the privs the owner granted other users on the list
+	 * @return the owner, with just that list (or no lists if it isn't there)
+	 */
+	public ListeyDataOneUser loadList(String ownerEmail, String listId, boolean includePrivs);
+
+
+
+	/**
+	 * @return the keys of other users' lists that have been shared with the user
+	 */
+	public List<Key> getSharedListKeys(String userEmail);
+
+
+
+	/**
+	 * Put and delete the changes to one list in one transaction, if the list's version is
+	 * still the expected one, bumping it.  See ListCommitter.
+	 * @return true if committed, false if the list's version moved and it needs to be re-merged
+	 */
+	public boolean commit(ListCommitter.ListChanges changes);
+
+
+
+	/**
+	 * @return a new permanent unique id, for DataStoreUniqueId
+	 */
+	public String allocateId();
+
+
+
+	/**
+	 * @return count new permanent unique ids, for DataStoreUniqueId to hand out
+	 */
+	public List<String> allocateIds(int count);
+}//ListeyStore
@@ -0,0 +1,39 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+
+/**
+ * Holds the ListeyStore the full sync (/ajax) goes through.
+ *
+ * It's always the datastore (DatastoreListeyStore) in a server.  Only the full sync goes through
+ * the store; /ajax/list, /ajax/ops, CascadeDelete, TombstoneCollector, SharedWithMe, SyncHorizon
+ * and SnapshotCache use the datastore directly, so any other store would split the data between
+ * the two.  Tests and benchmarks can set() another one, e.g. a LogListeyStore.
+ *
+ * @author David
+ *
+ */
+public class ListeyStores {
+	private static ListeyStore store;
+
+
+
+	public static synchronized ListeyStore get() {
+		if (store == null) {
+			store = new DatastoreListeyStore(DatastoreServiceFactory.getDatastoreService());
+		}
+		return store;
+	}//get
+
+
+
+	/**
+	 * Use a different store, e.g. for tests and benchmarks
+	 */
+	public static synchronized void set(ListeyStore newStore) {
+		store = newStore;
+	}//set
+}//ListeyStores
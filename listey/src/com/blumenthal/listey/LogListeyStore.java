@@ -0,0 +1,489 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * ListeyStore in one local file, a harness for tests and benchmarks of the full sync's merge
+ * without the datastore.  It isn't a way to deploy: only the full sync goes through a
+ * ListeyStore (see ListeyStores), so nothing picks it from settings; a test or benchmark
+ * makes one and passes it to ListeyStores.set or straight to SyncMerge/SyncCoalescer.
+ *
+ * The file is an append-only log of commits, memory-mapped, and everything in it is also
+ * kept in memory: the entities sorted by their key path, so everything under a key is one
+ * range, and the lists shared with each user.  Loads only read memory.  A commit appends one
+ * record and then applies it in memory, under a write lock, which makes commits serial and
+ * atomic; that's the transaction.  Deleting a list or item also deletes what's under it in the
+ * same commit, since it's all in memory anyway (CascadeDelete is for the datastore).
+ *
+ * Record: int length, int CRC32 of the body, body.  The body is a byte type and then:
+ *   COMMIT - the owner's email, then what's put and what's deleted, each as ListBlobs.encode
+ *            under the owner's user key (deletes as entities with no properties)
+ *   ID - long, the last id handed out
+ * On open the log is replayed.  It stops at the first record that's cut off or doesn't
+ * match its CRC, i.e. one that was being written when the process died, and that's where
+ * the next one goes.  Writes go to the OS when they're made, so a commit survives the
+ * process dying; with syncEachCommit they're also flushed to the disk before the commit
+ * returns, so they survive the machine going down too.
+ *
+ * The log is never compacted and the whole file has to fit in 2GB, so it's only for
+ * moderate amounts of data.
+ *
+ * @author David
+ *
+ */
+public class LogListeyStore implements ListeyStore {
+	private static final Logger log = Logger.getLogger(LogListeyStore.class.getName());
+
+	private static final int MAGIC = 0x4c53544c;//LSTL
+	private static final int FORMAT = 1;
+	private static final int HEADER_BYTES = 8;
+	private static final int RECORD_HEADER_BYTES = 8;
+	private static final byte COMMIT = 1;
+	private static final byte ID = 2;
+	public static final int INITIAL_BYTES = 1024 * 1024;
+	//Can't be one of DatastoreListeyStore's, which start at shard 1
+	public static final String ID_PREFIX = "0:";
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final boolean syncEachCommit;
+	private MappedByteBuffer buffer;
+	private int position;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	//By path(key), so what's under a key sorts right after it
+	private final TreeMap<String, Entity> entities = new TreeMap<String, Entity>();
+	//User email -> keys of lists shared with them
+	private final Map<String, Set<Key>> sharedWith = new HashMap<String, Set<Key>>();
+	private long lastId = 0;
+
+
+
+	/**
+	 * Open the log, creating it if it's not there, and load everything in it.
+	 * @param path
+	 * @param syncEachCommit - if true, flush to disk before each commit returns
+	 */
+	public LogListeyStore(File path, boolean syncEachCommit) throws IOException {
+		this.syncEachCommit = syncEachCommit;
+		file = new RandomAccessFile(path, "rw");
+		channel = file.getChannel();
+		boolean isNew = channel.size() == 0;
+		map(Math.max(INITIAL_BYTES, (int) channel.size()));
+		if (isNew) {
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, FORMAT);
+		}
+		else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT) {
+			close();
+			throw new IOException(path + " isn't a listey log");
+		}
+		replay();
+		log.info("opened " + path + ": " + entities.size() + " entities, " + position + " bytes");
+	}//LogListeyStore
+
+
+
+	public void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (buffer != null) {
+				buffer.force();
+			}
+			channel.close();
+			file.close();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}//close
+
+
+
+	/**
+	 * @return how many entities are stored, tombstones included
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return entities.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}//size
+
+
+
+	private void map(int bytes) throws IOException {
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+	}//map
+
+
+
+	private void replay() {
+		position = HEADER_BYTES;
+		while (position + RECORD_HEADER_BYTES <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+			if (length <= 0) break;
+			if (position + RECORD_HEADER_BYTES + length > buffer.capacity()) {
+				log.warning("replay: record at " + position + " is cut off, dropping it");
+				break;
+			}
+			byte[] body = new byte[length];
+			buffer.position(position + RECORD_HEADER_BYTES);
+			buffer.get(body);
+			if (crc(body) != buffer.getInt(position + 4)) {
+				log.warning("replay: record at " + position + " doesn't match its CRC, dropping it");
+				break;
+			}
+			apply(body);
+			position += RECORD_HEADER_BYTES + length;
+		}//while records
+		//Clear anything after the last good record, so it can't be mistaken for one later
+		for (int i = position; i < buffer.capacity() && i < position + RECORD_HEADER_BYTES; i++) {
+			buffer.put(i, (byte) 0);
+		}
+	}//replay
+
+
+
+	private void apply(byte[] body) {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+		try {
+			byte type = in.readByte();
+			if (type == ID) {
+				lastId = Math.max(lastId, in.readLong());
+			}
+			else if (type == COMMIT) {
+				Key userKey = ListeyDataOneUser.getEntityKey(in.readUTF());
+				List<Entity> puts = ListBlobs.decode(userKey, readBytes(in));
+				List<Key> deletes = new ArrayList<Key>();
+				for (Entity deleted : ListBlobs.decode(userKey, readBytes(in))) {
+					deletes.add(deleted.getKey());
+				}
+				apply(puts, deletes);
+			}
+			else {
+				throw new IllegalStateException("Unknown log record type " + type);
+			}
+		} catch (IOException e) {
+			//Only reading from memory, and the CRC matched
+			throw new IllegalStateException(e);
+		}
+	}//apply
+
+
+
+	private void apply(Collection<Entity> puts, Collection<Key> deletes) {
+		for (Key key : deletes) {
+			entities.remove(path(key));
+			if (key.getKind().equals(OtherUserPrivOnList.KIND)) {
+				Set<Key> lists = sharedWith.get(key.getName());
+				if (lists != null) lists.remove(key.getParent());
+			}
+		}
+		for (Entity entity : puts) {
+			entities.put(path(entity.getKey()), entity);
+			if (entity.getKind().equals(OtherUserPrivOnList.KIND)) {
+				Set<Key> lists = sharedWith.get(entity.getKey().getName());
+				if (lists == null) {
+					lists = new LinkedHashSet<Key>();
+					sharedWith.put(entity.getKey().getName(), lists);
+				}
+				lists.add(entity.getKey().getParent());
+			}
+		}
+	}//apply
+
+
+
+	/**
+	 * Add a record to the end of the log.  Call with the write lock held.
+	 */
+	private void append(byte[] body) {
+		int needed = position + RECORD_HEADER_BYTES + body.length + RECORD_HEADER_BYTES;
+		if (needed > buffer.capacity()) {
+			long newSize = Math.max((long) buffer.capacity() * 2, needed);
+			if (newSize > Integer.MAX_VALUE) {
+				throw new IllegalStateException("Listey log is full");
+			}
+			try {
+				map((int) newSize);
+			} catch (IOException e) {
+				throw new IllegalStateException("Couldn't grow the listey log", e);
+			}
+		}
+		//Body first and the length last, so a record that's cut off has no length
+		buffer.putInt(position + 4, crc(body));
+		buffer.position(position + RECORD_HEADER_BYTES);
+		buffer.put(body);
+		buffer.putInt(position + RECORD_HEADER_BYTES + body.length, 0);
+		buffer.putInt(position, body.length);
+		position += RECORD_HEADER_BYTES + body.length;
+		if (syncEachCommit) {
+			buffer.force();
+		}
+	}//append
+
+
+
+	@Override
+	public ListeyDataMultipleUsers loadAll(String userEmail) {
+		ListeyDataMultipleUsers rv = new ListeyDataMultipleUsers();
+		rv.setThisUserEmail(userEmail);
+		long start = SyncTimer.begin();
+		rv.userData.put(userEmail, loadUser(userEmail, true));
+		SyncTimer.end(SyncTimer.LOAD, start);
+		start = SyncTimer.begin();
+		for (Key listKey : getSharedListKeys(userEmail)) {
+			String otherUserEmail = listKey.getParent().getName();
+			ListeyDataOneUser sharedListData = loadList(otherUserEmail, listKey.getName(), false);
+			ListeyDataOneUser otherUserData = rv.userData.get(otherUserEmail);
+			if (otherUserData == null) {
+				rv.userData.put(otherUserEmail, sharedListData);
+			}
+			else {
+				otherUserData.lists.putAll(sharedListData.lists);
+			}
+		}//foreach shared list
+		SyncTimer.end(SyncTimer.SHARED, start);
+		return rv;
+	}//loadAll
+
+
+
+	@Override
+	public ListeyDataOneUser loadUser(String userEmail, boolean includePrivs) {
+		return load(userEmail, ListeyDataOneUser.getEntityKey(userEmail), includePrivs);
+	}//loadUser
+
+
+
+	@Override
+	public ListeyDataOneUser loadList(String ownerEmail, String listId, boolean includePrivs) {
+		return load(ownerEmail, ListeyDataOneUser.getListEntityKey(ownerEmail, listId), includePrivs);
+	}//loadList
+
+
+
+	private ListeyDataOneUser load(String userEmail, Key ancestorKey, boolean includePrivs) {
+		List<Entity> subtree;
+		lock.readLock().lock();
+		try {
+			subtree = new ArrayList<Entity>(under(ancestorKey).values());
+		} finally {
+			lock.readLock().unlock();
+		}
+		ListeyDataOneUser oneUser = new ListeyDataOneUser();
+		oneUser.setUniqueId(userEmail);
+		return ListeyDataOneUser.fromEntities(subtree, oneUser, includePrivs);
+	}//load
+
+
+
+	/**
+	 * @return the key's entity, and everything under it.  Call with a lock held.
+	 */
+	private SortedMap<String, Entity> under(Key ancestorKey) {
+		String from = path(ancestorKey);
+		return entities.subMap(from, from + Character.MAX_VALUE);
+	}//under
+
+
+
+	@Override
+	public List<Key> getSharedListKeys(String userEmail) {
+		lock.readLock().lock();
+		try {
+			Set<Key> lists = sharedWith.get(userEmail);
+			return lists == null ? Collections.<Key>emptyList() : new ArrayList<Key>(lists);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}//getSharedListKeys
+
+
+
+	@Override
+	public boolean commit(ListCommitter.ListChanges changes) {
+		if (changes.getUpdateEntities().isEmpty() && changes.getDeleteKeys().isEmpty()) {
+			return true;
+		}
+		Key listKey = changes.getListKey();
+		lock.writeLock().lock();
+		try {
+			Entity currentListEntity = entities.get(path(listKey));
+			long currentVersion = ListCommitter.getVersion(currentListEntity);
+			if (currentVersion != changes.getExpectedVersion()) {
+				log.info("commit: list " + listKey + " moved from version " + changes.getExpectedVersion() + " to " + currentVersion);
+				return false;
+			}
+
+			//Copies, so nothing the caller does later changes what's stored
+			Map<Key, Entity> puts = new LinkedHashMap<Key, Entity>();
+			for (Entity entity : changes.getUpdateEntities()) {
+				puts.put(entity.getKey(), copy(entity));
+			}
+			List<Entity> toPut = new ArrayList<Entity>(puts.values());
+			ListCommitter.bumpVersion(currentListEntity == null ? null : copy(currentListEntity), listKey, toPut);
+
+			Set<Key> deletes = new LinkedHashSet<Key>(changes.getDeleteKeys());
+			for (Key tombstoneKey : CascadeDelete.tombstones(toPut)) {
+				for (Entity under : under(tombstoneKey).values()) {
+					if (!under.getKey().equals(tombstoneKey) && !puts.containsKey(under.getKey())) {
+						deletes.add(under.getKey());
+					}
+				}
+			}//foreach tombstone
+
+			append(commitRecord(listKey.getParent().getName(), toPut, deletes));
+			apply(toPut, deletes);
+			SyncTimer.count(SyncTimer.ENTITIES_PUT, toPut.size());
+			SyncTimer.count(SyncTimer.KEYS_DELETED, deletes.size());
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}//commit
+
+
+
+	@Override
+	public String allocateId() {
+		return allocateIds(1).get(0);
+	}//allocateId
+
+
+
+	/**
+	 * One record for all of them, with the last id
+	 */
+	@Override
+	public List<String> allocateIds(int count) {
+		lock.writeLock().lock();
+		try {
+			long last = lastId + count;
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(ID);
+			out.writeLong(last);
+			out.close();
+			append(bytes.toByteArray());
+			List<String> rv = new ArrayList<String>(count);
+			for (long id = lastId + 1; id <= last; id++) {
+				rv.add(ID_PREFIX + id);
+			}
+			lastId = last;
+			return rv;
+		} catch (IOException e) {
+			//Only writing to memory
+			throw new IllegalStateException(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}//allocateIds
+
+
+
+	private static byte[] commitRecord(String userEmail, Collection<Entity> puts, Collection<Key> deletes) {
+		Key userKey = ListeyDataOneUser.getEntityKey(userEmail);
+		List<Entity> deleted = new ArrayList<Entity>();
+		for (Key key : deletes) {
+			deleted.add(new Entity(key));
+		}
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(COMMIT);
+			out.writeUTF(userEmail);
+			writeBytes(out, ListBlobs.encode(userKey, puts));
+			writeBytes(out, ListBlobs.encode(userKey, deleted));
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			//Only writing to memory
+			throw new IllegalStateException(e);
+		}
+	}//commitRecord
+
+
+
+	private static void writeBytes(DataOutputStream out, byte[] data) throws IOException {
+		out.writeInt(data.length);
+		out.write(data);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] data = new byte[in.readInt()];
+		in.readFully(data);
+		return data;
+	}
+
+
+
+	private static Entity copy(Entity entity) {
+		Entity rv = new Entity(entity.getKey());
+		rv.setPropertiesFrom(entity);
+		return rv;
+	}//copy
+
+
+
+	private static int crc(byte[] body) {
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		return (int) crc.getValue();
+	}//crc
+
+
+
+	/**
+	 * @return the key's path from the root, in a form where everything under a key starts with the key's path
+	 */
+	static String path(Key key) {
+		StringBuilder rv = new StringBuilder();
+		appendPath(rv, key);
+		return rv.toString();
+	}//path
+
+	private static void appendPath(StringBuilder rv, Key key) {
+		if (key.getParent() != null) {
+			appendPath(rv, key.getParent());
+		}
+		rv.append(key.getKind()).append('\u0000');
+		if (key.getName() != null) {
+			rv.append('s').append(key.getName());
+		}
+		else {
+			rv.append('n').append(key.getId());
+		}
+		rv.append('\u0001');
+	}//appendPath
+}//LogListeyStore
@@ -0,0 +1,77 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * ChangeNotifier shared by all the instances through memcache.
+ *
+ * The sequence number is a memcache counter, and each channel's entry holds the sequence number
+ * of its last publish.  Waiters poll their channels every POLL_MILLIS.  If the counter
+ * gets evicted it restarts from the current time in millis, which is always ahead of the old
+ * value as long as we do fewer than one publish per millisecond on average, so cursors never go backwards.
+ *
+ * @author David
+ *
+ */
+public class MemcacheChangeNotifier implements ChangeNotifier {
+	public static final String NAMESPACE = "changeNotifier";
+	public static final long POLL_MILLIS = 1000;
+	private static final String SEQUENCE_KEY = "sequence";
+
+	private MemcacheService memcache = MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+
+
+
+	@Override
+	public void publish(Collection<String> channels) {
+		if (channels.isEmpty()) return;
+		Long sequence = memcache.increment(SEQUENCE_KEY, 1, System.currentTimeMillis());
+		Map<String, Long> channelSequences = new HashMap<String, Long>();
+		for (String channel : channels) {
+			channelSequences.put(channel, sequence);
+		}
+		memcache.putAll(channelSequences);
+	}//publish
+
+
+
+	@Override
+	public long currentCursor() {
+		//Incrementing by 0 reads it, or starts it if it isn't there
+		return memcache.increment(SEQUENCE_KEY, 0, System.currentTimeMillis());
+	}//currentCursor
+
+
+
+	@Override
+	public Changes waitForChanges(Set<String> watched, long cursor, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (true) {
+			//Read the sequence first, so anything published after it is seen by the next wait
+			long sequence = currentCursor();
+			Set<String> changed = new HashSet<String>();
+			for (Map.Entry<String, Object> entry : memcache.getAll(watched).entrySet()) {
+				Long channelSequence = (Long) entry.getValue();
+				if (channelSequence != null && channelSequence > cursor) {
+					changed.add(entry.getKey());
+				}
+			}//foreach watched channel in memcache
+
+			long remaining = deadline - System.currentTimeMillis();
+			if (!changed.isEmpty() || remaining <= 0) {
+				return new Changes(changed, sequence);
+			}
+			Thread.sleep(Math.min(remaining, POLL_MILLIS));
+		}//while true
+	}//waitForChanges
+}//MemcacheChangeNotifier
@@ -0,0 +1,36 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.util.Collection;
+import java.util.Map;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * SnapshotStore in memcache, shared by all the instances.
+ *
+ * @author David
+ *
+ */
+public class MemcacheSnapshotStore implements SnapshotStore {
+	public static final String NAMESPACE = "snapshotCache";
+
+	private MemcacheService memcache = MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+
+
+
+	@Override
+	public Map<String, Object> getAll(Collection<String> keys) {
+		return memcache.getAll(keys);
+	}//getAll
+
+
+
+	@Override
+	public void putAll(Map<String, Object> values) {
+		memcache.putAll(values);
+	}//putAll
+}//MemcacheSnapshotStore
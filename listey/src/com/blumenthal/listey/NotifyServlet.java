@@ -0,0 +1,125 @@
+package com.blumenthal.listey;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.users.User;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Long-poll endpoint that tells a client when a list it can see changed, so it only has to
+ * sync when something actually happened instead of polling /ajax.
+ *
+ * Parameters:
+ *   cursor - cursor from the previous response.  Leave it out to just get the current cursor
+ *            back right away; do that before the client's sync so nothing is missed in between.
+ *   timeout - optional, seconds to hold the request open (default DEFAULT_TIMEOUT_SECONDS, max MAX_TIMEOUT_SECONDS)
+ *
+ * Response:
+   {
+        "cursor" : "1234",
+        "changed" : [{"owner" : "<OWNER_EMAIL>", "listId" : "<uniqueId>"}, ...],
+        "listsChanged" : true //only if lists were shared with or unshared from this user
+   }
+ * An empty "changed" just means the timeout was reached, and the client should poll again.
+ *
+ * This is plain long-polling rather than server-sent events, because App Engine buffers the
+ * whole response before sending it.
+ *
+ * @author David
+ *
+ */
+
+@SuppressWarnings("serial")
+public class NotifyServlet extends HttpServlet {
+	private static final Logger log = Logger.getLogger(NotifyServlet.class.getName());
+
+	public static final String CURSOR = "cursor";
+	public static final String TIMEOUT = "timeout";
+	public static final String CHANGED = "changed";
+	public static final String LISTS_CHANGED = "listsChanged";
+	public static final int DEFAULT_TIMEOUT_SECONDS = 25;
+	//App Engine kills requests at 60s
+	public static final int MAX_TIMEOUT_SECONDS = 50;
+
+	@Override
+	public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		UserService userService = UserServiceFactory.getUserService();
+		User user = userService.getCurrentUser();
+
+		resp.setContentType("text/plain");
+		resp.setHeader("Cache-Control", "no-cache");
+		if (user == null) {
+			resp.setStatus(403);//unauthorized
+			log.info("doGet: no user defined");
+			resp.getWriter().print("{}");
+			return;
+		}
+
+		ChangeNotifier notifier = ChangeNotifiers.get();
+		JsonObject rv = new JsonObject();
+		JsonArray changedLists = new JsonArray();
+		rv.add(CHANGED, changedLists);
+
+		String cursorString = req.getParameter(CURSOR);
+		Long cursor = null;
+		try {
+			if (cursorString != null) cursor = Long.valueOf(cursorString);
+		} catch (NumberFormatException e) {
+			log.info("doGet: bad cursor " + cursorString + ", starting over");
+		}
+
+		if (cursor == null) {
+			rv.addProperty(CURSOR, Long.toString(notifier.currentCursor()));
+		}
+		else {
+			int timeoutSeconds = DEFAULT_TIMEOUT_SECONDS;
+			try {
+				if (req.getParameter(TIMEOUT) != null) {
+					timeoutSeconds = Math.max(0, Math.min(MAX_TIMEOUT_SECONDS, Integer.parseInt(req.getParameter(TIMEOUT))));
+				}
+			} catch (NumberFormatException e) {
+				//just use the default
+			}
+
+			DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+			Map<String, String[]> watched = ChangeNotifiers.watchChannels(datastore, user.getEmail());
+			ChangeNotifier.Changes changes;
+			try {
+				changes = notifier.waitForChanges(watched.keySet(), cursor, timeoutSeconds * 1000L);
+			} catch (InterruptedException e) {
+				//Shutting down, let the client come back right away with the same cursor
+				Thread.currentThread().interrupt();
+				changes = new ChangeNotifier.Changes(Collections.<String>emptySet(), cursor);
+			}
+
+			for (String channel : changes.getChangedChannels()) {
+				String[] ownerAndList = watched.get(channel);
+				if (ownerAndList == null) {
+					rv.addProperty(LISTS_CHANGED, true);
+				}
+				else {
+					JsonObject changedList = new JsonObject();
+					changedList.addProperty(ListSyncServlet.OWNER, ownerAndList[0]);
+					changedList.addProperty(ListSyncServlet.LIST_ID, ownerAndList[1]);
+					changedLists.add(changedList);
+				}
+			}//foreach changed channel
+			rv.addProperty(CURSOR, Long.toString(changes.getCursor()));
+			log.info("doGet: " + user.getEmail() + " watching " + watched.size() + " channels, " + changes.getChangedChannels().size() + " changed");
+		}
+
+		resp.getWriter().print(rv.toString());
+	}//doGet
+}//NotifyServlet
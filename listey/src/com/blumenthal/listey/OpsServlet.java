@@ -0,0 +1,433 @@
+package com.blumenthal.listey;
+
+import static com.blumenthal.listey.JsonFieldNameConstants.TEMP_IDS;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.users.User;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+
+/**
+ * Applies a batch of small typed changes (see SyncOp) straight to the entities they touch,
+ * instead of merging the whole tree like ListeyServlet does.  The work is proportional to the
+ * number of ops, not to how much data the user has.
+ *
+ * Each op is last-writer-wins against the node's lastUpdate, the same way compareAndUpdate
+ * decides: the op is applied unless the server's lastUpdate is newer.  Ops are grouped by list,
+ * and each list is committed in its own (single entity group) transaction.
+ *
+ * The data is the SyncOp JSON, either in the "content" parameter or as an application/json body.
+ * Same as ListeyServlet, the UserRateLimiter can turn the batch away with a 413 or a 429 before
+ * it's parsed, and once it's parsed the lists are committed during one turn at the SyncGate (a 503
+ * with a Retry-After if there isn't one).
+ *
+ * Response:
+   {
+        "userData" : {<SEE ListeyDataMultipleUsers, but only the lists and items the ops touched>},
+        "tempIds" : {":5" : "7:1234", ...},
+        "rejected" : [<index of each op that wasn't applied>, ...]
+   }
+ * Nodes where the server's version won come back with changedOnServer set, so the client can take them.
+ *
+ * @author David
+ *
+ */
+
+@SuppressWarnings("serial")
+public class OpsServlet extends HttpServlet {
+	private static final Logger log = Logger.getLogger(OpsServlet.class.getName());
+
+	public static final String REJECTED = "rejected";
+
+	@Override
+	public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException{
+		UserService userService = UserServiceFactory.getUserService();
+        User user = userService.getCurrentUser();
+
+        SyncIO io = new SyncIO(req, resp);
+        boolean jsonBody = SyncIO.hasJsonBody(req);
+        resp.setContentType("text/plain");
+
+        if (user == null) {
+        	resp.setStatus(403);//unauthorized
+        	log.info("doPost: no user defined");
+        	writeResponse(io, "{}");
+        	return;
+        }
+        if (SyncIO.isRequestGzipped(req) && !jsonBody) {
+        	resp.setStatus(415);//unsupported media type, form parameters can't be gzipped
+        	log.info("doPost: gzipped request body must be " + SyncIO.JSON_CONTENT_TYPE);
+        	return;
+        }
+        //Turn away anything too big before any of it is read
+        UserRateLimiter limiter = UserRateLimiter.get();
+        if (!limiter.checkContentLength(req, resp)) {
+        	return;
+        }
+        io.setMaxRequestBytes(limiter.getMaxRequestBytes());
+        String jsonString = jsonBody ? null : req.getParameter("content");
+        if (jsonString != null && jsonString.length() > limiter.getMaxRequestBytes()) {
+        	limiter.rejectTooLarge(resp, jsonString.length() + " characters of content");
+        	return;
+        }
+        if (!jsonBody && (jsonString == null || jsonString.length() == 0)) {
+        	resp.setStatus(400);
+        	log.info("doPost: missing content");
+        	writeResponse(io, "{}");
+        	return;
+        }
+        int retryAfterSeconds = limiter.enter(user.getEmail());
+        if (retryAfterSeconds > 0) {
+        	limiter.reject(resp, retryAfterSeconds);
+        	return;
+        }
+
+        Gson gson = ListeyDataMultipleUsers.getGson();
+        Set<Integer> rejected = new TreeSet<Integer>();
+        DataStoreUniqueId uniqueIdCreator = new DataStoreUniqueId();
+        ListeyDataMultipleUsers affected = new ListeyDataMultipleUsers();
+        try {
+        	SyncOp.Batch batch;
+        	try {
+        		batch = jsonBody ? gson.fromJson(io.openRequestReader(), SyncOp.Batch.class)
+        				: gson.fromJson(jsonString, SyncOp.Batch.class);
+        	} catch (JsonParseException e) {
+        		//Gson wraps the reader's exceptions
+        		if (!(e.getCause() instanceof UserRateLimiter.TooLargeException)) throw e;
+        		limiter.rejectTooLarge(resp, "at least " + io.getRequestDataBytes() + " bytes");
+        		return;
+        	}
+        	//An empty body, or {} with no ops
+        	if (batch == null || batch.ops == null) {
+        		resp.setStatus(400);
+        		log.info("doPost: no ops");
+        		writeResponse(io, "{}");
+        		return;
+        	}
+        	log.info("doPost: User=" + user.getEmail() + " " + batch.ops.size() + " ops");
+
+        	//Group the ops by list, keeping them in order within each list
+        	Map<String, List<SyncOp>> opsByList = new LinkedHashMap<String, List<SyncOp>>();
+        	for (int i=0; i<batch.ops.size(); i++) {
+        		SyncOp op = batch.ops.get(i);
+        		if (op == null || !op.isValid()) {
+        			log.info("doPost: rejecting invalid op " + i + ": " + op);
+        			rejected.add(i);
+        			continue;
+        		}
+        		op.index = i;
+        		String channel = ChangeNotifiers.listChannel(op.owner, op.listId);
+        		List<SyncOp> listOps = opsByList.get(channel);
+        		if (listOps == null) {
+        			listOps = new ArrayList<SyncOp>();
+        			opsByList.put(channel, listOps);
+        		}
+        		listOps.add(op);
+        	}//foreach op
+
+        	DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        	List<String> addedIds = new ArrayList<String>();
+        	for (List<SyncOp> listOps : opsByList.values()) {
+        		for (SyncOp op : listOps) {
+        			if (op.op == SyncOp.OpType.ADD) addedIds.add(op.itemId);
+        		}
+        	}
+        	uniqueIdCreator.reserveFor(addedIds);
+        	SyncGate gate = SyncGate.get();
+        	if (!gate.enter()) {
+        		gate.reject(resp);
+        		return;
+        	}
+        	try {
+        		for (List<SyncOp> listOps : opsByList.values()) {
+        			applyToList(datastore, user.getEmail(), listOps, uniqueIdCreator, affected, rejected);
+        		}
+        	}
+        	finally {
+        		gate.exit();
+        	}
+        }
+        finally {
+        	limiter.exit(user.getEmail());
+        }
+
+        JsonObject rv = gson.toJsonTree(affected).getAsJsonObject();
+        rv.add(TEMP_IDS, gson.toJsonTree(uniqueIdCreator.getTempToPermanentIds()));
+        rv.add(REJECTED, gson.toJsonTree(rejected));
+        Writer out = io.openResponseWriter();
+        gson.toJson(rv, out);
+        io.finish("doPost");
+	}//doPost
+
+
+
+	/**
+	 * Apply the ops for one list in a transaction, retrying on contention.
+	 * @param datastore
+	 * @param userEmail logged in user
+	 * @param listOps ops that are all on the same list
+	 * @param uniqueIdCreator
+	 * @param affected the list and items the ops touched get added to this
+	 * @param rejected index of each op that wasn't applied gets added to this
+	 */
+	public static void applyToList(DatastoreService datastore, String userEmail, List<SyncOp> listOps,
+			DataStoreUniqueId uniqueIdCreator, ListeyDataMultipleUsers affected, Set<Integer> rejected) {
+		String owner = listOps.get(0).owner;
+		String listId = listOps.get(0).listId;
+		Key listKey = ListeyDataOneUser.getListEntityKey(owner, listId);
+		int retries=10;
+		while (true) {
+			Transaction txn = datastore.beginTransaction();
+			try {
+				if (!owner.equals(userEmail) && !ListSyncServlet.hasPrivOnList(datastore, txn, owner, listId, userEmail)) {
+					log.info("applyToList: " + userEmail + " has no privs on " + owner + " list " + listId);
+					rejectAll(listOps, rejected);
+					return;
+				}
+				ListInfo list;
+				Entity listEntity;
+				try {
+					listEntity = datastore.get(txn, listKey);
+					list = new ListInfo(listEntity);
+				} catch (EntityNotFoundException e) {
+					log.info("applyToList: list " + owner + "/" + listId + " not found");
+					rejectAll(listOps, rejected);
+					return;
+				}
+
+				//Load just the items the ops are on.  Adding needs all of them, to check for duplicate names.
+				Map<String, ItemInfo> items = new HashMap<String, ItemInfo>();
+				boolean anyAdds = false;
+				List<Key> itemKeys = new ArrayList<Key>();
+				for (SyncOp op : listOps) {
+					if (op.op == SyncOp.OpType.ADD) {
+						anyAdds = true;
+					}
+					else if (op.itemId != null && !DataStoreUniqueId.isTemporaryId(op.itemId)) {
+						itemKeys.add(KeyFactory.createKey(listKey, ItemInfo.KIND, op.itemId));
+					}
+				}//foreach op
+				//A list stored as a blob has no item entities to query, so they all come out of the blob
+				List<Entity> blobChildren = ListBlobs.isBlobList(listEntity) ? ListBlobs.getChildren(datastore, txn, listKey) : null;
+				if (blobChildren != null) {
+					for (Entity e : blobChildren) {
+						if (e.getKind().equals(ItemInfo.KIND) && (anyAdds || itemKeys.contains(e.getKey()))) {
+							items.put(e.getKey().getName(), new ItemInfo(e));
+						}
+					}
+				}
+				else if (anyAdds) {
+					Query q = new Query(ItemInfo.KIND).setAncestor(listKey);
+					for (Entity e : datastore.prepare(txn, q).asIterable()) {
+						items.put(e.getKey().getName(), new ItemInfo(e));
+					}
+				}
+				else if (!itemKeys.isEmpty()) {
+					for (Entity e : datastore.get(txn, itemKeys).values()) {
+						items.put(e.getKey().getName(), new ItemInfo(e));
+					}
+				}
+
+				Set<TimeStampedNode> dirty = new LinkedHashSet<TimeStampedNode>();
+				Set<ItemInfo> touchedItems = new LinkedHashSet<ItemInfo>();
+				//Ops never delete entities, only mark them deleted; CascadeDelete gets what's under them after the commit
+				List<Key> deleteKeys = new ArrayList<Key>();
+				List<Integer> rejectedHere = new ArrayList<Integer>();
+				for (SyncOp op : listOps) {
+					if (!applyOp(op, listKey, list, items, uniqueIdCreator, dirty, touchedItems)) {
+						rejectedHere.add(op.index);
+					}
+				}//foreach op
+
+				List<Entity> updateEntities = new ArrayList<Entity>();
+				for (TimeStampedNode node : dirty) {
+					updateEntities.add(node == list ? list.toEntity(uniqueIdCreator, listKey.getParent())
+							: node.toEntity(uniqueIdCreator, listKey));
+				}
+				log.info("applyToList: " + owner + "/" + listId + " updating " + updateEntities.size() + " entities, deleting " + deleteKeys.size() + " entities");
+				TimeStampedNode.stampServerUpdate(updateEntities, System.currentTimeMillis());
+				long oldVersion = list.getVersion();
+				if (!updateEntities.isEmpty() || !deleteKeys.isEmpty()) {
+					list.setVersion(ListCommitter.bumpVersion(listEntity, listKey, updateEntities));
+				}
+				ListBlobs.write(datastore, txn, listEntity, listKey, updateEntities, deleteKeys);
+				List<Key> cascade = CascadeDelete.schedule(txn, updateEntities);
+				txn.commit();
+				//Snapshot first, so deleting under tombstones applies on top of this commit
+				SnapshotCache cache = SnapshotCache.get();
+				if (cache != null) {
+					cache.committed(listKey, false, oldVersion, updateEntities, deleteKeys);
+				}
+				CascadeDelete.deleteNow(datastore, cascade);
+				ChangeNotifiers.get().publish(ChangeNotifiers.channelsFor(updateEntities, deleteKeys));
+
+				rejected.addAll(rejectedHere);
+				addAffected(affected, owner, list, touchedItems);
+				return;
+			}
+			catch (ConcurrentModificationException e) {
+				if (retries == 0) {
+					throw e;
+				}
+				// Allow retry to occur
+				--retries;
+			} finally {
+				if (txn.isActive()) {
+					txn.rollback();
+				}
+			}
+		}//while true
+	}//applyToList
+
+
+
+	/**
+	 * Apply one op to the in-memory list/items, last writer wins.
+	 * @return false if the op was rejected
+	 */
+	private static boolean applyOp(SyncOp op, Key listKey, ListInfo list, Map<String, ItemInfo> items,
+			DataStoreUniqueId uniqueIdCreator, Set<TimeStampedNode> dirty, Set<ItemInfo> touchedItems) {
+		//Op on the list itself
+		if (op.itemId == null) {
+			if (list.getLastUpdate() > op.lastUpdate) {
+				list.setChangedOnServer(true);
+				return false;
+			}
+			if (op.op == SyncOp.OpType.RENAME) {
+				list.setName(op.name);
+			}
+			else {//DELETE
+				list.setStatus(TimeStampedNode.Status.DELETED);
+			}
+			list.setLastUpdate(op.lastUpdate);
+			dirty.add(list);
+			return true;
+		}//list op
+
+		String itemId = op.itemId;
+		if (DataStoreUniqueId.isTemporaryId(itemId) && uniqueIdCreator.getTempToPermanentIds().containsKey(itemId)) {
+			//Added earlier in this batch (or on an earlier try of this transaction)
+			itemId = uniqueIdCreator.getTempToPermanentIds().get(itemId);
+		}
+		ItemInfo item = items.get(itemId);
+
+		if (op.op == SyncOp.OpType.ADD) {
+			if (item != null) {
+				//Already added, must be a resend
+				touchedItems.add(item);
+				return true;
+			}
+			for (ItemInfo peer : items.values()) {
+				if (!peer.getStatus().equals(TimeStampedNode.Status.DELETED) && op.name.equals(peer.getName())) {
+					//Same as compareAndUpdate, assume it's a double-send from the client
+					log.warning("applyOp: new item matched existing server item with same name (" + peer.getName() + "), skipping");
+					peer.setChangedOnServer(true);
+					touchedItems.add(peer);
+					return false;
+				}
+			}//foreach peer
+			item = new ItemInfo();
+			item.setUniqueId(uniqueIdCreator.ensurePermanentId(itemId));
+			item.setName(op.name);
+			if (op.count != null) item.setCount(op.count);
+			item.setLastUpdate(op.lastUpdate);
+			items.put(item.getUniqueId(), item);
+			dirty.add(item);
+			touchedItems.add(item);
+			return true;
+		}//ADD
+
+		if (item == null) {
+			log.info("applyOp: " + op + " item not found");
+			return false;
+		}
+		touchedItems.add(item);
+		if (item.getLastUpdate() > op.lastUpdate) {
+			//Server is newer, send it back instead
+			item.setChangedOnServer(true);
+			return false;
+		}
+		switch (op.op) {
+		case CHECK:
+			item.setStatus(TimeStampedNode.Status.COMPLETED);
+			break;
+		case UNCHECK:
+			item.setStatus(TimeStampedNode.Status.ACTIVE);
+			break;
+		case RENAME:
+			item.setName(op.name);
+			break;
+		case COUNT:
+			item.setCount(op.count);
+			break;
+		case DELETE:
+			item.setStatus(TimeStampedNode.Status.DELETED);
+			break;
+		default:
+			return false;
+		}
+		item.setLastUpdate(op.lastUpdate);
+		dirty.add(item);
+		return true;
+	}//applyOp
+
+
+
+	private static void rejectAll(List<SyncOp> listOps, Set<Integer> rejected) {
+		for (SyncOp op : listOps) {
+			rejected.add(op.index);
+		}
+	}//rejectAll
+
+
+
+	/**
+	 * Put the list header and the touched items into the response
+	 */
+	private static void addAffected(ListeyDataMultipleUsers affected, String owner, ListInfo list, Set<ItemInfo> touchedItems) {
+		ListeyDataOneUser ownerData = affected.userData.get(owner);
+		if (ownerData == null) {
+			ownerData = new ListeyDataOneUser();
+			ownerData.setUniqueId(owner);
+			affected.userData.put(owner, ownerData);
+		}
+		for (ItemInfo item : touchedItems) {
+			list.getItems().put(item.getUniqueId(), item);
+		}
+		ownerData.lists.put(list.getUniqueId(), list);
+	}//addAffected
+
+
+
+	private static void writeResponse(SyncIO io, String body) throws IOException {
+		io.openResponseWriter().write(body);
+		io.finish("doPost");
+	}//writeResponse
+}//OpsServlet
@@ -7,6 +7,9 @@
 package com.blumenthal.listey;
 
 import static com.blumenthal.listey.JsonFieldNameConstants.*;
+
+import java.security.MessageDigest;
+
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
 
@@ -33,6 +36,7 @@ public class OtherUserPrivOnList extends TimeStampedNode{
 		userId = (String) entity.getProperty(USER_ID);
 		lastUpdate = (Long) entity.getProperty(LAST_UPDATE);
 		priv = OtherUserPriv.valueOf((String) entity.getProperty(PRIV));
+		setServerUpdate((Long) entity.getProperty(SERVER_UPDATE));
 	}//ItemCategoryInfo(Entity)
 	
 	
@@ -71,6 +75,13 @@ public class OtherUserPrivOnList extends TimeStampedNode{
 	}//shallowEquals
 	
 	
+	@Override
+	protected void digestShallowFields(MessageDigest md) {
+		super.digestShallowFields(md);
+		digestValue(md, priv);
+	}//digestShallowFields
+	
+	
 	@Override
 	public TimeStampedNode makeShallowCopy() {
 		OtherUserPrivOnList newObj = new OtherUserPrivOnList();
@@ -81,6 +92,14 @@ public class OtherUserPrivOnList extends TimeStampedNode{
 	}
 	
 	
+	@Override
+	public TimeStampedNode makeCopy() {
+		TimeStampedNode newObj = makeShallowCopy();
+		newObj.setChangedOnServer(getChangedOnServer());
+		return newObj;
+	}//makeCopy
+	
+	
 	
 	/**
 	 * @param other
@@ -110,6 +129,7 @@ public class OtherUserPrivOnList extends TimeStampedNode{
 	 */
 	public void setLastUpdate(Long newLastUpdate) {
 		lastUpdate = newLastUpdate;
+		clearDigest();
 	}
 	
 	
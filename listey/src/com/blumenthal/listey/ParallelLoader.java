@@ -0,0 +1,156 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.datastore.DatastoreService;
+
+/**
+ * Loads a user or one of their lists on another thread, so several loads (a user's own lists,
+ * every list shared with them) can wait on the datastore at the same time instead of one after
+ * the other.
+ *
+ * Loads run on at most maxThreads request threads (ThreadManager, so they can call the
+ * datastore and memcache), started as they're needed and stopped by close().  With maxThreads
+ * of 1 or less, or if request threads can't be made, each load runs right away on the calling
+ * thread, which is what happened before.
+ *
+ * Each load builds its own ListeyDataOneUser as the entities stream in (see
+ * ListeyDataOneUser.fromDatastore), and nothing else touches it until get() hands it to the
+ * calling thread, which merges the lists into its own.
+ *
+ * Settings (system properties, see ListeyConfig):
+ *   listey.load.threads - default 8
+ *
+ * @author David
+ *
+ */
+public class ParallelLoader {
+	private static final Logger log = Logger.getLogger(ParallelLoader.class.getName());
+
+	private static int defaultMaxThreads = ListeyConfig.getInt("load.threads", 8);
+
+	private DatastoreService datastore;
+	private int maxThreads;
+	private ExecutorService executor;
+	private boolean inline;
+
+
+
+	public ParallelLoader(DatastoreService datastore) {
+		this(datastore, getDefaultMaxThreads());
+	}
+
+	public ParallelLoader(DatastoreService datastore, int maxThreads) {
+		this.datastore = datastore;
+		this.maxThreads = maxThreads;
+		this.inline = maxThreads <= 1;
+	}
+
+
+
+	/**
+	 * Start loading the user, or just the list if listUniqueId isn't null, into a new ListeyDataOneUser.
+	 * See ListeyDataOneUser.fromDatastore.
+	 * @return pass to get() for the user
+	 */
+	public Future<ListeyDataOneUser> load(final String userEmail, final String listUniqueId, final boolean includePrivs) {
+		final SyncTimer timer = SyncTimer.current();
+		FutureTask<ListeyDataOneUser> task = new FutureTask<ListeyDataOneUser>(new Callable<ListeyDataOneUser>() {
+			@Override
+			public ListeyDataOneUser call() {
+				//Count the worker's snapshot hits and misses toward the request
+				SyncTimer.attach(timer);
+				try {
+					return ListeyDataOneUser.fromDatastore(datastore, userEmail, listUniqueId, null, includePrivs);
+				} finally {
+					SyncTimer.attach(null);
+				}
+			}
+		});
+
+		if (!inline) {
+			try {
+				if (executor == null) {
+					executor = Executors.newFixedThreadPool(maxThreads, getThreadFactory());
+				}
+				executor.execute(task);
+				return task;
+			} catch (RuntimeException e) {
+				//e.g. not on a request thread, or out of threads
+				log.warning("load: running loads inline: " + e);
+				inline = true;
+			}
+		}//if not inline
+
+		task.run();
+		return task;
+	}//load
+
+
+
+	/**
+	 * Wait for a load
+	 * @param future from load()
+	 * @return the user
+	 */
+	public ListeyDataOneUser get(Future<ListeyDataOneUser> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while loading", e);
+		} catch (ExecutionException e) {
+			//Whatever the load threw, as if it had been called here
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}//get
+
+
+
+	/**
+	 * Stop the threads.  Any loads that haven't been waited for are cancelled.
+	 */
+	public void close() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}//close
+
+
+
+	private static ThreadFactory getThreadFactory() {
+		ThreadFactory rv = ThreadManager.currentRequestThreadFactory();
+		if (rv == null) {
+			throw new IllegalStateException("No request thread factory");
+		}
+		return rv;
+	}//getThreadFactory
+
+
+
+	public static synchronized int getDefaultMaxThreads() {
+		return defaultMaxThreads;
+	}
+
+	/**
+	 * Change how many threads each request loads on, e.g. for tests.  1 loads on the request's thread.
+	 */
+	public static synchronized void setDefaultMaxThreads(int newDefaultMaxThreads) {
+		defaultMaxThreads = newDefaultMaxThreads;
+	}
+}//ParallelLoader
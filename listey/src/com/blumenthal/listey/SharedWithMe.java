@@ -0,0 +1,447 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import static com.blumenthal.listey.JsonFieldNameConstants.PRIV;
+import static com.blumenthal.listey.JsonFieldNameConstants.USER_ID;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+/**
+ * Index of the lists shared with each user, so a sync finds them with one get instead of a
+ * global query on otherUserPrivOnList.userId (which is eventually consistent, so a list that
+ * was just shared could be missing).
+ *
+ * Each user someone shared a list with has a sharedWithMe entity, in its own entity group
+ * (like syncHorizons), with the keys of those lists and the priv on each.  Whatever writes or
+ * deletes privs calls update in the same transaction, which has to be a cross-group one (see
+ * beginTransaction), so the index always matches the privs.  A transaction can only take in
+ * so many entity groups, so past XG_RECIPIENTS recipients the rest are left to a task that
+ * reindexes them from the priv entities, same as CascadeDelete.
+ *
+ * The index only starts being read once it's been built for the data that was already there:
+ * SharedWithMeServlet rebuilds it from every priv and then marks it built.  Until then the
+ * query is still used.
+ *
+ * @author David
+ *
+ */
+public class SharedWithMe {
+	private static final Logger log = Logger.getLogger(SharedWithMe.class.getName());
+
+	public static final String KIND = "sharedWithMe";
+	public static final String LIST_KEYS = "listKeys";
+	public static final String PRIVS = "privs";
+	public static final String BUILT_KIND = "sharedWithMeBuilt";
+	public static final String URL = "/tasks/sharedWithMe";
+	public static final String KEY = "key";
+
+	//A cross-group transaction can span 5 entity groups, and one of them is the list's
+	public static final int XG_RECIPIENTS = 4;
+	//How many keys each round trip of a rebuild gets
+	public static final int PAGE_SIZE = 100;
+
+	private static Boolean built;
+
+
+
+	public static Key getKey(String userEmail) {
+		return KeyFactory.createKey(KIND, userEmail);
+	}
+
+	private static Key getBuiltKey() {
+		return KeyFactory.createKey(BUILT_KIND, KIND);
+	}
+
+
+
+	/**
+	 * Start a transaction that can write a list and the index entries for privs on it.
+	 */
+	public static Transaction beginTransaction(DatastoreService datastore) {
+		return datastore.beginTransaction(TransactionOptions.Builder.withXG(true));
+	}//beginTransaction
+
+
+
+	/**
+	 * Start a transaction for a commit that's known up front to write updateEntities and delete
+	 * deleteKeys.  It's only cross-group if that changes privs, since otherwise update has no
+	 * index entries to write outside the list's entity group.
+	 */
+	public static Transaction beginTransaction(DatastoreService datastore, Collection<Entity> updateEntities, Collection<Key> deleteKeys) {
+		return changesPrivs(updateEntities, deleteKeys) ? beginTransaction(datastore) : datastore.beginTransaction();
+	}//beginTransaction
+
+
+
+	/**
+	 * @return true if any of the entities or keys are privs
+	 */
+	public static boolean changesPrivs(Collection<Entity> updateEntities, Collection<Key> deleteKeys) {
+		for (Entity entity : updateEntities) {
+			if (entity.getKind().equals(OtherUserPrivOnList.KIND)) return true;
+		}
+		for (Key key : deleteKeys) {
+			if (key.getKind().equals(OtherUserPrivOnList.KIND)) return true;
+		}
+		return false;
+	}//changesPrivs
+
+
+
+	/**
+	 * @return the keys of other users' lists that have been shared with the user
+	 */
+	public static List<Key> getSharedListKeys(DatastoreService datastore, String userEmail) {
+		List<Key> rv = new ArrayList<Key>();
+		if (!isBuilt(datastore)) {
+			Query q = new Query(OtherUserPrivOnList.KIND)
+				.setFilter(new FilterPredicate(USER_ID, Query.FilterOperator.EQUAL, userEmail))
+				.setKeysOnly();
+			for (Entity privEntity : datastore.prepare(q).asIterable()) {
+				rv.add(privEntity.getKey().getParent());
+			}
+			return rv;
+		}
+		try {
+			rv.addAll(getGrants(datastore.get(getKey(userEmail))).keySet());
+		} catch (EntityNotFoundException e) {
+			//nothing shared with them
+		}
+		return rv;
+	}//getSharedListKeys
+
+
+
+	/**
+	 * @return list key -> priv, in the order they were granted
+	 */
+	public static Map<Key, String> getGrants(Entity index) {
+		Map<Key, String> rv = new LinkedHashMap<Key, String>();
+		@SuppressWarnings("unchecked")
+		List<Key> listKeys = (List<Key>) index.getProperty(LIST_KEYS);
+		@SuppressWarnings("unchecked")
+		List<String> privs = (List<String>) index.getProperty(PRIVS);
+		if (listKeys != null) {
+			for (int i = 0; i < listKeys.size(); i++) {
+				rv.put(listKeys.get(i), privs.get(i));
+			}
+		}
+		return rv;
+	}//getGrants
+
+
+
+	private static void setGrants(Entity index, Map<Key, String> grants) {
+		index.setUnindexedProperty(LIST_KEYS, new ArrayList<Key>(grants.keySet()));
+		index.setUnindexedProperty(PRIVS, new ArrayList<String>(grants.values()));
+	}//setGrants
+
+
+
+	private static Entity getIndex(DatastoreService datastore, Transaction txn, String userEmail) {
+		try {
+			return datastore.get(txn, getKey(userEmail));
+		} catch (EntityNotFoundException e) {
+			return new Entity(getKey(userEmail));
+		}
+	}//getIndex
+
+
+
+	/**
+	 * Bring the index in line with the privs a commit writes and deletes.  Call in the commit's
+	 * transaction (from beginTransaction), just before committing.
+	 * @param datastore
+	 * @param txn
+	 * @param updateEntities what the commit is writing
+	 * @param deleteKeys what the commit is deleting
+	 * @return privs that weren't indexed or queued, to pass to reindexNow after the commit
+	 */
+	public static List<Key> update(DatastoreService datastore, Transaction txn, Collection<Entity> updateEntities, Collection<Key> deleteKeys) {
+		//Recipient -> list key -> new priv, or null if it was removed
+		Map<String, Map<Key, String>> changes = new LinkedHashMap<String, Map<Key, String>>();
+		for (Entity entity : updateEntities) {
+			if (entity.getKind().equals(OtherUserPrivOnList.KIND)) {
+				addChange(changes, entity.getKey(), (String) entity.getProperty(PRIV));
+			}
+		}
+		for (Key key : deleteKeys) {
+			if (key.getKind().equals(OtherUserPrivOnList.KIND)) {
+				addChange(changes, key, null);
+			}
+		}
+
+		List<Key> later = new ArrayList<Key>();
+		int recipients = 0;
+		for (Map.Entry<String, Map<Key, String>> entry : changes.entrySet()) {
+			String recipient = entry.getKey();
+			if (++recipients > XG_RECIPIENTS) {
+				for (Key listKey : entry.getValue().keySet()) {
+					later.add(getPrivKey(listKey, recipient));
+				}
+				continue;
+			}
+			Entity index = getIndex(datastore, txn, recipient);
+			Map<Key, String> grants = getGrants(index);
+			boolean changed = false;
+			for (Map.Entry<Key, String> change : entry.getValue().entrySet()) {
+				changed |= setGrant(grants, change.getKey(), change.getValue());
+			}
+			if (changed) {
+				setGrants(index, grants);
+				datastore.put(txn, index);
+			}
+		}//foreach recipient
+		return schedule(txn, later);
+	}//update
+
+
+
+	private static void addChange(Map<String, Map<Key, String>> changes, Key privKey, String priv) {
+		Map<Key, String> recipientChanges = changes.get(privKey.getName());
+		if (recipientChanges == null) {
+			recipientChanges = new LinkedHashMap<Key, String>();
+			changes.put(privKey.getName(), recipientChanges);
+		}
+		recipientChanges.put(privKey.getParent(), priv);
+	}//addChange
+
+
+
+	/**
+	 * @param priv the new priv, or null to remove the grant
+	 * @return true if grants changed
+	 */
+	private static boolean setGrant(Map<Key, String> grants, Key listKey, String priv) {
+		if (priv == null) {
+			return grants.remove(listKey) != null;
+		}
+		return !priv.equals(grants.put(listKey, priv));
+	}//setGrant
+
+
+
+	private static Key getPrivKey(Key listKey, String recipient) {
+		return KeyFactory.createKey(listKey, OtherUserPrivOnList.KIND, recipient);
+	}//getPrivKey
+
+
+
+	/**
+	 * Add the task that reindexes the privs update couldn't fit in the transaction.
+	 * @return privs that weren't queued
+	 */
+	private static List<Key> schedule(Transaction txn, List<Key> privKeys) {
+		if (privKeys.isEmpty() || !CascadeDelete.isUseTaskQueue()) return privKeys;
+
+		TaskOptions task = TaskOptions.Builder.withUrl(URL);
+		for (Key key : privKeys) {
+			task.param(KEY, KeyFactory.keyToString(key));
+		}
+		try {
+			QueueFactory.getDefaultQueue().add(txn, task);
+			return new ArrayList<Key>();
+		} catch (RuntimeException e) {
+			log.warning("schedule: couldn't add task for " + privKeys + ", reindexing after the commit instead: " + e);
+			return privKeys;
+		}
+	}//schedule
+
+
+
+	/**
+	 * Reindex the privs update couldn't queue.  Failures are only logged; the next rebuild
+	 * fixes whatever is left.
+	 */
+	public static void reindexNow(DatastoreService datastore, List<Key> privKeys) {
+		for (Key key : privKeys) {
+			try {
+				reindex(datastore, key);
+			} catch (RuntimeException e) {
+				log.warning("reindexNow: couldn't reindex " + key + ": " + e);
+			}
+		}
+	}//reindexNow
+
+
+
+	/**
+	 * Make the recipient's index match the priv entity, in one transaction across the list
+	 * and the index.
+	 * @param datastore
+	 * @param privKey
+	 * @return true if the index had to be changed
+	 */
+	public static boolean reindex(DatastoreService datastore, Key privKey) {
+		int retries = ListCommitter.CONTENTION_RETRIES;
+		while (true) {
+			Transaction txn = beginTransaction(datastore);
+			try {
+				String priv = null;
+				try {
+					priv = (String) datastore.get(txn, privKey).getProperty(PRIV);
+				} catch (EntityNotFoundException e) {
+					//revoked, or the list is gone
+				}
+				Entity index = getIndex(datastore, txn, privKey.getName());
+				Map<Key, String> grants = getGrants(index);
+				if (!setGrant(grants, privKey.getParent(), priv)) return false;
+				setGrants(index, grants);
+				datastore.put(txn, index);
+				txn.commit();
+				return true;
+			}
+			catch (ConcurrentModificationException e) {
+				if (retries == 0) {
+					throw e;
+				}
+				// Allow retry to occur
+				--retries;
+			} finally {
+				if (txn.isActive()) {
+					txn.rollback();
+				}
+			}
+		}//while true
+	}//reindex
+
+
+
+	/** What one rebuild pass (which can be spread over several requests) has done */
+	public static class Rebuild {
+		private int checked;
+		private int fixed;
+
+		private void add(boolean wasFixed) {
+			checked++;
+			if (wasFixed) fixed++;
+		}
+
+		/**
+		 * @return how many grants were looked at
+		 */
+		public int getChecked() {
+			return checked;
+		}
+
+		/**
+		 * @return how many of them the index had wrong
+		 */
+		public int getFixed() {
+			return fixed;
+		}
+	}//Rebuild
+
+
+
+	/**
+	 * Reindex every priv that exists, so grants from before there was an index get added.
+	 * @param datastore
+	 * @param rebuild counts go here
+	 * @param start cursor returned by the last call, or null to start at the beginning
+	 * @param deadline System.currentTimeMillis() to stop at
+	 * @return where to pick up again, or null if every priv was done
+	 */
+	public static Cursor rebuildFromPrivs(DatastoreService datastore, Rebuild rebuild, Cursor start, long deadline) {
+		QueryResultIterator<Entity> privs = scan(datastore, new Query(OtherUserPrivOnList.KIND).setKeysOnly(), start);
+		while (privs.hasNext()) {
+			if (System.currentTimeMillis() >= deadline) {
+				return privs.getCursor();
+			}
+			rebuild.add(reindex(datastore, privs.next().getKey()));
+		}
+		return null;
+	}//rebuildFromPrivs
+
+
+
+	/**
+	 * Reindex every grant in the index, so grants whose priv is gone get removed.
+	 * Same parameters and return as rebuildFromPrivs.
+	 */
+	public static Cursor rebuildFromIndex(DatastoreService datastore, Rebuild rebuild, Cursor start, long deadline) {
+		QueryResultIterator<Entity> indexes = scan(datastore, new Query(KIND), start);
+		while (indexes.hasNext()) {
+			if (System.currentTimeMillis() >= deadline) {
+				return indexes.getCursor();
+			}
+			Entity index = indexes.next();
+			for (Key listKey : getGrants(index).keySet()) {
+				rebuild.add(reindex(datastore, getPrivKey(listKey, index.getKey().getName())));
+			}
+		}//while indexes
+		return null;
+	}//rebuildFromIndex
+
+
+
+	private static QueryResultIterator<Entity> scan(DatastoreService datastore, Query q, Cursor start) {
+		FetchOptions options = FetchOptions.Builder.withChunkSize(PAGE_SIZE);
+		if (start != null) {
+			options.startCursor(start);
+		}
+		return datastore.prepare(q).asQueryResultIterator(options);
+	}//scan
+
+
+
+	/**
+	 * @return true once a rebuild has finished, so the index has every grant
+	 */
+	public static synchronized boolean isBuilt(DatastoreService datastore) {
+		//Not found isn't kept, so this instance sees it as soon as a rebuild finishes anywhere
+		if (built == null) {
+			try {
+				datastore.get(getBuiltKey());
+				built = true;
+			} catch (EntityNotFoundException e) {
+				return false;
+			}
+		}
+		return built;
+	}//isBuilt
+
+
+
+	/**
+	 * Record that a rebuild finished, so the index is used from now on
+	 */
+	public static synchronized void markBuilt(DatastoreService datastore) {
+		datastore.put(new Entity(getBuiltKey()));
+		built = true;
+	}//markBuilt
+
+
+
+	/**
+	 * Override whether the index is used, e.g. for tests.  Null means look for the marker
+	 * markBuilt writes.
+	 */
+	public static synchronized void setBuilt(Boolean newBuilt) {
+		built = newBuilt;
+	}//setBuilt
+}//SharedWithMe
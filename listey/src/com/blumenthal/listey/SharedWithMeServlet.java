@@ -0,0 +1,107 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+/**
+ * Keeps the SharedWithMe index up to date.
+ *
+ * With key parameters, it's a task SharedWithMe.update added for privs that didn't fit in the
+ * commit's transaction, and just reindexes those.  Without, it rebuilds the whole index: first
+ * every priv is reindexed, then every grant already in the index, and then the index is marked
+ * built so syncs start using it.  If it runs out of time it adds a task to carry on from where
+ * it got to.  Run it once (GET is fine) after deploying the index, and again any time to repair it.
+ * It's under /tasks, which web.xml limits to the app's admins (which includes the task queue).
+ *
+ * Parameters:
+ *   key - a priv to reindex, as KeyFactory.keyToString; can be given more than once
+ *   pass - privs or index, which part of the rebuild to carry on with
+ *   cursor - where to carry on from, only set by the task it adds
+ *
+ * @author David
+ *
+ */
+@SuppressWarnings("serial")
+public class SharedWithMeServlet extends HttpServlet {
+	private static final Logger log = Logger.getLogger(SharedWithMeServlet.class.getName());
+
+	public static final String PASS = "pass";
+	public static final String PRIVS = "privs";
+	public static final String INDEX = "index";
+	public static final String CURSOR = "cursor";
+	//Task requests get 10 minutes
+	public static final long MAX_RUN_MILLIS = 8 * 60 * 1000L;
+
+	@Override
+	public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+		String[] keys = req.getParameterValues(SharedWithMe.KEY);
+		if (keys != null) {
+			for (String key : keys) {
+				SharedWithMe.reindex(datastore, KeyFactory.stringToKey(key));
+			}
+			return;
+		}
+
+		String pass = req.getParameter(PASS);
+		if (pass == null) pass = PRIVS;
+		if (!pass.equals(PRIVS) && !pass.equals(INDEX)) {
+			resp.sendError(400, "pass has to be " + PRIVS + " or " + INDEX);
+			return;
+		}
+		String cursorString = req.getParameter(CURSOR);
+		Cursor start = cursorString == null ? null : Cursor.fromWebSafeString(cursorString);
+		long deadline = System.currentTimeMillis() + MAX_RUN_MILLIS;
+
+		SharedWithMe.Rebuild rebuild = new SharedWithMe.Rebuild();
+		Cursor next;
+		String nextPass = pass;
+		if (pass.equals(PRIVS)) {
+			next = SharedWithMe.rebuildFromPrivs(datastore, rebuild, start, deadline);
+			if (next == null) {
+				nextPass = INDEX;
+				next = SharedWithMe.rebuildFromIndex(datastore, rebuild, null, deadline);
+			}
+		}
+		else {
+			next = SharedWithMe.rebuildFromIndex(datastore, rebuild, start, deadline);
+		}
+		if (next != null) {
+			QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withUrl(SharedWithMe.URL)
+					.param(PASS, nextPass).param(CURSOR, next.toWebSafeString()));
+		}
+		else {
+			SharedWithMe.markBuilt(datastore);
+		}
+
+		resp.setContentType("text/plain");
+		resp.setCharacterEncoding(SyncIO.DEFAULT_CHARSET);
+		PrintWriter out = resp.getWriter();
+		String summary = rebuild.getChecked() + " grants checked, " + rebuild.getFixed() + " fixed"
+				+ (next != null ? ", continuing the " + nextPass + " pass in a task" : ", index is built");
+		out.println(summary);
+		log.info("doGet: " + summary);
+	}//doGet
+
+
+
+	@Override
+	public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		doGet(req, resp);
+	}//doPost
+}//SharedWithMeServlet
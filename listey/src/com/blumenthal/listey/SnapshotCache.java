@@ -0,0 +1,361 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+
+/**
+ * Read-through cache of the entities under each list, so loading a user doesn't have to
+ * query every item of every list every time.
+ *
+ * Each list's snapshot is everything under the list entity (items, categories, item
+ * categories, privs), tagged with the list's version.  Every commit to a list bumps its
+ * version in the same transaction (see ListCommitter.bumpVersion), so a snapshot is only used
+ * if its version is the version of the list entity that's loaded with it, and a stale one can
+ * never be used after somebody else's write, whether or not that write updated the cache.
+ *
+ * Loading a user is one query for just their list entities, then one get for all the
+ * snapshots, and then the lists that missed are loaded the old way, in one ancestor query if
+ * more than one missed.  Loading a shared list is a get of the list entity instead of the query.
+ *
+ * After a commit, the committed changes are applied to the list's snapshot (write-through),
+ * if the snapshot is the one for the version the commit started from; the version check in
+ * the commit's transaction means that's exactly what's in the datastore now.
+ *
+ * Snapshots hold the entities rather than the JSON, since the JSON leaves out the server-side
+ * fields (version, serverUpdate) the merge needs.
+ *
+ * The hit, miss and write-through counts for this instance are at /admin/snapshotStats,
+ * and each request's hits and misses are in its SyncTimer counts.
+ *
+ * Settings (system properties, see ListeyConfig):
+ *   listey.snapshot.enabled - 1 to use it (in memcache), default 0
+ *
+ * @author David
+ *
+ */
+public class SnapshotCache {
+	private static final Logger log = Logger.getLogger(SnapshotCache.class.getName());
+
+	public static final String KEY_PREFIX = "list:";
+
+	private static SnapshotCache instance;
+	private static boolean initialized = false;
+
+	private SnapshotStore store;
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong writeThroughs = new AtomicLong();
+	private AtomicLong errors = new AtomicLong();
+
+
+
+	public SnapshotCache(SnapshotStore store) {
+		this.store = store;
+	}
+
+
+
+	/**
+	 * @return the cache, or null if it's turned off
+	 */
+	public static synchronized SnapshotCache get() {
+		if (!initialized) {
+			initialized = true;
+			if (ListeyConfig.getInt("snapshot.enabled", 0) != 0) {
+				instance = new SnapshotCache(new MemcacheSnapshotStore());
+			}
+		}
+		return instance;
+	}//get
+
+
+
+	/**
+	 * Use a different cache, e.g. for tests, or null to turn it off
+	 */
+	public static synchronized void set(SnapshotCache newCache) {
+		initialized = true;
+		instance = newCache;
+	}//set
+
+
+
+	/** One list's entities as of one version */
+	static class ListSnapshot implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		long version;
+		//Everything under the list entity, not the list entity itself
+		ArrayList<Entity> entities;
+
+		ListSnapshot(long version, ArrayList<Entity> entities) {
+			this.version = version;
+			this.entities = entities;
+		}
+	}//ListSnapshot
+
+
+
+	/**
+	 * Load everything under the user or list key, the same entities an ancestor query on it would give
+	 * (other than the user entity itself, which nothing uses).
+	 * @param datastore
+	 * @param ancestor a user key or a list key
+	 * @return the entities
+	 */
+	public List<Entity> load(DatastoreService datastore, Key ancestor) {
+		//The list entities, which have the current versions
+		List<Entity> listEntities = new ArrayList<Entity>();
+		if (ancestor.getKind().equals(ListInfo.KIND)) {
+			try {
+				listEntities.add(datastore.get(ancestor));
+			} catch (EntityNotFoundException e) {
+				//no list, so nothing under it that anything would use
+			}
+		}
+		else {
+			Query q = new Query(ListInfo.KIND).setAncestor(ancestor);
+			listEntities.addAll(datastore.prepare(q).asList(FetchOptions.Builder.withDefaults()));
+		}
+
+		Map<String, Entity> listsBySnapshotKey = new LinkedHashMap<String, Entity>();
+		for (Entity listEntity : listEntities) {
+			listsBySnapshotKey.put(snapshotKey(listEntity.getKey()), listEntity);
+		}
+		Map<String, Object> snapshots = getSnapshots(listsBySnapshotKey.keySet());
+
+		List<Entity> rv = new ArrayList<Entity>();
+		List<Key> missed = new ArrayList<Key>();
+		for (Map.Entry<String, Entity> entry : listsBySnapshotKey.entrySet()) {
+			ListSnapshot snapshot = (ListSnapshot) snapshots.get(entry.getKey());
+			if (snapshot != null && snapshot.version == ListCommitter.getVersion(entry.getValue())) {
+				rv.add(entry.getValue());
+				rv.addAll(snapshot.entities);
+			}
+			else {
+				missed.add(entry.getValue().getKey());
+			}
+		}//foreach list
+		hits.addAndGet(listEntities.size() - missed.size());
+		misses.addAndGet(missed.size());
+		SyncTimer.count(SyncTimer.SNAPSHOT_HITS, listEntities.size() - missed.size());
+		SyncTimer.count(SyncTimer.SNAPSHOT_MISSES, missed.size());
+		if (missed.isEmpty()) {
+			return rv;
+		}
+
+		//Load the ones that missed, and keep them for next time.  Their versions come from
+		//this query, in case one was committed since the list query.
+		List<Entity> loaded = new ArrayList<Entity>();
+		if (missed.size() == 1) {
+			loaded.addAll(queryAll(datastore, missed.get(0)));
+		}
+		else {
+			for (Entity e : queryAll(datastore, ancestor)) {
+				Key listKey = ListCommitter.listKeyOf(e.getKey());
+				if (listKey != null && missed.contains(listKey)) {
+					loaded.add(e);
+				}
+			}
+		}
+		rv.addAll(loaded);
+		Map<String, Object> loadedSnapshots = groupByList(loaded);
+		if (!loadedSnapshots.isEmpty()) {
+			putAll(loadedSnapshots);
+		}
+		return rv;
+	}//load
+
+
+
+	/**
+	 * Apply a commit to the list's snapshot.  Call after the transaction committed.
+	 * @param listKey
+	 * @param newList true if the list didn't exist before the commit
+	 * @param oldVersion the list's version as it was read in the transaction, before it was bumped
+	 * @param putEntities everything put, which has to include the list entity with its new version
+	 * @param deleteKeys everything deleted
+	 */
+	public void committed(Key listKey, boolean newList, long oldVersion, Collection<Entity> putEntities, Collection<Key> deleteKeys) {
+		Entity newListEntity = null;
+		for (Entity entity : putEntities) {
+			if (entity.getKey().equals(listKey)) newListEntity = entity;
+		}
+		if (newListEntity == null || deleteKeys.contains(listKey)) {
+			//Nothing to tag it with; the next load will miss and fill it in
+			return;
+		}
+
+		String key = snapshotKey(listKey);
+		LinkedHashMap<Key, Entity> entities = new LinkedHashMap<Key, Entity>();
+		if (!newList) {
+			ListSnapshot snapshot = (ListSnapshot) getSnapshots(Collections.singleton(key)).get(key);
+			if (snapshot == null || snapshot.version != oldVersion) {
+				return;
+			}
+			for (Entity entity : snapshot.entities) {
+				entities.put(entity.getKey(), entity);
+			}
+		}//if there was a list before
+
+		for (Entity entity : putEntities) {
+			if (!entity.getKey().equals(listKey)) entities.put(entity.getKey(), entity);
+		}
+		for (Key deleteKey : deleteKeys) {
+			entities.remove(deleteKey);
+		}
+		Map<String, Object> newSnapshot = new HashMap<String, Object>();
+		newSnapshot.put(key, new ListSnapshot(ListCommitter.getVersion(newListEntity), new ArrayList<Entity>(entities.values())));
+		if (putAll(newSnapshot)) {
+			writeThroughs.incrementAndGet();
+		}
+	}//committed
+
+
+
+	private static String snapshotKey(Key listKey) {
+		return KEY_PREFIX + listKey.getParent().getName() + "/" + listKey.getName();
+	}//snapshotKey
+
+
+
+	private static List<Entity> queryAll(DatastoreService datastore, Key ancestor) {
+		Query q = new Query().setAncestor(ancestor);
+		List<Entity> rv = new ArrayList<Entity>();
+		for (Entity e : ListBlobs.expand(datastore.prepare(q).asIterable(FetchOptions.Builder.withDefaults()))) {
+			rv.add(e);
+		}
+		return rv;
+	}//queryAll
+
+
+
+	/**
+	 * @param entities lists and the entities under them
+	 * @return a snapshot for each list in entities, by snapshot key
+	 */
+	private static Map<String, Object> groupByList(List<Entity> entities) {
+		Map<Key, Long> versions = new HashMap<Key, Long>();
+		Map<Key, ArrayList<Entity>> byList = new HashMap<Key, ArrayList<Entity>>();
+		for (Entity e : entities) {
+			Key listKey = ListCommitter.listKeyOf(e.getKey());
+			if (listKey == null) continue;
+			if (e.getKey().equals(listKey)) {
+				versions.put(listKey, ListCommitter.getVersion(e));
+				continue;
+			}
+			ArrayList<Entity> listEntities = byList.get(listKey);
+			if (listEntities == null) {
+				listEntities = new ArrayList<Entity>();
+				byList.put(listKey, listEntities);
+			}
+			listEntities.add(e);
+		}//foreach entity
+
+		Map<String, Object> rv = new HashMap<String, Object>();
+		for (Map.Entry<Key, Long> entry : versions.entrySet()) {
+			ArrayList<Entity> listEntities = byList.get(entry.getKey());
+			rv.put(snapshotKey(entry.getKey()), new ListSnapshot(entry.getValue(),
+					listEntities == null ? new ArrayList<Entity>() : listEntities));
+		}
+		return rv;
+	}//groupByList
+
+
+
+	private Map<String, Object> getSnapshots(Collection<String> keys) {
+		if (keys.isEmpty()) return new HashMap<String, Object>();
+		try {
+			return store.getAll(keys);
+		} catch (RuntimeException e) {
+			errors.incrementAndGet();
+			log.warning("getSnapshots: " + e);
+			return new HashMap<String, Object>();
+		}
+	}//getSnapshots
+
+
+
+	/**
+	 * @return true if it worked.  A snapshot that's too big for the store fails here, and just isn't cached.
+	 */
+	private boolean putAll(Map<String, Object> snapshots) {
+		try {
+			store.putAll(snapshots);
+			return true;
+		} catch (RuntimeException e) {
+			errors.incrementAndGet();
+			log.warning("putAll: " + e);
+			return false;
+		}
+	}//putAll
+
+
+
+	/**
+	 * @return how many lists were loaded from a snapshot
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return how many lists had to be loaded from the datastore
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return how many commits updated a snapshot
+	 */
+	public long getWriteThroughs() {
+		return writeThroughs.get();
+	}
+
+	/**
+	 * @return how many gets and puts failed
+	 */
+	public long getErrors() {
+		return errors.get();
+	}
+
+
+
+	/**
+	 * @return all the counts by name, for /admin/snapshotStats (see SnapshotStatsServlet)
+	 */
+	public Map<String, Long> getStats() {
+		Map<String, Long> rv = new LinkedHashMap<String, Long>();
+		rv.put("hits", getHits());
+		rv.put("misses", getMisses());
+		rv.put("writeThroughs", getWriteThroughs());
+		rv.put("errors", getErrors());
+		return rv;
+	}//getStats
+
+
+
+	@Override
+	public String toString() {
+		return "SnapshotCache " + getStats();
+	}//toString
+}//SnapshotCache
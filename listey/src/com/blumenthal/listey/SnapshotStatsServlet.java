@@ -0,0 +1,36 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * Shows this instance's SnapshotCache counts (hits, misses, write-throughs, errors) as JSON,
+ * or {} if the cache is off.  The counts are per instance, since they're kept in memory.
+ * It's under /admin, which web.xml limits to the app's admins.
+ *
+ * @author David
+ *
+ */
+@SuppressWarnings("serial")
+public class SnapshotStatsServlet extends HttpServlet {
+
+	@Override
+	public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		resp.setContentType("text/plain");
+		resp.setCharacterEncoding(SyncIO.DEFAULT_CHARSET);
+		resp.setHeader("Cache-Control", "no-cache");
+		SnapshotCache cache = SnapshotCache.get();
+		Gson gson = new GsonBuilder().setPrettyPrinting().create();
+		resp.getWriter().print(gson.toJson(cache == null ? new HashMap<String, Long>() : cache.getStats()));
+	}//doGet
+}//SnapshotStatsServlet
@@ -0,0 +1,31 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Where SnapshotCache keeps its snapshots.  Like memcache, anything put can disappear at any
+ * time, and a failed get or put just loses the value; nothing is ever wrong because of it,
+ * since every snapshot is checked against the list's version before it's used.
+ *
+ * @author David
+ *
+ */
+public interface SnapshotStore {
+	/**
+	 * @param keys
+	 * @return the values that are there, by key
+	 */
+	public Map<String, Object> getAll(Collection<String> keys);
+
+
+
+	/**
+	 * Store the values.  They mustn't be changed after this.
+	 * @param values by key
+	 */
+	public void putAll(Map<String, Object> values);
+}//SnapshotStore
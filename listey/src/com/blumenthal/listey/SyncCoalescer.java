@@ -0,0 +1,447 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.utils.SystemProperty;
+
+/**
+ * Coalesces overlapping full syncs for the same user.
+ *
+ * The client syncs on every save, so a burst of taps sends several POSTs that would all load,
+ * merge and commit the same lists and then fight over them.  Instead, only one merge per user
+ * runs at a time.  Requests that come in while it runs wait in a queue, and when it's done the
+ * first of them merges everything that's queued up by then together and does one SyncMerge for
+ * all of them.  Each caller gets back the same SyncMerge, plus just the temporary ids it sent.
+ *
+ * The queue is per instance.  Across instances a lease in memcache keeps a second instance
+ * from merging for the same user at the same time (only in production, the dev server
+ * is a single instance).  If the lease can't be had within LEASE_WAIT_MILLIS, e.g. memcache
+ * is down, the merge goes ahead anyway, which is no worse than not coalescing.
+ *
+ * @author David
+ *
+ */
+public class SyncCoalescer {
+	private static final Logger log = Logger.getLogger(SyncCoalescer.class.getName());
+
+	public static final String NAMESPACE = "syncCoalescer";
+	private static final String LEASE_PREFIX = "lease:";
+	//Longest a lease is held if the instance holding it dies
+	public static final int LEASE_SECONDS = 30;
+	//Longest to wait for another instance's lease before merging anyway
+	public static final long LEASE_WAIT_MILLIS = 10000;
+	public static final long LEASE_POLL_MILLIS = 100;
+
+	//email -> queue, guarded by itself
+	private static final Map<String, UserQueue> queues = new HashMap<String, UserQueue>();
+
+	private static Boolean useLease;
+	private static MemcacheService memcache;
+
+
+
+	/** One caller's request, and its share of the merge once it's done */
+	public static class Result {
+		private ListeyDataMultipleUsers passedData;
+		private SyncMerge merge;
+		private RuntimeException error;
+		private boolean done;
+
+		private Result(ListeyDataMultipleUsers passedData) {
+			this.passedData = passedData;
+		}
+
+		/**
+		 * @return the data this caller sent
+		 */
+		public ListeyDataMultipleUsers getPassedData() {
+			return passedData;
+		}
+
+		/**
+		 * @return the merge this caller's data went into, possibly along with other callers' data
+		 */
+		public SyncMerge getMerge() {
+			return merge;
+		}
+
+		/**
+		 * @return the permanent ids for just the temporary ids this caller sent
+		 */
+		public Map<String, String> getTempToPermanentIds() {
+			Set<String> sentIds = new HashSet<String>();
+			for (ListeyDataOneUser user : passedData.userData.values()) {
+				addTempIds(user, sentIds);
+			}
+			Map<String, String> rv = new HashMap<String, String>();
+			for (Map.Entry<String, String> entry : merge.getTempToPermanentIds().entrySet()) {
+				if (sentIds.contains(entry.getKey())) {
+					rv.put(entry.getKey(), entry.getValue());
+				}
+			}
+			return rv;
+		}//getTempToPermanentIds
+
+		/**
+		 * @return this, or throws what the merge threw
+		 */
+		private Result finished() {
+			if (error != null) {
+				throw error;
+			}
+			return this;
+		}//finished
+	}//Result
+
+
+
+	private static class UserQueue {
+		private List<Result> waiting = new ArrayList<Result>();
+		private boolean merging;
+	}//UserQueue
+
+
+
+	/** Two callers used the same temporary id for different nodes, so they can't be merged together */
+	public static class TempIdConflict extends Exception {
+		private static final long serialVersionUID = 1L;
+	}//TempIdConflict
+
+
+
+	/**
+	 * Merge passedData for the user, coalesced with any other requests for the same user.
+	 * @param store
+	 * @param userEmail logged in user
+	 * @param passedData data from the client
+	 * @return this caller's result, once its data is committed
+	 */
+	public static Result sync(ListeyStore store, String userEmail, ListeyDataMultipleUsers passedData) {
+		Result me = new Result(passedData);
+		UserQueue queue;
+		synchronized (queues) {
+			queue = queues.get(userEmail);
+			if (queue == null) {
+				queue = new UserQueue();
+				queues.put(userEmail, queue);
+			}
+			queue.waiting.add(me);
+			long start = SyncTimer.begin();
+			while (queue.merging && !me.done) {
+				try {
+					queues.wait();
+				} catch (InterruptedException e) {
+					queue.waiting.remove(me);
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted waiting to sync for " + userEmail);
+				}
+			}
+			SyncTimer.end(SyncTimer.WAIT, start);
+			if (me.done) {
+				return me.finished();
+			}
+			//Nobody's merging, so this thread does the merge for everybody waiting
+			queue.merging = true;
+		}//synchronized
+
+		try {
+			//Normally one pass does it; only a temporary id conflict leaves this request for another pass
+			while (!me.done) {
+				List<Result> batch = new ArrayList<Result>();
+				ListeyDataMultipleUsers merged = null;
+				synchronized (queues) {
+					try {
+						merged = takeBatch(queue.waiting, batch);
+					} catch (RuntimeException e) {
+						//e.g. a malformed node.  Whoever was taken is out of the queue, so they have to be told.
+						log.warning("sync: couldn't merge the queued syncs for " + userEmail + ": " + e);
+						finish(batch, null, e);
+						continue;
+					}
+					if (batch.isEmpty() || merged == null) {
+						//Can't happen, this request is still waiting, but don't merge nothing forever
+						queue.waiting.remove(me);
+						batch.add(me);
+						finish(batch, null, new IllegalStateException("Sync for " + userEmail + " isn't queued"));
+						continue;
+					}
+				}//synchronized
+				runBatch(store, userEmail, batch, merged);
+			}
+		}
+		finally {
+			synchronized (queues) {
+				queue.merging = false;
+				if (queue.waiting.isEmpty()) {
+					queues.remove(userEmail);
+				}
+				//One of the waiters, if any, takes over
+				queues.notifyAll();
+			}
+		}
+		return me.finished();
+	}//sync
+
+
+
+	/**
+	 * Take every waiting request that can be merged with the ones before it out of waiting.
+	 * If merging throws, the request it threw on is taken too, so batch has everything that
+	 * has to be failed.
+	 * @param waiting requests in the order they came in
+	 * @param batch gets the requests taken
+	 * @return all of their data merged together
+	 */
+	private static ListeyDataMultipleUsers takeBatch(List<Result> waiting, List<Result> batch) {
+		ListeyDataMultipleUsers merged = null;
+		for (Iterator<Result> iter = waiting.iterator(); iter.hasNext(); ) {
+			Result next = iter.next();
+			if (merged == null) {
+				merged = next.passedData;
+			}
+			else {
+				try {
+					merged = mergeClientData(merged, next.passedData);
+				} catch (TempIdConflict e) {
+					//Leave it for the next merge, which will see this merge's nodes as server nodes
+					continue;
+				} catch (RuntimeException e) {
+					batch.add(next);
+					iter.remove();
+					throw e;
+				}
+			}
+			batch.add(next);
+			iter.remove();
+		}//foreach waiting
+		return merged;
+	}//takeBatch
+
+
+
+	private static void runBatch(ListeyStore store, String userEmail, List<Result> batch, ListeyDataMultipleUsers merged) {
+		if (batch.size() > 1) {
+			log.info("runBatch: coalesced " + batch.size() + " syncs for " + userEmail);
+		}
+		SyncMerge merge = null;
+		RuntimeException error = null;
+		long start = SyncTimer.begin();
+		String leaseToken = acquireLease(userEmail);
+		SyncTimer.end(SyncTimer.LEASE, start);
+		try {
+			merge = SyncMerge.run(store, userEmail, merged);
+		} catch (RuntimeException e) {
+			error = e;
+		} finally {
+			releaseLease(userEmail, leaseToken);
+		}
+
+		synchronized (queues) {
+			finish(batch, merge, error);
+		}
+	}//runBatch
+
+
+
+	/**
+	 * Hand each request in the batch its result and wake them up.  Call with queues locked.
+	 */
+	private static void finish(List<Result> batch, SyncMerge merge, RuntimeException error) {
+		for (Result result : batch) {
+			result.merge = merge;
+			result.error = error;
+			result.done = true;
+		}
+		queues.notifyAll();
+	}//finish
+
+
+
+	/**
+	 * Merge the data from two clients the same way the server merges client data into its own:
+	 * the node with the newer lastUpdate wins, and on a tie the later request does.
+	 * Neither one is modified.
+	 * @param earlier
+	 * @param later
+	 * @return the merged data
+	 * @throws TempIdConflict if both have a node with the same temporary id that isn't the same node
+	 */
+	public static ListeyDataMultipleUsers mergeClientData(ListeyDataMultipleUsers earlier, ListeyDataMultipleUsers later) throws TempIdConflict {
+		ListeyDataMultipleUsers rv = new ListeyDataMultipleUsers();
+		rv.setThisUserEmail(later.getThisUserEmail());
+		Set<String> userEmails = new HashSet<String>(earlier.userData.keySet());
+		userEmails.addAll(later.userData.keySet());
+		for (String userEmail : userEmails) {
+			rv.userData.put(userEmail, (ListeyDataOneUser) mergeNodes(earlier.userData.get(userEmail), later.userData.get(userEmail)));
+		}
+		return rv;
+	}//mergeClientData
+
+
+
+	private static TimeStampedNode mergeNodes(TimeStampedNode earlier, TimeStampedNode later) throws TempIdConflict {
+		if (earlier == null) return later;
+		if (later == null) return earlier;
+		//Only a digest means that client didn't change it, so whatever the other one has is at least as new
+		if (later.isDigestOnly()) return earlier;
+		if (earlier.isDigestOnly()) return later;
+		if (DataStoreUniqueId.isTemporaryId(later.getUniqueId()) && !later.shallowEquals(earlier)) {
+			throw new TempIdConflict();
+		}
+
+		TimeStampedNode newer = lastUpdate(earlier) > lastUpdate(later) ? earlier : later;
+		TimeStampedNode rv = newer.makeShallowCopy();
+		rv.copyEphemeralFromClient(later);
+
+		List<Map<String, ? extends TimeStampedNode>> earlierSubMaps = earlier.subMapsToCompare();
+		if (earlierSubMaps != null) {
+			List<Map<String, ? extends TimeStampedNode>> laterSubMaps = later.subMapsToCompare();
+			List<List<? extends TimeStampedNode>> subMapAddLists = new ArrayList<List<? extends TimeStampedNode>>();
+			for (int i=0; i<earlierSubMaps.size(); i++) {
+				Map<String, TimeStampedNode> byId = new LinkedHashMap<String, TimeStampedNode>(earlierSubMaps.get(i));
+				subMapAddLists.add(mergeSubNodes(byId, laterSubMaps.get(i).values()));
+			}
+			rv.addSubMapEntries(subMapAddLists);
+		}//if any submaps
+
+		List<Iterable<? extends TimeStampedNode>> earlierSubIters = earlier.subIterablesToCompare();
+		if (earlierSubIters != null) {
+			List<Iterable<? extends TimeStampedNode>> laterSubIters = later.subIterablesToCompare();
+			List<List<? extends TimeStampedNode>> subIterAddLists = new ArrayList<List<? extends TimeStampedNode>>();
+			for (int i=0; i<earlierSubIters.size(); i++) {
+				//Sorted by id, the same as the iterables themselves
+				Map<String, TimeStampedNode> byId = new TreeMap<String, TimeStampedNode>();
+				for (TimeStampedNode node : earlierSubIters.get(i)) {
+					byId.put(node.getUniqueId(), node);
+				}
+				subIterAddLists.add(mergeSubNodes(byId, laterSubIters.get(i)));
+			}
+			rv.addSubIterEntries(subIterAddLists);
+		}//if any subiterables
+		return rv;
+	}//mergeNodes
+
+
+
+	/**
+	 * @param earlierById earlier nodes by id, the merged nodes are put in here
+	 * @param later
+	 * @return the merged nodes
+	 */
+	private static List<TimeStampedNode> mergeSubNodes(Map<String, TimeStampedNode> earlierById, Iterable<? extends TimeStampedNode> later)
+			throws TempIdConflict {
+		for (TimeStampedNode laterNode : later) {
+			earlierById.put(laterNode.getUniqueId(), mergeNodes(earlierById.get(laterNode.getUniqueId()), laterNode));
+		}
+		return new ArrayList<TimeStampedNode>(earlierById.values());
+	}//mergeSubNodes
+
+
+
+	private static long lastUpdate(TimeStampedNode node) {
+		return node.getLastUpdate() == null ? 0 : node.getLastUpdate();
+	}//lastUpdate
+
+
+
+	private static void addTempIds(TimeStampedNode node, Set<String> tempIds) {
+		if (DataStoreUniqueId.isTemporaryId(node.getUniqueId())) {
+			tempIds.add(node.getUniqueId());
+		}
+		List<Map<String, ? extends TimeStampedNode>> subMaps = node.subMapsToCompare();
+		if (subMaps != null) {
+			for (Map<String, ? extends TimeStampedNode> subMap : subMaps) {
+				for (TimeStampedNode subNode : subMap.values()) {
+					addTempIds(subNode, tempIds);
+				}
+			}
+		}
+		List<Iterable<? extends TimeStampedNode>> subIters = node.subIterablesToCompare();
+		if (subIters != null) {
+			for (Iterable<? extends TimeStampedNode> subIter : subIters) {
+				for (TimeStampedNode subNode : subIter) {
+					addTempIds(subNode, tempIds);
+				}
+			}
+		}
+	}//addTempIds
+
+
+
+	/**
+	 * Wait for the user's lease in memcache and take it.
+	 * @return the token to release it with, or null if no lease was taken
+	 */
+	private static String acquireLease(String userEmail) {
+		MemcacheService leases = getLeaseCache();
+		if (leases == null) return null;
+		String token = UUID.randomUUID().toString();
+		long deadline = System.currentTimeMillis() + LEASE_WAIT_MILLIS;
+		while (!leases.put(LEASE_PREFIX + userEmail, token, Expiration.byDeltaSeconds(LEASE_SECONDS), MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+			if (System.currentTimeMillis() >= deadline) {
+				log.warning("acquireLease: gave up waiting for the sync lease for " + userEmail + ", merging anyway");
+				return null;
+			}
+			try {
+				Thread.sleep(LEASE_POLL_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}//while someone else has it
+		return token;
+	}//acquireLease
+
+
+
+	private static void releaseLease(String userEmail, String token) {
+		if (token == null) return;
+		MemcacheService leases = getLeaseCache();
+		String key = LEASE_PREFIX + userEmail;
+		//Don't delete it if it expired and someone else took it
+		if (token.equals(leases.get(key))) {
+			leases.delete(key);
+		}
+	}//releaseLease
+
+
+
+	/**
+	 * @return the memcache for leases, or null if leases aren't used
+	 */
+	private static synchronized MemcacheService getLeaseCache() {
+		if (useLease == null) {
+			useLease = SystemProperty.environment.value() == SystemProperty.Environment.Value.Production;
+		}
+		if (!useLease) return null;
+		if (memcache == null) {
+			memcache = MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+		}
+		return memcache;
+	}//getLeaseCache
+
+
+
+	/**
+	 * Turn the memcache lease on or off, e.g. for tests
+	 */
+	public static synchronized void setUseLease(boolean newUseLease) {
+		useLease = newUseLease;
+	}//setUseLease
+}//SyncCoalescer
@@ -0,0 +1,253 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * Keeps the last few syncs for each user in memory, so a merge that went wrong can be looked
+ * at afterwards (see FlightRecorderServlet) without logging every sync's data.
+ *
+ * Each record has the sizes, node counts and ETags of what the client sent, what was loaded
+ * and what was committed, plus the request's phase timings and counts from SyncTimer.  If
+ * payloadChars is more than 0 the JSON of each of the three is kept too, cut off at that many
+ * characters; that's the only part that costs a full serialization, so it's off by default.
+ *
+ * Only this instance's syncs are in it, and it's lost on restart.  At most recordsPerUser
+ * records are kept for each of the maxUsers users that synced most recently.
+ *
+ * It's off by default, since the ETags mean hashing all of what was sent, loaded and committed
+ * on every sync.  Turn it on while chasing a merge problem; with enabled set to 0 record()
+ * returns right away.
+ *
+ * Settings (system properties, see ListeyConfig):
+ *   listey.recorder.enabled - default 0
+ *   listey.recorder.recordsPerUser - default 20
+ *   listey.recorder.maxUsers - default 200
+ *   listey.recorder.payloadChars - default 0
+ *
+ * @author David
+ *
+ */
+public class SyncFlightRecorder {
+	private static SyncFlightRecorder instance;
+
+	private boolean enabled;
+	private int recordsPerUser;
+	private int payloadChars;
+	private Map<String, LinkedList<Record>> records;
+
+
+
+	public SyncFlightRecorder(boolean enabled, int recordsPerUser, final int maxUsers, int payloadChars) {
+		this.enabled = enabled;
+		this.recordsPerUser = recordsPerUser;
+		this.payloadChars = payloadChars;
+		//In order of last access, so the user who synced longest ago goes first
+		records = new LinkedHashMap<String, LinkedList<Record>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, LinkedList<Record>> eldest) {
+				return size() > maxUsers;
+			}
+		};
+	}
+
+
+
+	/**
+	 * @return the recorder for this instance, set up from the system properties
+	 */
+	public static synchronized SyncFlightRecorder get() {
+		if (instance == null) {
+			instance = new SyncFlightRecorder(ListeyConfig.getInt("recorder.enabled", 0) != 0,
+					ListeyConfig.getInt("recorder.recordsPerUser", 20),
+					ListeyConfig.getInt("recorder.maxUsers", 200),
+					ListeyConfig.getInt("recorder.payloadChars", 0));
+		}
+		return instance;
+	}//get
+
+
+
+	/**
+	 * Use a different recorder, e.g. for tests
+	 */
+	public static synchronized void set(SyncFlightRecorder newRecorder) {
+		instance = newRecorder;
+	}//set
+
+
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+
+
+	/**
+	 * Record one sync.  Call this on the request's thread, so the timings are the request's.
+	 * @param userEmail logged in user
+	 * @param what e.g. "doPost"
+	 * @param passedData what the client sent, or null if it couldn't be parsed
+	 * @param merge the merge, or null if it failed
+	 * @param error what went wrong, or null
+	 */
+	public void record(String userEmail, String what, ListeyDataMultipleUsers passedData, SyncMerge merge, Throwable error) {
+		if (!enabled) return;
+
+		Record record = new Record();
+		record.time = System.currentTimeMillis();
+		record.what = what;
+		if (passedData != null) {
+			record.passed = new DataSummary(passedData, payloadChars);
+		}
+		if (merge != null) {
+			record.current = new DataSummary(merge.getCurrentData(), payloadChars);
+			record.updated = new DataSummary(merge.getUpdatedData(), payloadChars);
+			record.tempIds = merge.getTempToPermanentIds().size();
+		}
+		if (error != null) {
+			record.error = error.toString();
+		}
+		SyncTimer timer = SyncTimer.current();
+		if (timer != null) {
+			record.timing = timer.toServerTiming();
+			record.entitiesPut = timer.getCount(SyncTimer.ENTITIES_PUT);
+			record.keysDeleted = timer.getCount(SyncTimer.KEYS_DELETED);
+			record.requestBytes = timer.getCount(SyncTimer.REQUEST_BYTES);
+		}
+
+		synchronized (this) {
+			LinkedList<Record> userRecords = records.get(userEmail);
+			if (userRecords == null) {
+				userRecords = new LinkedList<Record>();
+				records.put(userEmail, userRecords);
+			}
+			userRecords.addLast(record);
+			while (userRecords.size() > recordsPerUser) {
+				userRecords.removeFirst();
+			}
+		}//synchronized
+	}//record
+
+
+
+	/**
+	 * @param userEmail
+	 * @return the user's records, oldest first
+	 */
+	public synchronized List<Record> getRecords(String userEmail) {
+		LinkedList<Record> userRecords = records.get(userEmail);
+		return userRecords == null ? new ArrayList<Record>() : new ArrayList<Record>(userRecords);
+	}//getRecords
+
+
+
+	/**
+	 * @return the users with records, the one who synced longest ago first
+	 */
+	public synchronized List<String> getUsers() {
+		return new ArrayList<String>(records.keySet());
+	}//getUsers
+
+
+
+	/**
+	 * @param userEmail a user, or null for everybody
+	 * @return the records as JSON, by user
+	 */
+	public String toJson(String userEmail) {
+		Map<String, List<Record>> rv = new LinkedHashMap<String, List<Record>>();
+		for (String user : userEmail == null ? getUsers() : Collections.singletonList(userEmail)) {
+			rv.put(user, getRecords(user));
+		}
+		Gson gson = new GsonBuilder().setPrettyPrinting().create();
+		return gson.toJson(rv);
+	}//toJson
+
+
+
+	/** One sync */
+	public static class Record {
+		long time;
+		String what;
+		DataSummary passed;
+		DataSummary current;
+		DataSummary updated;
+		int tempIds;
+		long entitiesPut;
+		long keysDeleted;
+		long requestBytes;
+		String timing;
+		String error;
+
+		public long getTime() {
+			return time;
+		}
+
+		public DataSummary getPassed() {
+			return passed;
+		}
+
+		public DataSummary getCurrent() {
+			return current;
+		}
+
+		public DataSummary getUpdated() {
+			return updated;
+		}
+
+		public String getError() {
+			return error;
+		}
+	}//Record
+
+
+
+	/** What's in one ListeyDataMultipleUsers, without the data itself unless payloadChars is set */
+	public static class DataSummary {
+		int users;
+		int lists;
+		int nodes;
+		String etag;
+		String json;
+
+		DataSummary(ListeyDataMultipleUsers data, int payloadChars) {
+			users = data.userData.size();
+			for (ListeyDataOneUser userInfo : data.userData.values()) {
+				lists += userInfo.lists.size();
+			}
+			nodes = data.getNodeCount();
+			etag = data.getETag();
+			if (payloadChars > 0) {
+				json = data.toJson();
+				if (json.length() > payloadChars) {
+					json = json.substring(0, payloadChars) + "...(" + json.length() + " chars)";
+				}
+			}
+		}
+
+		public int getNodes() {
+			return nodes;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		public String getJson() {
+			return json;
+		}
+	}//DataSummary
+}//SyncFlightRecorder
@@ -0,0 +1,214 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Bounds how many syncs load/merge/commit at the same time on this instance.
+ *
+ * At most maxRunning syncs run at once, and at most maxQueued more wait for a turn, for up to
+ * maxWaitMillis.  Anything past that is turned away with a 503 and a Retry-After, so when the
+ * datastore is slow the requests fail fast instead of piling up until the instance runs out of
+ * request threads.  The counts are kept so they can be logged and checked.
+ *
+ * Every sync that loads or commits goes through the same gate: /ajax (ListeyServlet) and its
+ * GET, /ajax/list (ListSyncServlet) and /ajax/ops (OpsServlet).  Each takes its turn after the
+ * request is parsed and gives it back before the response is written.
+ *
+ * Settings (system properties, see ListeyConfig):
+ *   listey.sync.maxRunning - default 8
+ *   listey.sync.maxQueued - default 16
+ *   listey.sync.maxWaitMillis - default 10000
+ *   listey.sync.retryAfterSeconds - default 2
+ *
+ * @author David
+ *
+ */
+public class SyncGate {
+	private static final Logger log = Logger.getLogger(SyncGate.class.getName());
+
+	private static SyncGate instance;
+
+	private int maxRunning;
+	private int maxQueued;
+	private long maxWaitMillis;
+	private int retryAfterSeconds;
+
+	private Semaphore permits;
+	private AtomicInteger queued = new AtomicInteger();
+	private AtomicInteger peakQueued = new AtomicInteger();
+	private AtomicLong admitted = new AtomicLong();
+	private AtomicLong rejectedFull = new AtomicLong();
+	private AtomicLong rejectedTimeout = new AtomicLong();
+	private AtomicLong totalWaitMillis = new AtomicLong();
+
+
+
+	public SyncGate(int maxRunning, int maxQueued, long maxWaitMillis, int retryAfterSeconds) {
+		this.maxRunning = maxRunning;
+		this.maxQueued = maxQueued;
+		this.maxWaitMillis = maxWaitMillis;
+		this.retryAfterSeconds = retryAfterSeconds;
+		//Fair, so the ones that have waited longest go first
+		permits = new Semaphore(maxRunning, true);
+	}
+
+
+
+	/**
+	 * @return the gate for this instance, set up from the system properties
+	 */
+	public static synchronized SyncGate get() {
+		if (instance == null) {
+			instance = new SyncGate(ListeyConfig.getInt("sync.maxRunning", 8),
+					ListeyConfig.getInt("sync.maxQueued", 16),
+					ListeyConfig.getLong("sync.maxWaitMillis", 10000),
+					ListeyConfig.getInt("sync.retryAfterSeconds", 2));
+		}
+		return instance;
+	}//get
+
+
+
+	/**
+	 * Use a different gate, e.g. for tests
+	 */
+	public static synchronized void set(SyncGate newGate) {
+		instance = newGate;
+	}//set
+
+
+
+	/**
+	 * Wait for a turn.  If this returns true, the caller has to call exit() when it's done.
+	 * @return true if admitted, false if it should be rejected
+	 */
+	public boolean enter() {
+		if (permits.tryAcquire()) {
+			admitted.incrementAndGet();
+			return true;
+		}
+
+		int depth = queued.incrementAndGet();
+		try {
+			if (depth > maxQueued) {
+				rejectedFull.incrementAndGet();
+				log.warning("enter: rejecting, " + maxRunning + " running and " + maxQueued + " queued. " + this);
+				return false;
+			}
+			updatePeak(depth);
+			long start = System.currentTimeMillis();
+			boolean acquired;
+			try {
+				acquired = permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				acquired = false;
+			}
+			totalWaitMillis.addAndGet(System.currentTimeMillis() - start);
+			if (!acquired) {
+				rejectedTimeout.incrementAndGet();
+				log.warning("enter: rejecting after waiting " + maxWaitMillis + "ms. " + this);
+				return false;
+			}
+			admitted.incrementAndGet();
+			return true;
+		}
+		finally {
+			queued.decrementAndGet();
+		}
+	}//enter
+
+
+
+	/**
+	 * Give the turn to the next one waiting
+	 */
+	public void exit() {
+		permits.release();
+	}//exit
+
+
+
+	/**
+	 * Send the response for a request enter() turned away
+	 */
+	public void reject(HttpServletResponse resp) {
+		resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		resp.setHeader("Retry-After", Integer.toString(retryAfterSeconds));
+	}//reject
+
+
+
+	private void updatePeak(int depth) {
+		int peak = peakQueued.get();
+		while (depth > peak && !peakQueued.compareAndSet(peak, depth)) {
+			peak = peakQueued.get();
+		}
+	}//updatePeak
+
+
+
+	/**
+	 * @return how many are running right now
+	 */
+	public int getRunning() {
+		return maxRunning - permits.availablePermits();
+	}
+
+	/**
+	 * @return how many are waiting for a turn right now
+	 */
+	public int getQueued() {
+		return queued.get();
+	}
+
+	/**
+	 * @return the most that have waited at once
+	 */
+	public int getPeakQueued() {
+		return peakQueued.get();
+	}
+
+	public long getAdmitted() {
+		return admitted.get();
+	}
+
+	/**
+	 * @return how many were turned away because the queue was full
+	 */
+	public long getRejectedFull() {
+		return rejectedFull.get();
+	}
+
+	/**
+	 * @return how many were turned away after waiting maxWaitMillis
+	 */
+	public long getRejectedTimeout() {
+		return rejectedTimeout.get();
+	}
+
+	/**
+	 * @return total time spent waiting in the queue, by everyone
+	 */
+	public long getTotalWaitMillis() {
+		return totalWaitMillis.get();
+	}
+
+
+
+	@Override
+	public String toString() {
+		return "SyncGate running=" + getRunning() + "/" + maxRunning + " queued=" + getQueued() + "/" + maxQueued
+				+ " peakQueued=" + getPeakQueued() + " admitted=" + getAdmitted() + " rejectedFull=" + getRejectedFull()
+				+ " rejectedTimeout=" + getRejectedTimeout() + " totalWaitMillis=" + getTotalWaitMillis();
+	}//toString
+}//SyncGate
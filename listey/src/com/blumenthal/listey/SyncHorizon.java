@@ -0,0 +1,167 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+
+/**
+ * Keeps track of how far each of a user's devices has synced, so TombstoneCollector knows
+ * which deleted nodes every device has already seen and can be removed for good.
+ *
+ * A delta sync that passes a deviceId acknowledges the syncToken it sent: that device has
+ * everything the server wrote before it.  Each device gets a syncHorizon entity with the
+ * acknowledged time and when it was last seen.  They're under their own root per user
+ * (syncHorizons), not under the user, so writing them never contends with list commits.
+ * A device is only rewritten when its time moved by more than WRITE_GRANULARITY, so most
+ * syncs just read it.
+ *
+ * A user's horizon is the oldest acknowledged time of the devices seen in the last
+ * listey.gc.deviceExpiryDays, but never newer than listey.gc.minAgeDays ago, which is all
+ * the time clients without a deviceId (and full syncs) get.  A device that comes back after
+ * tombstones it never saw were purged can't be given a delta any more, since it can't be
+ * told about those deletes; the root keeps the newest horizon anything was purged through,
+ * and isExpired tells the servlets to send such a device back for a full sync.
+ *
+ * @author David
+ *
+ */
+public class SyncHorizon {
+	private static final Logger log = Logger.getLogger(SyncHorizon.class.getName());
+
+	public static final String ROOT_KIND = "syncHorizons";
+	public static final String KIND = "syncHorizon";
+	public static final String ACKED = "acked";
+	public static final String LAST_SEEN = "lastSeen";
+	public static final String PURGED_THROUGH = "purgedThrough";
+
+	public static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+	//Don't rewrite a device's entity for less than this
+	public static final long WRITE_GRANULARITY = 60 * 60 * 1000L;
+
+	private static long minAgeMillis = ListeyConfig.getInt("gc.minAgeDays", 30) * DAY_MILLIS;
+	private static long deviceExpiryMillis = ListeyConfig.getInt("gc.deviceExpiryDays", 60) * DAY_MILLIS;
+
+
+
+	public static Key getRootKey(String userEmail) {
+		return KeyFactory.createKey(ROOT_KIND, userEmail);
+	}
+
+	public static Key getDeviceKey(String userEmail, String deviceId) {
+		return KeyFactory.createKey(getRootKey(userEmail), KIND, deviceId);
+	}
+
+
+
+	/**
+	 * Record that the device has everything the server wrote before the token.  Failures are
+	 * only logged, the sync itself already went through.
+	 * @param datastore
+	 * @param userEmail
+	 * @param deviceId from the client, or null if it didn't send one (then nothing is recorded)
+	 * @param token the token the client sent with the sync
+	 * @param now
+	 */
+	public static void acknowledge(DatastoreService datastore, String userEmail, String deviceId, SyncToken token, long now) {
+		if (deviceId == null || deviceId.length() == 0) return;
+		Key key = getDeviceKey(userEmail, deviceId);
+		try {
+			Entity device;
+			long acked = 0;
+			long lastSeen = 0;
+			try {
+				device = datastore.get(key);
+				acked = (Long) device.getProperty(ACKED);
+				lastSeen = (Long) device.getProperty(LAST_SEEN);
+			} catch (EntityNotFoundException e) {
+				device = new Entity(key);
+			}
+			if (token.getServerTime() < acked + WRITE_GRANULARITY && now < lastSeen + WRITE_GRANULARITY) return;
+			device.setUnindexedProperty(ACKED, Math.max(acked, token.getServerTime()));
+			device.setUnindexedProperty(LAST_SEEN, now);
+			datastore.put(device);
+		} catch (RuntimeException e) {
+			log.warning("acknowledge: couldn't record " + userEmail + " device " + deviceId + ": " + e);
+		}
+	}//acknowledge
+
+
+
+	/**
+	 * @return the time every device the user still uses has seen everything before
+	 */
+	public static long getHorizon(DatastoreService datastore, String userEmail, long now) {
+		long horizon = now - getMinAgeMillis();
+		Query q = new Query(KIND).setAncestor(getRootKey(userEmail));
+		for (Entity device : datastore.prepare(q).asIterable()) {
+			if ((Long) device.getProperty(LAST_SEEN) < now - getDeviceExpiryMillis()) continue;
+			//Leave room for writes that were stamped a bit before they committed, same as SyncToken
+			horizon = Math.min(horizon, (Long) device.getProperty(ACKED) - SyncToken.CLOCK_SKEW_MILLIS);
+		}
+		return horizon;
+	}//getHorizon
+
+
+
+	/**
+	 * @return the newest time tombstones may have been purged through for the user, 0 if never
+	 */
+	public static long getPurgedThrough(DatastoreService datastore, String userEmail) {
+		try {
+			return (Long) datastore.get(getRootKey(userEmail)).getProperty(PURGED_THROUGH);
+		} catch (EntityNotFoundException e) {
+			return 0;
+		}
+	}//getPurgedThrough
+
+
+
+	/**
+	 * Record that tombstones are about to be purged through horizon.  Call before purging,
+	 * so a device that's behind is sent to a full sync rather than missing a delete.
+	 */
+	public static void setPurgedThrough(DatastoreService datastore, String userEmail, long horizon) {
+		Entity root = new Entity(getRootKey(userEmail));
+		root.setUnindexedProperty(PURGED_THROUGH, Math.max(horizon, getPurgedThrough(datastore, userEmail)));
+		datastore.put(root);
+	}//setPurgedThrough
+
+
+
+	/**
+	 * @return true if a delta since the token could be missing deletes that were purged, so
+	 * the client has to do a full sync instead
+	 */
+	public static boolean isExpired(DatastoreService datastore, String userEmail, SyncToken token) {
+		//Time 0 is a first sync, which gets everything anyway
+		if (token.getServerTime() == 0) return false;
+		return token.getServerTime() - SyncToken.CLOCK_SKEW_MILLIS < getPurgedThrough(datastore, userEmail);
+	}//isExpired
+
+
+
+	private static synchronized long getMinAgeMillis() {
+		return minAgeMillis;
+	}
+
+	private static synchronized long getDeviceExpiryMillis() {
+		return deviceExpiryMillis;
+	}
+
+	/**
+	 * Change how old tombstones have to be, and how long a device can go without syncing
+	 * before it stops holding them back, e.g. for tests
+	 */
+	public static synchronized void setAges(long newMinAgeMillis, long newDeviceExpiryMillis) {
+		minAgeMillis = newMinAgeMillis;
+		deviceExpiryMillis = newDeviceExpiryMillis;
+	}//setAges
+}//SyncHorizon
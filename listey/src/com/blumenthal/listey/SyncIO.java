@@ -0,0 +1,389 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Handles reading a sync request off the wire and writing the response back, for one request.
+ *
+ * Clients can either send the data the old way, form-encoded in the "content" parameter,
+ * or as a raw application/json request body.  The raw body gets parsed straight off the
+ * stream, so we never hold the whole payload as a String.  A raw body may be gzipped
+ * (Content-Encoding: gzip), and the response is gzipped whenever Accept-Encoding allows it.
+ * Both directions are streamed, and the byte counts before/after compression are kept
+ * so each request's compression ratio can be logged.
+ *
+ * The request body can be capped with setMaxRequestBytes.
+ *
+ * Clients that can handle it can use the binary format (see ListeyBinaryWriter) instead of
+ * JSON, by sending the body as application/x-listey-binary and/or putting it in Accept.
+ *
+ * @author David
+ *
+ */
+public class SyncIO {
+	private static final Logger log = Logger.getLogger(SyncIO.class.getName());
+
+	public static final String JSON_CONTENT_TYPE = "application/json";
+	public static final String BINARY_CONTENT_TYPE = "application/x-listey-binary";
+	public static final String DEFAULT_CHARSET = "UTF-8";
+	public static final String GZIP = "gzip";
+	//The response depends on both of these
+	private static final String VARY = "Accept, Accept-Encoding";
+
+	private HttpServletRequest req;
+	private HttpServletResponse resp;
+
+	private CountingInputStream requestWireCounter;
+	private CountingInputStream requestDataCounter;
+	private CountingOutputStream responseWireCounter;
+	private CountingOutputStream responseDataCounter;
+	private Writer responseWriter;
+	private OutputStream responseStream;
+	private boolean responseGzipped;
+	private long maxRequestBytes = -1;
+	private long responseStartNanos;
+
+	public SyncIO(HttpServletRequest req, HttpServletResponse resp) {
+		this.req = req;
+		this.resp = resp;
+	}
+
+
+	/**
+	 * @return true if the request data is a raw JSON body rather than the "content" form parameter
+	 */
+	public static boolean hasJsonBody(HttpServletRequest req) {
+		String contentType = req.getContentType();
+		return contentType != null && contentType.toLowerCase().startsWith(JSON_CONTENT_TYPE);
+	}//hasJsonBody
+
+
+
+	/**
+	 * @return true if the request data is a binary body, see ListeyBinaryReader
+	 */
+	public static boolean hasBinaryBody(HttpServletRequest req) {
+		String contentType = req.getContentType();
+		return contentType != null && contentType.toLowerCase().startsWith(BINARY_CONTENT_TYPE);
+	}//hasBinaryBody
+
+
+
+	/**
+	 * @return true if the client listed the binary format in Accept
+	 */
+	public static boolean acceptsBinary(HttpServletRequest req) {
+		return accepts(req.getHeader("Accept"), BINARY_CONTENT_TYPE);
+	}//acceptsBinary
+
+
+
+	/**
+	 * @return true if the request body is gzipped.  Only raw bodies can be, form parameters can't.
+	 */
+	public static boolean isRequestGzipped(HttpServletRequest req) {
+		String encoding = req.getHeader("Content-Encoding");
+		return encoding != null && encoding.trim().equalsIgnoreCase(GZIP);
+	}//isRequestGzipped
+
+
+
+	/**
+	 * @return true if the client said it can take a gzipped response
+	 */
+	public static boolean acceptsGzip(HttpServletRequest req) {
+		return accepts(req.getHeader("Accept-Encoding"), GZIP, "x-gzip", "*");
+	}//acceptsGzip
+
+
+
+	/**
+	 * @param accept an Accept or Accept-Encoding header, or null
+	 * @param names values that count
+	 * @return true if one of names is in the header, and not with q=0
+	 */
+	private static boolean accepts(String accept, String... names) {
+		if (accept == null) return false;
+		for (String coding : accept.split(",")) {
+			String[] parts = coding.split(";");
+			String name = parts[0].trim().toLowerCase();
+			if (Arrays.asList(names).contains(name)) {
+				//"gzip;q=0" means they specifically DON'T want it
+				for (int i=1; i<parts.length; i++) {
+					String param = parts[i].trim();
+					if (param.startsWith("q=")) {
+						try {
+							if (Double.parseDouble(param.substring(2)) <= 0) return false;
+						} catch (NumberFormatException e) {
+							return false;
+						}
+					}
+				}//foreach param
+				return true;
+			}//if one of names
+		}//foreach coding
+		return false;
+	}//accepts
+
+
+
+	/**
+	 * Set the ETag on the response and check it against the request's If-None-Match.
+	 * The gzipped and plain bodies are different bytes, and so are the binary and JSON ones, so they get different tags.
+	 * @param tag unquoted validator for the data, e.g. from ListeyDataMultipleUsers.getETag()
+	 * @return true if the client already has this version, in which case the caller should send a 304 with no body
+	 */
+	public boolean checkETag(String tag) {
+		String etag = "\"" + tag + (acceptsBinary(req) ? "-bin" : "") + (acceptsGzip(req) ? "-" + GZIP : "") + "\"";
+		resp.setHeader("ETag", etag);
+		resp.setHeader("Vary", VARY);
+		//Make caches check with us every time, it's their data and it changes from other devices
+		resp.setHeader("Cache-Control", "private, no-cache");
+		String ifNoneMatch = req.getHeader("If-None-Match");
+		if (ifNoneMatch == null) return false;
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			//If-None-Match uses the weak comparison, so ignore any W/ prefix
+			if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+			if (candidate.equals("*") || candidate.equals(etag)) return true;
+		}
+		return false;
+	}//checkETag
+
+
+
+	/**
+	 * Make reading the request body throw UserRateLimiter.TooLargeException once more than this
+	 * many bytes have come out of it.  It's counted after un-gzipping, so a small gzipped body
+	 * can't blow up into a huge one.
+	 * @param maxRequestBytes or -1 for no limit
+	 */
+	public void setMaxRequestBytes(long maxRequestBytes) {
+		this.maxRequestBytes = maxRequestBytes;
+	}
+
+
+
+	/**
+	 * @return a reader over the request body, using the charset from the request or UTF-8 if none was given
+	 * @throws IOException
+	 */
+	public Reader openRequestReader() throws IOException {
+		String charset = req.getCharacterEncoding() != null ? req.getCharacterEncoding() : DEFAULT_CHARSET;
+		return new BufferedReader(new InputStreamReader(openRequestStream(), charset));
+	}//openRequestReader
+
+
+
+	/**
+	 * @return the request body bytes, un-gzipped if needed
+	 * @throws IOException
+	 */
+	public InputStream openRequestStream() throws IOException {
+		requestWireCounter = new CountingInputStream(req.getInputStream());
+		InputStream in = requestWireCounter;
+		if (isRequestGzipped(req)) {
+			in = new GZIPInputStream(in);
+		}
+		requestDataCounter = new CountingInputStream(in);
+		requestDataCounter.limit = maxRequestBytes;
+		return new BufferedInputStream(requestDataCounter);
+	}//openRequestStream
+
+
+
+	/**
+	 * Start the response body.  Call this only once all the headers and the status are set.
+	 * @return a writer for the response body, gzipped if the client allows it
+	 * @throws IOException
+	 */
+	public Writer openResponseWriter() throws IOException {
+		resp.setCharacterEncoding(DEFAULT_CHARSET);
+		responseWriter = new BufferedWriter(new OutputStreamWriter(openResponse(), DEFAULT_CHARSET));
+		return responseWriter;
+	}//openResponseWriter
+
+
+
+	/**
+	 * Start a binary response body.  Call this only once all the headers and the status are set.
+	 * @return a stream for the response body, gzipped if the client allows it
+	 * @throws IOException
+	 */
+	public OutputStream openResponseStream() throws IOException {
+		resp.setContentType(BINARY_CONTENT_TYPE);
+		responseStream = new BufferedOutputStream(openResponse());
+		return responseStream;
+	}//openResponseStream
+
+
+
+	private OutputStream openResponse() throws IOException {
+		responseStartNanos = SyncTimer.begin();
+		resp.setHeader("Vary", VARY);
+		responseGzipped = acceptsGzip(req);
+		responseWireCounter = new CountingOutputStream(resp.getOutputStream());
+		OutputStream out = responseWireCounter;
+		if (responseGzipped) {
+			resp.setHeader("Content-Encoding", GZIP);
+			out = new GZIPOutputStream(out);
+		}
+		responseDataCounter = new CountingOutputStream(out);
+		return responseDataCounter;
+	}//openResponse
+
+
+
+	/**
+	 * Finish the response (writes the gzip trailer) and log the sizes and compression ratios.
+	 * @param what name to put in the log, e.g. "doPost"
+	 * @throws IOException
+	 */
+	public void finish(String what) throws IOException {
+		if (responseWriter != null) {
+			responseWriter.close();
+		}
+		if (responseStream != null) {
+			responseStream.close();
+		}
+		if (responseDataCounter != null) {
+			SyncTimer.end(SyncTimer.WRITE, responseStartNanos);
+		}
+		SyncTimer.count(SyncTimer.REQUEST_BYTES, getRequestWireBytes());
+		SyncTimer.count(SyncTimer.RESPONSE_BYTES, getResponseWireBytes());
+		StringBuilder msg = new StringBuilder(what).append(": ");
+		if (requestDataCounter != null) {
+			msg.append("request ").append(getRequestDataBytes()).append(" bytes, ")
+				.append(getRequestWireBytes()).append(" on the wire (")
+				.append(isRequestGzipped(req) ? "gzip ratio " + ratio(getRequestDataBytes(), getRequestWireBytes()) : "uncompressed")
+				.append("), ");
+		}
+		msg.append("response ").append(getResponseDataBytes()).append(" bytes, ")
+			.append(getResponseWireBytes()).append(" on the wire (")
+			.append(responseGzipped ? "gzip ratio " + ratio(getResponseDataBytes(), getResponseWireBytes()) : "uncompressed")
+			.append(")");
+		log.info(msg.toString());
+	}//finish
+
+
+
+	private static String ratio(long dataBytes, long wireBytes) {
+		if (wireBytes == 0) return "n/a";
+		return String.format("%.1f", (double) dataBytes / wireBytes);
+	}//ratio
+
+
+
+	/** @return bytes of (uncompressed) request data read so far, or 0 if the body wasn't read */
+	public long getRequestDataBytes() {
+		return requestDataCounter == null ? 0 : requestDataCounter.count;
+	}
+
+	/** @return bytes of request body read off the wire so far, or 0 if the body wasn't read */
+	public long getRequestWireBytes() {
+		return requestWireCounter == null ? 0 : requestWireCounter.count;
+	}
+
+	/** @return bytes of (uncompressed) response data written so far */
+	public long getResponseDataBytes() {
+		return responseDataCounter == null ? 0 : responseDataCounter.count;
+	}
+
+	/** @return bytes of response body written to the wire so far */
+	public long getResponseWireBytes() {
+		return responseWireCounter == null ? 0 : responseWireCounter.count;
+	}
+
+	/** @return true if the response is gzipped */
+	public boolean isResponseGzipped() {
+		return responseGzipped;
+	}
+
+
+
+	/** Counts the bytes read through it, and stops at limit if there is one */
+	private static class CountingInputStream extends FilterInputStream {
+		long count = 0;
+		long limit = -1;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) count++;
+			checkLimit();
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) count += n;
+			checkLimit();
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			checkLimit();
+			return skipped;
+		}
+
+		private void checkLimit() throws IOException {
+			if (limit >= 0 && count > limit) {
+				throw new UserRateLimiter.TooLargeException(limit);
+			}
+		}
+	}//CountingInputStream
+
+
+
+	/** Counts the bytes written through it */
+	private static class CountingOutputStream extends FilterOutputStream {
+		long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			//FilterOutputStream's version writes one byte at a time
+			out.write(b, off, len);
+			count += len;
+		}
+	}//CountingOutputStream
+}//SyncIO
@@ -0,0 +1,256 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * One full sync for a user: load everything they can see, merge the client data into it,
+ * and commit each changed list, all through a ListeyStore.  Holds the results the servlet needs to
+ * build its response.
+ *
+ * Each list is committed on its own, so if one of them keeps changing under the merge after
+ * MAX_REMERGES tries, the lists before it are already committed.  That list is left out instead
+ * of failing the whole sync: isComplete is false, updatedData has the server's copy of it, and
+ * getTempToPermanentIds only has the ids that were committed, so the client can record those
+ * and send the rest again.
+ *
+ * @author David
+ *
+ */
+public class SyncMerge {
+	private static final Logger log = Logger.getLogger(SyncMerge.class.getName());
+
+	//How many times a list can be reloaded and re-merged because someone else committed to it first
+	public static final int MAX_REMERGES = 10;
+	//What to tell the client to wait before sending again, when a list was left out
+	public static final int RETRY_AFTER_SECONDS = 1;
+
+	private SyncToken newSyncToken;
+	private ListeyDataMultipleUsers currentData;
+	private ListeyDataMultipleUsers updatedData;
+	private DataStoreUniqueId uniqueIdCreator;
+	private List<Key> uncommittedLists = new ArrayList<Key>();
+	//Permanent ids of the nodes in uncommittedLists, whose temporary ids don't go back to the client
+	private Set<String> uncommittedIds = new HashSet<String>();
+
+
+
+	/**
+	 * Load, merge and commit.
+	 * @param store
+	 * @param userEmail logged in user
+	 * @param passedData data from the client
+	 * @return the merge, with currentData as loaded and updatedData as committed
+	 */
+	public static SyncMerge run(ListeyStore store, String userEmail, ListeyDataMultipleUsers passedData) {
+		SyncMerge rv = new SyncMerge();
+		rv.uniqueIdCreator = new DataStoreUniqueId(store);
+		rv.uniqueIdCreator.reserveFor(passedData);
+		//Taken before loading, so anything this load misses is after the new token
+		rv.newSyncToken = SyncToken.now();
+		//Load and merge outside of any transaction, each list is committed on its own below
+		rv.currentData = store.loadAll(userEmail);
+
+		//Compare the stored and the passed data.
+		List<Entity> updateEntities = new ArrayList<Entity>();
+		List<Key> deleteKeys = new ArrayList<Key>();
+		long start = SyncTimer.begin();
+		rv.updatedData = ListeyDataMultipleUsers.compareAndUpdate(rv.uniqueIdCreator, rv.currentData, passedData, updateEntities, deleteKeys);
+		SyncTimer.end(SyncTimer.MERGE, start);
+		SyncTimer.count(SyncTimer.CLIENT_NODES, passedData.getNodeCount());
+		SyncTimer.count(SyncTimer.SERVER_NODES, rv.currentData.getNodeCount());
+		log.info("run: updating " + updateEntities.size() + " entities, deleting " + deleteKeys.size() + " entities");
+		TimeStampedNode.stampServerUpdate(updateEntities, System.currentTimeMillis());
+
+		//Commit each list only if nobody else committed to it since we loaded it.  If they did,
+		//reload and re-merge just that list.
+		Set<String> changedChannels = new HashSet<String>();
+		for (ListCommitter.ListChanges changes : ListCommitter.groupByList(updateEntities, deleteKeys).values()) {
+			changes.setExpectedVersion(rv.loadedVersion(changes.getListKey()));
+			int remerges = MAX_REMERGES;
+			boolean committed;
+			while (!(committed = store.commit(changes)) && remerges > 0) {
+				--remerges;
+				start = SyncTimer.begin();
+				changes = rv.remergeList(store, userEmail, changes.getListKey(), passedData);
+				SyncTimer.end(SyncTimer.REMERGE, start);
+			}
+			if (committed) {
+				changedChannels.addAll(ChangeNotifiers.channelsFor(changes.getUpdateEntities(), changes.getDeleteKeys()));
+			}
+			else {
+				//Not worth failing the lists that already went in
+				log.warning("run: list " + changes.getListKey() + " kept changing while merging, leaving it out");
+				rv.leaveOut(changes);
+			}
+		}//foreach list
+		ChangeNotifiers.get().publish(changedChannels);
+		return rv;
+	}//run
+
+
+
+	/**
+	 * @return the version of the list as it was loaded into currentData, 0 if it wasn't there
+	 */
+	private long loadedVersion(Key listKey) {
+		ListeyDataOneUser owner = currentData.userData.get(listKey.getParent().getName());
+		ListInfo list = owner == null ? null : owner.lists.get(listKey.getName());
+		return list == null ? 0 : list.getVersion();
+	}//loadedVersion
+
+
+
+	/**
+	 * Somebody else committed to the list since we loaded it, so reload just that list
+	 * and merge the client's copy into it again.  currentData and updatedData are updated
+	 * in place with the reloaded and re-merged list.
+	 * @return the changes to commit for the list now
+	 */
+	private ListCommitter.ListChanges remergeList(ListeyStore store, String userEmail, Key listKey, ListeyDataMultipleUsers passedData) {
+		String owner = listKey.getParent().getName();
+		String listId = listKey.getName();
+		log.info("remergeList: " + owner + " list " + listId);
+
+		//Only the owner sees the privs they granted on the list
+		ListeyDataOneUser reloaded = store.loadList(owner, listId, owner.equals(userEmail));
+		ListInfo serverList = reloaded.lists.get(listId);
+		ListeyDataOneUser currentOwner = getOrAddUser(currentData, owner);
+		if (serverList != null) {
+			currentOwner.lists.put(listId, serverList);
+			currentOwner.clearDigest();
+		}
+
+		ListInfo clientList = null;
+		ListeyDataOneUser clientOwner = passedData.userData.get(owner);
+		if (clientOwner != null) {
+			clientList = clientOwner.lists.get(listId);
+			if (clientList == null) {
+				//New list from the client, which is still under its temporary id
+				for (Map.Entry<String, String> entry : uniqueIdCreator.getTempToPermanentIds().entrySet()) {
+					if (entry.getValue().equals(listId)) {
+						clientList = clientOwner.lists.get(entry.getKey());
+					}
+				}
+			}
+		}//if client sent the owner
+
+		ListCommitter.ListChanges changes = new ListCommitter.ListChanges(listKey);
+		changes.setExpectedVersion(serverList == null ? 0 : serverList.getVersion());
+		ListInfo merged = null;
+		if (serverList != null || clientList != null) {
+			merged = (ListInfo) TimeStampedNode.compareAndUpdate(uniqueIdCreator, ListeyDataOneUser.getEntityKey(owner), serverList, clientList,
+					currentOwner.lists.values(), changes.getUpdateEntities(), changes.getDeleteKeys());
+		}
+		TimeStampedNode.stampServerUpdate(changes.getUpdateEntities(), System.currentTimeMillis());
+
+		ListeyDataOneUser updatedOwner = getOrAddUser(updatedData, owner);
+		updatedOwner.lists.remove(listId);
+		if (merged != null) {
+			updatedOwner.lists.put(merged.getUniqueId(), merged);
+		}
+		updatedOwner.clearDigest();
+		return changes;
+	}//remergeList
+
+
+
+	/**
+	 * The list couldn't be committed, so put the server's copy back in updatedData and keep
+	 * the ids given to its new nodes from going back to the client.
+	 */
+	private void leaveOut(ListCommitter.ListChanges changes) {
+		Key listKey = changes.getListKey();
+		uncommittedLists.add(listKey);
+		uncommittedIds.add(listKey.getName());
+		for (Entity entity : changes.getUpdateEntities()) {
+			uncommittedIds.add(entity.getKey().getName());
+		}
+
+		String owner = listKey.getParent().getName();
+		ListeyDataOneUser currentOwner = currentData.userData.get(owner);
+		ListInfo serverList = currentOwner == null ? null : currentOwner.lists.get(listKey.getName());
+		ListeyDataOneUser updatedOwner = getOrAddUser(updatedData, owner);
+		updatedOwner.lists.remove(listKey.getName());
+		if (serverList != null) {
+			updatedOwner.lists.put(serverList.getUniqueId(), serverList);
+		}
+		updatedOwner.clearDigest();
+	}//leaveOut
+
+
+
+	private static ListeyDataOneUser getOrAddUser(ListeyDataMultipleUsers data, String userEmail) {
+		ListeyDataOneUser rv = data.userData.get(userEmail);
+		if (rv == null) {
+			rv = new ListeyDataOneUser();
+			rv.setUniqueId(userEmail);
+			data.userData.put(userEmail, rv);
+		}
+		return rv;
+	}//getOrAddUser
+
+
+
+	/**
+	 * @return the token to send back for the next delta sync
+	 */
+	public SyncToken getNewSyncToken() {
+		return newSyncToken;
+	}
+
+	/**
+	 * @return the server data as it was loaded before the merge
+	 */
+	public ListeyDataMultipleUsers getCurrentData() {
+		return currentData;
+	}
+
+	/**
+	 * @return the merged data, as committed
+	 */
+	public ListeyDataMultipleUsers getUpdatedData() {
+		return updatedData;
+	}
+
+	/**
+	 * @return the permanent ids given to the client's temporary ids, only for nodes that were committed
+	 */
+	public Map<String, String> getTempToPermanentIds() {
+		if (uncommittedIds.isEmpty()) {
+			return uniqueIdCreator.getTempToPermanentIds();
+		}
+		Map<String, String> rv = new HashMap<String, String>();
+		for (Map.Entry<String, String> entry : uniqueIdCreator.getTempToPermanentIds().entrySet()) {
+			if (!uncommittedIds.contains(entry.getValue())) {
+				rv.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * @return true if every changed list was committed, false if some were left out (see the class comment)
+	 */
+	public boolean isComplete() {
+		return uncommittedLists.isEmpty();
+	}
+
+	/**
+	 * @return the lists that kept changing and weren't committed
+	 */
+	public List<Key> getUncommittedLists() {
+		return uncommittedLists;
+	}
+}//SyncMerge
@@ -0,0 +1,83 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One small change from the client, for OpsServlet.  Parsed straight from the JSON by gson.
+ *
+ * JSON Data Format
+   {
+        "ops" : [
+            {"op" : "ADD", "owner" : "<OWNER_EMAIL>", "listId" : "1:1", "itemId" : ":5", "name" : "Milk", "count" : 2, "lastUpdate" : 1234567890},
+            {"op" : "CHECK", "owner" : "<OWNER_EMAIL>", "listId" : "1:1", "itemId" : "2:7", "lastUpdate" : 1234567891},
+            {"op" : "RENAME", "owner" : "<OWNER_EMAIL>", "listId" : "1:1", "name" : "Groceries", "lastUpdate" : 1234567892},
+            ...
+        ]
+   }
+ *
+ * Leaving out itemId means the op is on the list itself, which only supports RENAME and DELETE.
+ * A later op in the same batch can refer to an item added earlier in it by its temporary id.
+ *
+ * @author David
+ *
+ */
+public class SyncOp {
+	public static enum OpType {
+		ADD,//new item, itemId must be a temporary id
+		CHECK,//status COMPLETED
+		UNCHECK,//status ACTIVE
+		RENAME,
+		COUNT,//set the count
+		DELETE
+	}
+
+	public OpType op;
+	public String owner;
+	public String listId;
+	public String itemId;
+	public String name;
+	public Long count;
+	public Long lastUpdate;
+
+	//Position in the batch, for reporting rejected ops.  Not part of the JSON.
+	public transient int index;
+
+
+	/** The whole request */
+	public static class Batch {
+		public List<SyncOp> ops = new ArrayList<SyncOp>();
+	}//Batch
+
+
+	/**
+	 * @return true if this has the fields its op type needs
+	 */
+	public boolean isValid() {
+		if (op == null || owner == null || listId == null || listId.length() == 0 || lastUpdate == null) return false;
+		if (itemId != null && itemId.length() == 0) return false;
+		if (itemId == null) {
+			//List ops
+			return (op == OpType.RENAME && name != null) || op == OpType.DELETE;
+		}
+		switch (op) {
+		case ADD:
+			return name != null && DataStoreUniqueId.isTemporaryId(itemId);
+		case RENAME:
+			return name != null;
+		case COUNT:
+			return count != null;
+		default:
+			return true;
+		}
+	}//isValid
+
+
+	@Override
+	public String toString() {
+		return op + " " + owner + "/" + listId + (itemId == null ? "" : "/" + itemId);
+	}//toString
+}//SyncOp
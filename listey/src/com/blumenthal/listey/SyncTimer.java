@@ -0,0 +1,299 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.google.gson.Gson;
+
+/**
+ * Times the phases of one request, for the Server-Timing header and the slow request log.
+ *
+ * SyncTimingFilter starts one for each /ajax request on the request's thread, and the code
+ * that does the work marks its phases with the static methods, which do nothing if there's no
+ * timer, e.g. in tests:
+ *
+ *   long start = SyncTimer.begin();
+ *   ...
+ *   SyncTimer.end(SyncTimer.LOAD, start);
+ *
+ * A phase can run more than once (each remerge, each list commit), its times and runs add up.
+ * Phases can be inside other phases: uniqueId is part of merge, and put and commit are part of
+ * remerge when a list is re-merged.  Counts (entities put, nodes sent, ...) go along with them.
+ *
+ * Threads a request starts can attach() its timer, so the timer's methods are synchronized.
+ *
+ * Requests that take longer than slowMillis are logged as one line of JSON, at most
+ * slowLogPerMinute of them per minute per instance so a slow datastore doesn't flood the log.
+ *
+ * Settings (system properties, see ListeyConfig):
+ *   listey.timing.slowMillis - default 1000
+ *   listey.timing.slowLogPerMinute - default 60
+ *
+ * @author David
+ *
+ */
+public class SyncTimer {
+	private static final Logger log = Logger.getLogger(SyncTimer.class.getName());
+
+	//Phases
+	public static final String PARSE = "parse";
+	public static final String WAIT = "wait";
+	public static final String LEASE = "lease";
+	public static final String LOAD = "load";
+	public static final String SHARED = "shared";
+	public static final String MERGE = "merge";
+	public static final String UNIQUE_ID = "uniqueId";
+	public static final String REMERGE = "remerge";
+	public static final String PUT = "put";
+	public static final String COMMIT = "commit";
+	public static final String WRITE = "write";
+
+	//Counts
+	public static final String CLIENT_NODES = "clientNodes";
+	public static final String SERVER_NODES = "serverNodes";
+	public static final String ENTITIES_PUT = "entitiesPut";
+	public static final String KEYS_DELETED = "keysDeleted";
+	public static final String REQUEST_BYTES = "requestBytes";
+	public static final String RESPONSE_BYTES = "responseBytes";
+	public static final String SNAPSHOT_HITS = "snapshotHits";
+	public static final String SNAPSHOT_MISSES = "snapshotMisses";
+
+	private static final ThreadLocal<SyncTimer> current = new ThreadLocal<SyncTimer>();
+	private static final Gson gson = new Gson();
+
+	private static volatile long slowMillis = ListeyConfig.getLong("timing.slowMillis", 1000);
+	private static int slowLogPerMinute = ListeyConfig.getInt("timing.slowLogPerMinute", 60);
+	private static long slowLogMinute;
+	private static int slowLogged;
+
+	private String name;
+	private long startNanos;
+	private Map<String, Long> phaseNanos = new LinkedHashMap<String, Long>();
+	private Map<String, Integer> phaseRuns = new LinkedHashMap<String, Integer>();
+	private Map<String, Long> counts = new LinkedHashMap<String, Long>();
+	private String user;
+
+
+
+	private SyncTimer(String name) {
+		this.name = name;
+		this.startNanos = System.nanoTime();
+	}
+
+
+
+	/**
+	 * Start timing a request on this thread
+	 * @param name what the request is, for the log, e.g. "POST /ajax"
+	 * @return the timer, which is also current() until stop()
+	 */
+	public static SyncTimer start(String name) {
+		SyncTimer rv = new SyncTimer(name);
+		current.set(rv);
+		return rv;
+	}//start
+
+
+
+	/**
+	 * Use another thread's timer on this thread, e.g. on a thread a request started to help it
+	 * (see ParallelLoader), so what it does counts toward the request.  Unlike start(), the timer
+	 * isn't stopped here; attach null when done.
+	 * @param timer from current() on the request's thread, or null
+	 */
+	public static void attach(SyncTimer timer) {
+		if (timer == null) {
+			current.remove();
+		}
+		else {
+			current.set(timer);
+		}
+	}//attach
+
+
+
+	/**
+	 * @return this thread's timer, or null if there isn't one
+	 */
+	public static SyncTimer current() {
+		return current.get();
+	}//current
+
+
+
+	/**
+	 * @return a start time to pass to end()
+	 */
+	public static long begin() {
+		return System.nanoTime();
+	}//begin
+
+
+
+	/**
+	 * Add the time since startNanos to the phase on this thread's timer, if there is one
+	 * @param phase e.g. SyncTimer.LOAD
+	 * @param startNanos from begin()
+	 */
+	public static void end(String phase, long startNanos) {
+		SyncTimer timer = current.get();
+		if (timer != null) {
+			timer.addPhase(phase, System.nanoTime() - startNanos);
+		}
+	}//end
+
+
+
+	/**
+	 * Add to a count on this thread's timer, if there is one
+	 * @param name e.g. SyncTimer.ENTITIES_PUT
+	 */
+	public static void count(String name, long value) {
+		SyncTimer timer = current.get();
+		if (timer != null) {
+			timer.addCount(name, value);
+		}
+	}//count
+
+
+
+	private synchronized void addCount(String name, long value) {
+		Long old = counts.get(name);
+		counts.put(name, old == null ? value : old + value);
+	}//addCount
+
+
+
+	private synchronized void addPhase(String phase, long nanos) {
+		Long old = phaseNanos.get(phase);
+		phaseNanos.put(phase, old == null ? nanos : old + nanos);
+		Integer runs = phaseRuns.get(phase);
+		phaseRuns.put(phase, runs == null ? 1 : runs + 1);
+	}//addPhase
+
+
+
+	/**
+	 * @param user the logged in user, for the slow request log
+	 */
+	public void setUser(String user) {
+		this.user = user;
+	}
+
+
+
+	/**
+	 * @return the time since start() in millis
+	 */
+	public double getTotalMillis() {
+		return millis(System.nanoTime() - startNanos);
+	}
+
+
+
+	/**
+	 * @return the millis spent in the phase so far, 0 if it never ran
+	 */
+	public synchronized double getPhaseMillis(String phase) {
+		Long nanos = phaseNanos.get(phase);
+		return nanos == null ? 0 : millis(nanos);
+	}
+
+
+
+	/**
+	 * @return the count so far, 0 if it was never counted
+	 */
+	public synchronized long getCount(String name) {
+		Long count = counts.get(name);
+		return count == null ? 0 : count;
+	}
+
+
+
+	/**
+	 * @return the Server-Timing header value for the phases so far, plus the total so far
+	 */
+	public synchronized String toServerTiming() {
+		StringBuilder rv = new StringBuilder();
+		for (Map.Entry<String, Long> entry : phaseNanos.entrySet()) {
+			rv.append(entry.getKey()).append(";dur=").append(format(millis(entry.getValue()))).append(", ");
+		}
+		rv.append("total;dur=").append(format(getTotalMillis()));
+		return rv.toString();
+	}//toServerTiming
+
+
+
+	/**
+	 * Done with this request: take the timer off the thread and log the request if it was slow
+	 */
+	public void stop() {
+		current.remove();
+		double totalMillis = getTotalMillis();
+		if (totalMillis >= slowMillis && shouldLogSlow()) {
+			log.warning("slow request: " + toSlowLogJson(totalMillis));
+		}
+	}//stop
+
+
+
+	/**
+	 * @return one line of JSON with everything about the request
+	 */
+	synchronized String toSlowLogJson(double totalMillis) {
+		Map<String, Object> entry = new LinkedHashMap<String, Object>();
+		entry.put("request", name);
+		entry.put("user", user);
+		entry.put("totalMillis", Double.valueOf(format(totalMillis)));
+		Map<String, Object> phases = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, Long> phase : phaseNanos.entrySet()) {
+			Map<String, Object> phaseEntry = new LinkedHashMap<String, Object>();
+			phaseEntry.put("millis", Double.valueOf(format(millis(phase.getValue()))));
+			phaseEntry.put("runs", phaseRuns.get(phase.getKey()));
+			phases.put(phase.getKey(), phaseEntry);
+		}
+		entry.put("phases", phases);
+		entry.put("counts", counts);
+		return gson.toJson(entry);
+	}//toSlowLogJson
+
+
+
+	/**
+	 * @return true if the slow log still has room this minute
+	 */
+	private static synchronized boolean shouldLogSlow() {
+		long minute = System.currentTimeMillis() / 60000;
+		if (minute != slowLogMinute) {
+			slowLogMinute = minute;
+			slowLogged = 0;
+		}
+		return slowLogged++ < slowLogPerMinute;
+	}//shouldLogSlow
+
+
+
+	/**
+	 * Change when a request counts as slow, e.g. for tests
+	 */
+	public static synchronized void setSlowMillis(long newSlowMillis) {
+		slowMillis = newSlowMillis;
+	}
+
+
+
+	private static double millis(long nanos) {
+		return nanos / 1000000.0;
+	}
+
+	private static String format(double millis) {
+		//Always a ".", whatever the default locale is
+		return String.format(Locale.US, "%.1f", millis);
+	}
+}//SyncTimer
@@ -0,0 +1,98 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.security.Principal;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Times every /ajax request with a SyncTimer and reports the phases in a Server-Timing header.
+ *
+ * The header has to go out before the body, so it's added just as the servlet starts the body,
+ * and has everything up to then: the write phase (and the serializing that's streamed out
+ * with it) is only in the slow request log.  Responses without a body, e.g. a 304 or a 429,
+ * get the header after the servlet returns.
+ *
+ * @author David
+ *
+ */
+public class SyncTimingFilter implements Filter {
+	public static final String SERVER_TIMING = "Server-Timing";
+
+
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+	}
+
+
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+		HttpServletRequest req = (HttpServletRequest) request;
+		SyncTimer timer = SyncTimer.start(req.getMethod() + " " + req.getRequestURI());
+		Principal principal = req.getUserPrincipal();
+		if (principal != null) {
+			timer.setUser(principal.getName());
+		}
+		TimingResponse resp = new TimingResponse((HttpServletResponse) response, timer);
+		try {
+			chain.doFilter(request, resp);
+		}
+		finally {
+			resp.addServerTiming();
+			timer.stop();
+		}
+	}//doFilter
+
+
+
+	@Override
+	public void destroy() {
+	}
+
+
+
+	/** Adds the Server-Timing header once, right before the body starts */
+	private static class TimingResponse extends HttpServletResponseWrapper {
+		private SyncTimer timer;
+		private boolean added = false;
+
+		TimingResponse(HttpServletResponse resp, SyncTimer timer) {
+			super(resp);
+			this.timer = timer;
+		}
+
+		void addServerTiming() {
+			if (!added && !isCommitted()) {
+				added = true;
+				setHeader(SERVER_TIMING, timer.toServerTiming());
+			}
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			addServerTiming();
+			return super.getOutputStream();
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			addServerTiming();
+			return super.getWriter();
+		}
+	}//TimingResponse
+}//SyncTimingFilter
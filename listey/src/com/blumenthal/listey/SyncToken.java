@@ -0,0 +1,81 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+/**
+ * Opaque token handed to delta-sync clients.  It records the server time the
+ * client's last sync was taken at, so the next sync only has to send back
+ * nodes the server changed after that point.
+ *
+ * Token format is "<version>.<serverTime in base 36>".  Clients should never
+ * look inside it, just send back whatever they got last time.
+ *
+ * @author David
+ *
+ */
+public class SyncToken {
+	public static final String VERSION = "1";
+
+	/** How far back from the token time we still resend changes, to allow for
+	 *  clock differences between instances and for writes that were stamped
+	 *  before they committed.  Resending a node the client already has is harmless. */
+	public static final long CLOCK_SKEW_MILLIS = 60 * 1000L;
+
+	private final long serverTime;
+
+	public SyncToken(long serverTime) {
+		this.serverTime = serverTime;
+	}
+
+
+	/** @return a new token for the current server time */
+	public static SyncToken now() {
+		return new SyncToken(System.currentTimeMillis());
+	}//now
+
+
+	/**
+	 * Parse a token previously returned by toString().  Anything missing or unrecognized
+	 * turns into a token for time 0, which makes the sync send everything.
+	 *
+	 * @param token token string from the client, may be null or empty
+	 */
+	public static SyncToken parse(String token) {
+		if (token != null) {
+			int dot = token.indexOf('.');
+			if (dot > 0 && token.substring(0, dot).equals(VERSION)) {
+				try {
+					return new SyncToken(Long.parseLong(token.substring(dot + 1), 36));
+				} catch (NumberFormatException e) {
+					//fall through to full sync
+				}
+			}
+		}//if token
+		return new SyncToken(0L);
+	}//parse
+
+
+	/**
+	 * @param serverUpdate the server time a node was last written, may be null for
+	 * nodes written before we started stamping them.
+	 * @return true if a client holding this token may not have seen that write yet
+	 */
+	public boolean needsUpdate(Long serverUpdate) {
+		return serverUpdate != null && serverUpdate >= serverTime - CLOCK_SKEW_MILLIS;
+	}//needsUpdate
+
+
+	/**
+	 * @return the serverTime
+	 */
+	public long getServerTime() {
+		return serverTime;
+	}
+
+
+	@Override
+	public String toString() {
+		return VERSION + "." + Long.toString(serverTime, 36);
+	}
+}//SyncToken
@@ -3,18 +3,24 @@
  */
 package com.blumenthal.listey;
 
+import static com.blumenthal.listey.JsonFieldNameConstants.SERVER_UPDATE;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.logging.Logger;
 
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
-import com.google.gson.Gson;
 
 
 /**
@@ -26,6 +32,7 @@ import com.google.gson.Gson;
  */
 public abstract class TimeStampedNode implements Comparable<TimeStampedNode>{
 	private static final Logger log = Logger.getLogger(TimeStampedNode.class.getName());
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
 	
 	public static enum Status {
 		ACTIVE,
@@ -51,7 +58,66 @@ public abstract class TimeStampedNode implements Comparable<TimeStampedNode>{
 	public void setChangedOnServer (boolean newValue) {
 		changedOnServer=newValue;
 	}
-	
+
+
+	//Server time this node's entity was last written.  Only known for nodes loaded from the datastore.
+	//Transient so it never goes out in the JSON.
+	private transient Long serverUpdate;
+
+	/**
+	 * @return the server time this node was last written, or null if not known
+	 */
+	public Long getServerUpdate() {
+		return serverUpdate;
+	}
+
+	/**
+	 * @param serverUpdate the serverUpdate to set
+	 */
+	public void setServerUpdate(Long serverUpdate) {
+		this.serverUpdate = serverUpdate;
+	}
+
+	//Digest of this node and everything under it, see getSubtreeDigest.  Transient so it never goes out in the JSON.
+	private transient byte[] subtreeDigest;
+
+	//Set instead of the node's contents when the client only sent the digest of what it has, see isDigestOnly
+	private transient String clientDigest;
+
+	/**
+	 * @return true if the client didn't send this node's contents, just the digest of its copy,
+	 * because it hasn't changed it since the server last sent it.
+	 */
+	public boolean isDigestOnly() {
+		return clientDigest != null;
+	}
+
+	/**
+	 * @return the digest the client sent instead of the contents, or null
+	 */
+	public String getClientDigest() {
+		return clientDigest;
+	}
+
+	/**
+	 * @param clientDigest the clientDigest to set
+	 */
+	public void setClientDigest(String clientDigest) {
+		this.clientDigest = clientDigest;
+	}
+
+	/**
+	 * Stamp every entity about to be written with the server time, so delta syncs
+	 * can tell which nodes changed after a client's sync token.
+	 * @param entities
+	 * @param serverTime
+	 */
+	public static void stampServerUpdate(List<Entity> entities, long serverTime) {
+		for (Entity entity : entities) {
+			entity.setUnindexedProperty(SERVER_UPDATE, serverTime);
+		}
+	}//stampServerUpdate
+
 	/**
 	 * @return the lastUpdate
 	 */
@@ -132,14 +198,13 @@ public abstract class TimeStampedNode implements Comparable<TimeStampedNode>{
 	}
 	
 
-	/** Make a copy using json serialization */
-	public TimeStampedNode makeCopy() {
-		//true value means the json string should include all the fields
-		Gson gson = ListeyDataMultipleUsers.getGson(true);
-		String json = gson.toJson(this);
-		TimeStampedNode copy = gson.fromJson(json, this.getClass());
-		return copy;
-	}//makeCopy
+	/**
+	 * Make a deep copy, field for field what a JSON round trip with all the fields
+	 * (ListeyDataMultipleUsers.getGson(true)) would give, without the serializing and parsing.
+	 * So, like the JSON, the transient server-side fields (serverUpdate, the list version, the
+	 * digests) aren't copied, and changedOnServer is only kept where the JSON parsing keeps it.
+	 */
+	public abstract TimeStampedNode makeCopy();
 	
 	
 	public abstract TimeStampedNode makeShallowCopy();
@@ -223,6 +288,23 @@ public abstract class TimeStampedNode implements Comparable<TimeStampedNode>{
 			Iterable<? extends TimeStampedNode> serverPeers, List<Entity> updateEntities, List<Key> deleteKeys) {
 		TimeStampedNode rv = null;
 		
+		//The client hasn't touched it, so the server's copy wins.  If it's the same, there's nothing to send back.
+		if (clientObj != null && clientObj.isDigestOnly()) {
+			if (serverObj == null) {
+				//Gone from the server for good (or unshared), the client drops it
+				return null;
+			}
+			if (clientObj.getClientDigest().equals(serverObj.getSubtreeDigestHex())) {
+				//A copy, so nothing in the result is shared with the server's tree, but the digest is the same
+				rv = serverObj.makeCopy();
+				rv.subtreeDigest = serverObj.getSubtreeDigest();
+				return rv;
+			}
+			rv = serverObj.makeCopy();
+			rv.setChangedOnServer(true);
+			return rv;
+		}//client only sent the digest
+		
 		//New from the client
 		if (serverObj == null) {
 			if (!clientObj.getStatus().equals(Status.DELETED)) {
@@ -275,14 +357,11 @@ public abstract class TimeStampedNode implements Comparable<TimeStampedNode>{
 				if (!clientObj.shallowEquals(serverObj)) {
 					Entity thisEntity;
 					if (rv.getStatus().equals(Status.DELETED)) {
-						List<Entity> thisAndChildEntities = newer.toEntities(uniqueIdCreator, parent);
-						thisEntity = thisAndChildEntities.remove(0);
+						//Just the tombstone.  Everything under it on the server is deleted after the
+						//commit by CascadeDelete, and isn't loaded in the meantime.
+						thisEntity = rv.toEntity(uniqueIdCreator, parent);
 						updateEntities.add(thisEntity);
 						getLog().info("Adding top entity to update for " + newer.getKind() + " " + newer.getUniqueId() + " deleted on client");
-						for (Entity toDelete : thisAndChildEntities) {
-							getLog().info("  Adding child entity to delete");
-							deleteKeys.add(toDelete.getKey());
-						}
 						return rv;
 					}
 					//If the top-level object changed on the client then push it on the update list
@@ -385,7 +464,277 @@ public abstract class TimeStampedNode implements Comparable<TimeStampedNode>{
 		return rv;
 	}//compareAndUpdate
 
-	
+
+
+	/**
+	 * Used for delta syncs.  Walks the result of compareAndUpdate along with the server and client
+	 * versions it came from, and copies out only the nodes the client doesn't already have:
+	 *   - nodes the client sent, but the server version won
+	 *   - nodes the client didn't send, that were written on the server after the sync token
+	 * Parents of any such node are included (shallow) so the client knows where it goes.
+	 * New nodes from the client are not included, the client maps them with the temp id map instead.
+	 *
+	 * @param merged node returned by compareAndUpdate
+	 * @param serverObj matching node loaded from the server, or null
+	 * @param clientObj matching node sent by the client, or null
+	 * @param since token the client sent
+	 * @return a pruned copy of merged, or null if the client needs nothing from this subtree
+	 * (or merged itself, if the client only sent a digest and it doesn't match)
+	 */
+	public static TimeStampedNode changedSince(TimeStampedNode merged, TimeStampedNode serverObj, TimeStampedNode clientObj, SyncToken since) {
+		if (clientObj != null && clientObj.isDigestOnly()) {
+			//Either the client already has all of it, or it needs all of it
+			return clientObj.getClientDigest().equals(merged.getSubtreeDigestHex()) ? null : merged;
+		}
+		boolean changed;
+		if (clientObj == null) {
+			changed = serverObj != null && since.needsUpdate(serverObj.getServerUpdate());
+		}
+		else {
+			changed = !merged.shallowEquals(clientObj);
+		}
+
+		//MAPS ####################################################
+		List<List<? extends TimeStampedNode>> subMapAddLists = null;
+		List<Map<String, ? extends TimeStampedNode>> mergedSubMaps = merged.subMapsToCompare();
+		if (mergedSubMaps != null) {
+			List<Map<String, ? extends TimeStampedNode>> serverSubMaps = serverObj == null ? null : serverObj.subMapsToCompare();
+			List<Map<String, ? extends TimeStampedNode>> clientSubMaps = clientObj == null ? null : clientObj.subMapsToCompare();
+			subMapAddLists = new ArrayList<List<? extends TimeStampedNode>>();
+			for (int i=0; i<mergedSubMaps.size(); i++) {
+				List<TimeStampedNode> subMapEntriesToAdd = new ArrayList<TimeStampedNode>();
+				subMapAddLists.add(subMapEntriesToAdd);
+				for (TimeStampedNode mergedSubObj : mergedSubMaps.get(i).values()) {
+					String id = mergedSubObj.getUniqueId();
+					TimeStampedNode serverSubObj = serverSubMaps == null ? null : serverSubMaps.get(i).get(id);
+					TimeStampedNode clientSubObj = clientSubMaps == null ? null : clientSubMaps.get(i).get(id);
+					TimeStampedNode changedSubObj = changedSince(mergedSubObj, serverSubObj, clientSubObj, since);
+					if (changedSubObj != null) {
+						subMapEntriesToAdd.add(changedSubObj);
+						changed = true;
+					}
+				}//for each subObj
+			}//for each submap
+		}//if any submaps exist
+
+		//ITERABLES ####################################################
+		List<List<? extends TimeStampedNode>> subIterAddLists = null;
+		List<Iterable<? extends TimeStampedNode>> mergedSubIters = merged.subIterablesToCompare();
+		if (mergedSubIters != null) {
+			List<Iterable<? extends TimeStampedNode>> serverSubIters = serverObj == null ? null : serverObj.subIterablesToCompare();
+			List<Iterable<? extends TimeStampedNode>> clientSubIters = clientObj == null ? null : clientObj.subIterablesToCompare();
+			subIterAddLists = new ArrayList<List<? extends TimeStampedNode>>();
+			for (int i=0; i<mergedSubIters.size(); i++) {
+				List<TimeStampedNode> subIterEntriesToAdd = new ArrayList<TimeStampedNode>();
+				subIterAddLists.add(subIterEntriesToAdd);
+				Map<String, TimeStampedNode> serverById = serverSubIters == null ? null : mapById(serverSubIters.get(i));
+				Map<String, TimeStampedNode> clientById = clientSubIters == null ? null : mapById(clientSubIters.get(i));
+				for (TimeStampedNode mergedSubObj : mergedSubIters.get(i)) {
+					String id = mergedSubObj.getUniqueId();
+					TimeStampedNode serverSubObj = serverById == null ? null : serverById.get(id);
+					TimeStampedNode clientSubObj = clientById == null ? null : clientById.get(id);
+					TimeStampedNode changedSubObj = changedSince(mergedSubObj, serverSubObj, clientSubObj, since);
+					if (changedSubObj != null) {
+						subIterEntriesToAdd.add(changedSubObj);
+						changed = true;
+					}
+				}//for each subObj
+			}//for each subIter
+		}//if any subiters exist
+
+		if (!changed) return null;
+
+		TimeStampedNode rv = merged.makeShallowCopy();
+		rv.setChangedOnServer(merged.getChangedOnServer());
+		if (subMapAddLists != null) rv.addSubMapEntries(subMapAddLists);
+		if (subIterAddLists != null) rv.addSubIterEntries(subIterAddLists);
+		return rv;
+	}//changedSince
+
+
+
+	/**
+	 * Feed this node and everything under it into md, e.g. for an ETag.
+	 * Children are walked in uniqueId order, so the digest doesn't depend on HashMap ordering.
+	 * Only the fields that go out in the JSON are included, never the transient server-side ones.
+	 * @param md
+	 */
+	public void digest(MessageDigest md) {
+		digestShallowFields(md);
+		digestValue(md, getChangedOnServer());
+		List<Map<String, ? extends TimeStampedNode>> subMaps = subMapsToCompare();
+		if (subMaps != null) {
+			for (Map<String, ? extends TimeStampedNode> subMap : subMaps) {
+				md.update((byte) '{');
+				for (TimeStampedNode subObj : new TreeMap<String, TimeStampedNode>(subMap).values()) {
+					subObj.digest(md);
+				}
+				md.update((byte) '}');
+			}//foreach submap
+		}//if any submaps
+		List<Iterable<? extends TimeStampedNode>> subIters = subIterablesToCompare();
+		if (subIters != null) {
+			for (Iterable<? extends TimeStampedNode> subIter : subIters) {
+				md.update((byte) '[');
+				for (TimeStampedNode subObj : new TreeMap<String, TimeStampedNode>(mapById(subIter)).values()) {
+					subObj.digest(md);
+				}
+				md.update((byte) ']');
+			}//foreach subIter
+		}//if any subIters
+	}//digest
+
+
+
+	/**
+	 * Feed the top-level fields of this node into md.  Subclasses with more
+	 * fields than the ones the base class knows about need to override this
+	 * (and call super).
+	 * @param md
+	 */
+	protected void digestShallowFields(MessageDigest md) {
+		digestValue(md, getKind());
+		digestValue(md, getUniqueId());
+		digestValue(md, getName());
+		digestValue(md, getStatus());
+		digestValue(md, getLastUpdate());
+	}//digestShallowFields
+
+
+
+	/**
+	 * A SHA-1 of this node's fields and its children's subtree digests, so two subtrees with the
+	 * same digest are the same all the way down.  Like digest(), only the fields that are stored
+	 * count, and it leaves out changedOnServer too.
+	 * 
+	 * The merge doesn't use it to compare the server and client trees, since hashing both would
+	 * cost more than walking them.  It's only taken for a list the client sent as just a digest
+	 * (see isDigestOnly), and for the list digests in a delta response.
+	 * 
+	 * It's computed once and kept.  The setters and addSub*Entries clear it, but they can't clear
+	 * it on the parents, so anything that changes a node in place after the digest of a parent
+	 * was taken (or puts into a child map directly) has to call clearDigest() on the parents.
+	 * @return the digest
+	 */
+	public byte[] getSubtreeDigest() {
+		if (subtreeDigest == null) {
+			MessageDigest md = newDigest();
+			digestShallowFields(md);
+			List<Map<String, ? extends TimeStampedNode>> subMaps = subMapsToCompare();
+			if (subMaps != null) {
+				for (Map<String, ? extends TimeStampedNode> subMap : subMaps) {
+					md.update((byte) '{');
+					for (TimeStampedNode subObj : new TreeMap<String, TimeStampedNode>(subMap).values()) {
+						md.update(subObj.getSubtreeDigest());
+					}
+					md.update((byte) '}');
+				}//foreach submap
+			}//if any submaps
+			List<Iterable<? extends TimeStampedNode>> subIters = subIterablesToCompare();
+			if (subIters != null) {
+				for (Iterable<? extends TimeStampedNode> subIter : subIters) {
+					md.update((byte) '[');
+					for (TimeStampedNode subObj : new TreeMap<String, TimeStampedNode>(mapById(subIter)).values()) {
+						md.update(subObj.getSubtreeDigest());
+					}
+					md.update((byte) ']');
+				}//foreach subIter
+			}//if any subIters
+			subtreeDigest = md.digest();
+		}
+		return subtreeDigest;
+	}//getSubtreeDigest
+
+
+
+	/**
+	 * @return getSubtreeDigest() in hex, as it's sent to and from the client
+	 */
+	public String getSubtreeDigestHex() {
+		StringBuilder rv = new StringBuilder();
+		for (byte b : getSubtreeDigest()) {
+			rv.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return rv.toString();
+	}//getSubtreeDigestHex
+
+
+
+	/**
+	 * Forget the subtree digest, because this node or something under it changed
+	 */
+	public void clearDigest() {
+		subtreeDigest = null;
+	}//clearDigest
+
+
+
+	/**
+	 * @return a new SHA-1 MessageDigest
+	 */
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 not available", e);
+		}
+	}//newDigest
+
+
+
+	/**
+	 * Feed one field value into md, terminated so "ab","c" and "a","bc" digest differently
+	 */
+	protected static void digestValue(MessageDigest md, Object value) {
+		if (value == null) {
+			md.update((byte) 1);
+		}
+		else {
+			md.update(String.valueOf(value).getBytes(UTF_8));
+		}
+		md.update((byte) 0);
+	}//digestValue
+
+
+
+	/**
+	 * @return the newest lastUpdate of this node and everything under it
+	 */
+	public long maxLastUpdate() {
+		long rv = getLastUpdate() == null ? 0 : getLastUpdate();
+		List<Map<String, ? extends TimeStampedNode>> subMaps = subMapsToCompare();
+		if (subMaps != null) {
+			for (Map<String, ? extends TimeStampedNode> subMap : subMaps) {
+				for (TimeStampedNode subObj : subMap.values()) {
+					rv = Math.max(rv, subObj.maxLastUpdate());
+				}
+			}
+		}
+		List<Iterable<? extends TimeStampedNode>> subIters = subIterablesToCompare();
+		if (subIters != null) {
+			for (Iterable<? extends TimeStampedNode> subIter : subIters) {
+				for (TimeStampedNode subObj : subIter) {
+					rv = Math.max(rv, subObj.maxLastUpdate());
+				}
+			}
+		}
+		return rv;
+	}//maxLastUpdate
+
+
+
+	/**
+	 * @return the nodes of the iterable, keyed by uniqueId
+	 */
+	private static Map<String, TimeStampedNode> mapById(Iterable<? extends TimeStampedNode> nodes) {
+		Map<String, TimeStampedNode> rv = new HashMap<String, TimeStampedNode>();
+		for (TimeStampedNode node : nodes) {
+			rv.put(node.getUniqueId(), node);
+		}
+		return rv;
+	}//mapById
+
+
 	
 	/**
 	 * @return the log
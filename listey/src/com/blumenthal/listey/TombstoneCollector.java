@@ -0,0 +1,292 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import static com.blumenthal.listey.JsonFieldNameConstants.LAST_UPDATE;
+import static com.blumenthal.listey.JsonFieldNameConstants.SERVER_UPDATE;
+import static com.blumenthal.listey.JsonFieldNameConstants.STATUS;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * Removes deleted lists, items and categories for good once every device that could still
+ * need to hear about the delete has synced past it (see SyncHorizon).  Until then they stay,
+ * since a client that never saw the tombstone would otherwise send its copy back as new.
+ *
+ * A list's horizon is the oldest of the horizons of its owner and everyone it's shared with.
+ * A tombstone goes if it was written (serverUpdate) before that.  One with no serverUpdate was
+ * written before the server stamped them, so its lastUpdate from the client is used instead,
+ * and it still has to be older than the horizon (which is at least listey.gc.minAgeDays ago).
+ * One with neither stays.  Whatever is still under it, and
+ * item categories for a category that goes, go with it.  Each transaction removes at most
+ * BATCH_SIZE, through ListBlobs.write so it works for either layout, and bumps the list's
+ * version like any other commit.
+ *
+ * TombstoneGcServlet runs it over every list from cron.
+ *
+ * @author David
+ *
+ */
+public class TombstoneCollector {
+	private static final Logger log = Logger.getLogger(TombstoneCollector.class.getName());
+
+	//Most entities removed in one transaction
+	public static final int BATCH_SIZE = 500;
+	//How many list keys each round trip of the scan gets
+	public static final int PAGE_SIZE = 100;
+
+
+	/** What one run (which can be spread over several requests) has looked up and done */
+	public static class Run {
+		private long now;
+		private Map<String, Long> horizons = new HashMap<String, Long>();
+		private Map<String, Long> purgedThrough = new HashMap<String, Long>();
+		private Map<String, Integer> reclaimed = new TreeMap<String, Integer>();
+
+		public Run(long now) {
+			this.now = now;
+		}
+
+		private long getHorizon(DatastoreService datastore, String userEmail) {
+			Long horizon = horizons.get(userEmail);
+			if (horizon == null) {
+				horizon = SyncHorizon.getHorizon(datastore, userEmail, now);
+				horizons.put(userEmail, horizon);
+			}
+			return horizon;
+		}//getHorizon
+
+		private void markPurged(DatastoreService datastore, String userEmail, long horizon) {
+			Long marked = purgedThrough.get(userEmail);
+			if (marked == null || marked < horizon) {
+				SyncHorizon.setPurgedThrough(datastore, userEmail, horizon);
+				purgedThrough.put(userEmail, horizon);
+			}
+		}//markPurged
+
+		private void addReclaimed(String userEmail, int count) {
+			Integer sofar = reclaimed.get(userEmail);
+			reclaimed.put(userEmail, sofar == null ? count : sofar + count);
+		}//addReclaimed
+
+		/**
+		 * @return how many entities were removed, by the owner of the list they were in
+		 */
+		public Map<String, Integer> getReclaimed() {
+			return reclaimed;
+		}
+	}//Run
+
+
+
+	/**
+	 * Go through the lists, starting from the cursor, until they're done or the deadline passes.
+	 * @param datastore
+	 * @param run
+	 * @param start cursor returned by the last call, or null to start at the beginning
+	 * @param deadline System.currentTimeMillis() to stop at
+	 * @return where to pick up again, or null if every list was done
+	 */
+	public static Cursor collect(DatastoreService datastore, Run run, Cursor start, long deadline) {
+		Query q = new Query(ListInfo.KIND).setKeysOnly();
+		FetchOptions options = FetchOptions.Builder.withChunkSize(PAGE_SIZE);
+		if (start != null) {
+			options.startCursor(start);
+		}
+		QueryResultIterator<Entity> lists = datastore.prepare(q).asQueryResultIterator(options);
+		while (lists.hasNext()) {
+			if (System.currentTimeMillis() >= deadline) {
+				return lists.getCursor();
+			}
+			Key listKey = lists.next().getKey();
+			int reclaimed = collectList(datastore, run, listKey);
+			if (reclaimed > 0) {
+				run.addReclaimed(listKey.getParent().getName(), reclaimed);
+			}
+		}//while lists
+		return null;
+	}//collect
+
+
+
+	/**
+	 * Remove the tombstones in one list that everybody who can see it has synced past.
+	 * @return how many entities were removed
+	 */
+	public static int collectList(DatastoreService datastore, Run run, Key listKey) {
+		List<String> users = new ArrayList<String>();
+		users.add(listKey.getParent().getName());
+		Query privQuery = new Query(OtherUserPrivOnList.KIND).setAncestor(listKey).setKeysOnly();
+		for (Entity priv : datastore.prepare(privQuery).asIterable()) {
+			users.add(priv.getKey().getName());
+		}
+		long horizon = Long.MAX_VALUE;
+		for (String user : users) {
+			horizon = Math.min(horizon, run.getHorizon(datastore, user));
+		}
+
+		int reclaimed = 0;
+		int retries = ListCommitter.CONTENTION_RETRIES;
+		while (true) {
+			Transaction txn = datastore.beginTransaction();
+			try {
+				Entity listEntity;
+				try {
+					listEntity = datastore.get(txn, listKey);
+				} catch (EntityNotFoundException e) {
+					return reclaimed;
+				}
+				if (isPurgeable(listEntity, horizon)) {
+					txn.rollback();
+					markPurged(datastore, run, users, horizon);
+					return reclaimed + removeList(datastore, listKey, horizon);
+				}
+
+				List<Key> deleteKeys = purgeable(ListBlobs.getChildren(datastore, txn, listKey), horizon);
+				if (deleteKeys.isEmpty()) return reclaimed;
+				boolean more = deleteKeys.size() > BATCH_SIZE;
+				if (more) {
+					deleteKeys = new ArrayList<Key>(deleteKeys.subList(0, BATCH_SIZE));
+				}
+				markPurged(datastore, run, users, horizon);
+
+				List<Entity> toPut = new ArrayList<Entity>();
+				long oldVersion = ListCommitter.getVersion(listEntity);
+				ListCommitter.bumpVersion(listEntity, listKey, toPut);
+				ListBlobs.write(datastore, txn, listEntity, listKey, toPut, deleteKeys);
+				txn.commit();
+				SnapshotCache cache = SnapshotCache.get();
+				if (cache != null) {
+					cache.committed(listKey, false, oldVersion, toPut, deleteKeys);
+				}
+				reclaimed += deleteKeys.size();
+				if (!more) return reclaimed;
+				retries = ListCommitter.CONTENTION_RETRIES;
+			}
+			catch (ConcurrentModificationException e) {
+				if (retries == 0) {
+					throw e;
+				}
+				// Allow retry to occur
+				--retries;
+			} finally {
+				if (txn.isActive()) {
+					txn.rollback();
+				}
+			}
+		}//while true
+	}//collectList
+
+
+
+	private static void markPurged(DatastoreService datastore, Run run, List<String> users, long horizon) {
+		for (String user : users) {
+			run.markPurged(datastore, user, horizon);
+		}
+	}//markPurged
+
+
+
+	/**
+	 * Remove a deleted list and everything under it.  CascadeDelete does what's under it in
+	 * batches, then the list itself (and a blob's last chunk) goes if it's still a tombstone.
+	 * @return how many entities were removed
+	 */
+	private static int removeList(DatastoreService datastore, Key listKey, long horizon) {
+		int reclaimed = CascadeDelete.delete(datastore, listKey);
+		int retries = ListCommitter.CONTENTION_RETRIES;
+		while (true) {
+			Transaction txn = SharedWithMe.beginTransaction(datastore);
+			try {
+				try {
+					if (!isPurgeable(datastore.get(txn, listKey), horizon)) return reclaimed;
+				} catch (EntityNotFoundException e) {
+					return reclaimed;
+				}
+				List<Key> deleteKeys = new ArrayList<Key>();
+				for (Entity e : datastore.prepare(txn, new Query().setAncestor(listKey).setKeysOnly()).asIterable()) {
+					deleteKeys.add(e.getKey());
+				}
+				datastore.delete(txn, deleteKeys);
+				List<Key> reindex = SharedWithMe.update(datastore, txn, new ArrayList<Entity>(), deleteKeys);
+				txn.commit();
+				SharedWithMe.reindexNow(datastore, reindex);
+				return reclaimed + deleteKeys.size();
+			}
+			catch (ConcurrentModificationException e) {
+				if (retries == 0) {
+					throw e;
+				}
+				// Allow retry to occur
+				--retries;
+			} finally {
+				if (txn.isActive()) {
+					txn.rollback();
+				}
+			}
+		}//while true
+	}//removeList
+
+
+
+	/**
+	 * @param children everything under a list
+	 * @return the keys of the tombstones that can go, and of what goes with them
+	 */
+	static List<Key> purgeable(List<Entity> children, long horizon) {
+		List<Key> rv = new ArrayList<Key>();
+		Set<Key> items = new HashSet<Key>();
+		Set<String> categoryIds = new HashSet<String>();
+		for (Entity child : children) {
+			String kind = child.getKind();
+			if ((kind.equals(ItemInfo.KIND) || kind.equals(CategoryInfo.KIND) || kind.equals(ItemCategoryInfo.KIND))
+					&& isPurgeable(child, horizon)) {
+				rv.add(child.getKey());
+				if (kind.equals(ItemInfo.KIND)) items.add(child.getKey());
+				else if (kind.equals(CategoryInfo.KIND)) categoryIds.add(child.getKey().getName());
+			}
+		}//foreach child
+		if (items.isEmpty() && categoryIds.isEmpty()) return rv;
+
+		for (Entity child : children) {
+			Key key = child.getKey();
+			if (isPurgeable(child, horizon)) continue;
+			if (items.contains(key.getParent())
+					|| (key.getKind().equals(ItemCategoryInfo.KIND) && categoryIds.contains(key.getName()))) {
+				rv.add(key);
+			}
+		}//foreach child
+		return rv;
+	}//purgeable
+
+
+
+	private static boolean isPurgeable(Entity entity, long horizon) {
+		if (!TimeStampedNode.Status.DELETED.toString().equals(entity.getProperty(STATUS))) return false;
+		Long written = (Long) entity.getProperty(SERVER_UPDATE);
+		if (written == null) {
+			//Written before the server stamped them, so go by when the client deleted it
+			written = (Long) entity.getProperty(LAST_UPDATE);
+		}
+		return written != null && written < horizon;
+	}//isPurgeable
+}//TombstoneCollector
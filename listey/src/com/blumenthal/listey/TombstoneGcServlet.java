@@ -0,0 +1,75 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+/**
+ * Runs TombstoneCollector over every list, from cron (see cron.xml), and prints and logs how
+ * many entities it removed for each user.  If it runs out of time it adds a task to carry on
+ * from where it got to.
+ * It's under /tasks, which web.xml limits to the app's admins (which includes cron and the task queue).
+ *
+ * Parameters:
+ *   cursor - where to carry on from, only set by the task it adds
+ *
+ * @author David
+ *
+ */
+@SuppressWarnings("serial")
+public class TombstoneGcServlet extends HttpServlet {
+	private static final Logger log = Logger.getLogger(TombstoneGcServlet.class.getName());
+
+	public static final String URL = "/tasks/gcTombstones";
+	public static final String CURSOR = "cursor";
+	//Cron and task requests get 10 minutes, leave room to finish the list it's on
+	public static final long MAX_RUN_MILLIS = 8 * 60 * 1000L;
+
+	@Override
+	public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		String cursorString = req.getParameter(CURSOR);
+		Cursor start = cursorString == null ? null : Cursor.fromWebSafeString(cursorString);
+		long now = System.currentTimeMillis();
+
+		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+		TombstoneCollector.Run run = new TombstoneCollector.Run(now);
+		Cursor next = TombstoneCollector.collect(datastore, run, start, now + MAX_RUN_MILLIS);
+		if (next != null) {
+			QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withUrl(URL).param(CURSOR, next.toWebSafeString()));
+		}
+
+		resp.setContentType("text/plain");
+		resp.setCharacterEncoding(SyncIO.DEFAULT_CHARSET);
+		PrintWriter out = resp.getWriter();
+		int total = 0;
+		for (Map.Entry<String, Integer> entry : run.getReclaimed().entrySet()) {
+			out.println(entry.getKey() + ": " + entry.getValue() + " reclaimed");
+			log.info("doGet: " + entry.getKey() + " reclaimed " + entry.getValue());
+			total += entry.getValue();
+		}
+		String summary = total + " reclaimed for " + run.getReclaimed().size() + " users" + (next != null ? ", continuing in a task" : "");
+		out.println(summary);
+		log.info("doGet: " + summary);
+	}//doGet
+
+
+
+	@Override
+	public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		doGet(req, resp);
+	}//doPost
+}//TombstoneGcServlet
@@ -0,0 +1,345 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * Per-user admission control for the sync servlets, checked before anything is parsed.
+ *
+ * Each user gets a token bucket: a sync takes a token, tokens come back at tokensPerSecond,
+ * and up to burst can be saved up.  On top of that a user can only have maxConcurrent syncs
+ * running at once, so a client stuck in a retry loop can't tie up the instance.  Requests
+ * over either limit get a 429 with a Retry-After.  Request bodies bigger than maxRequestBytes
+ * get a 413, from the Content-Length if there is one, or else once that many bytes have
+ * been read (see SyncIO.openRequestStream).
+ *
+ * The buckets are kept in this instance.  With useMemcache, each user's syncs are also counted
+ * in memcache per window of windowSeconds, so all the instances together can't let through
+ * more than burst + tokensPerSecond * windowSeconds per window.  Memcache errors let the
+ * request through, the in-process bucket still applies.
+ *
+ * Settings (system properties, see ListeyConfig):
+ *   listey.rate.tokensPerSecond - default 2
+ *   listey.rate.burst - default 20
+ *   listey.rate.maxConcurrent - default 2
+ *   listey.rate.maxRequestBytes - default 1048576
+ *   listey.rate.useMemcache - 1 to turn it on, default 0
+ *   listey.rate.windowSeconds - default 60
+ *
+ * @author David
+ *
+ */
+public class UserRateLimiter {
+	private static final Logger log = Logger.getLogger(UserRateLimiter.class.getName());
+
+	//Not in HttpServletResponse for servlet 2.5
+	public static final int SC_TOO_MANY_REQUESTS = 429;
+	public static final int SC_REQUEST_ENTITY_TOO_LARGE = 413;
+	public static final String NAMESPACE = "userRateLimiter";
+	//Past this many users, idle buckets that are full again get dropped
+	public static final int MAX_IDLE_BUCKETS = 10000;
+
+	private static UserRateLimiter instance;
+
+	private double tokensPerSecond;
+	private int burst;
+	private int maxConcurrent;
+	private long maxRequestBytes;
+	private boolean useMemcache;
+	private int windowSeconds;
+
+	private Map<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+	private MemcacheService memcache;
+
+	private AtomicLong admitted = new AtomicLong();
+	private AtomicLong rejectedRate = new AtomicLong();
+	private AtomicLong rejectedConcurrent = new AtomicLong();
+	private AtomicLong rejectedSize = new AtomicLong();
+
+
+
+	public UserRateLimiter(double tokensPerSecond, int burst, int maxConcurrent, long maxRequestBytes,
+			boolean useMemcache, int windowSeconds) {
+		this.tokensPerSecond = tokensPerSecond;
+		this.burst = burst;
+		this.maxConcurrent = maxConcurrent;
+		this.maxRequestBytes = maxRequestBytes;
+		this.useMemcache = useMemcache;
+		this.windowSeconds = windowSeconds;
+	}
+
+
+
+	/**
+	 * @return the limiter for this instance, set up from the system properties
+	 */
+	public static synchronized UserRateLimiter get() {
+		if (instance == null) {
+			instance = new UserRateLimiter(ListeyConfig.getDouble("rate.tokensPerSecond", 2),
+					ListeyConfig.getInt("rate.burst", 20),
+					ListeyConfig.getInt("rate.maxConcurrent", 2),
+					ListeyConfig.getLong("rate.maxRequestBytes", 1 << 20),
+					ListeyConfig.getInt("rate.useMemcache", 0) != 0,
+					ListeyConfig.getInt("rate.windowSeconds", 60));
+		}
+		return instance;
+	}//get
+
+
+
+	/**
+	 * Use a different limiter, e.g. for tests
+	 */
+	public static synchronized void set(UserRateLimiter newLimiter) {
+		instance = newLimiter;
+	}//set
+
+
+
+	/**
+	 * Check the Content-Length against maxRequestBytes, and send a 413 if it's over.
+	 * Bodies without a Content-Length are limited as they're read instead.
+	 * @return true if the request can go on
+	 */
+	public boolean checkContentLength(HttpServletRequest req, HttpServletResponse resp) {
+		int length = req.getContentLength();
+		if (length > maxRequestBytes) {
+			rejectTooLarge(resp, length + " bytes");
+			return false;
+		}
+		return true;
+	}//checkContentLength
+
+
+
+	/**
+	 * Send a 413 for a body that turned out to be over maxRequestBytes
+	 * @param what for the log
+	 */
+	public void rejectTooLarge(HttpServletResponse resp, String what) {
+		rejectedSize.incrementAndGet();
+		log.warning("rejectTooLarge: request body of " + what + " is over " + maxRequestBytes);
+		resp.setStatus(SC_REQUEST_ENTITY_TOO_LARGE);
+	}//rejectTooLarge
+
+
+
+	/**
+	 * Take a token for a sync by this user.  If this returns 0, the caller has to call exit() when it's done.
+	 * @return 0 if admitted, otherwise the number of seconds to tell the client to wait
+	 */
+	public int enter(String userEmail) {
+		Bucket bucket = getBucket(userEmail);
+		int retryAfterSeconds;
+		synchronized (bucket) {
+			bucket.refill(System.currentTimeMillis());
+			if (bucket.running >= maxConcurrent) {
+				rejectedConcurrent.incrementAndGet();
+				log.warning("enter: " + userEmail + " already has " + bucket.running + " syncs running");
+				return 1;
+			}
+			if (bucket.tokens < 1) {
+				rejectedRate.incrementAndGet();
+				retryAfterSeconds = (int) Math.ceil((1 - bucket.tokens) / tokensPerSecond);
+				log.warning("enter: " + userEmail + " is over " + tokensPerSecond + "/s, retry after " + retryAfterSeconds);
+				return Math.max(1, retryAfterSeconds);
+			}
+			bucket.tokens -= 1;
+			bucket.running++;
+		}//synchronized bucket
+
+		retryAfterSeconds = checkMemcache(userEmail);
+		if (retryAfterSeconds > 0) {
+			synchronized (bucket) {
+				bucket.running--;
+			}
+			rejectedRate.incrementAndGet();
+			log.warning("enter: " + userEmail + " is over the limit across instances, retry after " + retryAfterSeconds);
+			return retryAfterSeconds;
+		}
+		admitted.incrementAndGet();
+		return 0;
+	}//enter
+
+
+
+	/**
+	 * The sync enter() let in is done
+	 */
+	public void exit(String userEmail) {
+		Bucket bucket = getBucket(userEmail);
+		synchronized (bucket) {
+			//It can be a new bucket if the old one was dropped while this sync ran
+			if (bucket.running > 0) bucket.running--;
+		}
+	}//exit
+
+
+
+	/**
+	 * Send the response for a request enter() turned away
+	 * @param retryAfterSeconds what enter() returned
+	 */
+	public void reject(HttpServletResponse resp, int retryAfterSeconds) {
+		resp.setStatus(SC_TOO_MANY_REQUESTS);
+		resp.setHeader("Retry-After", Integer.toString(retryAfterSeconds));
+	}//reject
+
+
+
+	/**
+	 * Count this sync in memcache, if that's turned on
+	 * @return 0 if it's under the limit, otherwise seconds until the next window
+	 */
+	private int checkMemcache(String userEmail) {
+		if (!useMemcache) return 0;
+		long now = System.currentTimeMillis();
+		long windowMillis = windowSeconds * 1000L;
+		long window = now / windowMillis;
+		try {
+			//Old windows are never read again, memcache evicts them
+			Long count = getMemcache().increment(userEmail + ":" + window, 1, 0L);
+			if (count != null && count > burst + tokensPerSecond * windowSeconds) {
+				return (int) Math.max(1, ((window + 1) * windowMillis - now + 999) / 1000);
+			}
+		} catch (RuntimeException e) {
+			log.warning("checkMemcache: " + e + ", using only this instance's limits");
+		}
+		return 0;
+	}//checkMemcache
+
+
+
+	private synchronized MemcacheService getMemcache() {
+		if (memcache == null) {
+			memcache = MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+		}
+		return memcache;
+	}//getMemcache
+
+
+
+	private Bucket getBucket(String userEmail) {
+		Bucket bucket = buckets.get(userEmail);
+		if (bucket == null) {
+			if (buckets.size() >= MAX_IDLE_BUCKETS) {
+				dropIdleBuckets();
+			}
+			synchronized (buckets) {
+				bucket = buckets.get(userEmail);
+				if (bucket == null) {
+					bucket = new Bucket(burst, System.currentTimeMillis());
+					buckets.put(userEmail, bucket);
+				}
+			}
+		}
+		return bucket;
+	}//getBucket
+
+
+
+	/**
+	 * Forget the users that have nothing running and a full bucket, they'd get a new full one anyway
+	 */
+	private void dropIdleBuckets() {
+		long now = System.currentTimeMillis();
+		Iterator<Bucket> iter = buckets.values().iterator();
+		while (iter.hasNext()) {
+			Bucket bucket = iter.next();
+			synchronized (bucket) {
+				bucket.refill(now);
+				if (bucket.running == 0 && bucket.tokens >= burst) {
+					iter.remove();
+				}
+			}
+		}//foreach bucket
+	}//dropIdleBuckets
+
+
+
+	/**
+	 * @return the biggest request body that's allowed
+	 */
+	public long getMaxRequestBytes() {
+		return maxRequestBytes;
+	}
+
+	public long getAdmitted() {
+		return admitted.get();
+	}
+
+	/**
+	 * @return how many were turned away for being over the rate
+	 */
+	public long getRejectedRate() {
+		return rejectedRate.get();
+	}
+
+	/**
+	 * @return how many were turned away for having too many running
+	 */
+	public long getRejectedConcurrent() {
+		return rejectedConcurrent.get();
+	}
+
+	/**
+	 * @return how many were turned away for being too big
+	 */
+	public long getRejectedSize() {
+		return rejectedSize.get();
+	}
+
+
+
+	@Override
+	public String toString() {
+		return "UserRateLimiter users=" + buckets.size() + " admitted=" + getAdmitted() + " rejectedRate=" + getRejectedRate()
+				+ " rejectedConcurrent=" + getRejectedConcurrent() + " rejectedSize=" + getRejectedSize();
+	}//toString
+
+
+
+	/** One user's tokens and running count.  Synchronize on it to use it. */
+	private class Bucket {
+		double tokens;
+		long lastRefill;
+		int running = 0;
+
+		Bucket(double tokens, long now) {
+			this.tokens = tokens;
+			this.lastRefill = now;
+		}
+
+		void refill(long now) {
+			if (now > lastRefill) {
+				tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerSecond / 1000);
+				lastRefill = now;
+			}
+		}
+	}//Bucket
+
+
+
+	/**
+	 * Thrown while reading a request body once it's gone over maxRequestBytes
+	 */
+	@SuppressWarnings("serial")
+	public static class TooLargeException extends IOException {
+		public TooLargeException(long maxBytes) {
+			super("Request body is over " + maxBytes + " bytes");
+		}
+	}//TooLargeException
+}//UserRateLimiter
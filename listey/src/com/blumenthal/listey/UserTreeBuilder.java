@@ -0,0 +1,160 @@
+/**
+ *
+ */
+package com.blumenthal.listey;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * Builds a ListeyDataOneUser one entity at a time, as the entities come back from the datastore,
+ * so a big user never has to be held as entities and as objects at the same time.
+ *
+ * Each entity is turned into its object and put in its parent right away.  One whose parent
+ * hasn't come yet (an item before its list, an item category before its item) is kept until
+ * the parent comes, then put in.  An ancestor query returns each parent before its children,
+ * so normally nothing is kept.  Anything still waiting at the end has no parent to go in, and
+ * is dropped, same as before.
+ *
+ * Nothing under a deleted list or item is put in, since it's only there until CascadeDelete
+ * gets to it.
+ *
+ * @author David
+ *
+ */
+public class UserTreeBuilder {
+	private ListeyDataOneUser oneUser;
+	private boolean includePrivs;
+
+	//Entities waiting for their parent, by parent key
+	private Map<Key, List<Entity>> waiting = new HashMap<Key, List<Entity>>();
+	private int waitingCount = 0;
+	private int maxWaitingCount = 0;
+	private int added = 0;
+
+
+
+	/**
+	 * @param oneUser - add to that
+	 * @param includePrivs - if true, also add the privs the owner granted other users on the lists.
+	 */
+	public UserTreeBuilder(ListeyDataOneUser oneUser, boolean includePrivs) {
+		this.oneUser = oneUser;
+		this.includePrivs = includePrivs;
+	}
+
+
+
+	/**
+	 * Add one entity from under the user (or one of their lists)
+	 */
+	public void add(Entity e) {
+		added++;
+		if (!attach(e)) {
+			List<Entity> siblings = waiting.get(e.getParent());
+			if (siblings == null) {
+				siblings = new ArrayList<Entity>();
+				waiting.put(e.getParent(), siblings);
+			}
+			siblings.add(e);
+			waitingCount++;
+			maxWaitingCount = Math.max(maxWaitingCount, waitingCount);
+		}
+	}//add
+
+
+
+	/**
+	 * @return the user, with everything that was added that had a parent
+	 */
+	public ListeyDataOneUser finish() {
+		waiting.clear();
+		waitingCount = 0;
+		return oneUser;
+	}//finish
+
+
+
+	/**
+	 * Put the entity's object in its parent, and then anything that was waiting for it
+	 * @return false if the parent isn't there (yet)
+	 */
+	private boolean attach(Entity e) {
+		String kind = e.getKind();
+		if (kind.equals(ListInfo.KIND)) {
+			ListInfo listInfo = new ListInfo(e);
+			oneUser.lists.put(listInfo.getUniqueId(), listInfo);
+			attachWaiting(e.getKey());
+		}
+		else if (kind.equals(CategoryInfo.KIND)) {
+			ListInfo listeyList = oneUser.lists.get(e.getParent().getName());
+			if (listeyList == null) return false;
+			if (isDeleted(listeyList)) return true;
+			listeyList.getCategories().add(new CategoryInfo(e));
+		}
+		else if (kind.equals(ItemInfo.KIND)) {
+			ListInfo listeyList = oneUser.lists.get(e.getParent().getName());
+			if (listeyList == null) return false;
+			if (isDeleted(listeyList)) return true;
+			listeyList.getItems().put(e.getKey().getName(), new ItemInfo(e));
+			attachWaiting(e.getKey());
+		}
+		else if (kind.equals(ItemCategoryInfo.KIND)) {
+			String listId = e.getParent().getParent().getName();
+			String itemId = e.getParent().getName();
+			ListInfo listeyList = oneUser.lists.get(listId);
+			ItemInfo item = listeyList == null ? null : listeyList.getItems().get(itemId);
+			if (item == null) return false;
+			if (isDeleted(item)) return true;
+			item.getCategories().put(e.getKey().getName(), new ItemCategoryInfo(e));
+		}
+		else if (kind.equals(OtherUserPrivOnList.KIND)) {
+			if (!includePrivs) return true;
+			ListInfo listeyList = oneUser.lists.get(e.getParent().getName());
+			if (listeyList == null) return false;
+			if (isDeleted(listeyList)) return true;
+			listeyList.getOtherUserPrivs().put(e.getKey().getName(), new OtherUserPrivOnList(e));
+		}
+		//Nothing interesting actually is stored in the 'user' entity, so just skip it and anything else
+		return true;
+	}//attach
+
+
+
+	private static boolean isDeleted(TimeStampedNode parent) {
+		return parent.getStatus() == TimeStampedNode.Status.DELETED;
+	}//isDeleted
+
+
+
+	private void attachWaiting(Key parentKey) {
+		List<Entity> children = waiting.remove(parentKey);
+		if (children != null) {
+			waitingCount -= children.size();
+			for (Entity child : children) {
+				attach(child);
+			}
+		}
+	}//attachWaiting
+
+
+
+	/**
+	 * @return how many entities have been added
+	 */
+	public int getAdded() {
+		return added;
+	}
+
+	/**
+	 * @return the most entities that were waiting for a parent at once
+	 */
+	public int getMaxWaiting() {
+		return maxWaitingCount;
+	}
+}//UserTreeBuilder